@@ -0,0 +1,280 @@
+package com.bitgriff.bench;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.bitgriff.http.HttpMultipartClient;
+import com.bitgriff.http.HttpProgressListener;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Measures upload throughput of a photo (1 MB, unless megabytes param is given) 
+ * to server on loopback interface, in photos per second. Current HttpMultipartClient, which 
+ * reports progress once per buffer or file chunk, is compared with the stream 
+ * it replaced, which passed every byte through write(int) of progress stream 
+ * (byteStream), and with the same stream given bulk write (bulkStream).
+ * 
+ * Server runs in the same process, and on a single core host its copying of
+ * the upload takes as much time as the client, so throughput mostly measures 
+ * the server. CPU time and bytes allocated by calling thread are counted 
+ * separately: cost of client per upload is cpuNanos or bytes counter divided 
+ * by calls counter.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UploadBenchmark {
+	final private static String BOUNDARY = "xgeyy6u56845245ggbh576youu27o96j8564235f";
+	
+	@Param({"channel", "bulkStream", "byteStream"})
+	public String client;
+	
+	/** photo size, megabytes. byteStream takes minutes per op for large photos. */
+	@Param({"1"})
+	public int megabytes;
+	
+	/**
+	 * CPU time and bytes allocated by calling thread and number of uploads, 
+	 * summed over iterations.
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class ClientCost {
+		public long cpuNanos;
+		public long bytes;
+		public long calls;
+		
+		private com.sun.management.ThreadMXBean threads = 
+			(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		private long startCpu;
+		private long startBytes;
+		
+		@Setup(Level.Iteration)
+		public void start() {
+			cpuNanos = 0;
+			bytes = 0;
+			calls = 0;
+			startCpu = threads.getCurrentThreadCpuTime();
+			startBytes = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		
+		@TearDown(Level.Iteration)
+		public void stop() {
+			cpuNanos = threads.getCurrentThreadCpuTime() - startCpu;
+			bytes = threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - startBytes;
+		}
+	}
+	
+	private HttpServer server;
+	private String url;
+	private File photo;
+	private int progressCount;
+	
+	private HttpProgressListener listener = new HttpProgressListener() {
+		public void sendStarted(int total) {
+		}
+		
+		public void sendProgress(int uploaded, int total) {
+			progressCount++;
+		}
+		
+		public void sendError(Exception ex) {
+		}
+		
+		public void sendDone() {
+		}
+	};
+	
+	@Setup
+	public void setup() throws IOException {
+		photo = File.createTempFile("photo", ".jpg");
+		byte[] data = new byte[megabytes * 1024 * 1024];
+		new Random(20120401L).nextBytes(data);
+		
+		FileOutputStream out = new FileOutputStream(photo);
+		try {
+			out.write(data);
+		}
+		finally {
+			out.close();
+		}
+		
+		System.setProperty("sun.net.httpserver.nodelay", "true");
+		
+		server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				InputStream in = exchange.getRequestBody();
+				byte buf[] = new byte[64 * 1024];
+				while (in.read(buf) != -1) {
+					// discard upload
+				}
+				
+				byte[] body = "OK".getBytes("UTF-8");
+				exchange.sendResponseHeaders(200, body.length);
+				exchange.getResponseBody().write(body);
+				exchange.close();
+			}
+		});
+		server.start();
+		
+		url = "http://localhost:" + server.getAddress().getPort() + "/upload";
+	}
+	
+	@TearDown
+	public void tearDown() {
+		server.stop(0);
+		photo.delete();
+	}
+	
+	@Benchmark
+	public int upload(ClientCost cost) throws IOException {
+		cost.calls++;
+		if (client.equals("channel")) {
+			HttpMultipartClient http = new HttpMultipartClient(url + "?q=photoupload", listener);
+			http.addField("title", "Photo");
+			http.addFile("file", "image/jpeg", "photo.jpg", photo);
+			http.execute();
+		}
+		else {
+			uploadStream(client.equals("bulkStream"));
+		}
+		return progressCount;
+	}
+	
+	/**
+	 * Sends the same request the way HttpMultipartClient did before NIO change: 
+	 * through PrintStream over progress stream.
+	 * @param bulk <code>true</code> if progress stream passes buffers through as a whole
+	 */
+	private void uploadStream(boolean bulk) throws IOException {
+		String field = "--" + BOUNDARY + "\r\n"
+			+ "Content-Disposition: form-data; name=\"title\"\r\n"
+			+ "Content-type: text/plain\r\n\r\nPhoto\r\n";
+		String fileHeader = "--" + BOUNDARY + "\r\n"
+			+ "Content-Disposition: form-data; name=\"file\"; filename=\"photo.jpg\"\r\n"
+			+ "Content-type: image/jpeg\r\n\r\n";
+		String epilog = "--" + BOUNDARY + "--\r\n\r\n";
+		int total = field.length() + fileHeader.length() + (int) photo.length() + 2 + epilog.length();
+		
+		Socket socket = new Socket("localhost", server.getAddress().getPort());
+		try {
+			PrintStream out = new PrintStream(bulk 
+				? new BulkProgressOutputStream(socket.getOutputStream(), total) 
+				: new ProgressOutputStream(socket.getOutputStream(), total));
+			
+			out.print("POST /upload?q=photoupload HTTP/1.1\r\n"
+				+ "Host: localhost\r\n"
+				+ "Content-type: multipart/form-data; boundary=" + BOUNDARY + "\r\n"
+				+ "Content-length: " + total + "\r\n\r\n");
+			out.print(field);
+			out.print(fileHeader);
+			
+			byte buf[] = new byte[1024 * 256];
+			int len;
+			FileInputStream in = new FileInputStream(photo);
+			try {
+				while ((len = in.read(buf)) > 0) {
+					out.write(buf, 0, len);
+				}
+			}
+			finally {
+				in.close();
+			}
+			
+			out.print("\r\n");
+			out.print(epilog);
+			out.flush();
+			
+			// read status line and headers of response
+			InputStream response = socket.getInputStream();
+			int c;
+			while ((c = response.read()) != -1 && c != '\n') {
+			}
+		}
+		finally {
+			socket.close();
+		}
+	}
+	
+	/**
+	 * Progress stream of HttpMultipartClient before NIO change.
+	 */
+	private class ProgressOutputStream extends OutputStream {
+		protected OutputStream out;
+		protected int total;
+		protected int sent;
+		protected int prevProgress;
+		
+		public ProgressOutputStream(OutputStream out, int total) {
+			this.out = out;
+			this.total = total;
+		}
+		
+		@Override
+		public void write(int oneByte) throws IOException {
+			out.write(oneByte);
+			
+			sent++;
+			
+			if ((sent - prevProgress) > 16 * 1024 || sent == total) {
+				listener.sendProgress(sent, total);
+				
+				prevProgress = sent;
+			}
+		}
+	}
+	
+	/**
+	 * Progress stream, that writes buffers to socket as a whole and checks 
+	 * progress once per buffer.
+	 */
+	private class BulkProgressOutputStream extends ProgressOutputStream {
+		public BulkProgressOutputStream(OutputStream out, int total) {
+			super(out, total);
+		}
+		
+		@Override
+		public void write(byte[] data, int offset, int length) throws IOException {
+			out.write(data, offset, length);
+			
+			sent += length;
+			
+			if ((sent - prevProgress) > 16 * 1024 || sent == total) {
+				listener.sendProgress(sent, total);
+				
+				prevProgress = sent;
+			}
+		}
+	}
+}
@@ -0,0 +1,169 @@
+package com.bitgriff.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import redstone.xmlrpc.XmlRpcClient;
+import redstone.xmlrpc.XmlRpcStruct;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Measures postPage of DrupalConnect against server on loopback interface, and 
+ * bytes allocated by calling thread, which leaves out allocation of server threads, 
+ * counted by "-prof gc". Allocation per postPage is bytes counter divided by 
+ * calls counter. DrupalConnect, which 
+ * keeps one client per endpoint (cachedClient), is compared with the code it 
+ * replaced, which created client, with its serializer and request properties, 
+ * for each call (clientPerCall).
+ * It is in DrupalConnect package to connect it to the local server.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PostPageBenchmark {
+	final private static String COOKIE = "SESS=s1";
+	
+	/**
+	 * Bytes allocated by calling thread and number of calls, summed over iterations.
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class Allocation {
+		public long bytes;
+		public long calls;
+		
+		private com.sun.management.ThreadMXBean threads = 
+			(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		private long start;
+		
+		@Setup(Level.Iteration)
+		public void start() {
+			bytes = 0;
+			calls = 0;
+			start = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		
+		@TearDown(Level.Iteration)
+		public void stop() {
+			bytes = threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - start;
+		}
+	}
+	
+	private HttpServer server;
+	private String url;
+	private DrupalConnect drupal;
+	
+	private byte[] loginResponse;
+	private byte[] createResponse;
+	private byte[] faultResponse;
+	
+	@Setup
+	public void setup() throws Exception {
+		// DrupalConnect uses SAX parser, the one of the JDK stands in for the one of Android
+		if (System.getProperty("org.xml.sax.driver") == null)
+			System.setProperty("org.xml.sax.driver", "com.sun.org.apache.xerces.internal.parsers.SAXParser");
+		// headers and body are written separately, avoid delayed acknowledgement
+		System.setProperty("sun.net.httpserver.nodelay", "true");
+		
+		loginResponse = response("<struct><member><name>sessid</name><value>s1</value></member>"
+				+ "<member><name>session_name</name><value>SESS</value></member></struct>");
+		createResponse = response("<struct><member><name>nid</name><value><int>42</int></value></member></struct>");
+		faultResponse = ("<?xml version=\"1.0\"?><methodResponse><fault><value><struct>"
+				+ "<member><name>faultCode</name><value><int>401</int></value></member>"
+				+ "<member><name>faultString</name><value>Access denied</value></member>"
+				+ "</struct></value></fault></methodResponse>").getBytes("UTF-8");
+		
+		server = HttpServer.create(new InetSocketAddress("localhost", 0), 50);
+		server.createContext("/", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				String request = new String(readAll(exchange.getRequestBody()), "UTF-8");
+				
+				byte[] response;
+				if (request.indexOf("user.login") != -1)
+					response = loginResponse;
+				else if (COOKIE.equals(exchange.getRequestHeaders().getFirst("Cookie")))
+					response = createResponse;
+				else
+					response = faultResponse;
+				
+				exchange.getResponseHeaders().set("Content-Type", "text/xml");
+				exchange.sendResponseHeaders(200, response.length);
+				OutputStream out = exchange.getResponseBody();
+				out.write(response);
+				out.close();
+			}
+		});
+		server.start();
+		
+		String urlBase = "http://localhost:" + server.getAddress().getPort() + "/drupal";
+		url = urlBase + "/?q=androidrpc";
+		drupal = new DrupalConnect(urlBase);
+		drupal.login("user", "password");
+	}
+	
+	@TearDown
+	public void tearDown() {
+		server.stop(0);
+	}
+	
+	@Benchmark
+	public int cachedClient(Allocation allocation) throws Exception {
+		allocation.calls++;
+		return drupal.postPage("title", "body");
+	}
+	
+	@Benchmark
+	public int clientPerCall(Allocation allocation) throws Exception {
+		allocation.calls++;
+		
+		XmlRpcClient xmlrpc = new XmlRpcClient(url, false);
+		xmlrpc.setRequestProperty("Cookie", COOKIE);
+		
+		XmlRpcStruct params = new XmlRpcStruct();
+		params.put("type", "page");
+		params.put("title", "title");
+		params.put("body", "body");
+		
+		XmlRpcStruct res = (XmlRpcStruct) xmlrpc.invoke("node.create", new Object[] { params });
+		return Integer.parseInt(res.get("nid").toString());
+	}
+	
+	private static byte[] response(String value) throws IOException {
+		return ("<?xml version=\"1.0\"?><methodResponse><params><param><value>" 
+				+ value + "</value></param></params></methodResponse>").getBytes("UTF-8");
+	}
+	
+	private static byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream data = new ByteArrayOutputStream();
+		byte buf[] = new byte[4096];
+		int len;
+		while ((len = in.read(buf)) != -1)
+			data.write(buf, 0, len);
+		return data.toByteArray();
+	}
+}
@@ -0,0 +1,169 @@
+/*
+    This library is free software; you can redistribute it and/or modify it under the terms
+    of the GNU Lesser General Public License as published by the Free Software Foundation;
+    either version 2.1 of the License, or (at your option) any later version.
+
+    This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+    without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+    See the GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License along with this
+    library; if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+    Boston, MA  02111-1307  USA
+*/
+
+package redstone.xmlrpc.bench;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import redstone.xmlrpc.XmlRpcClient;
+import redstone.xmlrpc.XmlRpcConnectionPool;
+import redstone.xmlrpc.XmlRpcServer;
+import redstone.xmlrpc.XmlRpcStruct;
+import redstone.xmlrpc.util.Utf8Writer;
+
+/**
+ *  Measures the throughput of a single XmlRpcClient shared by 1 to 8 threads, calling
+ *  node.save on a server on the loopback interface over pooled keep-alive connections.
+ *  The server runs in the same process, so on a host with fewer cores than calling
+ *  and serving threads together, as the one of bench/baseline.txt, throughput cannot
+ *  grow with the number of threads, and the results say nothing about contention in
+ *  the client.
+ */
+
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class ClientBenchmark
+{
+    @Setup
+    public void setup() throws IOException
+    {
+        final XmlRpcServer server = new XmlRpcServer();
+        server.setParserEngine( ParserBenchmark.createEngine( "tokenizer" ) );
+        server.addInvocationHandler( "node", new DispatcherBenchmark.NodeHandler() );
+
+        // Headers and body are written separately, so Nagle's algorithm would add the
+        // delayed acknowledgement time of the client to each response.
+
+        System.setProperty( "sun.net.httpserver.nodelay", "true" );
+
+        httpServer = HttpServer.create( new InetSocketAddress( "localhost", 0 ), 64 );
+        httpServer.setExecutor( serverThreads );
+        httpServer.createContext( "/", new HttpHandler()
+        {
+            public void handle( HttpExchange exchange ) throws IOException
+            {
+                Utf8Writer response = new Utf8Writer( 1024 );
+
+                try
+                {
+                    server.execute( exchange.getRequestBody(), response );
+                }
+                catch ( Exception e )
+                {
+                    exchange.sendResponseHeaders( 500, -1 );
+                    exchange.close();
+                    return;
+                }
+
+                exchange.getResponseHeaders().set( "Content-Type", "text/xml" );
+                exchange.sendResponseHeaders( 200, response.size() );
+                response.writeTo( exchange.getResponseBody() );
+                exchange.close();
+            }
+        } );
+        httpServer.start();
+
+        pool = new XmlRpcConnectionPool( 8, 8, 30000 );
+        client = new XmlRpcClient( "http://localhost:" + httpServer.getAddress().getPort() + "/", false );
+        client.setConnectionPool( pool );
+        client.setParserEngine( ParserBenchmark.createEngine( "tokenizer" ) );
+        node = Payloads.node( 1, 2048 );
+    }
+
+
+    @TearDown
+    public void tearDown()
+    {
+        pool.shutdown();
+        httpServer.stop( 0 );
+        serverThreads.shutdownNow();
+    }
+
+
+    @Benchmark
+    @Threads( 1 )
+    public Object invoke1() throws Exception
+    {
+        return invoke();
+    }
+
+
+    @Benchmark
+    @Threads( 2 )
+    public Object invoke2() throws Exception
+    {
+        return invoke();
+    }
+
+
+    @Benchmark
+    @Threads( 4 )
+    public Object invoke4() throws Exception
+    {
+        return invoke();
+    }
+
+
+    @Benchmark
+    @Threads( 8 )
+    public Object invoke8() throws Exception
+    {
+        return invoke();
+    }
+
+
+    private Object invoke() throws Exception
+    {
+        return client.invoke( "node.save", new Object[] { node } );
+    }
+
+
+    /** The server on the loopback interface. */
+    private HttpServer httpServer;
+
+    /** Threads serving the requests, one per connection. */
+    private ExecutorService serverThreads = Executors.newCachedThreadPool();
+
+    /** Pool of the connections to the server, one per calling thread. */
+    private XmlRpcConnectionPool pool;
+
+    /** The client shared by all threads. */
+    private XmlRpcClient client;
+
+    /** The node saved. */
+    private XmlRpcStruct node;
+}
@@ -0,0 +1,92 @@
+/*
+    This library is free software; you can redistribute it and/or modify it under the terms
+    of the GNU Lesser General Public License as published by the Free Software Foundation;
+    either version 2.1 of the License, or (at your option) any later version.
+
+    This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+    without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+    See the GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License along with this
+    library; if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+    Boston, MA  02111-1307  USA
+*/
+package redstone.xmlrpc.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import redstone.xmlrpc.XmlRpcServer;
+import redstone.xmlrpc.util.Compression;
+
+/**
+ *  Measures the cost of compression in XmlRpcServer.execute(), taking the content
+ *  codings of the request: node.index of 50 nodes, with the request and the response
+ *  both in the given coding, against the same call uncompressed (identity).
+ */
+
+@State( Scope.Thread )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 3, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class CompressionBenchmark
+{
+    @Param( { "identity", "gzip", "deflate" } )
+    public String coding;
+
+
+    @Setup
+    public void setup() throws Exception
+    {
+        server.setParserEngine( ParserBenchmark.createEngine( "tokenizer" ) );
+        server.addInvocationHandler( "node", new DispatcherBenchmark.NodeHandler() );
+
+        call = Payloads.call( "node.index", new Object[] { Payloads.nodes( 50, 256 ) } );
+        contentEncoding = coding.equals( "identity" ) ? null : coding;
+
+        if ( contentEncoding != null )
+        {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            OutputStream output = Compression.encode( compressed, contentEncoding );
+            output.write( call );
+            output.close();
+            call = compressed.toByteArray();
+        }
+    }
+
+
+    @Benchmark
+    public int execute() throws Exception
+    {
+        response.reset();
+        server.execute( new ByteArrayInputStream( call ), contentEncoding, contentEncoding, response );
+        return response.size();
+    }
+
+
+    /** The call executed, in the content coding measured. */
+    private byte[] call;
+
+    /** The content coding of the request and response, or null for identity. */
+    private String contentEncoding;
+
+    /** The server, dispatching to the node handler. */
+    private XmlRpcServer server = new XmlRpcServer();
+
+    /** Stream receiving the response, reset before each operation. */
+    private ByteArrayOutputStream response = new ByteArrayOutputStream( 64 * 1024 );
+}
@@ -0,0 +1,103 @@
+/*
+    This library is free software; you can redistribute it and/or modify it under the terms
+    of the GNU Lesser General Public License as published by the Free Software Foundation;
+    either version 2.1 of the License, or (at your option) any later version.
+
+    This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+    without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+    See the GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License along with this
+    library; if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+    Boston, MA  02111-1307  USA
+*/
+
+package redstone.xmlrpc.bench;
+
+import java.io.ByteArrayInputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import redstone.xmlrpc.XmlRpcServer;
+import redstone.xmlrpc.util.Utf8Writer;
+
+/**
+ *  Measures XmlRpcServer.execute() end to end: parsing a call, invoking the handler
+ *  through reflection, and serializing the response.
+ */
+
+@State( Scope.Thread )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 3, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class DispatcherBenchmark
+{
+    @Param( { "sax", "pull", "tokenizer" } )
+    public String engine;
+
+    @Param( { "node.save", "node.index" } )
+    public String method;
+
+
+    @Setup
+    public void setup() throws Exception
+    {
+        server.setParserEngine( ParserBenchmark.createEngine( engine ) );
+        server.addInvocationHandler( "node", new NodeHandler() );
+
+        call = method.equals( "node.save" ) ?
+            Payloads.call( method, new Object[] { Payloads.node( 1, 2048 ) } ) :
+            Payloads.call( method, new Object[] { Payloads.nodes( 50, 256 ) } );
+    }
+
+
+    @Benchmark
+    public int dispatch() throws Exception
+    {
+        response.reset();
+        server.execute( new ByteArrayInputStream( call ), response );
+        return response.size();
+    }
+
+
+    /**
+     *  Handler standing in for the node service.
+     */
+
+    public static class NodeHandler
+    {
+        public int save( Map node )
+        {
+            return ( ( Integer ) node.get( "nid" ) ).intValue();
+        }
+
+
+        public List index( List nodes )
+        {
+            return nodes;
+        }
+    }
+
+
+    /** The call dispatched. */
+    private byte[] call;
+
+    /** The server, dispatching to the node handler. */
+    private XmlRpcServer server = new XmlRpcServer();
+
+    /** Writer receiving the response, reset before each operation. */
+    private Utf8Writer response = new Utf8Writer( 64 * 1024 );
+}
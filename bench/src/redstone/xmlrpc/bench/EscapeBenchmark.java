@@ -0,0 +1,142 @@
+/*
+    This library is free software; you can redistribute it and/or modify it under the terms
+    of the GNU Lesser General Public License as published by the Free Software Foundation;
+    either version 2.1 of the License, or (at your option) any later version.
+
+    This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+    without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+    See the GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License along with this
+    library; if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+    Boston, MA  02111-1307  USA
+*/
+
+package redstone.xmlrpc.bench;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import redstone.xmlrpc.XmlRpcSerializer;
+import redstone.xmlrpc.util.Utf8Writer;
+
+/**
+ *  Measures the throughput of escaping a 1 MB post body, in bodies, and so in
+ *  megabytes, per second. XmlRpcSerializer.writeEscaped() is compared with the
+ *  character by character escaping it replaced, writing to the Utf8Writer of
+ *  buffered requests and to a StringWriter.
+ */
+
+@State( Scope.Thread )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.SECONDS )
+@Warmup( iterations = 3, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class EscapeBenchmark
+{
+    @Param( { "plain", "markup" } )
+    public String text;
+
+    @Param( { "bulk", "perCharacter" } )
+    public String escaper;
+
+    @Param( { "utf8", "string" } )
+    public String writer;
+
+
+    @Setup
+    public void setup()
+    {
+        body = Payloads.text( 1024 * 1024, text.equals( "markup" ) );
+        isBulk = escaper.equals( "bulk" );
+        isUtf8 = writer.equals( "utf8" );
+    }
+
+
+    @Benchmark
+    public int escape() throws IOException
+    {
+        Writer output;
+
+        if ( isUtf8 )
+        {
+            utf8Writer.reset();
+            output = utf8Writer;
+        }
+        else
+        {
+            stringWriter.getBuffer().setLength( 0 );
+            output = stringWriter;
+        }
+
+        if ( isBulk )
+        {
+            XmlRpcSerializer.writeEscaped( body, output );
+        }
+        else
+        {
+            writeEscapedPerCharacter( body, output );
+        }
+
+        return isUtf8 ? utf8Writer.size() : stringWriter.getBuffer().length();
+    }
+
+
+    /**
+     *  The escaping of XmlRpcSerializer before writeEscaped(), writing one
+     *  character at a time.
+     */
+
+    private static void writeEscapedPerCharacter( String string, Writer writer ) throws IOException
+    {
+        int length = string.length();
+
+        for ( int i = 0; i < length; ++i )
+        {
+            char c = string.charAt( i );
+
+            switch( c )
+            {
+                case '<' :
+                    writer.write( "&lt;" );
+                    break;
+
+                case '&' :
+                    writer.write( "&amp;" );
+                    break;
+
+                default :
+                    writer.write( c );
+            }
+        }
+    }
+
+
+    /** The post body escaped. */
+    private String body;
+
+    /** Indicates if writeEscaped() is measured. */
+    private boolean isBulk;
+
+    /** Indicates if the Utf8Writer is written to. */
+    private boolean isUtf8;
+
+    /** Writer of buffered requests, reset before each operation. */
+    private Utf8Writer utf8Writer = new Utf8Writer( 2 * 1024 * 1024 );
+
+    /** StringWriter, emptied before each operation. */
+    private StringWriter stringWriter = new StringWriter( 2 * 1024 * 1024 );
+}
@@ -0,0 +1,130 @@
+/*
+    This library is free software; you can redistribute it and/or modify it under the terms
+    of the GNU Lesser General Public License as published by the Free Software Foundation;
+    either version 2.1 of the License, or (at your option) any later version.
+
+    This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+    without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+    See the GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License along with this
+    library; if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+    Boston, MA  02111-1307  USA
+*/
+
+package redstone.xmlrpc.bench;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import redstone.xmlrpc.XmlRpcCustomSerializer;
+import redstone.xmlrpc.XmlRpcSerializer;
+import redstone.xmlrpc.util.Utf8Writer;
+
+/**
+ *  Measures XmlRpcSerializer.serialize() on payloads made mostly of structs and arrays,
+ *  which are written by custom serializers. The serializers are either resolved through
+ *  the per-class cache of XmlRpcSerializer, or found by scanning the list of custom
+ *  serializers for every value, as XmlRpcSerializer used to do.
+ */
+
+@State( Scope.Thread )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 3, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class NestedSerializerBenchmark
+{
+    /**
+     *  "deep" nests structs and arrays of two members twelve levels deep, "wide" four
+     *  levels deep with eight members each, and "nodes" is an array of 1000 nodes.
+     *  Resolution matters most for "deep", where almost every value is a container;
+     *  the 1000 nodes take 2001 lookups against 10000 scalar values written, so
+     *  resolution is lost in the noise there.
+     */
+
+    @Param( { "deep", "wide", "nodes" } )
+    public String payload;
+
+    @Param( { "cached", "scan" } )
+    public String resolution;
+
+
+    @Setup
+    public void setup()
+    {
+        if ( payload.equals( "deep" ) )
+        {
+            value = Payloads.nested( 12, 2 );
+        }
+        else if ( payload.equals( "wide" ) )
+        {
+            value = Payloads.nested( 4, 8 );
+        }
+        else if ( payload.equals( "nodes" ) )
+        {
+            value = Payloads.nodes( 1000, 16 );
+        }
+        else
+        {
+            throw new IllegalArgumentException( payload );
+        }
+
+        serializer = resolution.equals( "scan" ) ? new ScanningSerializer() : new XmlRpcSerializer();
+    }
+
+
+    @Benchmark
+    public int serialize() throws Exception
+    {
+        writer.reset();
+        serializer.serialize( value, writer );
+        return writer.size();
+    }
+
+
+    /**
+     *  Serializer looking up custom serializers without the cache.
+     */
+
+    static class ScanningSerializer extends XmlRpcSerializer
+    {
+        protected XmlRpcCustomSerializer getCustomSerializer( Class valueClass )
+        {
+            List serializers = customSerializers;
+
+            for ( int i = 0; i < serializers.size(); ++i )
+            {
+                XmlRpcCustomSerializer serializer = ( XmlRpcCustomSerializer ) serializers.get( i );
+
+                if ( serializer.getSupportedClass().isAssignableFrom( valueClass ) )
+                {
+                    return serializer;
+                }
+            }
+
+            return null;
+        }
+    }
+
+
+    /** The value serialized. */
+    private Object value;
+
+    /** Serializer with the core custom serializers. */
+    private XmlRpcSerializer serializer;
+
+    /** Writer receiving the serialized value, reset before each operation. */
+    private Utf8Writer writer = new Utf8Writer( 1024 * 1024 );
+}
@@ -0,0 +1,121 @@
+/*
+    This library is free software; you can redistribute it and/or modify it under the terms
+    of the GNU Lesser General Public License as published by the Free Software Foundation;
+    either version 2.1 of the License, or (at your option) any later version.
+
+    This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+    without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+    See the GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License along with this
+    library; if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+    Boston, MA  02111-1307  USA
+*/
+
+package redstone.xmlrpc.bench;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import redstone.xmlrpc.XmlRpcParser;
+import redstone.xmlrpc.XmlRpcParserEngine;
+import redstone.xmlrpc.XmlRpcPullParserEngine;
+import redstone.xmlrpc.XmlRpcTokenizerEngine;
+
+/**
+ *  Measures decoding of a small response, a single node, and of a multi-megabyte
+ *  response, a thousand nodes, with each of the parser engines.
+ */
+
+@State( Scope.Thread )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 3, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class ParserBenchmark
+{
+    @Param( { "sax", "pull", "tokenizer" } )
+    public String engine;
+
+    @Param( { "small", "large" } )
+    public String size;
+
+
+    @Setup
+    public void setup() throws Exception
+    {
+        parser.setParserEngine( createEngine( engine ) );
+        response = size.equals( "small" ) ?
+            Payloads.response( Payloads.node( 1, 512 ) ) :
+            Payloads.response( Payloads.nodes( 1000, 2048 ) );
+    }
+
+
+    @Benchmark
+    public Object parse() throws Exception
+    {
+        parser.parse( new ByteArrayInputStream( response ) );
+        return parser.value;
+    }
+
+
+    /**
+     *  Creates the named engine, null being the SAX implementation of XmlRpcParser.
+     *  The SAX driver of the JDK stands in for the one of Android.
+     */
+
+    static XmlRpcParserEngine createEngine( String name )
+    {
+        if ( System.getProperty( "org.xml.sax.driver" ) == null )
+        {
+            System.setProperty(
+                "org.xml.sax.driver", "com.sun.org.apache.xerces.internal.parsers.SAXParser" );
+        }
+
+        if ( name.equals( "pull" ) )
+        {
+            return new XmlRpcPullParserEngine();
+        }
+
+        if ( name.equals( "tokenizer" ) )
+        {
+            return new XmlRpcTokenizerEngine();
+        }
+
+        return null;
+    }
+
+
+    /**
+     *  Parser keeping the latest value parsed.
+     */
+
+    static class ValueParser extends XmlRpcParser
+    {
+        protected void handleParsedValue( Object value )
+        {
+            this.value = value;
+        }
+
+
+        Object value;
+    }
+
+
+    /** The response parsed. */
+    private byte[] response;
+
+    /** The parser, reused for every operation. */
+    private ValueParser parser = new ValueParser();
+}
@@ -0,0 +1,216 @@
+/*
+    This library is free software; you can redistribute it and/or modify it under the terms
+    of the GNU Lesser General Public License as published by the Free Software Foundation;
+    either version 2.1 of the License, or (at your option) any later version.
+
+    This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+    without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+    See the GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License along with this
+    library; if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+    Boston, MA  02111-1307  USA
+*/
+
+package redstone.xmlrpc.bench;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.Random;
+import redstone.xmlrpc.XmlRpcArray;
+import redstone.xmlrpc.XmlRpcSerializer;
+import redstone.xmlrpc.XmlRpcStruct;
+import redstone.xmlrpc.util.Utf8Writer;
+
+/**
+ *  Generators of the values and messages used by the benchmarks. Payloads are
+ *  modelled on the node structs exchanged with Drupal, and are generated from a
+ *  fixed seed so that every run measures the same data.
+ */
+
+public class Payloads
+{
+    /**
+     *  Returns text of the given length, made of words, markup, and line breaks.
+     *
+     *  @param length The number of characters.
+     *  @param markup Indicates if the text contains characters that need escaping.
+     */
+
+    public static String text( int length, boolean markup )
+    {
+        StringBuffer text = new StringBuffer( length + 64 );
+        Random random = new Random( SEED );
+
+        while ( text.length() < length )
+        {
+            text.append( WORDS[ random.nextInt( WORDS.length ) ] );
+
+            if ( markup && random.nextInt( 8 ) == 0 )
+            {
+                text.append( MARKUP[ random.nextInt( MARKUP.length ) ] );
+            }
+            else
+            {
+                text.append( random.nextInt( 12 ) == 0 ? '\n' : ' ' );
+            }
+        }
+
+        text.setLength( length );
+        return text.toString();
+    }
+
+
+    /**
+     *  Returns random bytes.
+     */
+
+    public static byte[] binary( int size )
+    {
+        byte[] data = new byte[ size ];
+        new Random( SEED ).nextBytes( data );
+        return data;
+    }
+
+
+    /**
+     *  Returns a struct like the nodes returned by node.get.
+     *
+     *  @param nid The node identifier.
+     *  @param bodyLength The length of the body text.
+     */
+
+    public static XmlRpcStruct node( int nid, int bodyLength )
+    {
+        XmlRpcStruct node = new XmlRpcStruct();
+        XmlRpcArray tags = new XmlRpcArray();
+
+        tags.add( "photo" );
+        tags.add( "tag" + nid % 10 );
+
+        node.put( "nid", new Integer( nid ) );
+        node.put( "type", "page" );
+        node.put( "title", "Page " + nid + " & <friends>" );
+        node.put( "body", text( bodyLength, true ) );
+        node.put( "created", new Date( 1300000000000L + nid * 60000L ) );
+        node.put( "promote", Boolean.TRUE );
+        node.put( "score", new Double( nid / 7.0 ) );
+        node.put( "tags", tags );
+
+        return node;
+    }
+
+
+    /**
+     *  Returns an array of nodes.
+     */
+
+    public static XmlRpcArray nodes( int count, int bodyLength )
+    {
+        XmlRpcArray nodes = new XmlRpcArray();
+
+        for ( int i = 0; i < count; ++i )
+        {
+            nodes.add( node( i, bodyLength ) );
+        }
+
+        return nodes;
+    }
+
+
+    /**
+     *  Returns structs and arrays nested alternately to the given depth, with the
+     *  given number of members or elements at every level.
+     */
+
+    public static Object nested( int depth, int width )
+    {
+        if ( depth == 0 )
+        {
+            return new Integer( width );
+        }
+
+        if ( depth % 2 == 0 )
+        {
+            XmlRpcStruct struct = new XmlRpcStruct();
+
+            for ( int i = 0; i < width; ++i )
+            {
+                struct.put( "m" + i, nested( depth - 1, width ) );
+            }
+
+            return struct;
+        }
+
+        XmlRpcArray array = new XmlRpcArray();
+
+        for ( int i = 0; i < width; ++i )
+        {
+            array.add( nested( depth - 1, width ) );
+        }
+
+        return array;
+    }
+
+
+    /**
+     *  Returns the UTF-8 encoded response carrying the given value.
+     */
+
+    public static byte[] response( Object value ) throws IOException
+    {
+        Utf8Writer writer = new Utf8Writer( 4096 );
+
+        writer.write( "<?xml version=\"1.0\" encoding=\"UTF-8\"?><methodResponse><params><param>" );
+        SERIALIZER.serialize( value, writer );
+        writer.write( "</param></params></methodResponse>" );
+
+        byte[] message = new byte[ writer.size() ];
+        System.arraycopy( writer.getBuffer(), 0, message, 0, message.length );
+        return message;
+    }
+
+
+    /**
+     *  Returns the UTF-8 encoded call of the given method.
+     */
+
+    public static byte[] call( String method, Object[] params ) throws IOException
+    {
+        Utf8Writer writer = new Utf8Writer( 4096 );
+
+        writer.write( "<?xml version=\"1.0\" encoding=\"UTF-8\"?><methodCall><methodName>" );
+        writer.write( method );
+        writer.write( "</methodName><params>" );
+
+        for ( int i = 0; i < params.length; ++i )
+        {
+            writer.write( "<param>" );
+            SERIALIZER.serialize( params[ i ], writer );
+            writer.write( "</param>" );
+        }
+
+        writer.write( "</params></methodCall>" );
+
+        byte[] message = new byte[ writer.size() ];
+        System.arraycopy( writer.getBuffer(), 0, message, 0, message.length );
+        return message;
+    }
+
+
+    /** Seed of all generated data. */
+    private static final long SEED = 20120401L;
+
+    private static final String[] WORDS = new String[]
+    {
+        "lorem", "ipsum", "dolor", "sit", "amet", "consectetur", "adipiscing", "elit",
+        "sed", "do", "eiusmod", "tempor", "incididunt", "labore", "dolore", "magna"
+    };
+
+    private static final String[] MARKUP = new String[]
+    {
+        " <b>", "</b> ", " & ", " \"quoted\" ", " it's ", " a > b ", "\t"
+    };
+
+    private static final XmlRpcSerializer SERIALIZER = new XmlRpcSerializer();
+}
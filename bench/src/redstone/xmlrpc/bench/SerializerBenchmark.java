@@ -0,0 +1,186 @@
+/*
+    This library is free software; you can redistribute it and/or modify it under the terms
+    of the GNU Lesser General Public License as published by the Free Software Foundation;
+    either version 2.1 of the License, or (at your option) any later version.
+
+    This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+    without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+    See the GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License along with this
+    library; if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+    Boston, MA  02111-1307  USA
+*/
+
+package redstone.xmlrpc.bench;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import redstone.xmlrpc.XmlRpcSerializer;
+import redstone.xmlrpc.util.Utf8Writer;
+
+/**
+ *  Measures XmlRpcSerializer.serialize() for every supported type, writing into a
+ *  recycled Utf8Writer as buffered client requests do.
+ */
+
+@State( Scope.Thread )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Warmup( iterations = 3, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class SerializerBenchmark
+{
+    @Param( {
+        "string", "escapedString", "int", "boolean", "double", "date", "base64",
+        "struct", "array", "intArray", "longArray", "doubleArray", "booleanArray",
+        "list", "map" } )
+    public String type;
+
+
+    @Setup
+    public void setup()
+    {
+        if ( type.equals( "string" ) )
+        {
+            value = Payloads.text( 1024, false );
+        }
+        else if ( type.equals( "escapedString" ) )
+        {
+            value = Payloads.text( 1024, true );
+        }
+        else if ( type.equals( "int" ) )
+        {
+            value = new Integer( 123456 );
+        }
+        else if ( type.equals( "boolean" ) )
+        {
+            value = Boolean.TRUE;
+        }
+        else if ( type.equals( "double" ) )
+        {
+            value = new Double( 1234.5678 );
+        }
+        else if ( type.equals( "date" ) )
+        {
+            value = new Date( 1300000000000L );
+        }
+        else if ( type.equals( "base64" ) )
+        {
+            value = Payloads.binary( 16 * 1024 );
+        }
+        else if ( type.equals( "struct" ) )
+        {
+            value = Payloads.node( 1, 256 );
+        }
+        else if ( type.equals( "array" ) )
+        {
+            value = Payloads.nodes( 20, 256 );
+        }
+        else if ( type.equals( "intArray" ) )
+        {
+            int[] array = new int[ 256 ];
+
+            for ( int i = 0; i < array.length; ++i )
+            {
+                array[ i ] = i * 31;
+            }
+
+            value = array;
+        }
+        else if ( type.equals( "longArray" ) )
+        {
+            long[] array = new long[ 256 ];
+
+            for ( int i = 0; i < array.length; ++i )
+            {
+                array[ i ] = i * 1000003L;
+            }
+
+            value = array;
+        }
+        else if ( type.equals( "doubleArray" ) )
+        {
+            double[] array = new double[ 256 ];
+
+            for ( int i = 0; i < array.length; ++i )
+            {
+                array[ i ] = i / 3.0;
+            }
+
+            value = array;
+        }
+        else if ( type.equals( "booleanArray" ) )
+        {
+            boolean[] array = new boolean[ 256 ];
+
+            for ( int i = 0; i < array.length; ++i )
+            {
+                array[ i ] = i % 3 == 0;
+            }
+
+            value = array;
+        }
+        else if ( type.equals( "list" ) )
+        {
+            List list = new ArrayList();
+
+            for ( int i = 0; i < 256; ++i )
+            {
+                list.add( "item" + i );
+            }
+
+            value = list;
+        }
+        else if ( type.equals( "map" ) )
+        {
+            Map map = new HashMap();
+
+            for ( int i = 0; i < 64; ++i )
+            {
+                map.put( "key" + i, new Integer( i ) );
+            }
+
+            value = map;
+        }
+        else
+        {
+            throw new IllegalArgumentException( type );
+        }
+    }
+
+
+    @Benchmark
+    public int serialize() throws Exception
+    {
+        writer.reset();
+        serializer.serialize( value, writer );
+        return writer.size();
+    }
+
+
+    /** The value serialized. */
+    private Object value;
+
+    /** Serializer with the core custom serializers. */
+    private XmlRpcSerializer serializer = new XmlRpcSerializer();
+
+    /** Writer receiving the serialized value, reset before each operation. */
+    private Utf8Writer writer = new Utf8Writer( 64 * 1024 );
+}
@@ -1,5 +1,8 @@
 package com.bitgriff.androiddrupal;
 
+import java.io.File;
+import java.io.IOException;
+
 import android.app.Activity;
 import android.app.ProgressDialog;
 import android.content.Intent;
@@ -14,9 +17,13 @@ import android.widget.EditText;
 
 import com.bitgriff.helpers.CameraHelper;
 import com.bitgriff.helpers.GUIHelper;
+import com.bitgriff.helpers.QueueHelper;
 import com.bitgriff.http.DrupalConnect;
 import com.bitgriff.http.DrupalConnect.PhotoParams;
 import com.bitgriff.http.HttpProgressListener;
+import com.bitgriff.http.UploadRecord;
+import com.bitgriff.image.PhotoPreprocessor;
+import com.bitgriff.queue.OperationQueue;
 
 /**
  * Activity to post pages to Drupal.
@@ -25,6 +32,11 @@ import com.bitgriff.http.HttpProgressListener;
  */
 public class PostActivity extends Activity {
 	private static final int CAPTURE_IMAGE_ACTIVITY_REQUEST_CODE = 100;
+	
+	/** Maximum width and height of uploaded photo */
+	private static final int MAX_PHOTO_DIMENSION = 1600;
+	/** JPEG quality of uploaded photo */
+	private static final int PHOTO_QUALITY = 85;
 
 	// UI controls
     private EditText editTitle;
@@ -39,11 +51,27 @@ public class PostActivity extends Activity {
 	/** post page node identifier. */
 	private int nid;
 	
+	/** downscales photos before upload */
+	private PhotoPreprocessor photoPreprocessor;
+	
+	/** uploaded photo file, processed one or the original */
+	private File uploadFile;
+	
 	@Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_post);
         
+        photoPreprocessor = new PhotoPreprocessor(new File(getCacheDir(), "photos"), MAX_PHOTO_DIMENSION, PHOTO_QUALITY);
+        
+        // start posting queued pages and photos
+        try {
+        	QueueHelper.setup(getApplicationContext(), photoPreprocessor);
+        }
+        catch (IOException e) {
+        	e.printStackTrace();
+        }
+        
         // get UI controls
         editTitle = (EditText) findViewById(R.id.editTitle);
         editBody = (EditText) findViewById(R.id.editBody);
@@ -102,6 +130,12 @@ public class PostActivity extends Activity {
 		if (CameraHelper.photoFile == null)
 			return ;
 		
+		// delete processed photo as well
+		File cacheFile = photoPreprocessor.getCacheFile(CameraHelper.photoFile);
+		UploadRecord.discard(cacheFile);
+		cacheFile.delete();
+		
+		UploadRecord.discard(CameraHelper.photoFile);
 		CameraHelper.photoFile.delete();
 		CameraHelper.photoFile = null;
 	}
@@ -155,7 +189,13 @@ public class PostActivity extends Activity {
 					}
 				}
 				else {
-					GUIHelper.showError(PostActivity.this, "Post is failed. "+e.getMessage());
+					// keep page and photo in queue, they are posted when connection is restored
+					if (queuePage(title, body)) {
+						GUIHelper.showMessage(PostActivity.this, "Post is failed. "+e.getMessage()+"\nPage is queued and will be posted later.", "Message");
+					}
+					else {
+						GUIHelper.showError(PostActivity.this, "Post is failed. "+e.getMessage());
+					}
 					isPostInProgress = false;
 				}
 			}
@@ -179,9 +219,19 @@ public class PostActivity extends Activity {
     		
 			@Override
 			protected Boolean doInBackground(Void... params) {
+				uploadFile = CameraHelper.photoFile;
+				try {
+					// downscale photo, so that less data is uploaded
+					uploadFile = photoPreprocessor.process(CameraHelper.photoFile);
+				}
+				catch (Exception ex) {
+					// upload original photo
+					ex.printStackTrace();
+				}
+				
 				PhotoParams photoParams = new PhotoParams();
 				photoParams.nid = nid;
-				photoParams.file = CameraHelper.photoFile;
+				photoParams.file = uploadFile;
 				photoParams.fileName = CameraHelper.photoFile.getName();
 						
 				DrupalConnect.getInstance().uploadPhoto(photoParams, new HttpProgressListener() {
@@ -223,10 +273,27 @@ public class PostActivity extends Activity {
 					GUIHelper.showError(PostActivity.this, "Post and upload are succeeded.");
 				}
 				else {
-					GUIHelper.showError(PostActivity.this, "Upload is failed. "+e.getMessage());
-
-					// delete page
-					deletePage();
+					// upload progress is saved, so retry resumes from the last sent chunk
+					GUIHelper.showYesNo(PostActivity.this, "Upload is failed. "+e.getMessage()+"\nRetry?", new GUIHelper.DialogResult() {
+						@Override
+						public void result(boolean res, String text) {
+							if (res) {
+								uploadPhoto();
+								return ;
+							}
+							
+							// upload photo later, page is deleted only if photo cannot be queued
+							if (queuePhoto()) {
+								GUIHelper.showMessage(PostActivity.this, "Photo is queued and will be uploaded later.", "Message");
+							}
+							else {
+								UploadRecord.discard(uploadFile);
+								deletePage();
+							}
+							isPostInProgress = false;
+						}
+					});
+					return ;
 				}
 				isPostInProgress = false;
 			}
@@ -247,6 +314,53 @@ public class PostActivity extends Activity {
     	}).execute();
     }
     
+    /**
+     * Queues page creation and photo upload.
+     * @return <code>true</code> if page is queued
+     */
+    private boolean queuePage(String title, String body) {
+    	OperationQueue queue = QueueHelper.getQueue();
+    	if (queue == null) {
+    		return false;
+    	}
+    	
+    	try {
+    		long pageRef = queue.createPage(title, body);
+    		if (CameraHelper.photoFile != null) {
+    			queue.uploadPhotoToCreated(pageRef, CameraHelper.photoFile);
+    			// photo is deleted by queue, when it is uploaded
+    			CameraHelper.photoFile = null;
+    		}
+    		return true;
+    	}
+    	catch (IOException e) {
+    		e.printStackTrace();
+    		return false;
+    	}
+    }
+    
+    /**
+     * Queues photo upload to posted page.
+     * @return <code>true</code> if photo is queued
+     */
+    private boolean queuePhoto() {
+    	OperationQueue queue = QueueHelper.getQueue();
+    	if (queue == null || CameraHelper.photoFile == null) {
+    		return false;
+    	}
+    	
+    	try {
+    		queue.uploadPhoto(nid, CameraHelper.photoFile);
+    		CameraHelper.photoFile = null;
+    		nid = 0;
+    		return true;
+    	}
+    	catch (IOException e) {
+    		e.printStackTrace();
+    		return false;
+    	}
+    }
+    
     private void deletePage() {
     	// check if there is page
     	if (nid == 0) {
@@ -0,0 +1,167 @@
+package com.bitgriff.helpers;
+
+import java.io.File;
+import java.io.IOException;
+
+import com.bitgriff.http.DrupalConnect;
+import com.bitgriff.http.DrupalConnect.PhotoParams;
+import com.bitgriff.http.HttpProgressListener;
+import com.bitgriff.http.UploadRecord;
+import com.bitgriff.image.PhotoPreprocessor;
+import com.bitgriff.queue.Operation;
+import com.bitgriff.queue.OperationQueue;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.widget.Toast;
+
+/**
+ * Holds application operation queue, that posts pages and uploads photos,
+ * when they cannot be done immediately (i.e. there is no network).
+ * Queue is kept in application files directory, so it survives application restart.
+ */
+abstract public class QueueHelper {
+	final private static String QUEUE_FILE = "operations.queue";
+
+	private static OperationQueue queue;
+	private static PhotoPreprocessor photoPreprocessor;
+	private static Context appContext;
+
+	/**
+	 * Operations are executed with DrupalConnect. They are retried later,
+	 * if user is not logged in or there is no network (IOException is thrown).
+	 */
+	private static OperationQueue.Handler handler = new OperationQueue.Handler() {
+		@Override
+		public int createPage(String title, String body) throws Exception {
+			checkAuthenticated();
+			return DrupalConnect.getInstance().postPage(title, body);
+		}
+
+		@Override
+		public void uploadPhoto(int nid, File photo) throws Exception {
+			checkAuthenticated();
+			if (!photo.exists())
+				return ;
+
+			File uploadFile = photo;
+			try {
+				uploadFile = photoPreprocessor.process(photo);
+			}
+			catch (IOException e) {
+				// upload original photo
+				e.printStackTrace();
+			}
+
+			PhotoParams params = new PhotoParams();
+			params.nid = nid;
+			params.file = uploadFile;
+			params.fileName = photo.getName();
+
+			final Exception error[] = new Exception[1];
+			DrupalConnect.getInstance().uploadPhoto(params, new HttpProgressListener() {
+				@Override
+				public void sendStarted(int total) {
+				}
+
+				@Override
+				public void sendProgress(int uploaded, int total) {
+				}
+
+				@Override
+				public void sendError(Exception ex) {
+					error[0] = ex;
+				}
+
+				@Override
+				public void sendDone() {
+				}
+			});
+
+			if (error[0] != null)
+				throw error[0];
+
+			// photo is uploaded, delete it like PostActivity does
+			File cacheFile = photoPreprocessor.getCacheFile(photo);
+			UploadRecord.discard(cacheFile);
+			cacheFile.delete();
+
+			UploadRecord.discard(photo);
+			photo.delete();
+		}
+
+		@Override
+		public void deletePage(int nid) throws Exception {
+			checkAuthenticated();
+			DrupalConnect.getInstance().deletePage(nid);
+		}
+	};
+
+	/**
+	 * Reports dropped operations to user, as they are not going to be retried.
+	 * Toast is used, as there may be no activity shown at the moment.
+	 */
+	private static OperationQueue.Listener listener = new OperationQueue.Listener() {
+		@Override
+		public void operationDone(Operation op) {
+		}
+
+		@Override
+		public void operationFailed(Operation op, Exception ex) {
+			String what;
+			switch (op.getType()) {
+			case Operation.CREATE_PAGE:
+				what = "Page \"" + op.getTitle() + "\" is not posted.";
+				break;
+			case Operation.UPLOAD_PHOTO:
+				what = "Photo is not uploaded.";
+				break;
+			default:
+				what = "Page is not deleted.";
+				break;
+			}
+
+			final String msg = what + " " + ex.getMessage();
+			new Handler(Looper.getMainLooper()).post(new Runnable() {
+				@Override
+				public void run() {
+					Toast.makeText(appContext, msg, Toast.LENGTH_LONG).show();
+				}
+			});
+		}
+	};
+
+	/**
+	 * Opens queue (if it is not opened yet) and starts executing it.
+	 * @param context application context
+	 * @param preprocessor photo preprocessor, used for queued photos
+	 * @throws IOException if queue cannot be opened
+	 */
+	public static synchronized void setup(Context context, PhotoPreprocessor preprocessor) throws IOException {
+		photoPreprocessor = preprocessor;
+		appContext = context.getApplicationContext();
+
+		if (queue == null) {
+			queue = new OperationQueue(new File(context.getFilesDir(), QUEUE_FILE), handler);
+			queue.setListener(listener);
+		}
+
+		queue.start();
+		// user may be logged in again, retry now
+		queue.wakeUp();
+	}
+
+	/**
+	 * Returns queue.
+	 * @return queue, or <code>null</code> if it is not set up
+	 */
+	public static synchronized OperationQueue getQueue() {
+		return queue;
+	}
+
+	private static void checkAuthenticated() throws IOException {
+		if (!DrupalConnect.getInstance().isAuthenticated())
+			throw new IOException("Not logged in");
+	}
+}
@@ -3,6 +3,17 @@ package com.bitgriff.http;
 import java.io.File;
 import java.io.IOException;
 import java.net.MalformedURLException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
 
 import redstone.xmlrpc.XmlRpcClient;
 import redstone.xmlrpc.XmlRpcException;
@@ -19,26 +30,286 @@ public class DrupalConnect {
 	/** Base url of Drupal installation */
 	final static private String URLBASE = "http://192.168.1.9/drupal";
 	
-	/** XML-RPC url */
-	final static private String XMLRPC = URLBASE + "/?q=androidrpc";
-	/** Photoupload url */
-	final static private String PHOTOUPLOAD = URLBASE + "/?q=photoupload";
+	/** XML-RPC path, relative to base url */
+	final static private String XMLRPC = "/?q=androidrpc";
+	/** Photoupload path, relative to base url. Accepts photo in chunks */
+	final static private String PHOTOUPLOAD = "/?q=photoupload/chunk";
+	
+	/** Size of photo chunk, sent in one request */
+	final static private int CHUNK_SIZE = 256 * 1024;
+	/** Number of attempts to send a chunk, before upload is failed */
+	final static private int CHUNK_ATTEMPTS = 3;
+	
+	/** Maximum number of concurrent uploads to one host */
+	final static private int MAX_HOST_CONNECTIONS = 4;
+	
+	/** Upload connection permits per host, shared by all batch uploads */
+	final static private Map<String, Semaphore> hostPermits = new HashMap<String, Semaphore>();
 	
 	/** Singleton instance */
 	static private DrupalConnect instance;
 
-	// session params, returned by user.login, and then passed in all 
-	// subsequent calls as cookie
-	private String sessid;
-	private String session_name;
+	/** Number of replays of call, failed with access denied */
+	final static private int SESSION_RENEWALS = 1;
+	
+	/** Minimum size of XML-RPC request, that is compressed, when server accepts compressed requests */
+	final static private int COMPRESSION_THRESHOLD = 1024;
+	
+	/**
+	 * Session params, returned by user.login, and then passed in all 
+	 * subsequent calls as cookie. Session is replaced as a whole, so cookie
+	 * is never made of params of two sessions.
+	 */
+	private static class Session {
+		final String sessid;
+		final String session_name;
+		/** Number of session, incremented on each login */
+		final int generation;
+		
+		Session(String sessid, String session_name, int generation) {
+			this.sessid = sessid;
+			this.session_name = session_name;
+			this.generation = generation;
+		}
+		
+		String getCookieString() {
+			return session_name+"="+sessid;
+		}
+	}
+	
+	/**
+	 * XML-RPC call, that can be replayed after session renewal.
+	 */
+	private interface Call<T> {
+		T invoke(XmlRpcClient xmlrpc) throws XmlRpcException, XmlRpcFault;
+	}
+	
+	/** XML-RPC url */
+	final private String xmlrpcUrl;
+	/** Photoupload url */
+	final private String photouploadUrl;
+	
+	/** Current session, or <code>null</code> if user is not logged in */
+	private volatile Session session;
+	/** Generation of the last session */
+	private int generation;
+	
+	// credentials to renew expired session
+	private String username;
+	private String password;
+	
+	/** Serializes logins, so that expired session is renewed once for all callers */
+	final private Object loginLock = new Object();
+	
+	/** XML-RPC clients by endpoint url. Client is thread safe, so it is reused by all calls */
+	final private Map<String, XmlRpcClient> clients = new HashMap<String, XmlRpcClient>();
 	
 	public static class PhotoParams {
 		public int nid;
 		public String fileName;
 		public File file;	
 	}
+	
+	/**
+	 * Outcome of one photo of batch upload.
+	 */
+	public static class UploadResult {
+		public PhotoParams params;
+		public boolean succeeded;
+		public Exception error;
+	}
+	
+	/**
+	 * Sums progress of photos, uploaded in parallel, into one progress stream.
+	 */
+	private static class BatchProgress {
+		private HttpProgressListener listener;
+		private int total;
+		private long sent;
+		
+		public BatchProgress(HttpProgressListener listener, int total) {
+			this.listener = listener;
+			this.total = total;
+		}
+		
+		/**
+		 * Returns listener for upload of one photo.
+		 * @param result photo upload result, receiving error
+		 * @return listener
+		 */
+		public HttpProgressListener listenerFor(final UploadResult result) {
+			return new HttpProgressListener() {
+				private int uploaded;
+				
+				@Override
+				public void sendStarted(int total) {
+				}
+				
+				@Override
+				public void sendProgress(int uploaded, int total) {
+					advance(uploaded - this.uploaded);
+					this.uploaded = uploaded;
+				}
+				
+				@Override
+				public void sendError(Exception ex) {
+					result.error = ex;
+					error(ex);
+				}
+				
+				@Override
+				public void sendDone() {
+				}
+			};
+		}
+		
+		private synchronized void advance(int len) {
+			sent += len;
+			listener.sendProgress((int) sent, total);
+		}
+		
+		private synchronized void error(Exception ex) {
+			listener.sendError(ex);
+		}
+	}
 
 	private DrupalConnect() {
+		this(URLBASE);
+	}
+	
+	/**
+	 * Creates connection to Drupal installation at other base url, i.e. to local
+	 * stand-in server in tests.
+	 * @param urlBase base url of Drupal installation
+	 */
+	DrupalConnect(String urlBase) {
+		xmlrpcUrl = urlBase + XMLRPC;
+		photouploadUrl = urlBase + PHOTOUPLOAD;
+	}
+	
+	/**
+	 * Returns XML-RPC client for endpoint. Client is created once, and session cookie
+	 * is set to it when session is opened or changed, so calls do not allocate 
+	 * client, its serializer and request properties each time.
+	 * Client accepts compressed responses, and compresses large requests, if server accepts them.
+	 * @param url endpoint url
+	 * @return client
+	 * @throws MalformedURLException
+	 */
+	private synchronized XmlRpcClient getClient(String url) throws MalformedURLException {
+		XmlRpcClient client = clients.get(url);
+		if (client == null) {
+			client = new XmlRpcClient(url, false);
+			client.setCompressionThreshold(COMPRESSION_THRESHOLD);
+			if (session != null)
+				client.setRequestProperty("Cookie", session.getCookieString());
+			
+			clients.put(url, client);
+		}
+		return client;
+	}
+	
+	/**
+	 * Sets session params and updates session cookie of all clients.
+	 * Cookie is set before session is published, so call, that sees the session,
+	 * is sent with its cookie (or newer one).
+	 * @param sessid session identifier, or <code>null</code> if session is closed
+	 * @param session_name session name
+	 */
+	private synchronized void setSession(String sessid, String session_name) {
+		Session newSession = (sessid != null) ? new Session(sessid, session_name, ++generation) : null;
+		
+		for (XmlRpcClient client : clients.values()) {
+			// request properties are replaced at once, calls in progress keep the old ones
+			if (newSession != null)
+				client.setRequestProperty("Cookie", newSession.getCookieString());
+			else
+				client.setRequestProperties(null);
+		}
+		
+		session = newSession;
+	}
+	
+	/**
+	 * Returns current session.
+	 * @return session
+	 * @throws IllegalStateException if user is not logged in
+	 */
+	private Session getSession() {
+		Session current = session;
+		if (current == null)
+			throw new IllegalStateException("Session is not open.");
+		return current;
+	}
+	
+	/**
+	 * Performs XML-RPC call. If it is failed with access denied fault (session is expired 
+	 * on server), session is renewed and call is replayed.
+	 * @param call call
+	 * @return call result
+	 * @throws IOException
+	 * @throws XmlRpcException
+	 * @throws XmlRpcFault
+	 */
+	private <T> T invoke(Call<T> call) throws IOException, XmlRpcException, XmlRpcFault {
+		for (int renewals = 0; ; renewals++) {
+			Session used = getSession();
+			try {
+				return call.invoke(getClient(xmlrpcUrl));
+			}
+			catch (XmlRpcFault fault) {
+				if (renewals >= SESSION_RENEWALS || !isAccessDenied(fault))
+					throw fault;
+				
+				if (!renewSession(used))
+					throw fault;
+			}
+		}
+	}
+	
+	/**
+	 * Checks if fault is access denied, returned by services module for anonymous user.
+	 */
+	private static boolean isAccessDenied(XmlRpcFault fault) {
+		int code = fault.getErrorCode();
+		String message = fault.getMessage();
+		
+		return code == 401 || code == 403 
+			|| (message != null && message.toLowerCase().startsWith("access denied"));
+	}
+	
+	/**
+	 * Renews expired session with the same credentials. Only the first of concurrent
+	 * callers, that found session expired, logs in. The others wait for it and
+	 * use the new session.
+	 * @param expired session, that was used by failed call
+	 * @return <code>true</code> if session is renewed, and call can be replayed
+	 * @throws IOException
+	 * @throws XmlRpcException
+	 * @throws XmlRpcFault
+	 */
+	private boolean renewSession(Session expired) throws IOException, XmlRpcException, XmlRpcFault {
+		synchronized (loginLock) {
+			Session current = session;
+			// user is logged out, or renewal by other caller is failed
+			if (current == null)
+				return false;
+			
+			// already renewed by other caller
+			if (current.generation != expired.generation)
+				return true;
+			
+			try {
+				XmlRpcStruct res = (XmlRpcStruct) getClient(xmlrpcUrl).invoke("user.login", new Object[] { username, password });
+				setSession(res.getString("sessid"), res.getString("session_name"));
+				return true;
+			}
+			catch (XmlRpcFault fault) {
+				// credentials are not valid any more, user must log in again
+				setSession(null, null);
+				throw fault;
+			}
+		}
 	}
 	
 	/**
@@ -50,15 +321,19 @@ public class DrupalConnect {
 	 * @throws XmlRpcFault
 	 */
 	public void login(String username, String password) throws IOException, XmlRpcException, XmlRpcFault {
-		if (isAuthenticated())
-			logout();
-		
-		XmlRpcClient xmlrpc = new XmlRpcClient(XMLRPC, false);
-		
-		XmlRpcStruct res = (XmlRpcStruct) xmlrpc.invoke("user.login", new Object[] { username, password });
-		
-		sessid = res.getString("sessid");
-		session_name = res.getString("session_name");
+		synchronized (loginLock) {
+			if (isAuthenticated())
+				logout();
+			
+			XmlRpcClient xmlrpc = getClient(xmlrpcUrl);
+			
+			XmlRpcStruct res = (XmlRpcStruct) xmlrpc.invoke("user.login", new Object[] { username, password });
+			
+			// keep credentials to renew session, when it is expired
+			this.username = username;
+			this.password = password;
+			setSession(res.getString("sessid"), res.getString("session_name"));
+		}
 	}
 	
 	/**
@@ -68,24 +343,25 @@ public class DrupalConnect {
 	 * @throws XmlRpcFault
 	 */
 	public void logout() throws MalformedURLException, XmlRpcException, XmlRpcFault {
-		if (!isAuthenticated())
-			return ;
-					
-		try {
-			// create xml-rpc client
-			XmlRpcClient xmlrpc = new XmlRpcClient(XMLRPC, false);
-			// set session cookie		
-			xmlrpc.setRequestProperty("Cookie", getSessionCookieString());
-
-			// remote call
-			xmlrpc.invoke("user.logout", new Object[] { });
-		}
-		catch (Exception ex) {
-			ex.printStackTrace();
+		synchronized (loginLock) {
+			if (!isAuthenticated())
+				return ;
+						
+			try {
+				// get xml-rpc client, it has session cookie set
+				XmlRpcClient xmlrpc = getClient(xmlrpcUrl);
+	
+				// remote call
+				xmlrpc.invoke("user.logout", new Object[] { });
+			}
+			catch (Exception ex) {
+				ex.printStackTrace();
+			}
+			
+			username = null;
+			password = null;
+			setSession(null, null);
 		}
-		
-		sessid = null;
-		session_name = null;
 	}
 
 	/**
@@ -93,7 +369,7 @@ public class DrupalConnect {
 	 * @return <code>true</code> if authenticated
 	 */
 	public boolean isAuthenticated() {
-		if (sessid == null)
+		if (session == null)
 			return false;
 		return true;
 	}
@@ -114,19 +390,19 @@ public class DrupalConnect {
 			throw new IllegalStateException("Session is not open.");
 		}
 		
-		// create xml-rpc client
-		XmlRpcClient xmlrpc = new XmlRpcClient(XMLRPC, false);
-		// set session cookie
-		xmlrpc.setRequestProperty("Cookie", getSessionCookieString());
-		
 		// set page values
-		XmlRpcStruct params = new XmlRpcStruct();
+		final XmlRpcStruct params = new XmlRpcStruct();
 		params.put("type", "page");
 		params.put("title", title);
 		params.put("body", body);
 		
-		// remote call
-		XmlRpcStruct res = (XmlRpcStruct) xmlrpc.invoke("node.create", new Object[] { params });
+		// remote call, xml-rpc client has session cookie set
+		XmlRpcStruct res = invoke(new Call<XmlRpcStruct>() {
+			@Override
+			public XmlRpcStruct invoke(XmlRpcClient xmlrpc) throws XmlRpcException, XmlRpcFault {
+				return (XmlRpcStruct) xmlrpc.invoke("node.create", new Object[] { params });
+			}
+		});
 		
 		// get page nid and return it 
 		return Integer.parseInt(res.get("nid").toString());
@@ -145,24 +421,29 @@ public class DrupalConnect {
 			throw new IllegalStateException("Session is not open.");
 		}
 		
-		// create xml-rpc client
-		XmlRpcClient xmlrpc = new XmlRpcClient(XMLRPC, false);
-		// set session cookie
-		xmlrpc.setRequestProperty("Cookie", getSessionCookieString());
-		
 		// page params: nid
-		XmlRpcStruct params = new XmlRpcStruct();
+		final XmlRpcStruct params = new XmlRpcStruct();
 		params.put("nid", ""+nid);
 		
 		// node.delete return boolean indicating, whether node is removed or not
-		return (Boolean) xmlrpc.invoke("node.delete", new Object[] { params });
+		return invoke(new Call<Boolean>() {
+			@Override
+			public Boolean invoke(XmlRpcClient xmlrpc) throws XmlRpcException, XmlRpcFault {
+				return (Boolean) xmlrpc.invoke("node.delete", new Object[] { params });
+			}
+		});
 	}
 	
 	/**
 	 * Perform photo upload.
+	 * Photo is sent in chunks, each with its offset and MD5 checksum. Acknowledged
+	 * offset is saved in UploadRecord, so if connection is dropped, next call for the 
+	 * same photo and page resumes upload from the last acknowledged chunk.
+	 * If session is expired, it is renewed and chunk is sent again.
 	 * @param photoParams photo params (such as file, file name, page node identifier)
 	 * @param listener listener to receive send progress notifications
-	 * @throws IOException if an error is occurred
+	 * @throws IOException if an error is occurred, UploadRejectedException if server
+	 * rejects photo or its response is invalid
 	 */
 	public void uploadPhoto(PhotoParams params, HttpProgressListener listener) {
 		// check if user is authenticated
@@ -170,23 +451,222 @@ public class DrupalConnect {
 			throw new IllegalStateException("Session is not open.");
 		}
 		
-		HttpMultipartClient httpClient = new HttpMultipartClient(PHOTOUPLOAD, listener);
-		httpClient.addHeader("Cookie", getSessionCookieString());
-		
-		httpClient.addField("form_id", "photoupload_upload_file");
-		httpClient.addField("op", "Upload");
+		try {
+			UploadRecord record = UploadRecord.open(params.file, params.nid);
+			int total = (int) params.file.length();
+			long offset = record.getOffset();
+			int failures = 0;
+			
+			listener.sendStarted(total);
+			listener.sendProgress((int) offset, total);
+			
+			while (true) {
+				int length = (int) Math.min(CHUNK_SIZE, total - offset);
+				long acknowledged;
+				Session used = getSession();
+				
+				try {
+					acknowledged = sendChunk(params, used, record.getUploadId(), offset, length, total, listener);
+				}
+				catch (HttpStatusException ex) {
+					// session is expired, renew it and send chunk again
+					if (ex.getStatusCode() != 403 || ++failures >= CHUNK_ATTEMPTS || !renewSession(used))
+						throw ex;
+					continue;
+				}
+				catch (IOException ex) {
+					// connection is dropped, try to resume
+					if (++failures >= CHUNK_ATTEMPTS)
+						throw ex;
+					continue;
+				}
+				
+				if (acknowledged > total)
+					throw new UploadRejectedException("Invalid offset of uploaded photo: "+acknowledged);
+				
+				// server rejects chunk if its checksum or offset is wrong, 
+				// and returns offset to continue from
+				if (acknowledged > offset)
+					failures = 0;
+				else if (++failures >= CHUNK_ATTEMPTS)
+					throw new UploadRejectedException("Photo chunk is rejected at offset "+offset);
+				
+				// offset is never moved back: acknowledged bytes are not sent again,
+				// so lower offset can not lead to a second copy of the photo
+				if (acknowledged < offset)
+					continue;
+				
+				offset = acknowledged;
+				if (offset == total)
+					break;
+				
+				record.setOffset(offset);
+				listener.sendProgress((int) offset, total);
+			}
+			
+			record.delete();
+			listener.sendProgress(total, total);
+			listener.sendDone();
+		}
+		catch (Exception ex) {
+			listener.sendError(ex);
+		}
+	}
+	
+	/**
+	 * Sends photo chunk.
+	 * @return number of photo bytes, received by server
+	 * @throws IOException
+	 */
+	private long sendChunk(PhotoParams params, Session session, String uploadId, final long offset, final int length, final int total,
+			final HttpProgressListener listener) throws IOException {
+		// report progress of the whole photo, not of the chunk
+		HttpMultipartClient httpClient = new HttpMultipartClient(photouploadUrl, new HttpProgressListener() {
+			@Override
+			public void sendStarted(int chunkTotal) {
+			}
+			
+			@Override
+			public void sendProgress(int uploaded, int chunkTotal) {
+				listener.sendProgress((int) offset + Math.min(uploaded, length), total);
+			}
+			
+			@Override
+			public void sendError(Exception ex) {
+			}
+			
+			@Override
+			public void sendDone() {
+			}
+		});
+		httpClient.addHeader("Cookie", session.getCookieString());
+		// progress dialog needs no more than 10 updates per second
+		httpClient.setProgressInterval(100);
 		
+		httpClient.addField("upload_id", uploadId);
 		httpClient.addField("nid", ""+params.nid);
-		httpClient.addFile("files[image]", "image/jpeg", params.fileName, params.file);
+		httpClient.addField("name", params.fileName);
+		httpClient.addField("total", ""+total);
+		httpClient.addField("offset", ""+offset);
+		httpClient.addField("md5", HttpMultipartClient.md5(params.file, offset, length));
+		httpClient.addFile("chunk", "application/octet-stream", params.fileName, params.file, offset, length);
 
-		httpClient.post();
+		// response is "OFFSET <received bytes>" or "DONE"
+		String response = httpClient.execute();
+		
+		if (response.indexOf("DONE") != -1)
+			return total;
+		
+		int iOffset = response.indexOf("OFFSET ");
+		if (iOffset == -1)
+			throw new UploadRejectedException("Invalid response of photo upload: "+response);
+		
+		iOffset += "OFFSET ".length();
+		int iOffsetEnd = iOffset;
+		while (iOffsetEnd < response.length() && Character.isDigit(response.charAt(iOffsetEnd)))
+			iOffsetEnd++;
+		
+		try {
+			return Long.parseLong(response.substring(iOffset, iOffsetEnd));
+		}
+		catch (NumberFormatException ex) {
+			throw new UploadRejectedException("Invalid response of photo upload: "+response);
+		}
 	}
 
-	private String getSessionCookieString() {
-		if (sessid == null || session_name == null)
-			return null;
+	/**
+	 * Perform upload of several photos over concurrent connections.
+	 * Largest photos are started first, and number of concurrent uploads to one host
+	 * is limited for all batches together.
+	 * @param photos photos to upload
+	 * @param connections maximum number of concurrent uploads of this batch
+	 * @param listener listener to receive summary progress of all photos. 
+	 * sendError is called for each failed photo, sendDone - when all uploads are finished.
+	 * @return upload results, in the same order as photos
+	 * @throws InterruptedException if waiting is interrupted, uploads are cancelled then
+	 */
+	public List<UploadResult> uploadPhotos(List<PhotoParams> photos, int connections, HttpProgressListener listener) throws InterruptedException {
+		// check if user is authenticated
+		if (!isAuthenticated()) {
+			throw new IllegalStateException("Session is not open.");
+		}
 		
-		return session_name+"="+sessid;
+		if (connections < 1)
+			throw new IllegalArgumentException("Invalid number of connections: "+connections);
+		
+		List<UploadResult> results = new ArrayList<UploadResult>();
+		int total = 0;
+		
+		for (PhotoParams params : photos) {
+			UploadResult result = new UploadResult();
+			result.params = params;
+			results.add(result);
+			
+			total += (int) params.file.length();
+		}
+		
+		// start largest photos first, so that the last running upload is short
+		List<UploadResult> queue = new ArrayList<UploadResult>(results);
+		Collections.sort(queue, new Comparator<UploadResult>() {
+			@Override
+			public int compare(UploadResult lhs, UploadResult rhs) {
+				long lhsLength = lhs.params.file.length();
+				long rhsLength = rhs.params.file.length();
+				return lhsLength > rhsLength ? -1 : (lhsLength < rhsLength ? 1 : 0);
+			}
+		});
+		
+		final BatchProgress progress = new BatchProgress(listener, total);
+		final Semaphore permits = getHostPermits(URI.create(photouploadUrl).getHost());
+		
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (final UploadResult result : queue) {
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					try {
+						permits.acquire();
+						try {
+							uploadPhoto(result.params, progress.listenerFor(result));
+						}
+						finally {
+							permits.release();
+						}
+						
+						result.succeeded = (result.error == null);
+					}
+					catch (Exception ex) {
+						result.error = ex;
+					}
+					return null;
+				}
+			});
+		}
+		
+		listener.sendStarted(total);
+		
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(connections, Math.max(1, tasks.size())));
+		try {
+			executor.invokeAll(tasks);
+		}
+		finally {
+			// interrupts uploads, if waiting is interrupted
+			executor.shutdownNow();
+		}
+		
+		listener.sendDone();
+		return results;
+	}
+	
+	private static Semaphore getHostPermits(String host) {
+		synchronized (hostPermits) {
+			Semaphore permits = hostPermits.get(host);
+			if (permits == null) {
+				permits = new Semaphore(MAX_HOST_CONNECTIONS, true);
+				hostPermits.put(host, permits);
+			}
+			return permits;
+		}
 	}
 
 	public static DrupalConnect getInstance() {
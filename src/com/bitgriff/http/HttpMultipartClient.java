@@ -1,14 +1,20 @@
 package com.bitgriff.http;
 
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.io.PrintStream;
-import java.net.Socket;
+import java.io.Reader;
+import java.net.InetSocketAddress;
 import java.net.URI;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -17,18 +23,25 @@ import java.util.Map;
 /**
  * Http client with multipart/form-data support for files upload. 
  * Supports file upload progress reporting.
+ * Request is written to a SocketChannel: headers are pre-encoded to bytes once,
+ * and file contents are transferred with FileChannel.transferTo, so they are not 
+ * copied through the Java heap.
  * 
  * @author Moskvichev Andrey V.
  *
  */
 public class HttpMultipartClient {
 	abstract private class Part {
-		private String header;
+		private byte[] header;
 		private int length;
 		
-		public String getHeader() {
+		/**
+		 * Returns part header, encoded to bytes.
+		 * @return part header
+		 */
+		public byte[] getHeader() {
 			if (header == null)
-				header = formatHeader();
+				header = formatHeader().getBytes(UTF8);
 			return header;
 		}
 		
@@ -38,9 +51,9 @@ public class HttpMultipartClient {
 		 */
 		public int getLength() {
 			if (length == 0) {
-				length = getHeader().length();
+				length = getHeader().length;
 				length += getContentLength();
-				length += CRLF.length();
+				length += CRLF_BYTES.length;
 				//length += BOUNDARY_LINE.length(); // part end
 			}
 			return length;
@@ -49,23 +62,23 @@ public class HttpMultipartClient {
 		abstract protected String formatHeader();
 		abstract protected int getContentLength();
 		
-		public void send(PrintStream out) throws IOException {
-			//out.print(getHeader());
+		public void send(ProgressChannel out) throws IOException {
+			out.write(getHeader());
 			sendContent(out);
-			out.print(CRLF);
+			out.write(CRLF_BYTES);
 			//out.print(BOUNDARY_LINE);
 		}
 		
-		abstract protected void sendContent(PrintStream out) throws IOException;
+		abstract protected void sendContent(ProgressChannel out) throws IOException;
 	}
 	
 	private class FieldPart extends Part {
 		private String name;
-		private String value;
+		private byte[] value;
 
 		public FieldPart(String name, String value) {
 			this.name = name;
-			this.value = value;
+			this.value = value.getBytes(UTF8);
 		}
 
 		@Override
@@ -81,12 +94,12 @@ public class HttpMultipartClient {
 
 		@Override
 		protected int getContentLength() {
-			return value.length();
+			return value.length;
 		}
 
 		@Override
-		protected void sendContent(PrintStream out) throws IOException {
-			out.print(value);
+		protected void sendContent(ProgressChannel out) throws IOException {
+			out.write(value);
 		}
 	}
 	
@@ -96,12 +109,16 @@ public class HttpMultipartClient {
 		private String fileName;
 
 		private File file;
+		private long offset;
+		private int length;
 			
-		public FilePart(String name, String contentType, String fileName, File file) {
+		public FilePart(String name, String contentType, String fileName, File file, long offset, int length) {
 			this.name = name;
 			this.contentType = contentType;
 			this.fileName = fileName;
 			this.file = file;
+			this.offset = offset;
+			this.length = length;
 		}
 		
 		@Override
@@ -117,19 +134,14 @@ public class HttpMultipartClient {
 
 		@Override
 		protected int getContentLength() {
-			return (int) file.length();
+			return length;
 		}
 
 		@Override
-		protected void sendContent(PrintStream out) throws IOException {
-			byte buf[] = new byte[1024 * 256];
-			int len;
-			
+		protected void sendContent(ProgressChannel out) throws IOException {
 			FileInputStream in = new FileInputStream(file);
 			try {
-				while ((len = in.read(buf)) > 0) {
-					out.write(buf, 0, len);
-				}
+				out.transferFrom(in.getChannel(), offset, length);
 			}
 			finally {
 				in.close();
@@ -141,41 +153,119 @@ public class HttpMultipartClient {
 	final private static String BOUNDARY = "xgeyy6u56845245ggbh576youu27o96j8564235f";
 	final private static String BOUNDARY_LINE = "--"+BOUNDARY+CRLF;
 	
-	private class ProgressoutputStream extends OutputStream {
+	final private static Charset UTF8 = Charset.forName("UTF-8");
+	final private static byte[] CRLF_BYTES = CRLF.getBytes(UTF8);
+	
+	/** Maximum number of file bytes transferred between progress reports */
+	final private static int TRANSFER_CHUNK = 64 * 1024;
+	
+	/** Default connect timeout, in milliseconds */
+	final private static int CONNECT_TIMEOUT = 30 * 1000;
+	/** Default timeout of waiting for response data, in milliseconds */
+	final private static int READ_TIMEOUT = 60 * 1000;
+	
+	/**
+	 * Channel, that writes request to socket channel and reports upload progress.
+	 * Progress is reported once per written buffer or transferred chunk, and only 
+	 * when both the progress step and the minimal interval have passed since 
+	 * previous report. Completion is always reported.
+	 */
+	private class ProgressChannel implements WritableByteChannel {
 
-		private OutputStream out;
+		private SocketChannel channel;
 		private int total;
 		private int sent;
 		private int prevProgress;
+		private int step;
+		private long prevTime;
 		
-		public ProgressoutputStream(OutputStream out, int total) {
-			this.out = out;
+		public ProgressChannel(SocketChannel channel, int total) {
+			this.channel = channel;
 			this.total = total;
+			
+			if (progressPercent > 0)
+				step = (int) ((long) total * progressPercent / 100);
+			else
+				step = progressBytes;
+			prevTime = System.nanoTime();
 		}
 		
 		@Override
-		public void write(int oneByte) throws IOException {
-			out.write(oneByte);
-			
-			//System.out.write(oneByte); // XXX debug!
+		public int write(ByteBuffer src) throws IOException {
+			int len = 0;
+			while (src.hasRemaining()) {
+				len += channel.write(src);
+			}
 			
-			sent++;
+			progress(len);
+			return len;
+		}
+		
+		public void write(byte[] data) throws IOException {
+			write(ByteBuffer.wrap(data));
+		}
+		
+		/**
+		 * Transfers file region to socket, reporting progress after each chunk.
+		 * @param file file channel
+		 * @param position position of the first byte to transfer
+		 * @param count number of bytes to transfer
+		 * @throws IOException
+		 */
+		public void transferFrom(FileChannel file, long position, long count) throws IOException {
+			long end = position + count;
 			
-			if ((sent - prevProgress) > 16 * 1024 || sent == total) {
-				listener.sendProgress(sent, total);
+			while (position < end) {
+				long len = file.transferTo(position, Math.min(TRANSFER_CHUNK, end - position), channel);
+				if (len <= 0)
+					throw new EOFException("File is shorter than expected");
 				
-				prevProgress = sent;
+				position += len;
+				progress((int) len);
+			}
+		}
+		
+		private void progress(int len) {
+			sent += len;
+			
+			if (sent == total) {
+				report();
+			}
+			else if ((sent - prevProgress) >= step) {
+				long now = System.nanoTime();
+				if (now - prevTime >= progressInterval * 1000000L)
+					report();
 			}
 		}
+		
+		private void report() {
+			listener.sendProgress(sent, total);
+			
+			prevProgress = sent;
+			prevTime = System.nanoTime();
+		}
+
+		@Override
+		public boolean isOpen() {
+			return channel.isOpen();
+		}
 
 		@Override
 		public void close() throws IOException {
-			super.close();
-			out.close();
+			channel.close();
 		}
 		
 	}
 	
+	/**
+	 * Drupal message block from response page.
+	 */
+	private static class ResponseMessage {
+		/** Message type: status, warning or error */
+		String type;
+		String text;
+	}
+	
 	private List<Part> parts = new ArrayList<Part>();
 	private Map<String, String> headers = new HashMap<String, String>();
 	
@@ -183,6 +273,16 @@ public class HttpMultipartClient {
 	
 	private URI uri;
 	private int contentLength;
+	
+	// progress reporting granularity
+	private int progressBytes = 16 * 1024;
+	private int progressPercent;
+	private long progressInterval;
+	
+	private boolean verify;
+	
+	private int connectTimeout = CONNECT_TIMEOUT;
+	private int readTimeout = READ_TIMEOUT;
 
 	public HttpMultipartClient(String uri, HttpProgressListener listener) {
 		this(URI.create(uri), listener);
@@ -196,6 +296,67 @@ public class HttpMultipartClient {
 		this.listener = listener;
 	}
 
+	/**
+	 * Sets minimal number of bytes sent between progress reports. 
+	 * Overrides percentage granularity. Default is 16 KB.
+	 * @param bytes number of bytes
+	 */
+	public void setProgressGranularity(int bytes) {
+		if (bytes < 0)
+			throw new IllegalArgumentException("Invalid progress granularity: "+bytes);
+		
+		progressBytes = bytes;
+		progressPercent = 0;
+	}
+	
+	/**
+	 * Sets minimal percentage of request sent between progress reports. 
+	 * Overrides byte granularity.
+	 * @param percent percentage of request length, 1 to 100
+	 */
+	public void setProgressPercentGranularity(int percent) {
+		if (percent < 1 || percent > 100)
+			throw new IllegalArgumentException("Invalid progress percentage: "+percent);
+		
+		progressPercent = percent;
+	}
+	
+	/**
+	 * Sets minimal time between progress reports, so that listener (i.e. UI thread) 
+	 * is not flooded by updates on fast networks. Default is 0, no throttling.
+	 * @param millis interval in milliseconds
+	 */
+	public void setProgressInterval(long millis) {
+		if (millis < 0)
+			throw new IllegalArgumentException("Invalid progress interval: "+millis);
+		
+		progressInterval = millis;
+	}
+	
+	/**
+	 * Sets timeout of establishing connection. Default is 30 seconds.
+	 * @param millis timeout in milliseconds, 0 to wait infinitely
+	 */
+	public void setConnectTimeout(int millis) {
+		if (millis < 0)
+			throw new IllegalArgumentException("Invalid connect timeout: "+millis);
+		
+		connectTimeout = millis;
+	}
+	
+	/**
+	 * Sets timeout of waiting for response data, so that half-open connection 
+	 * (i.e. after network switch) does not block upload forever. Default is 60 seconds.
+	 * Request writes are not limited by it: they fail when TCP retransmission gives up.
+	 * @param millis timeout in milliseconds, 0 to wait infinitely
+	 */
+	public void setReadTimeout(int millis) {
+		if (millis < 0)
+			throw new IllegalArgumentException("Invalid read timeout: "+millis);
+		
+		readTimeout = millis;
+	}
+	
 	public void addHeader(String header, String value) {
 		headers.put(header, value);
 	}
@@ -205,58 +366,79 @@ public class HttpMultipartClient {
 	}
 	
 	public void addFile(String name, String contentType, String fileName, File file) {
-		parts.add(new FilePart(name, contentType, fileName, file));
+		parts.add(new FilePart(name, contentType, fileName, file, 0, (int) file.length()));
+	}
+	
+	/**
+	 * Adds part with range of file, i.e. a chunk of resumable upload.
+	 * @param name field name
+	 * @param contentType content type of the part
+	 * @param fileName file name, sent to server
+	 * @param file file
+	 * @param offset offset of the first byte to send
+	 * @param length number of bytes to send
+	 */
+	public void addFile(String name, String contentType, String fileName, File file, long offset, int length) {
+		if (offset < 0 || length < 0 || offset + length > file.length())
+			throw new IllegalArgumentException("Invalid file range: "+offset+", "+length);
+		
+		parts.add(new FilePart(name, contentType, fileName, file, offset, length));
 	}
 	
+	/**
+	 * Posts form. Success is judged by response to POST: Drupal redirects (302) after
+	 * accepted form submission, and shows form again (200) with error message otherwise.
+	 * If verification is on, page is requested after redirect and checked for error 
+	 * message as well. Result is reported to listener.
+	 */
 	public void post() {
-		contentLength = 0;
-		
-		Socket socket = null;
+		SocketChannel socket = null;
 		try {
 			socket = openSocket();
 			
-			// send request
-			PrintStream out = new PrintStream(new ProgressoutputStream(socket.getOutputStream(), calculateContentLength()));
+			HttpResponse response = send(socket);
+			int code = response.getStatusCode();
 			
-			try {
-				InputStream in = socket.getInputStream();
-				try {
-					listener.sendStarted(calculateContentLength());
-					
-					// send http header
-					out.print(formatHeaders());
-
-					// send each part
-					//out.print(CRLF);
-					for (Part part : parts) {
-						out.print(part.getHeader());
-						part.send(out);
+			if (code == 200) {
+				// form is shown again, find out why
+				ResponseMessage msg = readResponseMessage(response);
+				if (msg != null && msg.type.equals("error"))
+					throw new RuntimeException(msg.text);
+				throw new RuntimeException("Form is not accepted by server.");
+			}
+			
+			if (code != 302)
+				throw new RuntimeException("Invalid response. " + response.getStatusLine());
+			
+			if (verify) {
+				HttpResponse page = null;
+				
+				// reuse connection, if server keeps it alive
+				if (response.isKeepAlive()) {
+					response.skipBody();
+					try {
+						page = get(socket);
+					}
+					catch (IOException ex) {
+						// server has closed idle connection, use new one
 					}
-
-					out.print(formatEpilog());
-					//out.flush();
-					socket.shutdownOutput();
-
-					// read response
-					String response = receive(in);
-					int code = getStatusCode(response);
-
-					if (code != 302)// && code != 200)
-						throw new RuntimeException("Invalid response. " + getStatusString(response));
-					
-					listener.sendDone();
-					
-					if (code == 200)
-						return ;
 				}
-				finally {
-					in.close();
+				
+				if (page == null) {
+					socket.close();
+					socket = openSocket();
+					page = get(socket);
 				}
+				
+				if (page.getStatusCode() != 200)
+					throw new RuntimeException("Invalid response. " + page.getStatusLine());
+				
+				ResponseMessage msg = readResponseMessage(page);
+				if (msg != null && msg.type.equals("error"))
+					throw new RuntimeException(msg.text);
 			}
-			finally {
-				out.close();
-			}
-
+			
+			listener.sendDone();
 		}
 		catch (Exception ex) {
 			listener.sendError(ex);
@@ -265,98 +447,205 @@ public class HttpMultipartClient {
 			if (socket != null)
 				try { socket.close(); } catch (IOException e) { }
 		}
-		
+	}
+	
+	/**
+	 * Turns on verification of form submission by requesting page after redirect,
+	 * to check it for error message. It is off by default, as redirect already 
+	 * indicates that submission is accepted.
+	 * @param verify <code>true</code> to request page after redirect
+	 */
+	public void setVerify(boolean verify) {
+		this.verify = verify;
+	}
+	
+	/**
+	 * Posts request and returns response body. Unlike post(), errors are thrown 
+	 * instead of being reported to listener, and status page is not requested.
+	 * @return response body
+	 * @throws IOException if request is failed, HttpStatusException if response status is not 200
+	 */
+	public String execute() throws IOException {
+		SocketChannel socket = openSocket();
 		try {
-			String response = sendRaw(formatGet());
-			int code = getStatusCode(response);
+			HttpResponse response = send(socket);
 			
-			if (code != 200)
-				throw new RuntimeException("Invalid response. " + getStatusString(response));
-			// TODO indicate error if code is not http_ok or there is error message from server 
+			if (response.getStatusCode() != 200)
+				throw new HttpStatusException(response.getStatusCode(), response.getStatusLine());
 			
-			/*
-			String msg = getResponseMessage("messages status", response);
-			if (!msg.startsWith("OK"))
-				throw new RuntimeException(msg);
-			*/
+			return response.readBody();
+		}
+		finally {
+			socket.close();
 		}
-		catch (Exception e) {
-			listener.sendError(e);
-		} 
-		
 	}
 	
-	private int getStatusCode(String response) {
-		String status = getStatusString(response);
-		int iCode = status.indexOf(' ');
-		if (iCode == -1)
-			return 0;
-		
-		iCode++;
-		int iCodeEnd = status.indexOf(' ', iCode);
-		if (iCodeEnd == -1)
-			return 0;
+	/**
+	 * Calculates MD5 checksum of file range, i.e. of resumable upload chunk.
+	 * @param file file
+	 * @param offset offset of the first byte
+	 * @param length number of bytes
+	 * @return checksum as lowercase hex string
+	 * @throws IOException
+	 */
+	public static String md5(File file, long offset, int length) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("MD5");
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
 		
-		return Integer.parseInt(status.substring(iCode, iCodeEnd));
-	}
-
-	private String getStatusString(String response) {
-		int iEnd = response.indexOf(CRLF);
-		if (iEnd == -1)
-			return null;
+		FileInputStream in = new FileInputStream(file);
+		try {
+			FileChannel channel = in.getChannel();
+			ByteBuffer buf = ByteBuffer.allocate(Math.min(length, TRANSFER_CHUNK));
+			long position = offset;
+			long end = offset + length;
+			
+			while (position < end) {
+				buf.clear();
+				buf.limit((int) Math.min(buf.capacity(), end - position));
+				
+				int len = channel.read(buf, position);
+				if (len <= 0)
+					throw new EOFException("File is shorter than expected");
+				
+				buf.flip();
+				digest.update(buf);
+				position += len;
+			}
+		}
+		finally {
+			in.close();
+		}
 		
-		return response.substring(0, iEnd);
+		StringBuilder hex = new StringBuilder();
+		for (byte b : digest.digest()) {
+			hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+			hex.append(Character.forDigit(b & 0xf, 16));
+		}
+		return hex.toString();
 	}
 	
-	private static String getResponseMessage(String block, String text) {
-		int iMsgError = text.indexOf("\""+block+"\"");
-		if (iMsgError == -1) 
-			return null;
+	/**
+	 * Sends request and reads response status and headers.
+	 * @param socket connection
+	 * @return response, with body not read yet
+	 * @throws IOException
+	 */
+	private HttpResponse send(SocketChannel socket) throws IOException {
+		contentLength = 0;
 		
-		iMsgError = text.indexOf(">", iMsgError) + 1;
+		// send request
+		ProgressChannel out = new ProgressChannel(socket, calculateContentLength());
 		
-		int iMsgErrorEnd = text.indexOf("<", iMsgError);
+		listener.sendStarted(calculateContentLength());
 		
-		String msgError = text.substring(iMsgError, iMsgErrorEnd);
-		return msgError.trim();
-	}
+		// send http header
+		writeFully(socket, formatHeaders().getBytes(UTF8));
+
+		// send each part
+		for (Part part : parts) {
+			part.send(out);
+		}
+
+		out.write(formatEpilog().getBytes(UTF8));
 
-	private String sendRaw(String raw) throws UnknownHostException, IOException {
-		Socket socket = openSocket();
+		// read response
+		return HttpResponse.read(socket.socket().getInputStream());
+	}
+	
+	/**
+	 * Reads the first message block (drupal_set_message output) from response page.
+	 * Page is read only until the block is complete.
+	 * @param response response with unread body
+	 * @return message, or <code>null</code> if there is no message on page
+	 * @throws IOException
+	 */
+	private static ResponseMessage readResponseMessage(HttpResponse response) throws IOException {
+		final String marker = "class=\"messages ";
+		
+		Reader in = response.getBodyReader();
+		StringBuilder text = new StringBuilder();
+		char buf[] = new char[1024];
+		int len;
 		
-		try {
-			PrintStream out = new PrintStream(socket.getOutputStream());
+		int iBlock = -1;
+		int iScan = 0;
+		
+		while ((len = in.read(buf)) != -1) {
+			text.append(buf, 0, len);
 			
-			try {
-				InputStream in = socket.getInputStream();
-				try {
-					// send GET 
-					out.print(formatGet());
-					socket.shutdownOutput();
-					
-					String response = receive(in);
-					return response;
-				}
-				finally {
-					in.close();
+			if (iBlock == -1) {
+				iBlock = text.indexOf(marker, iScan);
+				if (iBlock == -1) {
+					iScan = Math.max(0, text.length() - marker.length());
+					continue;
 				}
+				iScan = iBlock;
 			}
-			finally {
-				out.close();
+			
+			int iTypeEnd = text.indexOf("\"", iBlock + marker.length());
+			int iStart = text.indexOf(">", iBlock);
+			int iEnd = iStart == -1 ? -1 : text.indexOf("</div>", iStart);
+			if (iTypeEnd == -1 || iEnd == -1) {
+				continue;
 			}
+			
+			ResponseMessage msg = new ResponseMessage();
+			msg.type = text.substring(iBlock + marker.length(), iTypeEnd).trim();
+			msg.text = text.substring(iStart + 1, iEnd)
+				.replaceAll("<[^>]*>", " ")
+				.replaceAll("\\s+", " ")
+				.replace("&lt;", "<").replace("&gt;", ">").replace("&quot;", "\"")
+				.replace("&#039;", "'").replace("&amp;", "&")
+				.trim();
+			return msg;
 		}
-		finally {
-			socket.close();
-		}
+		return null;
+	}
+
+	/**
+	 * Sends GET request for the form page and reads response status and headers.
+	 * @param socket connection
+	 * @return response, with body not read yet
+	 */
+	private HttpResponse get(SocketChannel socket) throws IOException {
+		writeFully(socket, formatGet().getBytes(UTF8));
+		
+		return HttpResponse.read(socket.socket().getInputStream());
 	}
 	
-	private Socket openSocket() throws UnknownHostException, IOException {
+	private SocketChannel openSocket() throws UnknownHostException, IOException {
 		String host = uri.getHost();
 		int port = uri.getPort();
 		if (port == -1)
 			port = 80;
 		
-		return new Socket(host, port);
+		InetSocketAddress address = new InetSocketAddress(host, port);
+		if (address.isUnresolved())
+			throw new UnknownHostException(host);
+		
+		SocketChannel socket = SocketChannel.open();
+		try {
+			// responses are read from socket stream, which honours SO_TIMEOUT
+			socket.socket().setSoTimeout(readTimeout);
+			socket.socket().connect(address, connectTimeout);
+		}
+		catch (IOException ex) {
+			socket.close();
+			throw ex;
+		}
+		return socket;
+	}
+	
+	private static void writeFully(SocketChannel channel, byte[] data) throws IOException {
+		ByteBuffer buf = ByteBuffer.wrap(data);
+		while (buf.hasRemaining()) {
+			channel.write(buf);
+		}
 	}
 	
 	private String formatHeaders() {
@@ -410,8 +699,6 @@ public class HttpMultipartClient {
 		
 		contentLength = 0;
 		
-		contentLength += 3 * CRLF.length();
-		
 		for (Part part : parts) {
 			contentLength += part.getLength();
 		}
@@ -420,15 +707,4 @@ public class HttpMultipartClient {
 		return contentLength;
 	}
 
-	private String receive(InputStream in) throws IOException {
-		byte buf[] = new byte[1024];
-		int len;
-
-		StringBuilder text = new StringBuilder();			
-		while ((len = in.read(buf)) > 0) {
-			text.append(new String(buf, 0, len));
-		}
-		return text.toString();
-	}
-
 }
@@ -0,0 +1,431 @@
+package com.bitgriff.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * HTTP/1.1 response, read incrementally from connection.
+ * Status line and headers are parsed as bytes, as soon as they are received.
+ * Body is available as stream, limited by Content-Length or decoded from chunked
+ * transfer encoding, so it needs not to be read at all (i.e. for redirect),
+ * and connection can be reused for the next request, when body is consumed.
+ */
+public class HttpResponse {
+	/** Maximum length of status or header line */
+	final private static int MAX_LINE = 8 * 1024;
+	/** Maximum number of header lines */
+	final private static int MAX_HEADERS = 100;
+
+	final private static Charset ISO88591 = Charset.forName("ISO-8859-1");
+
+	/**
+	 * Body, limited by Content-Length.
+	 */
+	private class FixedLengthInputStream extends InputStream {
+		private long remaining;
+
+		public FixedLengthInputStream(long length) {
+			this.remaining = length;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (remaining == 0)
+				return -1;
+
+			int n = readRaw(b, off, (int) Math.min(len, remaining));
+			if (n < 0)
+				throw new EOFException("Unexpected end of response body");
+
+			remaining -= n;
+			return n;
+		}
+
+		@Override
+		public int read() throws IOException {
+			return readByte(this);
+		}
+
+		@Override
+		public int available() throws IOException {
+			return (int) Math.min(remaining, count - pos);
+		}
+	}
+
+	/**
+	 * Body with chunked transfer encoding.
+	 */
+	private class ChunkedInputStream extends InputStream {
+		private long chunkRemaining;
+		private boolean chunkEnd;
+		private boolean eof;
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (eof)
+				return -1;
+
+			if (chunkRemaining == 0) {
+				// each chunk data is followed by CRLF
+				if (chunkEnd && !readLine(true).equals(""))
+					throw new IOException("Invalid chunk end");
+
+				String line = readLine(true);
+				int iExt = line.indexOf(';');
+				if (iExt != -1)
+					line = line.substring(0, iExt);
+
+				try {
+					chunkRemaining = Long.parseLong(line.trim(), 16);
+				}
+				catch (NumberFormatException e) {
+					throw new IOException("Invalid chunk size: "+line);
+				}
+
+				if (chunkRemaining < 0)
+					throw new IOException("Invalid chunk size: "+line);
+
+				if (chunkRemaining == 0) {
+					// last chunk, skip trailer
+					readHeaders(new HashMap<String, String>());
+					eof = true;
+					return -1;
+				}
+				chunkEnd = true;
+			}
+
+			int n = readRaw(b, off, (int) Math.min(len, chunkRemaining));
+			if (n < 0)
+				throw new EOFException("Unexpected end of response body");
+
+			chunkRemaining -= n;
+			return n;
+		}
+
+		@Override
+		public int read() throws IOException {
+			return readByte(this);
+		}
+	}
+
+	/**
+	 * Body, delimited by connection close.
+	 */
+	private class UntilCloseInputStream extends InputStream {
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			return readRaw(b, off, len);
+		}
+
+		@Override
+		public int read() throws IOException {
+			return readByte(this);
+		}
+	}
+
+	private InputStream in;
+	private byte[] buf = new byte[4096];
+	private int pos;
+	private int count;
+
+	private String statusLine;
+	private int statusCode;
+	private Map<String, String> headers = new HashMap<String, String>();
+
+	private InputStream body;
+	private boolean delimited;
+
+	private HttpResponse(InputStream in) {
+		this.in = in;
+	}
+
+	/**
+	 * Reads response status line and headers. Body is not read.
+	 * Interim (1xx) responses are skipped.
+	 * @param in connection input stream
+	 * @return response
+	 * @throws IOException if connection is closed or response is invalid
+	 */
+	public static HttpResponse read(InputStream in) throws IOException {
+		HttpResponse response = new HttpResponse(in);
+		response.readHead();
+		return response;
+	}
+
+	public String getStatusLine() {
+		return statusLine;
+	}
+
+	public int getStatusCode() {
+		return statusCode;
+	}
+
+	/**
+	 * Returns header value. Repeated headers are joined with commas.
+	 * @param name header name, case insensitive
+	 * @return header value, or <code>null</code> if there is no such header
+	 */
+	public String getHeader(String name) {
+		return headers.get(name.toLowerCase());
+	}
+
+	/**
+	 * Returns body length from Content-Length header.
+	 * @return body length, or -1 if it is unknown
+	 */
+	public long getContentLength() {
+		String length = getHeader("Content-Length");
+		if (length == null)
+			return -1;
+
+		try {
+			return Long.parseLong(length.trim());
+		}
+		catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Returns response body stream. It ends with the body,
+	 * without waiting for connection to be closed.
+	 * @return body stream
+	 */
+	public InputStream getBody() {
+		return body;
+	}
+
+	/**
+	 * Returns response body reader, decoding body with charset from Content-Type header
+	 * (ISO-8859-1 by default).
+	 * @return body reader
+	 */
+	public Reader getBodyReader() {
+		try {
+			return new InputStreamReader(body, getCharset());
+		}
+		catch (UnsupportedEncodingException e) {
+			return new InputStreamReader(body, ISO88591);
+		}
+	}
+
+	/**
+	 * Checks if connection can be reused for the next request,
+	 * after body of this response is consumed.
+	 * @return <code>true</code> if connection is persistent
+	 */
+	public boolean isKeepAlive() {
+		if (!delimited)
+			return false;
+
+		String connection = getHeader("Connection");
+		if (statusLine.startsWith("HTTP/1.0"))
+			return connection != null && connection.toLowerCase().indexOf("keep-alive") != -1;
+
+		return connection == null || connection.toLowerCase().indexOf("close") == -1;
+	}
+
+	/**
+	 * Reads the whole body, decoded with charset from Content-Type header
+	 * (ISO-8859-1 by default).
+	 * @return body text
+	 * @throws IOException
+	 */
+	public String readBody() throws IOException {
+		ByteArrayOutputStream data = new ByteArrayOutputStream();
+		byte b[] = new byte[4096];
+		int len;
+
+		while ((len = body.read(b)) != -1) {
+			data.write(b, 0, len);
+		}
+
+		try {
+			return data.toString(getCharset());
+		}
+		catch (UnsupportedEncodingException e) {
+			return new String(data.toByteArray(), ISO88591);
+		}
+	}
+
+	/**
+	 * Reads and discards the rest of body, so connection can be reused.
+	 * @throws IOException
+	 */
+	public void skipBody() throws IOException {
+		byte b[] = new byte[4096];
+		while (body.read(b) != -1)
+			;
+	}
+
+	private String getCharset() {
+		String contentType = getHeader("Content-Type");
+		if (contentType == null)
+			return "ISO-8859-1";
+
+		int iCharset = contentType.toLowerCase().indexOf("charset=");
+		if (iCharset == -1)
+			return "ISO-8859-1";
+
+		String charset = contentType.substring(iCharset + "charset=".length());
+		int iEnd = charset.indexOf(';');
+		if (iEnd != -1)
+			charset = charset.substring(0, iEnd);
+
+		return charset.trim().replace("\"", "");
+	}
+
+	private void readHead() throws IOException {
+		do {
+			statusLine = readLine(false);
+			if (statusLine == null)
+				throw new EOFException("No response from server");
+
+			statusCode = parseStatusCode(statusLine);
+
+			headers.clear();
+			readHeaders(headers);
+		}
+		while (statusCode >= 100 && statusCode < 200);
+
+		String transferEncoding = getHeader("Transfer-Encoding");
+		long contentLength = getContentLength();
+
+		delimited = true;
+		if (statusCode == 204 || statusCode == 304) {
+			body = new FixedLengthInputStream(0);
+		}
+		else if (transferEncoding != null && transferEncoding.toLowerCase().indexOf("chunked") != -1) {
+			body = new ChunkedInputStream();
+		}
+		else if (contentLength >= 0) {
+			body = new FixedLengthInputStream(contentLength);
+		}
+		else {
+			body = new UntilCloseInputStream();
+			delimited = false;
+		}
+	}
+
+	private static int parseStatusCode(String statusLine) throws IOException {
+		// HTTP/1.1 200 OK
+		int iCode = statusLine.indexOf(' ');
+		if (!statusLine.startsWith("HTTP/") || iCode == -1 || statusLine.length() < iCode + 4)
+			throw new IOException("Invalid status line: "+statusLine);
+
+		int code = 0;
+		for (int i = iCode + 1; i < iCode + 4; i++) {
+			char c = statusLine.charAt(i);
+			if (c < '0' || c > '9')
+				throw new IOException("Invalid status line: "+statusLine);
+
+			code = code * 10 + (c - '0');
+		}
+		return code;
+	}
+
+	private void readHeaders(Map<String, String> headers) throws IOException {
+		String lastName = null;
+
+		for (int n = 0; ; n++) {
+			String line = readLine(true);
+			if (line.length() == 0)
+				return ;
+
+			if (n >= MAX_HEADERS)
+				throw new IOException("Too many response headers");
+
+			// obsolete line folding
+			if ((line.charAt(0) == ' ' || line.charAt(0) == '\t') && lastName != null) {
+				headers.put(lastName, headers.get(lastName) + " " + line.trim());
+				continue;
+			}
+
+			int iColon = line.indexOf(':');
+			if (iColon <= 0)
+				throw new IOException("Invalid response header: "+line);
+
+			String name = line.substring(0, iColon).trim().toLowerCase();
+			String value = line.substring(iColon + 1).trim();
+
+			String prevValue = headers.get(name);
+			headers.put(name, prevValue == null ? value : prevValue + ", " + value);
+			lastName = name;
+		}
+	}
+
+	/**
+	 * Reads line, terminated by LF or CRLF. Bytes are mapped to chars as ISO-8859-1.
+	 * @param required if <code>true</code>, end of stream is an error
+	 * @return line without terminator, or <code>null</code> at the end of stream
+	 */
+	private String readLine(boolean required) throws IOException {
+		StringBuilder line = new StringBuilder();
+
+		while (true) {
+			if (pos == count && !fill()) {
+				if (line.length() == 0 && !required)
+					return null;
+				throw new EOFException("Unexpected end of response");
+			}
+
+			byte b = buf[pos++];
+			if (b == '\n')
+				break;
+
+			if (line.length() >= MAX_LINE)
+				throw new IOException("Response line is too long");
+			line.append((char) (b & 0xff));
+		}
+
+		int len = line.length();
+		if (len > 0 && line.charAt(len - 1) == '\r')
+			line.setLength(len - 1);
+		return line.toString();
+	}
+
+	private boolean fill() throws IOException {
+		pos = 0;
+		count = 0;
+
+		int len = in.read(buf);
+		if (len <= 0)
+			return false;
+
+		count = len;
+		return true;
+	}
+
+	/**
+	 * Reads buffered bytes first, then from connection.
+	 */
+	private int readRaw(byte[] b, int off, int len) throws IOException {
+		if (len == 0)
+			return 0;
+
+		if (pos < count) {
+			int n = Math.min(len, count - pos);
+			System.arraycopy(buf, pos, b, off, n);
+			pos += n;
+			return n;
+		}
+		return in.read(b, off, len);
+	}
+
+	private static int readByte(InputStream in) throws IOException {
+		byte b[] = new byte[1];
+
+		int len;
+		while ((len = in.read(b, 0, 1)) == 0)
+			;
+		return len < 0 ? -1 : (b[0] & 0xff);
+	}
+}
@@ -0,0 +1,25 @@
+package com.bitgriff.http;
+
+import java.io.IOException;
+
+/**
+ * Thrown, when server responds with unexpected HTTP status.
+ */
+public class HttpStatusException extends IOException {
+	private static final long serialVersionUID = 1L;
+
+	private int statusCode;
+
+	public HttpStatusException(int statusCode, String statusLine) {
+		super("Invalid response. " + statusLine);
+		this.statusCode = statusCode;
+	}
+
+	/**
+	 * Returns response status code.
+	 * @return status code, i.e. 403
+	 */
+	public int getStatusCode() {
+		return statusCode;
+	}
+}
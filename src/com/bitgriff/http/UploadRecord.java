@@ -0,0 +1,140 @@
+package com.bitgriff.http;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Properties;
+import java.util.UUID;
+
+/**
+ * Persisted progress of resumable photo upload.
+ * Record is stored beside the uploaded file, so that retry after dropped connection
+ * (or after application restart) resumes from the last chunk, acknowledged by server.
+ */
+public class UploadRecord {
+	private File recordFile;
+
+	private String uploadId;
+	private int nid;
+	private long fileLength;
+	private long lastModified;
+	private long offset;
+
+	private UploadRecord(File recordFile) {
+		this.recordFile = recordFile;
+	}
+
+	/**
+	 * Opens upload record for file. Saved record is resumed, if it was made for the
+	 * same page and file is not changed since. Otherwise new upload is started.
+	 * @param file uploaded file
+	 * @param nid page node identifier
+	 * @return upload record
+	 */
+	public static UploadRecord open(File file, int nid) {
+		UploadRecord record = new UploadRecord(new File(file.getPath() + ".upload"));
+
+		if (record.load() && record.nid == nid
+				&& record.fileLength == file.length() && record.lastModified == file.lastModified()) {
+			return record;
+		}
+
+		record.uploadId = UUID.randomUUID().toString().replace("-", "");
+		record.nid = nid;
+		record.fileLength = file.length();
+		record.lastModified = file.lastModified();
+		record.offset = 0;
+		return record;
+	}
+
+	/**
+	 * Deletes saved record of the file, if any.
+	 * @param file uploaded file
+	 */
+	public static void discard(File file) {
+		new File(file.getPath() + ".upload").delete();
+	}
+
+	public String getUploadId() {
+		return uploadId;
+	}
+
+	/**
+	 * Returns number of bytes, acknowledged by server.
+	 * @return offset of the next chunk
+	 */
+	public long getOffset() {
+		return offset;
+	}
+
+	/**
+	 * Sets number of bytes, acknowledged by server, and saves record.
+	 * @param offset offset of the next chunk
+	 * @throws IOException
+	 */
+	public void setOffset(long offset) throws IOException {
+		this.offset = offset;
+		save();
+	}
+
+	/**
+	 * Deletes record, when upload is completed.
+	 */
+	public void delete() {
+		recordFile.delete();
+	}
+
+	private boolean load() {
+		if (!recordFile.exists())
+			return false;
+
+		Properties props = new Properties();
+		try {
+			FileInputStream in = new FileInputStream(recordFile);
+			try {
+				props.load(in);
+			}
+			finally {
+				in.close();
+			}
+
+			uploadId = props.getProperty("uploadId");
+			nid = Integer.parseInt(props.getProperty("nid"));
+			fileLength = Long.parseLong(props.getProperty("fileLength"));
+			lastModified = Long.parseLong(props.getProperty("lastModified"));
+			offset = Long.parseLong(props.getProperty("offset"));
+			return uploadId != null && offset >= 0 && offset <= fileLength;
+		}
+		catch (Exception ex) {
+			// damaged record, start upload from the beginning
+			return false;
+		}
+	}
+
+	private void save() throws IOException {
+		Properties props = new Properties();
+		props.setProperty("uploadId", uploadId);
+		props.setProperty("nid", ""+nid);
+		props.setProperty("fileLength", ""+fileLength);
+		props.setProperty("lastModified", ""+lastModified);
+		props.setProperty("offset", ""+offset);
+
+		// write to temporary file first, so that record is never left half-written
+		File tmpFile = new File(recordFile.getPath() + ".tmp");
+		FileOutputStream out = new FileOutputStream(tmpFile);
+		try {
+			props.store(out, null);
+			out.getFD().sync();
+		}
+		finally {
+			out.close();
+		}
+
+		if (!tmpFile.renameTo(recordFile)) {
+			recordFile.delete();
+			if (!tmpFile.renameTo(recordFile))
+				throw new IOException("Cannot save upload record: "+recordFile);
+		}
+	}
+}
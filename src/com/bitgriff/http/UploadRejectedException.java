@@ -0,0 +1,15 @@
+package com.bitgriff.http;
+
+import java.io.IOException;
+
+/**
+ * Thrown, when server rejects photo upload or responds to it with invalid data.
+ * Sending the same photo again gives the same result, so failure is permanent.
+ */
+public class UploadRejectedException extends IOException {
+	private static final long serialVersionUID = 1L;
+
+	public UploadRejectedException(String message) {
+		super(message);
+	}
+}
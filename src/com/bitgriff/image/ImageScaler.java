@@ -0,0 +1,224 @@
+package com.bitgriff.image;
+
+import java.util.Arrays;
+
+/**
+ * Streaming image downscaler with area averaging.
+ * Source rows are pushed one by one, top to bottom, and destination rows are passed
+ * to listener as soon as they are complete. Only two rows of accumulators are kept,
+ * so image can be processed in bands, without holding the whole source in memory.
+ * Pixels are packed ARGB ints, alpha is set to opaque in destination.
+ *
+ * Plain Java, so it can be used (and tested) without Android.
+ */
+public class ImageScaler {
+	/**
+	 * Receives destination rows.
+	 */
+	public interface RowListener {
+		/**
+		 * Called for each destination row, top to bottom.
+		 * @param y row index
+		 * @param pixels row pixels. Array is reused for the next row.
+		 */
+		void row(int y, int[] pixels);
+	}
+
+	private int srcWidth;
+	private int srcHeight;
+	private int dstWidth;
+	private int dstHeight;
+	private RowListener listener;
+
+	// scale factors (destination/source)
+	private float fx;
+	private float fy;
+
+	// destination column and weight of each source column, the rest of
+	// column weight (fx - weight) goes to the next destination column
+	private int hIndex[];
+	private float hWeight[];
+	private float hSum[];
+
+	private float row[];
+	private float cur[];
+	private float next[];
+	private float curWeight;
+	private float nextWeight;
+	private int out[];
+
+	private int srcY;
+	private int dstY;
+
+	/**
+	 * Creates scaler.
+	 * @param srcWidth source width
+	 * @param srcHeight source height
+	 * @param dstWidth destination width, not greater than source width
+	 * @param dstHeight destination height, not greater than source height
+	 * @param listener destination rows listener
+	 */
+	public ImageScaler(int srcWidth, int srcHeight, int dstWidth, int dstHeight, RowListener listener) {
+		if (dstWidth < 1 || dstHeight < 1 || dstWidth > srcWidth || dstHeight > srcHeight)
+			throw new IllegalArgumentException("Invalid scale: "+srcWidth+"x"+srcHeight+" to "+dstWidth+"x"+dstHeight);
+
+		this.srcWidth = srcWidth;
+		this.srcHeight = srcHeight;
+		this.dstWidth = dstWidth;
+		this.dstHeight = dstHeight;
+		this.listener = listener;
+
+		fx = (float) dstWidth / srcWidth;
+		fy = (float) dstHeight / srcHeight;
+
+		hIndex = new int[srcWidth];
+		hWeight = new float[srcWidth];
+		hSum = new float[dstWidth];
+		for (int x = 0; x < srcWidth; x++) {
+			int dx = index(x, fx, dstWidth);
+			float weight = weight(x, dx, fx, dstWidth);
+
+			hIndex[x] = dx;
+			hWeight[x] = weight;
+			hSum[dx] += weight;
+			if (dx + 1 < dstWidth)
+				hSum[dx + 1] += fx - weight;
+		}
+
+		row = new float[dstWidth * 3];
+		cur = new float[dstWidth * 3];
+		next = new float[dstWidth * 3];
+		out = new int[dstWidth];
+	}
+
+	/**
+	 * Pushes the next source row. Rows beyond source height are ignored.
+	 * @param pixels array with row pixels
+	 * @param offset index of the first pixel of row
+	 */
+	public void pushRow(int[] pixels, int offset) {
+		if (srcY >= srcHeight)
+			return ;
+
+		// horizontal pass
+		Arrays.fill(row, 0);
+		for (int x = 0; x < srcWidth; x++) {
+			int p = pixels[offset + x];
+			float r = (p >> 16) & 0xff;
+			float g = (p >> 8) & 0xff;
+			float b = p & 0xff;
+
+			int i = hIndex[x] * 3;
+			float weight = hWeight[x];
+			row[i] += r * weight;
+			row[i + 1] += g * weight;
+			row[i + 2] += b * weight;
+
+			float rest = fx - weight;
+			if (rest > 0 && i + 3 < row.length) {
+				row[i + 3] += r * rest;
+				row[i + 4] += g * rest;
+				row[i + 5] += b * rest;
+			}
+		}
+
+		// vertical pass, source row may be split between two destination rows
+		int dy = index(srcY, fy, dstHeight);
+		float weight = weight(srcY, dy, fy, dstHeight);
+		float rest = (dy + 1 < dstHeight) ? fy - weight : 0;
+
+		accumulate(cur, weight);
+		curWeight += weight;
+		if (rest > 0) {
+			accumulate(next, rest);
+			nextWeight += rest;
+		}
+
+		srcY++;
+		if (srcY == srcHeight || index(srcY, fy, dstHeight) > dstY)
+			emit();
+	}
+
+	/**
+	 * Completes destination, if less rows than source height were pushed
+	 * (i.e. decoder returned shorter image). Missing rows repeat the last row.
+	 */
+	public void finish() {
+		while (dstY < dstHeight)
+			emit();
+	}
+
+	/**
+	 * Calculates size to fit image into square with given side, keeping aspect ratio.
+	 * Image is never enlarged.
+	 * @param width image width
+	 * @param height image height
+	 * @param maxDimension maximum width and height
+	 * @return width and height
+	 */
+	public static int[] fitSize(int width, int height, int maxDimension) {
+		if (width <= maxDimension && height <= maxDimension)
+			return new int[] { width, height };
+
+		if (width >= height)
+			return new int[] { maxDimension, Math.max(1, (int) ((long) height * maxDimension / width)) };
+		return new int[] { Math.max(1, (int) ((long) width * maxDimension / height)), maxDimension };
+	}
+
+	/**
+	 * Calculates the largest power of two subsampling, that keeps image
+	 * not smaller than destination size. Subsampled decoding reduces decoder work
+	 * and memory, and scaler produces the exact size then.
+	 * @return subsampling factor
+	 */
+	public static int sampleSize(int srcWidth, int srcHeight, int dstWidth, int dstHeight) {
+		int sample = 1;
+		while (srcWidth / (sample * 2) >= dstWidth && srcHeight / (sample * 2) >= dstHeight)
+			sample *= 2;
+		return sample;
+	}
+
+	private void accumulate(float[] acc, float weight) {
+		for (int i = 0; i < acc.length; i++)
+			acc[i] += row[i] * weight;
+	}
+
+	private void emit() {
+		// without data (rows were not pushed), the previous row is repeated
+		if (curWeight > 0) {
+			for (int x = 0, i = 0; x < dstWidth; x++, i += 3) {
+				float norm = 1 / (hSum[x] * curWeight);
+				out[x] = 0xff000000 | (clamp(cur[i] * norm) << 16) | (clamp(cur[i + 1] * norm) << 8) | clamp(cur[i + 2] * norm);
+			}
+		}
+		listener.row(dstY++, out);
+
+		float acc[] = cur;
+		cur = next;
+		next = acc;
+		Arrays.fill(next, 0);
+		curWeight = nextWeight;
+		nextWeight = 0;
+	}
+
+	private static int clamp(float value) {
+		int v = (int) (value + 0.5f);
+		return v < 0 ? 0 : (v > 255 ? 255 : v);
+	}
+
+	/**
+	 * Returns destination pixel, where source pixel starts.
+	 */
+	private static int index(int src, float scale, int dstLength) {
+		return Math.min((int) (src * scale), dstLength - 1);
+	}
+
+	/**
+	 * Returns weight of source pixel in destination pixel, where it starts.
+	 */
+	private static float weight(int src, int dst, float scale, int dstLength) {
+		if (dst + 1 >= dstLength)
+			return scale;
+		return Math.min(scale, (dst + 1) - src * scale);
+	}
+}
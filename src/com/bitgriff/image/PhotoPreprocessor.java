@@ -0,0 +1,235 @@
+package com.bitgriff.image;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+import android.media.ExifInterface;
+import android.os.Build;
+
+/**
+ * Prepares photo for upload: downscales it to fit maximum dimension and
+ * recompresses with given JPEG quality.
+ * Memory is bounded: source is decoded subsampled, in bands of rows (when
+ * BitmapRegionDecoder is available), and scaled by ImageScaler band by band,
+ * so only destination bitmap is held in memory as a whole.
+ * Result is cached, so retried upload sends the same file.
+ */
+public class PhotoPreprocessor {
+	/** Number of subsampled source rows, decoded at once */
+	final private static int BAND_ROWS = 64;
+
+	private File cacheDir;
+	private int maxDimension;
+	private int quality;
+
+	/**
+	 * Creates preprocessor.
+	 * @param cacheDir directory for processed photos
+	 * @param maxDimension maximum width and height of processed photo
+	 * @param quality JPEG quality, 0 to 100
+	 */
+	public PhotoPreprocessor(File cacheDir, int maxDimension, int quality) {
+		if (maxDimension < 1 || quality < 0 || quality > 100)
+			throw new IllegalArgumentException("Invalid photo parameters: "+maxDimension+", "+quality);
+
+		this.cacheDir = cacheDir;
+		this.maxDimension = maxDimension;
+		this.quality = quality;
+	}
+
+	/**
+	 * Processes photo. If photo already fits maximum dimension, it is returned as is.
+	 * @param photo JPEG photo file
+	 * @return processed photo file (from cache, if processed before)
+	 * @throws IOException if photo cannot be decoded or processed photo cannot be saved
+	 */
+	public File process(File photo) throws IOException {
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inJustDecodeBounds = true;
+		BitmapFactory.decodeFile(photo.getPath(), options);
+
+		int width = options.outWidth;
+		int height = options.outHeight;
+		if (width <= 0 || height <= 0)
+			throw new IOException("Cannot decode photo: "+photo);
+
+		if (width <= maxDimension && height <= maxDimension)
+			return photo;
+
+		File cacheFile = getCacheFile(photo);
+		if (cacheFile.length() > 0)
+			return cacheFile;
+
+		if (!cacheDir.exists() && !cacheDir.mkdirs())
+			throw new IOException("Cannot create cache directory: "+cacheDir);
+
+		int size[] = ImageScaler.fitSize(width, height, maxDimension);
+		int sample = ImageScaler.sampleSize(width, height, size[0], size[1]);
+
+		final Bitmap dst = Bitmap.createBitmap(size[0], size[1], Bitmap.Config.ARGB_8888);
+		try {
+			final int dstWidth = size[0];
+			ImageScaler scaler = new ImageScaler((width + sample - 1) / sample, (height + sample - 1) / sample,
+					size[0], size[1], new ImageScaler.RowListener() {
+				@Override
+				public void row(int y, int[] pixels) {
+					dst.setPixels(pixels, 0, dstWidth, 0, y, dstWidth, 1);
+				}
+			});
+
+			// BitmapRegionDecoder is available since Android 2.3.3
+			boolean decoded = false;
+			if (Build.VERSION.SDK_INT >= 10)
+				decoded = decodeBands(photo, width, height, sample, scaler);
+			if (!decoded)
+				decodeWhole(photo, sample, scaler);
+			scaler.finish();
+
+			// write to temporary file first, so that cache never has partial photo
+			File tmpFile = new File(cacheFile.getPath() + ".tmp");
+			OutputStream out = new BufferedOutputStream(new FileOutputStream(tmpFile));
+			try {
+				if (!dst.compress(Bitmap.CompressFormat.JPEG, quality, out))
+					throw new IOException("Cannot compress photo: "+photo);
+			}
+			finally {
+				out.close();
+			}
+
+			copyOrientation(photo, tmpFile);
+
+			if (!tmpFile.renameTo(cacheFile)) {
+				tmpFile.delete();
+				throw new IOException("Cannot save processed photo: "+cacheFile);
+			}
+			return cacheFile;
+		}
+		finally {
+			dst.recycle();
+		}
+	}
+
+	/**
+	 * Returns cache file of processed photo. File may not exist.
+	 * Name depends on photo file and processing parameters, so changed photo
+	 * is processed again.
+	 * @param photo photo file
+	 * @return cache file
+	 */
+	public File getCacheFile(File photo) {
+		String name = photo.getName();
+		int iExt = name.lastIndexOf('.');
+		if (iExt != -1)
+			name = name.substring(0, iExt);
+
+		return new File(cacheDir, name + "_" + maxDimension + "_" + quality + "_"
+				+ Long.toHexString(photo.lastModified() ^ photo.length()) + ".jpg");
+	}
+
+	/**
+	 * Decodes photo in bands of rows and pushes them to scaler.
+	 * @return <code>false</code> if region decoder cannot be created for photo
+	 */
+	private boolean decodeBands(File photo, int width, int height, int sample, ImageScaler scaler) throws IOException {
+		BitmapRegionDecoder decoder;
+		try {
+			decoder = BitmapRegionDecoder.newInstance(photo.getPath(), false);
+		}
+		catch (IOException e) {
+			return false;
+		}
+
+		try {
+			BitmapFactory.Options options = new BitmapFactory.Options();
+			options.inSampleSize = sample;
+
+			int rowWidth = (width + sample - 1) / sample;
+			int pixels[] = new int[rowWidth * BAND_ROWS];
+			int bandHeight = BAND_ROWS * sample;
+
+			for (int y = 0; y < height; y += bandHeight) {
+				Bitmap band = decoder.decodeRegion(new Rect(0, y, width, Math.min(height, y + bandHeight)), options);
+				if (band == null)
+					throw new IOException("Cannot decode photo: "+photo);
+
+				try {
+					pushRows(band, pixels, rowWidth, scaler);
+				}
+				finally {
+					band.recycle();
+				}
+			}
+			return true;
+		}
+		finally {
+			decoder.recycle();
+		}
+	}
+
+	/**
+	 * Decodes the whole photo subsampled and pushes it to scaler.
+	 */
+	private void decodeWhole(File photo, int sample, ImageScaler scaler) throws IOException {
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inSampleSize = sample;
+
+		Bitmap bitmap = BitmapFactory.decodeFile(photo.getPath(), options);
+		if (bitmap == null)
+			throw new IOException("Cannot decode photo: "+photo);
+
+		try {
+			int rowWidth = bitmap.getWidth();
+			pushRows(bitmap, new int[rowWidth * BAND_ROWS], rowWidth, scaler);
+		}
+		finally {
+			bitmap.recycle();
+		}
+	}
+
+	/**
+	 * Pushes bitmap rows to scaler, BAND_ROWS rows at once.
+	 * Rows, narrower than scaler source width, are padded with the last pixel.
+	 */
+	private static void pushRows(Bitmap bitmap, int[] pixels, int rowWidth, ImageScaler scaler) {
+		int width = Math.min(bitmap.getWidth(), rowWidth);
+		int height = bitmap.getHeight();
+
+		for (int y = 0; y < height; y += BAND_ROWS) {
+			int rows = Math.min(BAND_ROWS, height - y);
+			bitmap.getPixels(pixels, 0, rowWidth, 0, y, width, rows);
+
+			for (int i = 0; i < rows; i++) {
+				int offset = i * rowWidth;
+				for (int x = width; x < rowWidth; x++)
+					pixels[offset + x] = pixels[offset + width - 1];
+
+				scaler.pushRow(pixels, offset);
+			}
+		}
+	}
+
+	/**
+	 * Copies EXIF orientation, as decoded bitmap is not rotated.
+	 */
+	private static void copyOrientation(File photo, File processed) {
+		try {
+			String orientation = new ExifInterface(photo.getPath()).getAttribute(ExifInterface.TAG_ORIENTATION);
+			if (orientation == null)
+				return ;
+
+			ExifInterface exif = new ExifInterface(processed.getPath());
+			exif.setAttribute(ExifInterface.TAG_ORIENTATION, orientation);
+			exif.saveAttributes();
+		}
+		catch (IOException e) {
+			// photo is still usable
+		}
+	}
+}
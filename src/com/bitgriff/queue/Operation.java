@@ -0,0 +1,90 @@
+package com.bitgriff.queue;
+
+import java.io.File;
+
+/**
+ * Pending operation of OperationQueue.
+ * Photo upload and page delete may refer to page, that is created by queued
+ * create operation, then page node identifier is known when that operation is done.
+ */
+public class Operation {
+	public static final int CREATE_PAGE = 1;
+	public static final int UPLOAD_PHOTO = 2;
+	public static final int DELETE_PAGE = 3;
+
+	private long id;
+	private int type;
+	private int nid;
+	private long pageRef;
+	private String title;
+	private String body;
+	private String path;
+
+	Operation(long id, int type, int nid, long pageRef, String title, String body, String path) {
+		this.id = id;
+		this.type = type;
+		this.nid = nid;
+		this.pageRef = pageRef;
+		this.title = title;
+		this.body = body;
+		this.path = path;
+	}
+
+	/**
+	 * Returns operation identifier, unique within queue.
+	 * @return identifier
+	 */
+	public long getId() {
+		return id;
+	}
+
+	/**
+	 * Returns operation type: CREATE_PAGE, UPLOAD_PHOTO or DELETE_PAGE.
+	 * @return type
+	 */
+	public int getType() {
+		return type;
+	}
+
+	/**
+	 * Returns page node identifier.
+	 * @return node identifier, or 0 if page is not created yet
+	 */
+	public int getNid() {
+		return nid;
+	}
+
+	void setNid(int nid) {
+		this.nid = nid;
+	}
+
+	/**
+	 * Returns identifier of queued operation, that creates page.
+	 * @return operation identifier, or 0 if page node identifier is given
+	 */
+	public long getPageRef() {
+		return pageRef;
+	}
+
+	public String getTitle() {
+		return title;
+	}
+
+	public String getBody() {
+		return body;
+	}
+
+	public File getPhoto() {
+		return path == null ? null : new File(path);
+	}
+
+	String getPath() {
+		return path;
+	}
+
+	@Override
+	public String toString() {
+		String[] names = { "?", "node.create", "photo upload", "node.delete" };
+		return names[type] + " #" + id + (nid != 0 ? " (nid " + nid + ")" : "");
+	}
+}
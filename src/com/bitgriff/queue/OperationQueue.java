@@ -0,0 +1,704 @@
+package com.bitgriff.queue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import com.bitgriff.http.HttpStatusException;
+import com.bitgriff.http.UploadRejectedException;
+
+/**
+ * Durable queue of pending Drupal operations (page create, photo upload, page delete).
+ * Operations are executed in order by background thread, failed operation is retried
+ * with exponential backoff. Transient failures (IOException, i.e. there is no network
+ * or user is not logged in) are retried until they pass, and operation is dropped
+ * only after too many permanent failures (i.e. fault returned by server, HTTP 5xx
+ * or rejected photo upload). Operation, that is refused by server with HTTP 4xx
+ * other than 403, is dropped at once, as it can never pass.
+ *
+ * Queue is stored in append-only log file: each record is
+ * <code>length, CRC32, data</code>, and is synced to disk before enqueue returns.
+ * Log is replayed on open, and incomplete or damaged tail (crash while writing)
+ * is truncated. Log is compacted, when it mostly consists of completed operations.
+ *
+ * Operations are executed at least once: operation is marked completed after it is
+ * done, so if process is killed in between, it is executed again after restart.
+ * Deletion is harmless to repeat, and interrupted photo upload is resumed by
+ * UploadRecord, but page may be created twice, as node.create of Drupal services
+ * has no request token to recognize repeated call.
+ *
+ * Redundant operations are coalesced on enqueue: deleting page, that is not created yet,
+ * cancels its creation and photo uploads, and duplicate uploads or deletes are ignored.
+ *
+ * Plain Java, so it can be used (and tested) without Android.
+ */
+public class OperationQueue {
+	/**
+	 * Executes operations. Failure is transient, if IOException is thrown or is 
+	 * the cause of thrown exception, and is permanent otherwise. HttpStatusException 
+	 * other than 403 and UploadRejectedException are permanent.
+	 */
+	public interface Handler {
+		/**
+		 * Creates page. It is called again for the same page, if process is killed
+		 * before the result is saved.
+		 * @return page node identifier
+		 */
+		int createPage(String title, String body) throws Exception;
+
+		void uploadPhoto(int nid, File photo) throws Exception;
+
+		void deletePage(int nid) throws Exception;
+	}
+
+	/**
+	 * Receives operation results. Called from queue thread.
+	 */
+	public interface Listener {
+		void operationDone(Operation op);
+
+		/**
+		 * Called when operation is dropped after the last permanent failure.
+		 * Operations on page, that is failed to create, are dropped as well.
+		 */
+		void operationFailed(Operation op, Exception ex);
+	}
+
+	final private static int MAGIC = 0x4f505131; // OPQ1
+
+	final private static int RECORD_ADD = 1;
+	final private static int RECORD_DONE = 2;
+
+	/** Maximum record length, longer record is treated as damaged */
+	final private static int MAX_RECORD = 16 * 1024 * 1024;
+	/** Minimal number of completed records in log to compact it */
+	final private static int COMPACT_THRESHOLD = 64;
+
+	final private static Charset UTF8 = Charset.forName("UTF-8");
+
+	private File file;
+	private RandomAccessFile log;
+	private int records;
+
+	private Handler handler;
+	private Listener listener;
+
+	/** pending operations, in order of execution */
+	private Map<Long, Operation> ops = new LinkedHashMap<Long, Operation>();
+	/** node identifiers of created pages, by create operation identifier (0 - not created) */
+	private Map<Long, Integer> created = new HashMap<Long, Integer>();
+	private long nextId = 1;
+
+	private Operation current;
+	private Thread thread;
+
+	// retry params
+	private long initialDelay = 5 * 1000;
+	private long maxDelay = 15 * 60 * 1000;
+	private int maxAttempts = 8;
+	private int failures;
+	/** number of permanent failures of current operation */
+	private int faults;
+	private long retryAt;
+	private Random random = new Random();
+
+	/**
+	 * Opens queue, replaying its log.
+	 * @param file log file
+	 * @param handler operations handler
+	 * @throws IOException if log cannot be opened
+	 */
+	public OperationQueue(File file, Handler handler) throws IOException {
+		this.file = file;
+		this.handler = handler;
+
+		replay();
+	}
+
+	public synchronized void setListener(Listener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Sets retry params.
+	 * @param initialDelay delay after the first failure, milliseconds. It doubles with each failure.
+	 * @param maxDelay maximum delay, milliseconds
+	 * @param maxAttempts number of permanently failed attempts, before operation is dropped.
+	 * Transiently failed attempts are not limited.
+	 */
+	public synchronized void setRetry(long initialDelay, long maxDelay, int maxAttempts) {
+		if (initialDelay < 0 || maxDelay < initialDelay || maxAttempts < 1)
+			throw new IllegalArgumentException("Invalid retry params");
+
+		this.initialDelay = initialDelay;
+		this.maxDelay = maxDelay;
+		this.maxAttempts = maxAttempts;
+	}
+
+	/**
+	 * Enqueues page creation.
+	 * @return operation identifier, to refer the page in subsequent operations
+	 * @throws IOException if operation cannot be saved
+	 */
+	public synchronized long createPage(String title, String body) throws IOException {
+		return add(new Operation(nextId, Operation.CREATE_PAGE, 0, 0, title, body, null)).getId();
+	}
+
+	/**
+	 * Enqueues photo upload to existing page.
+	 * @return operation identifier
+	 * @throws IOException if operation cannot be saved
+	 */
+	public synchronized long uploadPhoto(int nid, File photo) throws IOException {
+		if (nid <= 0)
+			throw new IllegalArgumentException("Invalid nid: "+nid);
+
+		return add(new Operation(nextId, Operation.UPLOAD_PHOTO, nid, 0, null, null, photo.getPath())).getId();
+	}
+
+	/**
+	 * Enqueues photo upload to page, created by queued operation.
+	 * @param pageRef page create operation identifier
+	 * @return operation identifier
+	 * @throws IOException if operation cannot be saved
+	 */
+	public synchronized long uploadPhotoToCreated(long pageRef, File photo) throws IOException {
+		return add(new Operation(nextId, Operation.UPLOAD_PHOTO, resolve(pageRef), pageRef, null, null, photo.getPath())).getId();
+	}
+
+	/**
+	 * Enqueues deletion of existing page. Pending photo uploads to the page are cancelled.
+	 * @return operation identifier
+	 * @throws IOException if operation cannot be saved
+	 */
+	public synchronized long deletePage(int nid) throws IOException {
+		if (nid <= 0)
+			throw new IllegalArgumentException("Invalid nid: "+nid);
+
+		return add(new Operation(nextId, Operation.DELETE_PAGE, nid, 0, null, null, null)).getId();
+	}
+
+	/**
+	 * Enqueues deletion of page, created by queued operation.
+	 * If page is not created yet, its creation is cancelled instead.
+	 * @param pageRef page create operation identifier
+	 * @return operation identifier, or 0 if creation is cancelled
+	 * @throws IOException if operation cannot be saved
+	 */
+	public synchronized long deleteCreatedPage(long pageRef) throws IOException {
+		Operation op = add(new Operation(nextId, Operation.DELETE_PAGE, resolve(pageRef), pageRef, null, null, null));
+		return op == null ? 0 : op.getId();
+	}
+
+	/**
+	 * Returns pending operations, in order of execution.
+	 * @return operations
+	 */
+	public synchronized List<Operation> getPending() {
+		return new ArrayList<Operation>(ops.values());
+	}
+
+	public synchronized int size() {
+		return ops.size();
+	}
+
+	/**
+	 * Starts background thread, executing operations.
+	 */
+	public synchronized void start() {
+		if (thread != null)
+			return ;
+
+		thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				drain();
+			}
+		}, "OperationQueue");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stops background thread. Operation in progress is completed.
+	 */
+	public synchronized void stop() {
+		thread = null;
+		notifyAll();
+	}
+
+	/**
+	 * Retries failed operation immediately, i.e. when network becomes available.
+	 */
+	public synchronized void wakeUp() {
+		retryAt = 0;
+		notifyAll();
+	}
+
+	/**
+	 * Stops queue and closes log file.
+	 * @throws IOException
+	 */
+	public synchronized void close() throws IOException {
+		stop();
+		log.close();
+	}
+
+	/**
+	 * Returns node identifier of page, created by operation.
+	 * @return node identifier, or 0 if page is not created yet
+	 */
+	private int resolve(long pageRef) {
+		if (ops.containsKey(pageRef) && ops.get(pageRef).getType() == Operation.CREATE_PAGE)
+			return 0;
+
+		Integer nid = created.get(pageRef);
+		if (nid == null || nid == 0)
+			throw new IllegalArgumentException("No page is created by operation "+pageRef);
+		return nid;
+	}
+
+	/**
+	 * Coalesces operation with pending ones, and saves it.
+	 * @return operation, or <code>null</code> if it is redundant
+	 */
+	private Operation add(Operation op) throws IOException {
+		if (op.getType() == Operation.DELETE_PAGE) {
+			Operation create = ops.get(op.getPageRef());
+
+			if (create != null && create != current) {
+				// page is not created yet, so just do not create it
+				complete(create, 0);
+				cancelDependent(create.getId());
+				return null;
+			}
+
+			// photos are not needed for deleted page
+			for (Operation pending : new ArrayList<Operation>(ops.values())) {
+				if (pending != current && pending.getType() == Operation.UPLOAD_PHOTO && samePage(pending, op))
+					complete(pending, 0);
+			}
+		}
+
+		// ignore duplicate upload or delete
+		if (op.getType() != Operation.CREATE_PAGE) {
+			for (Operation pending : ops.values()) {
+				if (pending.getType() == op.getType() && samePage(pending, op)
+						&& (op.getPath() == null || op.getPath().equals(pending.getPath())))
+					return pending;
+			}
+		}
+
+		append(RECORD_ADD, op, 0);
+		ops.put(op.getId(), op);
+		nextId++;
+
+		notifyAll();
+		return op;
+	}
+
+	private static boolean samePage(Operation op1, Operation op2) {
+		if (op1.getPageRef() != 0 && op1.getPageRef() == op2.getPageRef())
+			return true;
+		return op1.getNid() != 0 && op1.getNid() == op2.getNid();
+	}
+
+	/**
+	 * Removes pending operations on page, that is not going to be created.
+	 * @return removed operations
+	 */
+	private List<Operation> cancelDependent(long pageRef) throws IOException {
+		List<Operation> cancelled = new ArrayList<Operation>();
+
+		for (Operation op : new ArrayList<Operation>(ops.values())) {
+			if (op.getPageRef() == pageRef && op.getNid() == 0) {
+				complete(op, 0);
+				cancelled.add(op);
+			}
+		}
+		return cancelled;
+	}
+
+	/**
+	 * Marks operation completed (or cancelled), and saves it.
+	 * @param nid node identifier of created page, 0 if it is not created
+	 */
+	private void complete(Operation op, int nid) throws IOException {
+		append(RECORD_DONE, op, nid);
+		ops.remove(op.getId());
+		applyDone(op.getId(), nid);
+
+		// compact log if it mostly consists of completed operations
+		int completed = records - ops.size();
+		if (completed >= COMPACT_THRESHOLD && completed > 2 * ops.size())
+			compact();
+	}
+
+	private void applyDone(long id, int nid) {
+		if (!created.containsKey(id))
+			return ;
+
+		created.put(id, nid);
+		if (nid == 0)
+			return ;
+
+		for (Operation op : ops.values()) {
+			if (op.getPageRef() == id && op.getNid() == 0)
+				op.setNid(nid);
+		}
+	}
+
+	private void drain() {
+		while (true) {
+			Operation op;
+			synchronized (this) {
+				while (thread == Thread.currentThread()) {
+					// wait for operation, its retry time, and for previous thread 
+					// (if queue is restarted) to complete its operation
+					long timeout = 0;
+					if (!ops.isEmpty() && current == null) {
+						timeout = retryAt - System.currentTimeMillis();
+						if (timeout <= 0)
+							break;
+					}
+
+					try {
+						wait(timeout);
+					}
+					catch (InterruptedException e) {
+						return ;
+					}
+				}
+
+				if (thread != Thread.currentThread())
+					return ;
+
+				op = ops.values().iterator().next();
+				current = op;
+			}
+
+			int nid = 0;
+			Exception error = null;
+			try {
+				nid = execute(op);
+			}
+			catch (Exception ex) {
+				error = ex;
+			}
+
+			List<Operation> dropped = new ArrayList<Operation>();
+			Listener listener;
+			synchronized (this) {
+				current = null;
+				listener = this.listener;
+				notifyAll();
+
+				try {
+					if (error == null) {
+						if (op.getType() == Operation.CREATE_PAGE)
+							op.setNid(nid);
+						complete(op, nid);
+						failures = 0;
+						faults = 0;
+					}
+					else if (isRefused(error) || (!isTransient(error) && ++faults >= maxAttempts)) {
+						complete(op, 0);
+						dropped.add(op);
+						if (op.getType() == Operation.CREATE_PAGE)
+							dropped.addAll(cancelDependent(op.getId()));
+						failures = 0;
+						faults = 0;
+					}
+					else {
+						// exponential backoff with jitter, transient failures 
+						// are retried with maximum delay then
+						failures++;
+						long delay = initialDelay << Math.min(failures - 1, 30);
+						delay = Math.min(delay, maxDelay);
+						delay += (long) (delay * 0.2 * random.nextDouble());
+						retryAt = System.currentTimeMillis() + delay;
+						continue;
+					}
+				}
+				catch (IOException ex) {
+					// log cannot be written, operation is kept in memory and retried
+					retryAt = System.currentTimeMillis() + maxDelay;
+					continue;
+				}
+			}
+
+			if (listener != null) {
+				if (error == null)
+					listener.operationDone(op);
+				for (Operation droppedOp : dropped)
+					listener.operationFailed(droppedOp, error);
+			}
+		}
+	}
+
+	/**
+	 * Checks if failure is transient, so operation is never dropped because of it.
+	 * Expired session (HTTP 403) is transient, other HTTP statuses and rejected
+	 * uploads are answers of server to the operation itself.
+	 */
+	private static boolean isTransient(Throwable error) {
+		for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+			if (cause instanceof UploadRejectedException)
+				return false;
+			if (cause instanceof HttpStatusException)
+				return ((HttpStatusException) cause).getStatusCode() == 403;
+			if (cause instanceof IOException)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Checks if operation is refused by server (HTTP 4xx other than 403),
+	 * so it is dropped without further attempts.
+	 */
+	private static boolean isRefused(Throwable error) {
+		for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+			if (cause instanceof HttpStatusException) {
+				int statusCode = ((HttpStatusException) cause).getStatusCode();
+				return statusCode >= 400 && statusCode < 500 && statusCode != 403;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Executes operation.
+	 * @return node identifier of created page
+	 */
+	private int execute(Operation op) throws Exception {
+		switch (op.getType()) {
+		case Operation.CREATE_PAGE:
+			return handler.createPage(op.getTitle(), op.getBody());
+
+		case Operation.UPLOAD_PHOTO:
+			if (op.getNid() == 0)
+				throw new IllegalStateException("Page is not created: "+op);
+			handler.uploadPhoto(op.getNid(), op.getPhoto());
+			return 0;
+
+		case Operation.DELETE_PAGE:
+			if (op.getNid() == 0)
+				throw new IllegalStateException("Page is not created: "+op);
+			handler.deletePage(op.getNid());
+			return 0;
+		}
+		throw new IllegalStateException("Invalid operation: "+op);
+	}
+
+	private void replay() throws IOException {
+		log = new RandomAccessFile(file, "rw");
+
+		if (log.length() < 4) {
+			log.setLength(0);
+			log.writeInt(MAGIC);
+			log.getFD().sync();
+			return ;
+		}
+
+		if (log.readInt() != MAGIC) {
+			log.close();
+			throw new IOException("Invalid queue file: "+file);
+		}
+
+		long valid = log.getFilePointer();
+		CRC32 crc = new CRC32();
+
+		while (true) {
+			byte data[];
+			try {
+				int length = log.readInt();
+				int checksum = log.readInt();
+				if (length < 0 || length > MAX_RECORD)
+					break;
+
+				data = new byte[length];
+				log.readFully(data);
+
+				crc.reset();
+				crc.update(data);
+				if ((int) crc.getValue() != checksum)
+					break;
+			}
+			catch (EOFException e) {
+				break;
+			}
+
+			applyRecord(data);
+			records++;
+			valid = log.getFilePointer();
+		}
+
+		// drop incomplete record, written when process is killed
+		if (valid < log.length()) {
+			log.setLength(valid);
+			log.getFD().sync();
+		}
+	}
+
+	private void applyRecord(byte[] data) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+
+		int kind = in.readByte();
+		long id = in.readLong();
+		nextId = Math.max(nextId, id + 1);
+
+		if (kind == RECORD_ADD) {
+			int type = in.readByte();
+			int nid = in.readInt();
+			long pageRef = in.readLong();
+			String title = readString(in);
+			String body = readString(in);
+			String path = readString(in);
+
+			Operation op = new Operation(id, type, nid, pageRef, title, body, path);
+			if (nid == 0 && pageRef != 0 && created.containsKey(pageRef))
+				op.setNid(created.get(pageRef));
+
+			ops.put(id, op);
+			if (type == Operation.CREATE_PAGE)
+				created.put(id, 0);
+		}
+		else if (kind == RECORD_DONE) {
+			int nid = in.readInt();
+			ops.remove(id);
+
+			// create operation may be compacted away, keep its result
+			if (!created.containsKey(id) && nid != 0)
+				created.put(id, 0);
+			applyDone(id, nid);
+		}
+	}
+
+	private void append(int kind, Operation op, int nid) throws IOException {
+		if (kind == RECORD_ADD && op.getType() == Operation.CREATE_PAGE)
+			created.put(op.getId(), 0);
+
+		byte record[] = formatRecord(kind, op, nid);
+		log.seek(log.length());
+		log.write(record);
+		log.getFD().sync();
+		records++;
+	}
+
+	/**
+	 * Rewrites log with pending operations only.
+	 */
+	private void compact() throws IOException {
+		File tmpFile = new File(file.getPath() + ".tmp");
+		RandomAccessFile tmp = new RandomAccessFile(tmpFile, "rw");
+		int count = 0;
+		try {
+			tmp.setLength(0);
+			tmp.writeInt(MAGIC);
+
+			// results of created pages, that may be referred by new operations
+			for (Map.Entry<Long, Integer> entry : created.entrySet()) {
+				if (entry.getValue() != 0 && !ops.containsKey(entry.getKey())) {
+					tmp.write(formatRecord(RECORD_DONE, new Operation(entry.getKey(), Operation.CREATE_PAGE, 0, 0, null, null, null), entry.getValue()));
+					count++;
+				}
+			}
+
+			for (Operation op : ops.values()) {
+				tmp.write(formatRecord(RECORD_ADD, op, 0));
+				count++;
+			}
+			tmp.getFD().sync();
+		}
+		finally {
+			tmp.close();
+		}
+
+		log.close();
+		if (!tmpFile.renameTo(file)) {
+			file.delete();
+			if (!tmpFile.renameTo(file))
+				throw new IOException("Cannot compact queue file: "+file);
+		}
+
+		log = new RandomAccessFile(file, "rw");
+		records = count;
+
+		// forget results of cancelled creates
+		for (Iterator<Map.Entry<Long, Integer>> i = created.entrySet().iterator(); i.hasNext(); ) {
+			Map.Entry<Long, Integer> entry = i.next();
+			if (entry.getValue() == 0 && !ops.containsKey(entry.getKey()))
+				i.remove();
+		}
+	}
+
+	private static byte[] formatRecord(int kind, Operation op, int nid) throws IOException {
+		ByteArrayOutputStream data = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(data);
+
+		out.writeByte(kind);
+		out.writeLong(op.getId());
+		if (kind == RECORD_ADD) {
+			out.writeByte(op.getType());
+			out.writeInt(op.getNid());
+			out.writeLong(op.getPageRef());
+			writeString(out, op.getTitle());
+			writeString(out, op.getBody());
+			writeString(out, op.getPath());
+		}
+		else {
+			out.writeInt(nid);
+		}
+		out.flush();
+
+		CRC32 crc = new CRC32();
+		crc.update(data.toByteArray());
+
+		ByteArrayOutputStream record = new ByteArrayOutputStream(data.size() + 8);
+		DataOutputStream recordOut = new DataOutputStream(record);
+		recordOut.writeInt(data.size());
+		recordOut.writeInt((int) crc.getValue());
+		data.writeTo(recordOut);
+		recordOut.flush();
+		return record.toByteArray();
+	}
+
+	/**
+	 * Writes string as UTF-8 bytes with length, unlike writeUTF it is not limited to 64 KB.
+	 */
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		if (value == null) {
+			out.writeInt(-1);
+			return ;
+		}
+
+		byte bytes[] = value.getBytes(UTF8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0)
+			return null;
+
+		byte bytes[] = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, UTF8);
+	}
+}
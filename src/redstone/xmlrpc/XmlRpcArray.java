@@ -191,33 +191,51 @@ public class XmlRpcArray extends ArrayList
 
 
     /**
-     *  Returns the byte[] at the given index in the array.
+     *  Returns the byte[] at the given index in the array. If the value was spilled
+     *  to a temporary file by the parser, it is read into memory.
      *
      *  @param index The index into the array to extract the value from.
      *
      *  @throws ArrayOutOfBoundsException if index > size() - 1.
-     *  @throws ClassCastException if the value at the given index is not a byte[].
+     *  @throws ClassCastException if the value at the given index is not a byte[]
+     *                             or an XmlRpcBinary.
      */
 
     public byte[] getBinary( int index )
     {
-        return ( byte[] ) get( index );
+        Object value = get( index );
+
+        if ( value instanceof XmlRpcBinary )
+        {
+            return ( ( XmlRpcBinary ) value ).getBytes();
+        }
+
+        return ( byte[] ) value;
     }
 
 
     /**
      *  Returns the byte[] with at the given index in the Array, as an
-     *  input stream (currently, a java.io.ByteArrayInputStream).
+     *  input stream. Values spilled to temporary files by the parser are
+     *  read from the file as the stream is read.
      *
      *  @param index The index of the value to extract.
      *
      *  @throws ArrayOutOfBoundsException if index > size() - 1.
-     *  @throws ClassCastException if the value at the given index is not a byte[].
+     *  @throws ClassCastException if the value at the given index is not a byte[]
+     *                             or an XmlRpcBinary.
      */
 
     public InputStream getBinaryAsStream( int index )
     {
-        return new ByteArrayInputStream( ( byte[] ) get( index ) );
+        Object value = get( index );
+
+        if ( value instanceof XmlRpcBinary )
+        {
+            return ( ( XmlRpcBinary ) value ).getInputStream();
+        }
+
+        return new ByteArrayInputStream( ( byte[] ) value );
     }
 
     
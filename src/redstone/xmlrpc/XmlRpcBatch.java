@@ -0,0 +1,352 @@
+/*
+    This library is free software; you can redistribute it and/or modify it under the terms
+    of the GNU Lesser General Public License as published by the Free Software Foundation;
+    either version 2.1 of the License, or (at your option) any later version.
+
+    This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+    without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+    See the GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License along with this
+    library; if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+    Boston, MA  02111-1307  USA
+*/
+
+package redstone.xmlrpc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ *  An XmlRpcBatch accumulates invocations and sends them to the server as a single
+ *  system.multicall request, saving one round-trip per invocation. Each invocation
+ *  added to the batch is represented by an XmlRpcFuture which is completed with the
+ *  corresponding result or fault when the batch has been sent.
+ *
+ *  <p>A batch is sent when flush() is called. Batches created with a size or time
+ *  threshold are also flushed automatically when the number of pending invocations
+ *  reaches the size threshold, or when the oldest pending invocation has waited for
+ *  the given number of milliseconds. Time based flushes are performed by the executor
+ *  of the client, so that a slow server delays no other batch.</p>
+ *
+ *  <p>Invocations whose futures are cancelled before the batch is sent are left out
+ *  of the request.</p>
+ *
+ *  <pre>
+ *  XmlRpcBatch batch = client.createBatch();
+ *  XmlRpcFuture node = batch.add( "node.create", new Object[] { params } );
+ *  batch.flush();
+ *  XmlRpcStruct result = ( XmlRpcStruct ) node.getResult();
+ *  </pre>
+ *
+ *  <p>Batches are thread safe and may be filled from several threads.</p>
+ */
+
+public class XmlRpcBatch
+{
+    /** The name of the method invoked to perform a batch of calls. */
+    public static final String MULTICALL_METHOD_NAME = "system.multicall";
+
+
+    /**
+     *  Creates a batch sending invocations through the given client.
+     *
+     *  @param client The client to send the batch through.
+     *
+     *  @param maxSize The number of pending invocations that triggers a flush,
+     *                 or 0 for no size threshold.
+     *
+     *  @param maxDelay The number of milliseconds an invocation may be pending
+     *                  before the batch is flushed, or 0 for no time threshold.
+     */
+
+    XmlRpcBatch( XmlRpcClient client, int maxSize, long maxDelay )
+    {
+        this.client = client;
+        this.maxSize = maxSize;
+        this.maxDelay = maxDelay;
+    }
+
+
+    /**
+     *  Adds an invocation to the batch.
+     *
+     *  @param method The name of the method to call.
+     *  @param arguments The arguments to encode in the call, or null.
+     *
+     *  @return A future completed with the result of the invocation once the batch
+     *          has been sent.
+     */
+
+    public XmlRpcFuture add( String method, Object[] arguments )
+    {
+        return add( method, arguments != null ? Arrays.asList( arguments ) : null );
+    }
+
+
+    /**
+     *  Adds an invocation to the batch.
+     *
+     *  @param method The name of the method to call.
+     *  @param arguments The arguments to encode in the call, or null.
+     *
+     *  @return A future completed with the result of the invocation once the batch
+     *          has been sent.
+     */
+
+    public XmlRpcFuture add( String method, List arguments )
+    {
+        XmlRpcStruct call = new XmlRpcStruct();
+        call.put( "methodName", method );
+        call.put( "params", arguments != null ? arguments : new ArrayList( 0 ) );
+
+        XmlRpcFuture future = new XmlRpcFuture();
+        boolean shallFlush;
+
+        synchronized ( this )
+        {
+            calls.add( call );
+            futures.add( future );
+
+            shallFlush = maxSize > 0 && calls.size() >= maxSize;
+
+            if ( !shallFlush && maxDelay > 0 && flushTask == null )
+            {
+                flushTask = new TimerTask()
+                {
+                    public void run()
+                    {
+                        flushAsynchronously();
+                    }
+                };
+
+                getTimer().schedule( flushTask, maxDelay );
+            }
+        }
+
+        if ( shallFlush )
+        {
+            flush();
+        }
+
+        return future;
+    }
+
+
+    /**
+     *  Returns the number of invocations waiting to be sent.
+     *
+     *  @return The number of pending invocations.
+     */
+
+    public synchronized int size()
+    {
+        return calls.size();
+    }
+
+
+    /**
+     *  Sends all pending invocations in a single system.multicall request and
+     *  completes their futures. Problems sending the batch are not thrown by this
+     *  method but reported through the futures of the invocations in the batch.
+     */
+
+    public void flush()
+    {
+        List pendingCalls;
+        List pendingFutures;
+
+        synchronized ( this )
+        {
+            if ( flushTask != null )
+            {
+                flushTask.cancel();
+                flushTask = null;
+            }
+
+            pendingCalls = calls;
+            pendingFutures = futures;
+            calls = new ArrayList();
+            futures = new ArrayList();
+        }
+
+        send( pendingCalls, pendingFutures );
+    }
+
+
+    /**
+     *  Performs a time based flush. The pending invocations are taken out of the batch
+     *  on the timer thread and sent by the executor of the client.
+     */
+
+    private void flushAsynchronously()
+    {
+        final List pendingCalls;
+        final List pendingFutures;
+
+        synchronized ( this )
+        {
+            flushTask = null;
+            pendingCalls = calls;
+            pendingFutures = futures;
+            calls = new ArrayList();
+            futures = new ArrayList();
+        }
+
+        if ( pendingCalls.isEmpty() )
+        {
+            return;
+        }
+
+        try
+        {
+            client.getExecutor().execute( new Runnable()
+            {
+                public void run()
+                {
+                    send( pendingCalls, pendingFutures );
+                }
+            } );
+        }
+        catch ( RejectedExecutionException e )
+        {
+            fail( pendingFutures, new XmlRpcException(
+                XmlRpcMessages.getString( "XmlRpcClient.InvocationRejected" ), e ) );
+        }
+    }
+
+
+    /**
+     *  Sends the given invocations in a single system.multicall request and completes
+     *  their futures. Invocations whose futures have been cancelled are not sent.
+     *
+     *  @param pendingCalls The calls, encoded as system.multicall structs.
+     *  @param pendingFutures The futures of the calls, in the same order as the calls.
+     */
+
+    private void send( List pendingCalls, List pendingFutures )
+    {
+        List sentCalls = new ArrayList( pendingCalls.size() );
+        List sentFutures = new ArrayList( pendingFutures.size() );
+
+        for ( int i = 0; i < pendingFutures.size(); ++i )
+        {
+            if ( !( ( XmlRpcFuture ) pendingFutures.get( i ) ).isCancelled() )
+            {
+                sentCalls.add( pendingCalls.get( i ) );
+                sentFutures.add( pendingFutures.get( i ) );
+            }
+        }
+
+        if ( sentCalls.isEmpty() )
+        {
+            return;
+        }
+
+        List results;
+
+        try
+        {
+            results = ( List ) client.invoke( MULTICALL_METHOD_NAME, new Object[] { sentCalls } );
+        }
+        catch ( XmlRpcFault fault )
+        {
+            fail( sentFutures, fault );
+            return;
+        }
+        catch ( XmlRpcException exception )
+        {
+            fail( sentFutures, exception );
+            return;
+        }
+        catch ( RuntimeException exception )
+        {
+            fail( sentFutures, new XmlRpcException(
+                XmlRpcMessages.getString( "XmlRpcBatch.UnexpectedResult" ), exception ) );
+            return;
+        }
+
+        for ( int i = 0; i < sentFutures.size(); ++i )
+        {
+            XmlRpcFuture future = ( XmlRpcFuture ) sentFutures.get( i );
+            Object result = i < results.size() ? results.get( i ) : null;
+
+            // Successful calls are wrapped in single-element arrays, while
+            // failed calls are represented by fault structs.
+
+            if ( result instanceof List && ( ( List ) result ).size() == 1 )
+            {
+                future.setResult( ( ( List ) result ).get( 0 ) );
+            }
+            else if ( result instanceof Map )
+            {
+                Map fault = ( Map ) result;
+                Object faultCode = fault.get( "faultCode" );
+
+                future.setFailure( new XmlRpcFault(
+                    faultCode instanceof Integer ? ( ( Integer ) faultCode ).intValue() : -1,
+                    ( String ) fault.get( "faultString" ) ) );
+            }
+            else
+            {
+                future.setFailure( new XmlRpcException(
+                    XmlRpcMessages.getString( "XmlRpcBatch.UnexpectedResult" ) ) );
+            }
+        }
+    }
+
+
+    /**
+     *  Completes all the supplied futures with the same failure.
+     */
+
+    private static void fail( List futures, Exception failure )
+    {
+        for ( int i = 0; i < futures.size(); ++i )
+        {
+            ( ( XmlRpcFuture ) futures.get( i ) ).setFailure( failure );
+        }
+    }
+
+
+    /**
+     *  Returns the timer thread shared by all batches with a time threshold.
+     */
+
+    private static synchronized Timer getTimer()
+    {
+        if ( timer == null )
+        {
+            timer = new Timer( true );
+        }
+
+        return timer;
+    }
+
+
+    /** The client the batch is sent through. */
+    private XmlRpcClient client;
+
+    /** The number of pending invocations triggering a flush, or 0. */
+    private int maxSize;
+
+    /** The number of milliseconds an invocation may be pending, or 0. */
+    private long maxDelay;
+
+    /** The pending calls, encoded as system.multicall structs. */
+    private List/*<XmlRpcStruct>*/ calls = new ArrayList();
+
+    /** The futures of the pending calls, in the same order as the calls. */
+    private List/*<XmlRpcFuture>*/ futures = new ArrayList();
+
+    /** The scheduled time based flush, if any. */
+    private TimerTask flushTask;
+
+    /** Timer shared by all batches to perform time based flushes. */
+    private static Timer timer;
+}
@@ -0,0 +1,158 @@
+/*
+    This library is free software; you can redistribute it and/or modify it under the terms
+    of the GNU Lesser General Public License as published by the Free Software Foundation;
+    either version 2.1 of the License, or (at your option) any later version.
+
+    This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+    without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+    See the GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License along with this
+    library; if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+    Boston, MA  02111-1307  USA
+*/
+
+package redstone.xmlrpc;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ *  A base64 value that was too large to be kept in memory and has been decoded into
+ *  a temporary file instead. Parsers produce XmlRpcBinary values in place of byte[]
+ *  once a spill threshold has been set using setBinarySpillThreshold(). The contents
+ *  are read lazily, most conveniently through XmlRpcStruct.getBinaryAsStream() or
+ *  XmlRpcArray.getBinaryAsStream(), which accept both representations.
+ *
+ *  <p>The temporary file is deleted when dispose() is called, when the rest of the
+ *  message the value belongs to cannot be parsed, or at the latest when the value is
+ *  garbage collected.</p>
+ */
+
+public class XmlRpcBinary
+{
+    /**
+     *  Wraps a file holding a decoded base64 value.
+     *
+     *  @param file The temporary file holding the value.
+     *  @param length The number of bytes in the file.
+     */
+
+    XmlRpcBinary( File file, long length )
+    {
+        this.file = file;
+        this.length = length;
+    }
+
+
+    /**
+     *  Returns the number of bytes in the value.
+     *
+     *  @return The length of the value.
+     */
+
+    public long getLength()
+    {
+        return length;
+    }
+
+
+    /**
+     *  Opens a stream reading the value. The value may be read any number of times
+     *  until it is disposed.
+     *
+     *  @return A stream delivering the bytes of the value.
+     *  @throws XmlRpcException If the value has been disposed or could not be read.
+     */
+
+    public InputStream getInputStream() throws XmlRpcException
+    {
+        try
+        {
+            return new BufferedInputStream( new FileInputStream( file ), 8192 );
+        }
+        catch ( IOException e )
+        {
+            throw new XmlRpcException(
+                XmlRpcMessages.getString( "XmlRpcBinary.ReadError" ), e );
+        }
+    }
+
+
+    /**
+     *  Reads the whole value into memory.
+     *
+     *  @return The bytes of the value.
+     *  @throws XmlRpcException If the value has been disposed or could not be read.
+     */
+
+    public byte[] getBytes() throws XmlRpcException
+    {
+        InputStream input = getInputStream();
+
+        try
+        {
+            ByteArrayOutputStream output = new ByteArrayOutputStream( ( int ) length );
+            byte[] buffer = new byte[ 8192 ];
+            int count;
+
+            while ( ( count = input.read( buffer ) ) != -1 )
+            {
+                output.write( buffer, 0, count );
+            }
+
+            return output.toByteArray();
+        }
+        catch ( IOException e )
+        {
+            throw new XmlRpcException(
+                XmlRpcMessages.getString( "XmlRpcBinary.ReadError" ), e );
+        }
+        finally
+        {
+            try
+            {
+                input.close();
+            }
+            catch ( IOException ignore ) { /* Closed or not, we don't care at this point. */ }
+        }
+    }
+
+
+    /**
+     *  Deletes the temporary file holding the value.
+     */
+
+    public void dispose()
+    {
+        file.delete();
+    }
+
+
+    /**
+     *  Deletes the temporary file if the value was never disposed.
+     */
+
+    protected void finalize() throws Throwable
+    {
+        try
+        {
+            dispose();
+        }
+        finally
+        {
+            super.finalize();
+        }
+    }
+
+
+    /** The temporary file holding the value. */
+    private final File file;
+
+    /** The number of bytes in the value. */
+    private final long length;
+}
@@ -0,0 +1,145 @@
+/*
+    This library is free software; you can redistribute it and/or modify it under the terms
+    of the GNU Lesser General Public License as published by the Free Software Foundation;
+    either version 2.1 of the License, or (at your option) any later version.
+
+    This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+    without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+    See the GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License along with this
+    library; if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+    Boston, MA  02111-1307  USA
+*/
+
+package redstone.xmlrpc;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ *  The stream base64 values are decoded into when a spill threshold is set. Bytes are
+ *  collected in memory until the threshold is exceeded, at which point they are moved
+ *  to a temporary file which also receives the rest of the value. This keeps heap usage
+ *  flat regardless of the size of the values in a message.
+ */
+
+class XmlRpcBinarySink extends OutputStream
+{
+    /**
+     *  Creates a sink.
+     *
+     *  @param threshold The number of bytes kept in memory before spilling to a file.
+     *  @param directory The directory to create temporary files in, or null to use
+     *                   the default temporary directory.
+     */
+
+    XmlRpcBinarySink( int threshold, File directory )
+    {
+        this.threshold = threshold;
+        this.directory = directory;
+    }
+
+
+    /*  (Documentation inherited)
+     *  @see java.io.OutputStream#write(int)
+     */
+
+    public void write( int b ) throws IOException
+    {
+        single[ 0 ] = ( byte ) b;
+        write( single, 0, 1 );
+    }
+
+
+    /*  (Documentation inherited)
+     *  @see java.io.OutputStream#write(byte[], int, int)
+     */
+
+    public void write( byte[] data, int offset, int length ) throws IOException
+    {
+        if ( file == null && memory.size() + length > threshold )
+        {
+            file = File.createTempFile( "xmlrpc", ".bin", directory );
+            output = new BufferedOutputStream( new FileOutputStream( file ), 8192 );
+            memory.writeTo( output );
+            memory = null;
+        }
+
+        if ( file == null )
+        {
+            memory.write( data, offset, length );
+        }
+        else
+        {
+            output.write( data, offset, length );
+        }
+
+        this.length += length;
+    }
+
+
+    /**
+     *  Completes the sink and returns the value it holds.
+     *
+     *  @return A byte[] if the value stayed below the threshold, or an XmlRpcBinary
+     *          reading the temporary file otherwise.
+     */
+
+    Object toValue() throws IOException
+    {
+        if ( file == null )
+        {
+            return memory.toByteArray();
+        }
+
+        output.close();
+        return new XmlRpcBinary( file, length );
+    }
+
+
+    /**
+     *  Abandons the sink, deleting any temporary file. Used when the message could
+     *  not be parsed completely.
+     */
+
+    void discard()
+    {
+        if ( file != null )
+        {
+            try
+            {
+                output.close();
+            }
+            catch ( IOException ignore ) { /* Closed or not, we don't care at this point. */ }
+
+            file.delete();
+        }
+    }
+
+
+    /** The number of bytes kept in memory before spilling to a file. */
+    private int threshold;
+
+    /** The directory to create the temporary file in, or null. */
+    private File directory;
+
+    /** The bytes of the value while it is below the threshold. */
+    private ByteArrayOutputStream memory = new ByteArrayOutputStream();
+
+    /** The temporary file, once the threshold has been exceeded. */
+    private File file;
+
+    /** Stream writing the temporary file. */
+    private OutputStream output;
+
+    /** The number of bytes written to the sink. */
+    private long length;
+
+    /** Buffer used by write( int ). */
+    private byte[] single = new byte[ 1 ];
+}
@@ -0,0 +1,195 @@
+/*
+    This library is free software; you can redistribute it and/or modify it under the terms
+    of the GNU Lesser General Public License as published by the Free Software Foundation;
+    either version 2.1 of the License, or (at your option) any later version.
+
+    This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+    without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+    See the GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License along with this
+    library; if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+    Boston, MA  02111-1307  USA
+*/
+package redstone.xmlrpc;
+
+/**
+ *  Bandwidth and processing figures of a single XML-RPC call, as seen by the
+ *  XmlRpcClient making the call or the XmlRpcServer dispatching it. Sizes are the
+ *  number of bytes of the message bodies, not including HTTP headers. The wire size
+ *  is the size of the body as transferred, that is, after compression if the body
+ *  was compressed.
+ *
+ *  <p>Compression and decompression times are measured as the time the calling thread
+ *  spends compressing or decompressing, which is processor time rather than time
+ *  spent waiting for the network.</p>
+ */
+
+public class XmlRpcCallMetrics
+{
+    /**
+     *  Returns the name of the called method.
+     *
+     *  @return The method name.
+     */
+
+    public String getMethodName()
+    {
+        return methodName;
+    }
+
+
+    /**
+     *  Returns the size of the XML request.
+     *
+     *  @return The number of bytes, or -1 if the request was streamed.
+     */
+
+    public long getRequestSize()
+    {
+        return requestSize;
+    }
+
+
+    /**
+     *  Returns the size of the request body as transferred.
+     *
+     *  @return The number of bytes, or -1 if the request was streamed.
+     */
+
+    public long getRequestWireSize()
+    {
+        return requestWireSize;
+    }
+
+
+    /**
+     *  Returns the content coding of the request.
+     *
+     *  @return The content coding, or null if the request was not compressed.
+     */
+
+    public String getRequestEncoding()
+    {
+        return requestEncoding;
+    }
+
+
+    /**
+     *  Returns the size of the XML response.
+     *
+     *  @return The number of bytes.
+     */
+
+    public long getResponseSize()
+    {
+        return responseSize;
+    }
+
+
+    /**
+     *  Returns the size of the response body as transferred.
+     *
+     *  @return The number of bytes.
+     */
+
+    public long getResponseWireSize()
+    {
+        return responseWireSize;
+    }
+
+
+    /**
+     *  Returns the content coding of the response.
+     *
+     *  @return The content coding, or null if the response was not compressed.
+     */
+
+    public String getResponseEncoding()
+    {
+        return responseEncoding;
+    }
+
+
+    /**
+     *  Returns the time spent compressing the outbound message, the request
+     *  for clients and the response for servers.
+     *
+     *  @return The time in nanoseconds.
+     */
+
+    public long getCompressionTime()
+    {
+        return compressionTime;
+    }
+
+
+    /**
+     *  Returns the time spent decompressing the inbound message, the response
+     *  for clients and the request for servers.
+     *
+     *  @return The time in nanoseconds.
+     */
+
+    public long getDecompressionTime()
+    {
+        return decompressionTime;
+    }
+
+
+    /**
+     *  Returns the time the whole call took, from the start of the serialization of
+     *  the outbound message to the end of the parsing of the inbound message.
+     *
+     *  @return The time in nanoseconds.
+     */
+
+    public long getTotalTime()
+    {
+        return totalTime;
+    }
+
+
+    public String toString()
+    {
+        return methodName +
+            ": request " + requestWireSize + "/" + requestSize + " bytes" +
+            ( requestEncoding != null ? " " + requestEncoding : "" ) +
+            ", response " + responseWireSize + "/" + responseSize + " bytes" +
+            ( responseEncoding != null ? " " + responseEncoding : "" ) +
+            ", compression " + compressionTime / 1000 + " us" +
+            ", decompression " + decompressionTime / 1000 + " us" +
+            ", total " + totalTime / 1000 + " us";
+    }
+
+
+    /** The name of the called method. */
+    String methodName;
+
+    /** The size of the XML request, or -1 if unknown. */
+    long requestSize = -1;
+
+    /** The size of the request body as transferred, or -1 if unknown. */
+    long requestWireSize = -1;
+
+    /** The content coding of the request, or null. */
+    String requestEncoding;
+
+    /** The size of the XML response. */
+    long responseSize;
+
+    /** The size of the response body as transferred. */
+    long responseWireSize;
+
+    /** The content coding of the response, or null. */
+    String responseEncoding;
+
+    /** Nanoseconds spent compressing the outbound message. */
+    long compressionTime;
+
+    /** Nanoseconds spent decompressing the inbound message. */
+    long decompressionTime;
+
+    /** Nanoseconds the whole call took. */
+    long totalTime;
+}
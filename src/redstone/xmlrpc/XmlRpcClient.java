@@ -17,12 +17,13 @@
 package redstone.xmlrpc;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
-import java.io.StringWriter;
 import java.io.Writer;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
@@ -31,18 +32,32 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import org.xml.sax.Attributes;
-import org.xml.sax.SAXException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import redstone.xmlrpc.util.Compression;
+import redstone.xmlrpc.util.MeteredInputStream;
+import redstone.xmlrpc.util.Utf8Writer;
 
 /**
  *  An XmlRpcClient represents a connection to an XML-RPC enabled server. It
  *  implements the XmlRpcInvocationHandler so that it may be used as a relay
  *  to other XML-RPC servers when installed in an XmlRpcServer. 
  *
+ *  <p>All state of an invocation is kept in a separate call context owned by that
+ *  invocation, so a single client may be used by several threads to have many
+ *  calls in flight at the same time without any locking. Call contexts, including
+ *  their message buffers and parser state, are recycled between invocations.</p>
+ *
  *  @author Greger Olsson
  */
 
-public class XmlRpcClient extends XmlRpcParser implements XmlRpcInvocationHandler
+public class XmlRpcClient implements XmlRpcInvocationHandler
 {
     /**
      *  Creates a new client with the ability to send XML-RPC messages
@@ -74,11 +89,6 @@ public class XmlRpcClient extends XmlRpcParser implements XmlRpcInvocationHandle
     {
         this.url = url;
         this.streamMessages = streamMessages;
-        
-        if ( !streamMessages )
-        {
-            writer = new StringWriter( 2048 );
-        }
     }
 
 
@@ -91,7 +101,8 @@ public class XmlRpcClient extends XmlRpcParser implements XmlRpcInvocationHandle
      *  @param requestProperties The HTTP request properties to use for future invocations
      *                           made using this XmlRpcClient instance. These will replace
      *                           any previous properties set using this method or the
-     *                           setRequestProperty() method.
+     *                           setRequestProperty() method. The map must not be modified
+     *                           after it has been handed to the client.
      */
 
     public void setRequestProperties( Map requestProperties )
@@ -108,17 +119,48 @@ public class XmlRpcClient extends XmlRpcParser implements XmlRpcInvocationHandle
      *  @param value The value of the property
      */
 
-    public void setRequestProperty( String name, String value )
+    public synchronized void setRequestProperty( String name, String value )
     {
-        if ( requestProperties == null )
-        {
-            requestProperties = new HashMap();
-        }
+        // The properties are copied on write so that invocations in progress
+        // keep iterating over a consistent snapshot without locking.
+
+        Map properties = requestProperties != null ? new HashMap( requestProperties ) : new HashMap();
+        properties.put( name, value );
         
-        requestProperties.put( name, value );
+        requestProperties = properties;
     }
     
 
+    /**
+     *  Installs a connection pool through which all future invocations are sent. With a
+     *  pool installed, HTTP/1.1 connections to the server are kept alive between calls
+     *  and reused by subsequent invocations, also by other clients sharing the same pool.
+     *  Since persistent connections require the Content-Length of each request to be known
+     *  up front, messages are always completed locally before being sent when a pool is
+     *  used, regardless of the streamMessages setting.
+     *
+     *  @param connectionPool The pool to use, or null to open a new connection for
+     *                        every invocation.
+     */
+
+    public void setConnectionPool( XmlRpcConnectionPool connectionPool )
+    {
+        this.connectionPool = connectionPool;
+    }
+
+
+    /**
+     *  Returns the connection pool used by this client.
+     *
+     *  @return The connection pool used by this client, or null if none is installed.
+     */
+
+    public XmlRpcConnectionPool getConnectionPool()
+    {
+        return connectionPool;
+    }
+
+
     /**
      *  Invokes a method on the terminating XML-RPC end point. The supplied method name and
      *  argument collection is used to encode the call into an XML-RPC compatible message.
@@ -135,34 +177,33 @@ public class XmlRpcClient extends XmlRpcParser implements XmlRpcInvocationHandle
      * @throws  XmlRpcFault Error occurred in the method call.
      */
 
-    public synchronized Object invoke(
+    public Object invoke(
         String method,
         List arguments )
         throws XmlRpcException, XmlRpcFault
     {
-        beginCall( method );
+        Call call = acquireCall();
 
-        if ( arguments != null )
+        try
         {
-            Iterator argIter = arguments.iterator();
+            call.beginCall( method );
 
-            while ( argIter.hasNext() )
+            if ( arguments != null )
             {
-                try
-                {
-                    writer.write( "<param>" );
-                    serializer.serialize( argIter.next(), writer );
-                    writer.write( "</param>" );
-                }
-                catch ( IOException ioe )
+                Iterator argIter = arguments.iterator();
+
+                while ( argIter.hasNext() )
                 {
-                    throw new XmlRpcException(
-                        XmlRpcMessages.getString( "XmlRpcClient.NetworkError" ), ioe );
+                    call.writeParam( argIter.next() );
                 }
             }
-        }
 
-        return endCall();
+            return call.endCall();
+        }
+        finally
+        {
+            releaseCall( call );
+        }
     }
 
 
@@ -181,32 +222,65 @@ public class XmlRpcClient extends XmlRpcParser implements XmlRpcInvocationHandle
      *                          that can. There may also be problems with the socket communication.
      */
 
-    public synchronized Object invoke(
+    public Object invoke(
         String method,
         Object[] arguments )
         throws XmlRpcException, XmlRpcFault
     {
-        beginCall( method );
+        Call call = acquireCall();
 
-        if ( arguments != null )
+        try
         {
-            for ( int i = 0; i < arguments.length; ++i )
+            call.beginCall( method );
+
+            if ( arguments != null )
             {
-                try
+                for ( int i = 0; i < arguments.length; ++i )
                 {
-                    writer.write( "<param>" );
-                    serializer.serialize( arguments[ i ], writer );
-                    writer.write( "</param>" );
-                }
-                catch ( IOException ioe )
-                {
-                    throw new XmlRpcException(
-                        XmlRpcMessages.getString( "XmlRpcClient.NetworkError" ), ioe );
+                    call.writeParam( arguments[ i ] );
                 }
             }
+
+            return call.endCall();
         }
+        finally
+        {
+            releaseCall( call );
+        }
+    }
+
+
+    /**
+     *  Creates a batch through which invocations are accumulated and sent to the
+     *  server as a single system.multicall request when XmlRpcBatch.flush() is called.
+     *
+     *  @return A new, empty batch.
+     */
+
+    public XmlRpcBatch createBatch()
+    {
+        return new XmlRpcBatch( this, 0, 0 );
+    }
+
+
+    /**
+     *  Creates a batch through which invocations are accumulated and sent to the
+     *  server as a single system.multicall request. The batch is flushed automatically
+     *  when the given number of invocations are pending, or when the oldest pending
+     *  invocation has waited for the given number of milliseconds, whichever comes first.
+     *
+     *  @param maxSize The number of pending invocations that triggers a flush,
+     *                 or 0 for no size threshold.
+     *
+     *  @param maxDelay The number of milliseconds an invocation may be pending
+     *                  before the batch is flushed, or 0 for no time threshold.
+     *
+     *  @return A new, empty batch.
+     */
 
-        return endCall();
+    public XmlRpcBatch createBatch( int maxSize, long maxDelay )
+    {
+        return new XmlRpcBatch( this, maxSize, maxDelay );
     }
 
 
@@ -215,9 +289,9 @@ public class XmlRpcClient extends XmlRpcParser implements XmlRpcInvocationHandle
      *  These are the fields set by the HTTP server hosting the XML-RPC service.
      * 
      *  @return The HTTP header fields from the latest server invocation. Note that
-     *          the XmlRpcClient instance retains ownership of this map and the map
-     *          contents is replaced on the next request. If there is a need to
-     *          keep the fields between requests the map returned should be cloned.
+     *          the XmlRpcClient instance retains ownership of this map. A new map
+     *          is created for every request, so the map returned is not modified
+     *          by subsequent invocations.
      */
 
     public Map getResponseHeaderFields()
@@ -227,9 +301,89 @@ public class XmlRpcClient extends XmlRpcParser implements XmlRpcInvocationHandle
     
 
     /**
-     *  A asynchronous version of invoke performing the call in a separate thread and
-     *  reporting responses, faults, and exceptions through the supplied XmlRpcCallback.
-     *  TODO Determine on proper strategy for instantiating Threads.
+     *  Sets the engine used to decode responses. By default, responses are decoded by
+     *  the SAX implementation of XmlRpcParser.
+     *
+     *  @param parserEngine The engine to use, or null to use SAX.
+     */
+
+    public void setParserEngine( XmlRpcParserEngine parserEngine )
+    {
+        this.parserEngine = parserEngine;
+    }
+
+
+    /**
+     *  Sets the size above which base64 values in responses are decoded into temporary
+     *  files rather than into memory. Such values are returned as XmlRpcBinary objects
+     *  instead of byte arrays, and are most easily read through the getBinaryAsStream()
+     *  methods of XmlRpcStruct and XmlRpcArray. By default, all values are kept in memory.
+     *
+     *  @param threshold The largest number of bytes kept in memory per value, or -1
+     *                   to keep all values in memory.
+     *  @param directory The directory to create temporary files in, or null to use
+     *                   the default temporary directory.
+     */
+
+    public void setBinarySpillThreshold( int threshold, File directory )
+    {
+        this.spillDirectory = directory;
+        this.spillThreshold = threshold;
+    }
+
+
+    /**
+     *  Sets the executor performing asynchronous invocations and time based batch flushes
+     *  made through this client. By default, they are performed by a small pool of daemon
+     *  threads shared by all clients.
+     *
+     *  @param executor The executor to use, or null to use the shared executor.
+     */
+
+    public void setExecutor( Executor executor )
+    {
+        this.executor = executor;
+    }
+
+
+    /**
+     *  Enables compression of messages. With compression enabled, the client accepts
+     *  gzip and deflate compressed responses, and compresses requests of at least the
+     *  given size once the server has announced that it accepts compressed requests
+     *  through an Accept-Encoding header in a response. A server answering a compressed
+     *  request with "415 Unsupported Media Type" is sent the request again uncompressed,
+     *  and no more compressed requests are sent to it until it announces them again.
+     *  Streamed messages are never compressed, since a streamed message is not kept to
+     *  be sent again if the server rejects it; their responses are still compressed.
+     *  Compression is disabled by default.
+     *
+     *  @param threshold The size, in bytes, of the smallest request to compress, or -1
+     *                   to disable compression.
+     */
+
+    public void setCompressionThreshold( int threshold )
+    {
+        this.compressionThreshold = threshold;
+    }
+
+
+    /**
+     *  Installs a listener receiving the bandwidth and processing metrics of every
+     *  invocation made through this client.
+     *
+     *  @param metricsListener The listener, or null to stop collecting metrics.
+     */
+
+    public void setMetricsListener( XmlRpcMetricsListener metricsListener )
+    {
+        this.metricsListener = metricsListener;
+    }
+
+
+    /**
+     *  A asynchronous version of invoke performing the call through the executor of the
+     *  client and reporting responses, faults, and exceptions through the supplied
+     *  XmlRpcCallback as well as the returned future.
      *
      *  @param method The name of the method at the server.
      *
@@ -237,286 +391,863 @@ public class XmlRpcClient extends XmlRpcParser implements XmlRpcInvocationHandle
      *                   descendant, or a java.lang.Object[] array.
      *
      *  @param callback An object implementing the XmlRpcCallback interface. If callback is
-     *                  null, the call will be performed but any results, faults, or exceptions
-     *                  will be ignored (fire and forget).
+     *                  null, the outcome is only reported through the returned future.
+     *
+     *  @return A future completed with the outcome of the invocation.
      */
 
-    public void invokeAsynchronously(
+    public XmlRpcFuture invokeAsynchronously(
         final String method,
         final Object arguments,
         final XmlRpcCallback callback )
     {
-        if ( callback == null )
+        final XmlRpcFuture future = new XmlRpcFuture();
+
+        Runnable invocation = new Runnable()
         {
-            new Thread()
+            public void run()
             {
-                public void run()
+                if ( future.isCancelled() )
                 {
-                    try // Just fire and forget.
-                    {
-                        if ( arguments instanceof Object[] )
-                            invoke( method, ( Object[] ) arguments );
-                        else
-                            invoke( method, ( List ) arguments );
-                    }
-                    catch ( XmlRpcFault e ) { /* Ignore, no callback. */ }
-                    catch ( XmlRpcException e ) { /* Ignore, no callback. */ }
+                    return;
+                }
+
+                Object result = null;
+                Exception failure = null;
+                Error error = null;
+
+                try
+                {
+                    if ( arguments instanceof Object[] )
+                        result = invoke( method, ( Object[] ) arguments );
+                    else
+                        result = invoke( method, ( List ) arguments );
+
+                    future.setResult( result );
+                }
+                catch ( XmlRpcFault e )
+                {
+                    failure = e;
+                }
+                catch ( XmlRpcException e )
+                {
+                    failure = e;
+                }
+                catch ( RuntimeException e )
+                {
+                    // Arguments that are neither an array nor a list, or a response
+                    // that could not be interpreted. The future is completed anyway,
+                    // or its result would be waited for forever.
+
+                    failure = new XmlRpcException(
+                        XmlRpcMessages.getString( "XmlRpcClient.UnexpectedError" ), e );
                 }
-            }.start();
+                catch ( Error e )
+                {
+                    failure = new XmlRpcException(
+                        XmlRpcMessages.getString( "XmlRpcClient.UnexpectedError" ), e );
+                    error = e;
+                }
+
+                if ( failure != null )
+                {
+                    future.setFailure( failure );
+                }
+
+                if ( callback == null )
+                {
+                    return;
+                }
+
+                if ( failure instanceof XmlRpcFault )
+                {
+                    callback.onFault( ( ( XmlRpcFault ) failure ).getErrorCode(), failure.getMessage() );
+                }
+                else if ( failure != null )
+                {
+                    callback.onException( ( XmlRpcException ) failure );
+                }
+                else
+                {
+                    callback.onResult( result );
+                }
+
+                if ( error != null )
+                {
+                    throw error;
+                }
+            }
+        };
+
+        try
+        {
+            getExecutor().execute( invocation );
         }
-        else
+        catch ( RejectedExecutionException e )
         {
-            new Thread()
+            XmlRpcException exception = new XmlRpcException(
+                XmlRpcMessages.getString( "XmlRpcClient.InvocationRejected" ), e );
+
+            future.setFailure( exception );
+
+            if ( callback != null )
             {
-                public void run()
-                {
-                    Object result = null;
+                callback.onException( exception );
+            }
+        }
 
-                    try
-                    {
-                        if ( arguments instanceof Object[] )
-                            result = invoke( method, ( Object[] ) arguments );
-                        else
-                            result = invoke( method, ( List ) arguments );
+        return future;
+    }
 
-                        callback.onResult( result );
-                    }
-                    catch ( XmlRpcException e )
+
+    /**
+     *  A asynchronous version of invoke performing the call through the executor of the
+     *  client and reporting the outcome through the returned future.
+     *
+     *  @param method The name of the method at the server.
+     *
+     *  @param arguments The arguments for the call. This may be either a java.util.List
+     *                   descendant, or a java.lang.Object[] array.
+     *
+     *  @return A future completed with the outcome of the invocation.
+     */
+
+    public XmlRpcFuture invokeAsynchronously(
+        String method,
+        Object arguments )
+    {
+        return invokeAsynchronously( method, arguments, null );
+    }
+
+
+    /**
+     *  Returns the executor performing asynchronous invocations and time based flushes
+     *  of batches made through this client.
+     */
+
+    Executor getExecutor()
+    {
+        return executor != null ? executor : getSharedExecutor();
+    }
+
+
+    /**
+     *  Returns the executor shared by all clients that have no executor of their own.
+     *  The executor runs at most four invocations at a time using daemon threads that
+     *  are discarded after having been idle for a minute. Further invocations are queued,
+     *  up to SHARED_QUEUE_CAPACITY of them, so that a slow server cannot make them pile
+     *  up without limit. Invocations beyond that are rejected, failing their futures.
+     */
+
+    private static synchronized Executor getSharedExecutor()
+    {
+        if ( sharedExecutor == null )
+        {
+            ThreadPoolExecutor threadPool = new ThreadPoolExecutor(
+                4, 4, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue( SHARED_QUEUE_CAPACITY ),
+                new ThreadFactory()
+                {
+                    public Thread newThread( Runnable runnable )
                     {
-                        callback.onException( e );
+                        Thread thread = new Thread( runnable, "XmlRpcClient-" + ++threadSequence );
+                        thread.setDaemon( true );
+                        return thread;
                     }
-                    catch ( XmlRpcFault e )
-                    {
-                        XmlRpcStruct fault = ( XmlRpcStruct ) result;
-    
-                        callback.onFault( fault.getInteger( "faultCode" ),
-                                          fault.getString( "faultString" ) );
-                    }                    
-                }
-            }.start();
+                } );
+
+            threadPool.allowCoreThreadTimeOut( true );
+            sharedExecutor = threadPool;
         }
+
+        return sharedExecutor;
     }
 
 
     /**
-     *  Initializes the XML buffer to be sent to the server with the XML-RPC
-     *  content common to all method calls, or serializes it directly over the writer
-     *  if streaming is used. The parameters to the call are added in the execute()
-     *  method, and the closing tags are appended when the call is finalized in endCall().
-     *
-     *  @param methodName The name of the method to call.
+     *  Takes a recycled call context from the free list, or creates a new one if
+     *  the free list is empty. The free list is a lock-free queue, so concurrent
+     *  invocations never block each other here.
      */
 
-    private void beginCall( String methodName ) throws XmlRpcException
+    private Call acquireCall()
     {
-        try
+        Call call = ( Call ) freeCalls.poll();
+
+        if ( call == null )
         {
-            if ( streamMessages )
-            {
-                openConnection();
-                writer = new BufferedWriter(
-                    new OutputStreamWriter(
-                        connection.getOutputStream(),
-                        XmlRpcMessages.getString( "XmlRpcClient.Encoding" ) ) );
-            }
-            else
-            {
-                ( ( StringWriter ) writer ).getBuffer().setLength( 0 );
-            }
-            
-            writer.write( "<?xml version=\"1.0\" encoding=\"" );
-            writer.write( XmlRpcMessages.getString( "XmlRpcClient.Encoding" ) );
-            writer.write( "\"?>" );
-            writer.write( "<methodCall><methodName>" );
-            writer.write( methodName );
-            writer.write( "</methodName><params>" );
+            return new Call();
         }
-        catch( IOException ioe )
+
+        freeCallCount.decrementAndGet();
+        return call;
+    }
+
+
+    /**
+     *  Returns a call context to the free list once its invocation has completed,
+     *  unless the free list already holds as many contexts as are worth keeping.
+     */
+
+    private void releaseCall( Call call )
+    {
+        call.recycle();
+
+        if ( freeCallCount.incrementAndGet() <= MAX_FREE_CALLS )
         {
-            throw new XmlRpcException(
-                XmlRpcMessages.getString( "XmlRpcClient.NetworkError" ), ioe );
+            freeCalls.offer( call );
+        }
+        else
+        {
+            freeCallCount.decrementAndGet();
         }
     }
 
 
     /**
-     *  Finalizaes the XML buffer to be sent to the server, and creates a HTTP buffer for
-     *  the call. Both buffers are combined into an XML-RPC message that is sent over
-     *  a socket to the server.
-     *
-     *  @return The parsed return value of the call.
-     *
-     *  @throws XmlRpcException when some IO problem occur.
+     *  Holds the state of a single invocation: the writer the message is serialized
+     *  into, the connection it is sent over, and the parser state of the response.
+     *  A call context is only used by one invocation at a time, which is what allows
+     *  concurrent invocations through the same client. When the invocation completes,
+     *  the context is recycled for later invocations.
      */
 
-    private Object endCall() throws XmlRpcException, XmlRpcFault
+    private class Call extends XmlRpcParser
     {
-        try
+        /**
+         *  Clears the state of the completed invocation so that the context may be
+         *  used again. Message buffers that have grown beyond the size of ordinary
+         *  messages are dropped rather than kept around.
+         */
+
+        void recycle()
+        {
+            if ( buffer.capacity() > MAX_RECYCLED_BUFFER_SIZE )
+            {
+                buffer = new Utf8Writer( 2048 );
+            }
+
+            if ( compressed != null && compressed.capacity() > MAX_RECYCLED_BUFFER_SIZE )
+            {
+                compressed = null;
+            }
+
+            connection = null;
+            writer = null;
+            returnValue = null;
+            isFaultResponse = false;
+            requestEncoding = null;
+            requestWireSize = -1;
+            responseEncoding = null;
+            compressionTime = 0;
+            decodeTime = 0;
+            wireInput = null;
+            xmlInput = null;
+        }
+
+
+        /**
+         *  Initializes the XML buffer to be sent to the server with the XML-RPC
+         *  content common to all method calls, or serializes it directly over the writer
+         *  if streaming is used. The parameters to the call are added in writeParam(),
+         *  and the closing tags are appended when the call is finalized in endCall().
+         *
+         *  @param methodName The name of the method to call.
+         */
+
+        void beginCall( String methodName ) throws XmlRpcException
+        {
+            setParserEngine( parserEngine );
+            setBinarySpillThreshold( spillThreshold, spillDirectory );
+
+            this.methodName = methodName;
+            startTime = System.nanoTime();
+
+            try
+            {
+                if ( streamMessages && connectionPool == null )
+                {
+                    openConnection();
+
+                    // A streamed message is not compressed. Having been written to the
+                    // connection as it was serialized, it could not be sent again
+                    // uncompressed to a server answering "415 Unsupported Media Type".
+
+                    writer = new BufferedWriter(
+                        new OutputStreamWriter(
+                            connection.getOutputStream(),
+                            XmlRpcMessages.getString( "XmlRpcClient.Encoding" ) ) );
+                }
+                else
+                {
+                    buffer.reset();
+                    writer = buffer;
+                }
+
+                writer.write( "<?xml version=\"1.0\" encoding=\"" );
+                writer.write( XmlRpcMessages.getString( "XmlRpcClient.Encoding" ) );
+                writer.write( "\"?>" );
+                writer.write( "<methodCall><methodName>" );
+                writer.write( methodName );
+                writer.write( "</methodName><params>" );
+            }
+            catch( IOException ioe )
+            {
+                throw new XmlRpcException(
+                    XmlRpcMessages.getString( "XmlRpcClient.NetworkError" ), ioe );
+            }
+        }
+
+
+        /**
+         *  Serializes an argument of the call.
+         *
+         *  @param argument The argument to serialize.
+         */
+
+        void writeParam( Object argument ) throws XmlRpcException
+        {
+            try
+            {
+                writer.write( "<param>" );
+                serializer.serialize( argument, writer );
+                writer.write( "</param>" );
+            }
+            catch ( IOException ioe )
+            {
+                throw new XmlRpcException(
+                    XmlRpcMessages.getString( "XmlRpcClient.NetworkError" ), ioe );
+            }
+        }
+
+
+        /**
+         *  Finalizaes the XML buffer to be sent to the server, and creates a HTTP buffer for
+         *  the call. Both buffers are combined into an XML-RPC message that is sent over
+         *  a socket to the server.
+         *
+         *  @return The parsed return value of the call.
+         *
+         *  @throws XmlRpcException when some IO problem occur.
+         */
+
+        Object endCall() throws XmlRpcException, XmlRpcFault
+        {
+            try
+            {
+                writer.write( "</params>" );
+                writer.write( "</methodCall>" );
+
+                if ( connectionPool != null )
+                {
+                    sendPooled();
+                    return returnValue;
+                }
+
+                if ( streamMessages )
+                {
+                    writer.flush();
+                }
+                else
+                {
+                    sendBuffered();
+                }
+
+                InputStream input = new BufferedInputStream( connection.getInputStream() );
+
+                try
+                {
+                    collectHeaderFields();
+                    receiveResponse(
+                        input,
+                        connection.getContentEncoding(),
+                        connection.getHeaderField( "Accept-Encoding" ) );
+                }
+                finally
+                {
+                    // Closing the stream rather than disconnecting allows the
+                    // HttpURLConnection implementation to keep the socket alive.
+
+                    input.close();
+                }
+            }
+            catch ( IOException ioe )
+            {
+                if ( connection != null )
+                {
+                    connection.disconnect();
+                }
+
+                throw new XmlRpcException(
+                    XmlRpcMessages.getString( "XmlRpcClient.NetworkError" ),
+                        ioe );
+            }
+            finally
+            {
+                try
+                {
+                    writer.close();
+                }
+                catch( IOException ignore ) { /* Closed or not, we don't care at this point. */ }
+            }
+
+            return returnValue;
+        }
+
+
+        /**
+         *  Sends the locally completed message over a connection leased from the connection
+         *  pool and handles the response. A reused connection may have been closed by the
+         *  server while it was idle, in which case the request is retried over another
+         *  connection, provided that no part of a response was received.
+         *
+         *  @throws IOException If the message could not be sent or the response could not
+         *                      be received.
+         */
+
+        private void sendPooled() throws IOException, XmlRpcFault
         {
-            writer.write( "</params>" );
-            writer.write( "</methodCall>" );
+            String encoding = compressRequest();
 
-            if ( streamMessages )
+            while ( true )
             {
-                writer.flush();
+                XmlRpcHttpConnection pooledConnection = connectionPool.acquire( url );
+                boolean responded = false;
+
+                byte[] body = encoding != null ? compressed.getBuffer() : buffer.getBuffer();
+                int length = encoding != null ? compressed.size() : buffer.size();
+
+                // The connection is returned to the pool however the exchange ends, so that
+                // no failure leaks a slot of the route. Once a response has been read, the
+                // rest of its body is read and the connection kept also when the response
+                // is a fault, which is a complete response.
+
+                try
+                {
+                    InputStream input;
+
+                    try
+                    {
+                        pooledConnection.writeRequest(
+                            url, requestProperties, encoding, getAcceptEncoding(), body, length );
+                        input = pooledConnection.readResponse();
+                    }
+                    catch ( IOException e )
+                    {
+                        if ( pooledConnection.reused && !pooledConnection.received )
+                        {
+                            continue;
+                        }
+
+                        if ( encoding != null &&
+                             pooledConnection.getStatusCode() == HttpURLConnection.HTTP_UNSUPPORTED_TYPE )
+                        {
+                            serverEncoding = null;
+                            encoding = null;
+                            continue;
+                        }
+
+                        throw e;
+                    }
+
+                    responded = true;
+                    requestEncoding = encoding;
+                    requestWireSize = length;
+                    headerFields = new HashMap( pooledConnection.getHeaderFields() );
+
+                    receiveResponse(
+                        input,
+                        pooledConnection.getHeaderField( "Content-Encoding" ),
+                        pooledConnection.getHeaderField( "Accept-Encoding" ) );
+                }
+                finally
+                {
+                    connectionPool.release(
+                        pooledConnection, responded && pooledConnection.finishResponse() );
+                }
+
+                return;
             }
-            else
+        }
+
+
+        /**
+         *  Sends the locally completed message over a new connection, compressed if the
+         *  server accepts compressed requests. The encoded length is known up front,
+         *  which lets the connection stream the body rather than buffering another copy
+         *  of it. A server rejecting the compressed message is sent it again as is.
+         *
+         *  @throws IOException If the message could not be sent.
+         */
+
+        private void sendBuffered() throws IOException
+        {
+            String encoding = compressRequest();
+
+            while ( true )
             {
-                StringBuffer buffer = ( ( StringWriter ) writer ).getBuffer();
+                byte[] body = encoding != null ? compressed.getBuffer() : buffer.getBuffer();
+                int length = encoding != null ? compressed.size() : buffer.size();
 
                 openConnection();
-                connection.setRequestProperty( "Content-Length", String.valueOf( buffer.length() ) );
 
-                OutputStream output = new BufferedOutputStream( connection.getOutputStream() );
-                output.write( buffer.toString().getBytes( XmlRpcMessages.getString( "XmlRpcClient.Encoding" ) ) );
-                output.flush();
+                if ( encoding != null )
+                {
+                    connection.setRequestProperty( "Content-Encoding", encoding );
+                }
+
+                connection.setFixedLengthStreamingMode( length );
+
+                OutputStream output = connection.getOutputStream();
+                output.write( body, 0, length );
                 output.close();
+
+                requestEncoding = encoding;
+                requestWireSize = length;
+
+                if ( encoding == null ||
+                     connection.getResponseCode() != HttpURLConnection.HTTP_UNSUPPORTED_TYPE )
+                {
+                    return;
+                }
+
+                serverEncoding = null;
+                encoding = null;
+                connection.disconnect();
+            }
+        }
+
+
+        /**
+         *  Compresses the message in the buffer into the compressed buffer, if it is large
+         *  enough and the server has announced that it accepts compressed requests.
+         *
+         *  @return The content coding of the compressed message, or null if the message
+         *          is to be sent as is.
+         */
+
+        private String compressRequest() throws IOException
+        {
+            String encoding = serverEncoding;
+            int threshold = compressionThreshold;
+
+            if ( encoding == null || threshold < 0 || buffer.size() < threshold )
+            {
+                return null;
             }
-            
-            handleResponse();
+
+            long start = System.nanoTime();
+
+            if ( compressed == null )
+            {
+                compressed = new CompressedBuffer( buffer.size() / 4 + 64 );
+            }
+
+            compressed.reset();
+
+            OutputStream output = Compression.encode( compressed, encoding );
+            buffer.writeTo( output );
+            output.close();
+
+            compressionTime = System.nanoTime() - start;
+            return encoding;
         }
-        catch ( IOException ioe )
+
+
+        /**
+         *  Returns the value of the Accept-Encoding header to send, or null if
+         *  compression is disabled.
+         */
+
+        private String getAcceptEncoding()
         {
-            throw new XmlRpcException(
-                XmlRpcMessages.getString( "XmlRpcClient.NetworkError" ),
-                    ioe );
+            return compressionThreshold >= 0 ? Compression.ACCEPT_ENCODING : null;
         }
-        finally
+
+
+        /**
+         *  Receives the response, decompressing it as it is parsed if it is compressed.
+         *  The content codings the server accepts in requests, if announced, are noted
+         *  for the requests to follow.
+         *
+         *  @param input The stream containing the response body.
+         *  @param contentEncoding The Content-Encoding header of the response, or null.
+         *  @param acceptEncoding The Accept-Encoding header of the response, or null.
+         */
+
+        private void receiveResponse(
+            InputStream input,
+            String contentEncoding,
+            String acceptEncoding )
+            throws IOException, XmlRpcFault
         {
+            if ( acceptEncoding != null && compressionThreshold >= 0 )
+            {
+                serverEncoding = Compression.negotiate( acceptEncoding );
+            }
+
+            boolean metered = metricsListener != null;
+
+            if ( metered )
+            {
+                input = wireInput = new MeteredInputStream( input );
+            }
+
+            // Decompressors read the header of the stream as they are created, which
+            // counts towards the decompression.
+
+            long decodeStart = System.nanoTime();
+            InputStream xml = Compression.decode( input, contentEncoding );
+            decodeTime = System.nanoTime() - decodeStart;
+
+            if ( xml == input )
+            {
+                handleResponse( input );
+                return;
+            }
+
+            responseEncoding = contentEncoding;
+
+            if ( metered )
+            {
+                xml = xmlInput = new MeteredInputStream( xml );
+            }
+
             try
             {
-                writer.close();
+                handleResponse( xml );
+            }
+            finally
+            {
+                // Releases the native memory of the decompressor.
+
+                xml.close();
             }
-            catch( IOException ignore ) { /* Closed or not, we don't care at this point. */ }
-            
-            connection.disconnect();
-            connection = null;
         }
-        
-        return returnValue;
-    }
 
 
-    /**
-     *  Handles the response returned by the XML-RPC server. If the server responds with a
-     *  "non-200"-HTTP response or if the XML payload is unparseable, this is interpreted
-     *  as an error in communication and will result in an XmlRpcException.<p>
-     *
-     *  If the user does not want the socket to be kept alive or if the server does not
-     *  support keep-alive, the socket is closed.
-     *
-     *  @param inout The stream containing the server response to interpret.
-     *
-     *  @throws IOException If a socket error occurrs, or if the XML returned is unparseable.
-     *                      This exception is currently also thrown if a HTTP response other
-     *                      than "200 OK" is received.
-     * @throws XmlRpcFault 
-     */
+        /**
+         *  Passes the metrics of the completed invocation to the metrics listener.
+         */
 
-    private void handleResponse() throws XmlRpcFault
-    {
-        try
+        private void reportMetrics()
         {
-            parse( new BufferedInputStream( connection.getInputStream() ) );
+            XmlRpcMetricsListener listener = metricsListener;
+
+            if ( listener == null || wireInput == null )
+            {
+                return;
+            }
+
+            XmlRpcCallMetrics metrics = new XmlRpcCallMetrics();
+
+            metrics.methodName = methodName;
+            metrics.requestSize = streamMessages && connectionPool == null ? -1 : buffer.size();
+            metrics.requestWireSize = requestWireSize;
+            metrics.requestEncoding = requestEncoding;
+            metrics.responseWireSize = wireInput.getCount();
+            metrics.responseSize = xmlInput != null ? xmlInput.getCount() : wireInput.getCount();
+            metrics.responseEncoding = responseEncoding;
+            metrics.compressionTime = compressionTime;
+
+            // Reading the decompressed stream includes reading the compressed one,
+            // which is where any waiting for the network takes place.
+
+            metrics.decompressionTime = xmlInput != null ?
+                decodeTime + xmlInput.getTime() - wireInput.getTime() : 0;
+            metrics.totalTime = System.nanoTime() - startTime;
+
+            listener.callCompleted( metrics );
+        }
+
 
+        /**
+         *  Records the HTTP header fields of the response of the current connection.
+         */
+
+        private void collectHeaderFields()
+        {
             int fieldNumber = 1;
             String headerFieldKey = null;
-            headerFields.clear();
+            Map fields = new HashMap();
 
             while ( ( headerFieldKey = connection.getHeaderFieldKey( fieldNumber ) ) != null )
             {
-                headerFields.put( headerFieldKey, connection.getHeaderField( fieldNumber ) );
+                fields.put( headerFieldKey, connection.getHeaderField( fieldNumber ) );
                 ++fieldNumber;
             }
+
+            headerFields = fields;
         }
-        catch ( Exception e )
+
+
+        /**
+         *  Handles the response returned by the XML-RPC server. If the server responds with a
+         *  "non-200"-HTTP response or if the XML payload is unparseable, this is interpreted
+         *  as an error in communication and will result in an XmlRpcException.
+         *
+         *  @param input The stream containing the server response to interpret.
+         *
+         *  @throws XmlRpcException If the XML returned is unparseable.
+         *  @throws XmlRpcFault If the server responded with a fault.
+         */
+
+        private void handleResponse( InputStream input ) throws XmlRpcFault
         {
-            throw new XmlRpcException(
-                XmlRpcMessages.getString( "XmlRpcClient.ParseError" ), e );
+            try
+            {
+                parse( input );
+            }
+            catch ( Exception e )
+            {
+                throw new XmlRpcException(
+                    XmlRpcMessages.getString( "XmlRpcClient.ParseError" ), e );
+            }
+
+            reportMetrics();
+
+            if ( isFaultResponse )
+            {
+                XmlRpcStruct fault = ( XmlRpcStruct ) returnValue;
+
+                throw new XmlRpcFault( fault.getInteger( "faultCode" ),
+                                       fault.getString( "faultString" ) );
+            }
         }
-        
-        if ( isFaultResponse )
+
+
+        /**
+         *  Override the handleFaultResponse() method inherited from XmlRpcParser. This way,
+         *  we may set the error flag if we run into a fault-tag.
+         */
+
+        protected void handleFaultResponse()
         {
-            XmlRpcStruct fault = ( XmlRpcStruct ) returnValue;
-            isFaultResponse = false;
-            
-            throw new XmlRpcFault( fault.getInteger( "faultCode" ),
-                                   fault.getString( "faultString" ) );
+            isFaultResponse = true;
         }
-    }
 
 
-    /**
-     *  Override the startElement() method inherited from XmlRpcParser. This way, we may set
-     *  the error flag if we run into a fault-tag.
-     *
-     *  @param uri {@inheritDoc}
-     *  @param name {@inheritDoc}
-     *  @param qualifiedName {@inheritDoc}
-     *  @param attributes {@inheritDoc}
-     */
+        /**
+         *  Stores away the one and only value contained in XML-RPC responses.
+         *
+         *  @param value The contained return value.
+         */
 
-    public void startElement(
-        String uri,
-        String name,
-        String qualifiedName,
-        Attributes attributes )
-        throws SAXException
-    {
-        if ( name.equals( "fault" ) )
+        protected void handleParsedValue( Object value )
         {
-            isFaultResponse = true;
+            returnValue = value;
         }
-        else
+
+
+        /**
+         *  Opens a connection to the URL associated with the client instance. Any
+         *  HTTP request properties set using setRequestProperties() are recorded
+         *  with the internal HttpURLConnection and are used in the HTTP request.
+         *
+         *  @throws IOException If a connection could not be opened. The exception
+         *                      is propagated out of any unsuccessful calls made into
+         *                      the internal java.net.HttpURLConnection.
+         */
+
+        private void openConnection() throws IOException
         {
-            super.startElement( uri, name, qualifiedName, attributes );
+            connection = ( HttpURLConnection ) url.openConnection();
+            connection.setDoInput( true );
+            connection.setDoOutput( true );
+            connection.setRequestMethod( "POST" );
+            connection.setRequestProperty(
+                "Content-Type", "text/xml; charset=" +
+                XmlRpcMessages.getString( "XmlRpcClient.Encoding" ) );
+
+            if ( compressionThreshold >= 0 )
+            {
+                connection.setRequestProperty( "Accept-Encoding", Compression.ACCEPT_ENCODING );
+            }
+
+            Map properties = requestProperties;
+
+            if ( properties != null )
+            {
+                for ( Iterator propertyNames = properties.keySet().iterator();
+                      propertyNames.hasNext(); )
+                {
+                    String propertyName = ( String ) propertyNames.next();
+
+                    connection.setRequestProperty(
+                        propertyName,
+                        ( String ) properties.get( propertyName ) );
+                }
+            }
         }
-    }
 
 
-    /**
-     *  Stores away the one and only value contained in XML-RPC responses.
-     *
-     *  @param value The contained return value.
-     */
+        /** Connection to the server, unless the connection pool is used. */
+        private HttpURLConnection connection;
 
-    protected void handleParsedValue( Object value )
-    {
-        returnValue = value;
+        /** Writer to which the XML-RPC message is serialized. */
+        private Writer writer;
+
+        /** Buffer in which messages are encoded before being sent, unless streaming. */
+        private Utf8Writer buffer = new Utf8Writer( 2048 );
+
+        /** The parsed value returned in the response. */
+        private Object returnValue;
+
+        /** Indicates whether or not the incoming response is a fault response. */
+        private boolean isFaultResponse;
+
+        /** Buffer in which messages are compressed before being sent, created when first needed. */
+        private CompressedBuffer compressed;
+
+        /** The name of the method called. */
+        private String methodName;
+
+        /** The time at which the invocation started, in nanoseconds. */
+        private long startTime;
+
+        /** The content coding of the request, or null if it was not compressed. */
+        private String requestEncoding;
+
+        /** The number of bytes of the request body sent, or -1 if it was streamed. */
+        private long requestWireSize = -1;
+
+        /** The content coding of the response, or null if it was not compressed. */
+        private String responseEncoding;
+
+        /** Nanoseconds spent compressing the request. */
+        private long compressionTime;
+
+        /** Nanoseconds spent creating the decompressing stream, reading its header. */
+        private long decodeTime;
+
+        /** The response body as received, when metrics are collected. */
+        private MeteredInputStream wireInput;
+
+        /** The decompressed response body, when metrics are collected and the response is compressed. */
+        private MeteredInputStream xmlInput;
     }
 
 
     /**
-     *  Opens a connection to the URL associated with the client instance. Any
-     *  HTTP request properties set using setRequestProperties() are recorded
-     *  with the internal HttpURLConnection and are used in the HTTP request.
-     * 
-     *  @throws IOException If a connection could not be opened. The exception
-     *                      is propagated out of any unsuccessful calls made into
-     *                      the internal java.net.HttpURLConnection.
+     *  A ByteArrayOutputStream giving access to its buffer, so that compressed
+     *  messages may be sent without copying them.
      */
 
-    private void openConnection() throws IOException
+    private static class CompressedBuffer extends ByteArrayOutputStream
     {
-        connection = ( HttpURLConnection ) url.openConnection();
-        connection.setDoInput( true );
-        connection.setDoOutput( true );
-        connection.setRequestMethod( "POST" );
-        connection.setRequestProperty(
-            "Content-Type", "text/xml; charset=" +
-            XmlRpcMessages.getString( "XmlRpcClient.Encoding" ) );
-        
-        if ( requestProperties != null )
+        CompressedBuffer( int capacity )
         {
-            for ( Iterator propertyNames = requestProperties.keySet().iterator();
-                  propertyNames.hasNext(); )
-            {
-                String propertyName = ( String ) propertyNames.next();
-                
-                connection.setRequestProperty(
-                    propertyName,
-                    ( String ) requestProperties.get( propertyName ) );
-            }
+            super( capacity );
+        }
+
+        byte[] getBuffer()
+        {
+            return buf;
+        }
+
+        int capacity()
+        {
+            return buf.length;
         }
     }
 
@@ -524,27 +1255,60 @@ public class XmlRpcClient extends XmlRpcParser implements XmlRpcInvocationHandle
     /** The server URL. */
     private URL url;
 
-    /** Connection to the server. */
-    private HttpURLConnection connection;
+    /** Pool of persistent connections, or null if a new connection is opened per call. */
+    private volatile XmlRpcConnectionPool connectionPool;
     
-    /** HTTP request properties, or null if none have been set by the application. */
-    private Map requestProperties;
+    /** HTTP request properties, or null if none have been set by the application. Copied on write. */
+    private volatile Map requestProperties;
     
     /** HTTP header fields returned by the server in the latest response. */
-    private Map headerFields = new HashMap();
-    
-    /** The parsed value returned in a response. */
-    private Object returnValue;
-
-    /** Writer to which XML-RPC messages are serialized. */
-    private Writer writer;
+    private volatile Map headerFields = new HashMap();
 
     /** Indicates wheter or not we shall stream the message directly or build them locally? */
     private boolean streamMessages;
     
-    /** Indicates whether or not the incoming response is a fault response. */
-    private boolean isFaultResponse;
-    
     /** The serializer used to serialize arguments. */
     private XmlRpcSerializer serializer = new XmlRpcSerializer();
+
+    /** The engine decoding responses, or null to use SAX. */
+    private volatile XmlRpcParserEngine parserEngine;
+
+    /** The number of bytes of a base64 value kept in memory, or -1 for no limit. */
+    private volatile int spillThreshold = -1;
+
+    /** The directory receiving base64 values above the threshold, or null. */
+    private volatile File spillDirectory;
+
+    /** Executor performing asynchronous invocations, or null to use the shared executor. */
+    private volatile Executor executor;
+
+    /** The size of the smallest request to compress, or -1 if compression is disabled. */
+    private volatile int compressionThreshold = -1;
+
+    /** The content coding accepted by the server in requests, or null if not announced. */
+    private volatile String serverEncoding;
+
+    /** Listener receiving the metrics of invocations, or null. */
+    private volatile XmlRpcMetricsListener metricsListener;
+
+    /** Call contexts available for reuse. */
+    private ConcurrentLinkedQueue/*<Call>*/ freeCalls = new ConcurrentLinkedQueue();
+
+    /** The number of call contexts in the free list. */
+    private AtomicInteger freeCallCount = new AtomicInteger();
+
+    /** The maximum number of call contexts kept for reuse. */
+    private static final int MAX_FREE_CALLS = 8;
+
+    /** The largest message buffer, in bytes, kept by a recycled call context. */
+    private static final int MAX_RECYCLED_BUFFER_SIZE = 64 * 1024;
+
+    /** The number of invocations the shared executor queues before rejecting more. */
+    private static final int SHARED_QUEUE_CAPACITY = 256;
+
+    /** Executor shared by all clients without an executor of their own. */
+    private static Executor sharedExecutor;
+
+    /** Sequence number used to name the threads of the shared executor. */
+    private static int threadSequence;
 }
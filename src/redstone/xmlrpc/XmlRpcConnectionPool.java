@@ -0,0 +1,454 @@
+/*
+    This library is free software; you can redistribute it and/or modify it under the terms
+    of the GNU Lesser General Public License as published by the Free Software Foundation;
+    either version 2.1 of the License, or (at your option) any later version.
+
+    This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+    without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+    See the GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License along with this
+    library; if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+    Boston, MA  02111-1307  USA
+*/
+
+package redstone.xmlrpc;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ *  An XmlRpcConnectionPool keeps HTTP/1.1 connections to XML-RPC servers alive between
+ *  invocations so that bursts of calls against the same server reuse sockets instead of
+ *  paying for a new TCP (and possibly TLS) handshake on every call. Connections are
+ *  pooled per route, that is, per scheme, host, and port.
+ *
+ *  <p>A pool is installed in one or more XmlRpcClients using
+ *  XmlRpcClient.setConnectionPool(). The pool is thread safe and may be shared by
+ *  any number of clients.</p>
+ *
+ *  <pre>
+ *  XmlRpcConnectionPool pool = new XmlRpcConnectionPool( 2, 4, 30000 );
+ *  client.setConnectionPool( pool );
+ *  </pre>
+ */
+
+public class XmlRpcConnectionPool
+{
+    /**
+     *  Creates a pool keeping at most two idle connections per route, allowing
+     *  at most four simultaneous connections per route, and evicting connections
+     *  that have been idle for more than 30 seconds.
+     */
+
+    public XmlRpcConnectionPool()
+    {
+        this( 2, 4, 30000 );
+    }
+
+
+    /**
+     *  Creates a pool with the given limits.
+     *
+     *  @param maxIdlePerRoute The maximum number of idle connections kept per route.
+     *
+     *  @param maxPerRoute The maximum number of connections, leased or idle, per route.
+     *                     Callers asking for more connections than this block until a
+     *                     connection is released.
+     *
+     *  @param idleTimeout The number of milliseconds a connection may stay idle before
+     *                     it is evicted from the pool.
+     */
+
+    public XmlRpcConnectionPool( int maxIdlePerRoute, int maxPerRoute, long idleTimeout )
+    {
+        if ( maxPerRoute < 1 || maxIdlePerRoute < 0 || maxIdlePerRoute > maxPerRoute )
+        {
+            throw new IllegalArgumentException();
+        }
+
+        this.maxIdlePerRoute = maxIdlePerRoute;
+        this.maxPerRoute = maxPerRoute;
+        this.idleTimeout = idleTimeout;
+    }
+
+
+    /**
+     *  Sets the timeout used when establishing new connections, and the read timeout
+     *  of all connections opened from here on.
+     *
+     *  @param connectTimeout Connect timeout in milliseconds, or 0 for no timeout.
+     *  @param readTimeout Read timeout in milliseconds, or 0 for no timeout.
+     */
+
+    public void setTimeouts( int connectTimeout, int readTimeout )
+    {
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+    }
+
+
+    /**
+     *  Sets the verifier checking that the certificate presented by an HTTPS server
+     *  belongs to the host connected to. By default, the default verifier of
+     *  HttpsURLConnection is used, which on Android is the strict verifier used by
+     *  HttpsURLConnection itself. Desktop JVMs check host names inside HttpsURLConnection
+     *  and their default verifier rejects all hosts, so a verifier must be set there
+     *  for HTTPS connections to be established.
+     *
+     *  @param hostnameVerifier The verifier, or null to use the default verifier.
+     */
+
+    public void setHostnameVerifier( HostnameVerifier hostnameVerifier )
+    {
+        this.hostnameVerifier = hostnameVerifier;
+    }
+
+
+    /**
+     *  Sets the factory creating the TLS sockets of HTTPS connections, for instance
+     *  to trust a private certificate authority.
+     *
+     *  @param sslSocketFactory The factory, or null to use the default factory.
+     */
+
+    public void setSSLSocketFactory( SSLSocketFactory sslSocketFactory )
+    {
+        this.sslSocketFactory = sslSocketFactory;
+    }
+
+
+    /**
+     *  Returns the number of times a connection was taken from the idle pool.
+     *
+     *  @return The number of pool hits.
+     */
+
+    public synchronized long getHitCount()
+    {
+        return hits;
+    }
+
+
+    /**
+     *  Returns the number of times a new connection had to be opened since no
+     *  idle connection was available.
+     *
+     *  @return The number of pool misses.
+     */
+
+    public synchronized long getMissCount()
+    {
+        return misses;
+    }
+
+
+    /**
+     *  Returns the number of idle connections currently kept by the pool.
+     *
+     *  @return The number of idle connections in the pool.
+     */
+
+    public synchronized int getIdleCount()
+    {
+        int count = 0;
+
+        for ( Iterator routes = this.routes.values().iterator(); routes.hasNext(); )
+        {
+            count += ( ( Route ) routes.next() ).idle.size();
+        }
+
+        return count;
+    }
+
+
+    /**
+     *  Closes all connections that have been idle longer than the idle timeout. Expired
+     *  connections of a route are also evicted whenever a connection to that route is
+     *  requested, so calling this method is only needed to release sockets early.
+     */
+
+    public synchronized void evictIdleConnections()
+    {
+        long now = System.currentTimeMillis();
+
+        for ( Iterator routes = this.routes.values().iterator(); routes.hasNext(); )
+        {
+            evictExpired( ( Route ) routes.next(), now );
+        }
+    }
+
+
+    /**
+     *  Closes all idle connections. Connections currently in use are closed when
+     *  they are released.
+     */
+
+    public synchronized void shutdown()
+    {
+        isShutdown = true;
+
+        for ( Iterator routes = this.routes.values().iterator(); routes.hasNext(); )
+        {
+            Route route = ( Route ) routes.next();
+
+            while ( !route.idle.isEmpty() )
+            {
+                ( ( XmlRpcHttpConnection ) route.idle.removeFirst() ).close();
+                --route.open;
+            }
+        }
+
+        notifyAll();
+    }
+
+
+    /**
+     *  Leases a connection to the server at the given URL, reusing an idle connection
+     *  if one is available. Blocks if the maximum number of connections to the route
+     *  are already in use.
+     *
+     *  @param url The URL of the XML-RPC service.
+     *  @return A connection to the server.
+     *  @throws IOException If a new connection could not be established.
+     */
+
+    XmlRpcHttpConnection acquire( URL url ) throws IOException
+    {
+        String key = url.getProtocol() + "://" + url.getHost() + ":" + getPort( url );
+        Route route;
+
+        synchronized ( this )
+        {
+            route = ( Route ) routes.get( key );
+
+            if ( route == null )
+            {
+                route = new Route();
+                routes.put( key, route );
+            }
+
+            evictExpired( route, System.currentTimeMillis() );
+
+            while ( true )
+            {
+                if ( isShutdown )
+                {
+                    throw new IOException( "Connection pool has been shut down" );
+                }
+
+                if ( !route.idle.isEmpty() )
+                {
+                    XmlRpcHttpConnection connection = ( XmlRpcHttpConnection ) route.idle.removeLast();
+                    connection.reused = true;
+                    ++hits;
+                    return connection;
+                }
+
+                if ( route.open < maxPerRoute )
+                {
+                    ++route.open;
+                    ++misses;
+                    break;
+                }
+
+                try
+                {
+                    wait();
+                }
+                catch ( InterruptedException e )
+                {
+                    Thread.currentThread().interrupt();
+                    throw new IOException( "Interrupted while waiting for a connection" );
+                }
+            }
+        }
+
+        // Connect outside of the pool monitor. The slot has already been reserved.
+
+        try
+        {
+            return new XmlRpcHttpConnection( key, connect( url ) );
+        }
+        catch ( IOException e )
+        {
+            synchronized ( this )
+            {
+                --route.open;
+                notifyAll();
+            }
+
+            throw e;
+        }
+    }
+
+
+    /**
+     *  Returns a leased connection to the pool.
+     *
+     *  @param connection The connection to return.
+     *  @param reusable Indicates if the connection may be used for another request.
+     *                  If not, the connection is closed.
+     */
+
+    synchronized void release( XmlRpcHttpConnection connection, boolean reusable )
+    {
+        Route route = ( Route ) routes.get( connection.route );
+
+        if ( reusable && !isShutdown && route.idle.size() < maxIdlePerRoute )
+        {
+            connection.idleSince = System.currentTimeMillis();
+            connection.reused = false;
+            route.idle.addLast( connection );
+        }
+        else
+        {
+            connection.close();
+            --route.open;
+        }
+
+        notifyAll();
+    }
+
+
+    /**
+     *  Opens a socket to the host of the given URL. For HTTPS, TLS is layered over the
+     *  connected socket, so that the connect timeout applies and the host name is sent
+     *  in the handshake (SNI), and the certificate of the server is verified to belong
+     *  to the host before the socket is used.
+     */
+
+    private Socket connect( URL url ) throws IOException
+    {
+        String host = url.getHost();
+        int port = getPort( url );
+        Socket socket = new Socket();
+
+        socket.setTcpNoDelay( true );
+        socket.setSoTimeout( readTimeout );
+        socket.connect( new InetSocketAddress( host, port ), connectTimeout );
+
+        if ( !"https".equals( url.getProtocol() ) )
+        {
+            return socket;
+        }
+
+        SSLSocket sslSocket;
+
+        try
+        {
+            SSLSocketFactory factory = sslSocketFactory != null ?
+                sslSocketFactory : ( SSLSocketFactory ) SSLSocketFactory.getDefault();
+
+            sslSocket = ( SSLSocket ) factory.createSocket( socket, host, port, true );
+            sslSocket.startHandshake();
+        }
+        catch ( IOException e )
+        {
+            socket.close();
+            throw e;
+        }
+
+        HostnameVerifier verifier = hostnameVerifier != null ?
+            hostnameVerifier : HttpsURLConnection.getDefaultHostnameVerifier();
+
+        if ( !verifier.verify( host, sslSocket.getSession() ) )
+        {
+            sslSocket.close();
+            throw new SSLPeerUnverifiedException( "Certificate of server does not match host " + host );
+        }
+
+        return sslSocket;
+    }
+
+
+    /**
+     *  Closes idle connections of a route that have exceeded the idle timeout.
+     *  Must be called holding the pool monitor.
+     */
+
+    private void evictExpired( Route route, long now )
+    {
+        for ( Iterator connections = route.idle.iterator(); connections.hasNext(); )
+        {
+            XmlRpcHttpConnection connection = ( XmlRpcHttpConnection ) connections.next();
+
+            if ( now - connection.idleSince > idleTimeout )
+            {
+                connections.remove();
+                connection.close();
+                --route.open;
+            }
+        }
+    }
+
+
+    /**
+     *  Returns the port of a URL, substituting the default port of the protocol if
+     *  the URL does not include one.
+     */
+
+    private static int getPort( URL url )
+    {
+        return url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+    }
+
+
+    /**
+     *  Bookkeeping of the connections to one route.
+     */
+
+    private static class Route
+    {
+        /** Idle connections, the most recently used last. */
+        LinkedList/*<XmlRpcHttpConnection>*/ idle = new LinkedList();
+
+        /** The number of open connections, leased or idle. */
+        int open;
+    }
+
+
+    /** Routes by their key (scheme, host and port). */
+    private Map/*<String,Route>*/ routes = new HashMap();
+
+    /** The maximum number of idle connections kept per route. */
+    private int maxIdlePerRoute;
+
+    /** The maximum number of open connections per route. */
+    private int maxPerRoute;
+
+    /** The number of milliseconds a connection may stay idle in the pool. */
+    private long idleTimeout;
+
+    /** Timeout in milliseconds when establishing connections. */
+    private int connectTimeout;
+
+    /** Socket read timeout in milliseconds. */
+    private int readTimeout;
+
+    /** Verifier of the host names of HTTPS servers, or null to use the default verifier. */
+    private volatile HostnameVerifier hostnameVerifier;
+
+    /** Factory of TLS sockets, or null to use the default factory. */
+    private volatile SSLSocketFactory sslSocketFactory;
+
+    /** The number of requests served by an idle connection. */
+    private long hits;
+
+    /** The number of requests that required a new connection. */
+    private long misses;
+
+    /** Indicates if the pool has been shut down. */
+    private boolean isShutdown;
+}
@@ -21,9 +21,9 @@ import java.io.InputStream;
 import java.io.Writer;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import org.xml.sax.SAXException;
 
 /**
  *  Objects of the XmlRpcDispather class perform the parsing of inbound XML-RPC
@@ -61,6 +61,17 @@ public class XmlRpcDispatcher extends XmlRpcParser
     {
         return callerIp;
     }
+
+
+    /**
+     *  Returns the name of the method called, as sent by the client, once the call
+     *  has been parsed.
+     */
+
+    String getCalledMethodName()
+    {
+        return calledMethodName;
+    }
     
 
     /**
@@ -86,6 +97,13 @@ public class XmlRpcDispatcher extends XmlRpcParser
 
         // Exceptions will from hereon be encoded in the XML-RPC response.
 
+        if ( XmlRpcBatch.MULTICALL_METHOD_NAME.equals( methodName ) &&
+             server.getInvocationHandler( "system" ) == null )
+        {
+            dispatchMulticall();
+            return;
+        }
+
         int separator = methodName.lastIndexOf( "." );
 
         if ( separator == -1 )
@@ -159,25 +177,163 @@ public class XmlRpcDispatcher extends XmlRpcParser
 
 
     /**
-     *  Override the endElement() method of the XmlRpcParser class, and catch
-     *  the method name element. The method name element is unique for XML-RPC
-     *  calls, and belongs here in the server.
+     *  Performs the calls of a system.multicall request, unless the server has an
+     *  invocation handler of its own installed under the name "system". The single
+     *  argument is an array of structs, each holding the methodName and params of a
+     *  call. The calls are performed in order and the response is an array with one
+     *  entry per call, either an array holding the single return value of the call,
+     *  or a fault struct if the call failed. Interceptors are invoked for every call.
+     */
+
+    private void dispatchMulticall()
+    {
+        try
+        {
+            if ( arguments.size() != 1 || !( arguments.get( 0 ) instanceof List ) )
+            {
+                throw new XmlRpcFault( -1, XmlRpcMessages.getString( "XmlRpcDispatcher.InvalidMulticall" ) );
+            }
+
+            List calls = ( List ) arguments.get( 0 );
+            XmlRpcArray results = new XmlRpcArray();
+
+            for ( int i = 0; i < calls.size(); ++i )
+            {
+                try
+                {
+                    XmlRpcArray result = new XmlRpcArray();
+                    result.add( invokeMulticallEntry( calls.get( i ) ) );
+                    results.add( result );
+                }
+                catch ( Throwable t )
+                {
+                    XmlRpcStruct fault = new XmlRpcStruct();
+
+                    if ( t instanceof XmlRpcFault )
+                    {
+                        fault.put( "faultCode", new Integer( ( ( XmlRpcFault ) t ).getErrorCode() ) );
+                        fault.put( "faultString", t.getMessage() );
+                    }
+                    else
+                    {
+                        fault.put( "faultCode", new Integer( -1 ) );
+                        fault.put( "faultString", t.getClass().getName() + ": " + t.getMessage() );
+                    }
+
+                    results.add( fault );
+                }
+            }
+
+            writeValue( results );
+        }
+        catch ( XmlRpcFault fault )
+        {
+            writeError( fault.getErrorCode(), fault.getMessage() );
+        }
+        catch ( Throwable t )
+        {
+            writeError( -1, t.getClass().getName() + ": " + t.getMessage() );
+        }
+    }
+
+
+    /**
+     *  Performs a single call of a system.multicall request, passing it through the
+     *  interceptors of the server.
+     *
+     *  @param entry The struct holding the methodName and params of the call.
+     *
+     *  @return The return value of the call.
+     *
+     *  @throws Throwable Any exception raised by the invocation handler, or an
+     *                    XmlRpcFault if the call could not be performed.
      */
 
-    public void endElement(
-        String uri,
-        String name,
-        String qualifiedName )
-        throws SAXException
+    private Object invokeMulticallEntry( Object entry ) throws Throwable
     {
-        if ( name.equals( "methodName" ) )
+        if ( !( entry instanceof Map ) ||
+             !( ( ( Map ) entry ).get( "methodName" ) instanceof String ) )
         {
-            methodName = this.consumeCharData();
+            throw new XmlRpcFault( -1, XmlRpcMessages.getString( "XmlRpcDispatcher.InvalidMulticall" ) );
         }
-        else
+
+        String callMethodName = ( String ) ( ( Map ) entry ).get( "methodName" );
+        Object params = ( ( Map ) entry ).get( "params" );
+        List callArguments = params instanceof List ? ( List ) params : new ArrayList( 0 );
+
+        if ( XmlRpcBatch.MULTICALL_METHOD_NAME.equals( callMethodName ) )
+        {
+            throw new XmlRpcFault( -1, XmlRpcMessages.getString( "XmlRpcDispatcher.NestedMulticall" ) );
+        }
+
+        int separator = callMethodName.lastIndexOf( "." );
+        String handlerName = separator == -1 ? DEFAULT_HANDLER_NAME : callMethodName.substring( 0, separator );
+        callMethodName = callMethodName.substring( separator + 1 );
+
+        XmlRpcInvocationHandler handler = server.getInvocationHandler( handlerName );
+
+        if ( handler == null )
+        {
+            throw new XmlRpcFault( -1, XmlRpcMessages.getString( "XmlRpcDispatcher.HandlerNotFound" ) );
+        }
+
+        XmlRpcInvocation invocation = null;
+        DiscardingWriter entryWriter = null;
+
+        // Interceptors get a writer of their own, since anything written to the
+        // response writer would end up in the middle of the multicall response.
+
+        if ( server.getInvocationInterceptors().size() > 0 )
+        {
+            entryWriter = new DiscardingWriter();
+            invocation = new XmlRpcInvocation(
+                ++callSequence,
+                handlerName,
+                callMethodName,
+                handler,
+                callArguments,
+                entryWriter );
+        }
+
+        if ( !preProcess( invocation ) )
         {
-            super.endElement( uri, name, qualifiedName );
+            throw new XmlRpcFault( -1, XmlRpcMessages.getString( "XmlRpcDispatcher.InvocationCancelled" ) );
         }
+
+        try
+        {
+            Object returnValue = handler.invoke( callMethodName, callArguments );
+            returnValue = postProcess( invocation, returnValue );
+
+            // Calls within a multicall cannot write their own responses. A call whose
+            // interceptor tried to fails, and otherwise a missing return value is
+            // encoded the same way as for void methods.
+
+            if ( returnValue == null && entryWriter != null && entryWriter.isWritten() )
+            {
+                throw new XmlRpcFault( -1, XmlRpcMessages.getString( "XmlRpcDispatcher.CustomResponseInMulticall" ) );
+            }
+
+            return returnValue != null ? returnValue : "void";
+        }
+        catch ( Throwable t )
+        {
+            processException( invocation, t );
+            throw t;
+        }
+    }
+
+
+    /**
+     *  Override the handleMethodName() method of the XmlRpcParser class, and catch
+     *  the method name element. The method name element is unique for XML-RPC
+     *  calls, and belongs here in the server.
+     */
+
+    protected void handleMethodName( String methodName )
+    {
+        this.methodName = methodName;
+        this.calledMethodName = methodName;
     }
 
 
@@ -319,6 +475,44 @@ public class XmlRpcDispatcher extends XmlRpcParser
     }
 
 
+    /**
+     *  Writer given to the interceptors of calls within a system.multicall request.
+     *  Content written to it is discarded.
+     */
+
+    private static class DiscardingWriter extends Writer
+    {
+        public void write( char[] buffer, int offset, int length )
+        {
+            written |= length > 0;
+        }
+
+
+        public void flush()
+        {
+        }
+
+
+        public void close()
+        {
+        }
+
+
+        /**
+         *  Returns whether any content was written.
+         */
+
+        boolean isWritten()
+        {
+            return written;
+        }
+
+
+        /** Indicates if any content was written. */
+        private boolean written;
+    }
+
+
     /** The XmlRpcServer this dispatcher is working for */
     private XmlRpcServer server;
 
@@ -328,6 +522,9 @@ public class XmlRpcDispatcher extends XmlRpcParser
     /** The name of the method the client wishes to call */
     private String methodName;
 
+    /** The method name as sent by the client, before it is split up */
+    private String calledMethodName;
+
     /** The arguments for the method */
     private List arguments = new ArrayList( 6 );
 
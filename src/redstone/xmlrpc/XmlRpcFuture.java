@@ -0,0 +1,229 @@
+/*
+    This library is free software; you can redistribute it and/or modify it under the terms
+    of the GNU Lesser General Public License as published by the Free Software Foundation;
+    either version 2.1 of the License, or (at your option) any later version.
+
+    This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+    without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+    See the GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License along with this
+    library; if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+    Boston, MA  02111-1307  USA
+*/
+
+package redstone.xmlrpc;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ *  An XmlRpcFuture represents the outcome of an invocation that has not necessarily
+ *  completed yet. It implements java.util.concurrent.Future, where an XmlRpcFault or
+ *  XmlRpcException raised by the invocation is reported as the cause of the
+ *  ExecutionException thrown by get(). For code that rather deals with the XML-RPC
+ *  exceptions directly, getResult() waits for the outcome and rethrows them as is.
+ */
+
+public class XmlRpcFuture implements Future
+{
+    /**
+     *  Cancels the invocation if it has not completed. Note that an invocation that has
+     *  already been sent to the server may still be carried out by the server.
+     *
+     *  @param mayInterruptIfRunning Ignored; invocations in progress are never interrupted.
+     *  @return false if the invocation had already completed.
+     */
+
+    public synchronized boolean cancel( boolean mayInterruptIfRunning )
+    {
+        if ( isDone )
+        {
+            return false;
+        }
+
+        isCancelled = true;
+        complete();
+
+        return true;
+    }
+
+
+    /*  (Documentation inherited)
+     *  @see java.util.concurrent.Future#isCancelled()
+     */
+
+    public synchronized boolean isCancelled()
+    {
+        return isCancelled;
+    }
+
+
+    /*  (Documentation inherited)
+     *  @see java.util.concurrent.Future#isDone()
+     */
+
+    public synchronized boolean isDone()
+    {
+        return isDone;
+    }
+
+
+    /*  (Documentation inherited)
+     *  @see java.util.concurrent.Future#get()
+     */
+
+    public synchronized Object get() throws InterruptedException, ExecutionException
+    {
+        while ( !isDone )
+        {
+            wait();
+        }
+
+        return getOutcome();
+    }
+
+
+    /*  (Documentation inherited)
+     *  @see java.util.concurrent.Future#get(long, java.util.concurrent.TimeUnit)
+     */
+
+    public synchronized Object get( long timeout, TimeUnit unit )
+        throws InterruptedException, ExecutionException, TimeoutException
+    {
+        long deadline = System.currentTimeMillis() + unit.toMillis( timeout );
+
+        while ( !isDone )
+        {
+            long remaining = deadline - System.currentTimeMillis();
+
+            if ( remaining <= 0 )
+            {
+                throw new TimeoutException();
+            }
+
+            wait( remaining );
+        }
+
+        return getOutcome();
+    }
+
+
+    /**
+     *  Waits for the invocation to complete and returns its result, just like a
+     *  synchronous call through XmlRpcClient.invoke() would.
+     *
+     *  @return The object returned from the terminating XML-RPC end point.
+     *
+     *  @throws XmlRpcException If the invocation failed locally, was cancelled, or if
+     *                          the waiting thread was interrupted.
+     *  @throws XmlRpcFault If the server responded with a fault.
+     */
+
+    public Object getResult() throws XmlRpcException, XmlRpcFault
+    {
+        try
+        {
+            return get();
+        }
+        catch ( ExecutionException e )
+        {
+            if ( e.getCause() instanceof XmlRpcFault )
+            {
+                throw ( XmlRpcFault ) e.getCause();
+            }
+
+            throw ( XmlRpcException ) e.getCause();
+        }
+        catch ( CancellationException e )
+        {
+            throw new XmlRpcException( XmlRpcMessages.getString( "XmlRpcFuture.Cancelled" ), e );
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            throw new XmlRpcException( XmlRpcMessages.getString( "XmlRpcFuture.Interrupted" ), e );
+        }
+    }
+
+
+    /**
+     *  Completes the future with the result of the invocation.
+     *
+     *  @param result The value returned by the server.
+     */
+
+    synchronized void setResult( Object result )
+    {
+        if ( !isDone )
+        {
+            this.result = result;
+            complete();
+        }
+    }
+
+
+    /**
+     *  Completes the future with a fault returned by the server, or an exception
+     *  raised locally.
+     *
+     *  @param failure An XmlRpcFault or an XmlRpcException.
+     */
+
+    synchronized void setFailure( Exception failure )
+    {
+        if ( !isDone )
+        {
+            this.failure = failure;
+            complete();
+        }
+    }
+
+
+    /**
+     *  Marks the future as done and wakes up waiting threads. Must be called
+     *  holding the monitor of the future.
+     */
+
+    private void complete()
+    {
+        isDone = true;
+        notifyAll();
+    }
+
+
+    /**
+     *  Returns the result of a completed future, or throws the failure.
+     */
+
+    private Object getOutcome() throws ExecutionException
+    {
+        if ( isCancelled )
+        {
+            throw new CancellationException();
+        }
+
+        if ( failure != null )
+        {
+            throw new ExecutionException( failure );
+        }
+
+        return result;
+    }
+
+
+    /** The value returned by the server. */
+    private Object result;
+
+    /** The fault or exception the invocation resulted in, if any. */
+    private Exception failure;
+
+    /** Indicates if the invocation has completed. */
+    private boolean isDone;
+
+    /** Indicates if the invocation was cancelled. */
+    private boolean isCancelled;
+}
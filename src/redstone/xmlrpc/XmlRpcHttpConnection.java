@@ -0,0 +1,552 @@
+/*
+    This library is free software; you can redistribute it and/or modify it under the terms
+    of the GNU Lesser General Public License as published by the Free Software Foundation;
+    either version 2.1 of the License, or (at your option) any later version.
+
+    This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+    without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+    See the GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License along with this
+    library; if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+    Boston, MA  02111-1307  USA
+*/
+
+package redstone.xmlrpc;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ *  A persistent HTTP/1.1 connection used by the XmlRpcConnectionPool. The connection
+ *  only implements the parts of HTTP needed to post XML-RPC messages and read the
+ *  responses back: a single request is written with an explicit Content-Length, and
+ *  the response body is delimited by Content-Length, chunked transfer encoding, or
+ *  the server closing the connection.
+ *
+ *  <p>A connection may only be returned to its pool once the response body has been
+ *  consumed completely, since the next response will follow immediately after it on
+ *  the same socket.</p>
+ */
+
+class XmlRpcHttpConnection
+{
+    /**
+     *  Wraps an established socket in a connection for the given route.
+     *
+     *  @param route The route key (scheme, host and port) the socket is connected to.
+     *  @param socket The connected socket.
+     */
+
+    XmlRpcHttpConnection( String route, Socket socket ) throws IOException
+    {
+        this.route = route;
+        this.socket = socket;
+        this.input = new BufferedInputStream( socket.getInputStream(), 8192 );
+        this.output = new BufferedOutputStream( socket.getOutputStream(), 8192 );
+    }
+
+
+    /**
+     *  Posts a request over the connection. The request headers are written
+     *  in ISO-8859-1 as required by HTTP, followed by the supplied body.
+     *
+     *  @param url The URL to post to.
+     *  @param requestProperties Additional HTTP request headers, or null.
+     *  @param contentEncoding The content coding of the body, or null if it is not compressed.
+     *  @param acceptEncoding The content codings accepted in the response, or null.
+     *  @param body The request body.
+     *  @param length The number of bytes of the body to send.
+     *
+     *  @throws IOException If the request could not be written.
+     */
+
+    void writeRequest(
+        URL url,
+        Map requestProperties,
+        String contentEncoding,
+        String acceptEncoding,
+        byte[] body,
+        int length )
+        throws IOException
+    {
+        StringBuffer header = new StringBuffer( 256 );
+        String path = url.getFile();
+
+        header.append( "POST " ).append( path.length() == 0 ? "/" : path ).append( " HTTP/1.1\r\n" );
+        header.append( "Host: " ).append( url.getHost() );
+
+        if ( url.getPort() != -1 )
+        {
+            header.append( ':' ).append( url.getPort() );
+        }
+
+        header.append( "\r\nContent-Type: text/xml; charset=" );
+        header.append( XmlRpcMessages.getString( "XmlRpcClient.Encoding" ) );
+        header.append( "\r\nContent-Length: " ).append( length );
+        header.append( "\r\nConnection: keep-alive\r\n" );
+
+        if ( contentEncoding != null )
+        {
+            header.append( "Content-Encoding: " ).append( contentEncoding ).append( "\r\n" );
+        }
+
+        if ( acceptEncoding != null )
+        {
+            header.append( "Accept-Encoding: " ).append( acceptEncoding ).append( "\r\n" );
+        }
+
+        if ( requestProperties != null )
+        {
+            for ( Iterator entries = requestProperties.entrySet().iterator(); entries.hasNext(); )
+            {
+                Map.Entry entry = ( Map.Entry ) entries.next();
+
+                header.append( entry.getKey() ).append( ": " ).append( entry.getValue() ).append( "\r\n" );
+            }
+        }
+
+        header.append( "\r\n" );
+
+        received = false;
+        statusCode = 0;
+        output.write( header.toString().getBytes( "ISO-8859-1" ) );
+        output.write( body, 0, length );
+        output.flush();
+    }
+
+
+    /**
+     *  Reads the status line and the headers of the response to the latest request.
+     *  The body of the response is made available through the returned stream, which
+     *  ends where the response ends.
+     *
+     *  @return A stream delivering the response body.
+     *
+     *  @throws IOException If the response could not be read or if the server responded
+     *                      with something else than "200 OK".
+     */
+
+    InputStream readResponse() throws IOException
+    {
+        String statusLine = readLine();
+
+        // Skip any interim "100 Continue" responses.
+
+        while ( statusLine.startsWith( "HTTP/1.1 100" ) || statusLine.startsWith( "HTTP/1.0 100" ) )
+        {
+            while ( readLine().length() > 0 ) { /* Discard interim headers. */ }
+            statusLine = readLine();
+        }
+
+        int codeStart = statusLine.indexOf( ' ' );
+
+        if ( !statusLine.startsWith( "HTTP/" ) || codeStart == -1 )
+        {
+            throw new IOException( "Invalid HTTP status line: " + statusLine );
+        }
+
+        int codeEnd = statusLine.indexOf( ' ', codeStart + 1 );
+
+        try
+        {
+            statusCode = Integer.parseInt(
+                statusLine.substring( codeStart + 1, codeEnd == -1 ? statusLine.length() : codeEnd ) );
+        }
+        catch ( NumberFormatException e )
+        {
+            throw new IOException( "Invalid HTTP status line: " + statusLine );
+        }
+
+        boolean http10 = statusLine.startsWith( "HTTP/1.0" );
+        String line;
+
+        headerFields = new HashMap();
+
+        while ( ( line = readLine() ).length() > 0 )
+        {
+            int separator = line.indexOf( ':' );
+
+            if ( separator > 0 )
+            {
+                headerFields.put( line.substring( 0, separator ).trim(),
+                                  line.substring( separator + 1 ).trim() );
+            }
+        }
+
+        String connectionHeader = getHeaderField( "Connection" );
+        String transferEncoding = getHeaderField( "Transfer-Encoding" );
+        String contentLength = getHeaderField( "Content-Length" );
+
+        reusable = http10 ?
+            "keep-alive".equalsIgnoreCase( connectionHeader ) :
+            !"close".equalsIgnoreCase( connectionHeader );
+
+        if ( transferEncoding != null && transferEncoding.toLowerCase().indexOf( "chunked" ) != -1 )
+        {
+            body = new ChunkedInputStream();
+        }
+        else if ( contentLength != null )
+        {
+            long length;
+
+            try
+            {
+                length = Long.parseLong( contentLength );
+            }
+            catch ( NumberFormatException e )
+            {
+                throw new IOException( "Invalid Content-Length: " + contentLength );
+            }
+
+            if ( length < 0 )
+            {
+                throw new IOException( "Invalid Content-Length: " + contentLength );
+            }
+
+            body = new FixedLengthInputStream( length );
+        }
+        else
+        {
+            // The body is delimited by the server closing the connection.
+
+            reusable = false;
+            body = input;
+        }
+
+        if ( statusCode != 200 )
+        {
+            reusable = false;
+            throw new IOException( "Server returned HTTP response code: " + statusCode );
+        }
+
+        return body;
+    }
+
+
+    /**
+     *  Returns the header fields of the latest response.
+     *
+     *  @return The header fields of the latest response.
+     */
+
+    Map getHeaderFields()
+    {
+        return headerFields;
+    }
+
+
+    /**
+     *  Returns the status code of the latest response, also when readResponse()
+     *  failed since it was not "200 OK".
+     *
+     *  @return The status code, or 0 if no status line was received.
+     */
+
+    int getStatusCode()
+    {
+        return statusCode;
+    }
+
+
+    /**
+     *  Consumes whatever remains of the latest response body so that the connection
+     *  may be used for the next request.
+     *
+     *  @return true if the connection may be reused for another request.
+     */
+
+    boolean finishResponse()
+    {
+        if ( !reusable || body == null )
+        {
+            return false;
+        }
+
+        try
+        {
+            byte[] skipBuffer = new byte[ 256 ];
+
+            while ( body.read( skipBuffer ) != -1 ) { /* Discard unread content. */ }
+        }
+        catch ( IOException e )
+        {
+            reusable = false;
+        }
+
+        body = null;
+        return reusable;
+    }
+
+
+    /**
+     *  Closes the underlying socket.
+     */
+
+    void close()
+    {
+        try
+        {
+            socket.close();
+        }
+        catch ( IOException ignore ) { /* Closed or not, we don't care at this point. */ }
+    }
+
+
+    /**
+     *  Returns the value of a header field in the latest response, ignoring
+     *  the case of the field name.
+     */
+
+    String getHeaderField( String name )
+    {
+        for ( Iterator entries = headerFields.entrySet().iterator(); entries.hasNext(); )
+        {
+            Map.Entry entry = ( Map.Entry ) entries.next();
+
+            if ( name.equalsIgnoreCase( ( String ) entry.getKey() ) )
+            {
+                return ( String ) entry.getValue();
+            }
+        }
+
+        return null;
+    }
+
+
+    /**
+     *  Reads a CRLF or LF terminated header line from the connection.
+     */
+
+    private String readLine() throws IOException
+    {
+        StringBuffer line = new StringBuffer( 64 );
+        int c;
+
+        while ( ( c = input.read() ) != '\n' )
+        {
+            if ( c == -1 )
+            {
+                throw new IOException( "Connection closed by server" );
+            }
+
+            received = true;
+
+            if ( c != '\r' )
+            {
+                line.append( ( char ) c );
+            }
+        }
+
+        return line.toString();
+    }
+
+
+    /**
+     *  Body stream delimited by a Content-Length header.
+     */
+
+    private class FixedLengthInputStream extends InputStream
+    {
+        FixedLengthInputStream( long length )
+        {
+            this.remaining = length;
+        }
+
+        public int read() throws IOException
+        {
+            if ( remaining <= 0 )
+            {
+                return -1;
+            }
+
+            int c = input.read();
+
+            if ( c == -1 )
+            {
+                throw new IOException( "Premature end of response body" );
+            }
+
+            --remaining;
+            return c;
+        }
+
+        public int read( byte[] buffer, int offset, int length ) throws IOException
+        {
+            if ( remaining <= 0 )
+            {
+                return -1;
+            }
+
+            int count = input.read( buffer, offset, ( int ) Math.min( length, remaining ) );
+
+            if ( count == -1 )
+            {
+                throw new IOException( "Premature end of response body" );
+            }
+
+            remaining -= count;
+            return count;
+        }
+
+        public int available() throws IOException
+        {
+            return ( int ) Math.min( input.available(), remaining );
+        }
+
+        /** The number of body bytes not yet read. */
+        private long remaining;
+    }
+
+
+    /**
+     *  Body stream decoding chunked transfer encoding.
+     */
+
+    private class ChunkedInputStream extends InputStream
+    {
+        public int read() throws IOException
+        {
+            if ( !nextChunk() )
+            {
+                return -1;
+            }
+
+            int c = input.read();
+
+            if ( c == -1 )
+            {
+                throw new IOException( "Premature end of chunked response body" );
+            }
+
+            --remaining;
+            return c;
+        }
+
+        public int read( byte[] buffer, int offset, int length ) throws IOException
+        {
+            if ( !nextChunk() )
+            {
+                return -1;
+            }
+
+            int count = input.read( buffer, offset, ( int ) Math.min( length, remaining ) );
+
+            if ( count == -1 )
+            {
+                throw new IOException( "Premature end of chunked response body" );
+            }
+
+            remaining -= count;
+            return count;
+        }
+
+        /**
+         *  Positions the stream at the next chunk if the current one is consumed.
+         *
+         *  @return false when the last chunk has been read.
+         */
+
+        private boolean nextChunk() throws IOException
+        {
+            if ( finished )
+            {
+                return false;
+            }
+
+            if ( remaining > 0 )
+            {
+                return true;
+            }
+
+            if ( started )
+            {
+                readLine(); // CRLF terminating the previous chunk.
+            }
+
+            started = true;
+
+            String sizeLine = readLine();
+            int extension = sizeLine.indexOf( ';' );
+
+            if ( extension != -1 )
+            {
+                sizeLine = sizeLine.substring( 0, extension );
+            }
+
+            try
+            {
+                remaining = Long.parseLong( sizeLine.trim(), 16 );
+            }
+            catch ( NumberFormatException e )
+            {
+                throw new IOException( "Invalid chunk size: " + sizeLine );
+            }
+
+            if ( remaining < 0 )
+            {
+                throw new IOException( "Invalid chunk size: " + sizeLine );
+            }
+
+            if ( remaining == 0 )
+            {
+                while ( readLine().length() > 0 ) { /* Discard trailers. */ }
+                finished = true;
+                return false;
+            }
+
+            return true;
+        }
+
+        /** The number of bytes not yet read from the current chunk. */
+        private long remaining;
+
+        /** Indicates if the first chunk header has been read. */
+        private boolean started;
+
+        /** Indicates if the terminating chunk has been read. */
+        private boolean finished;
+    }
+
+
+    /** The route (scheme, host and port) of the connection. */
+    final String route;
+
+    /** Time at which the connection was returned to its pool. */
+    long idleSince;
+
+    /** Indicates if the connection was taken from the idle pool rather than just opened. */
+    boolean reused;
+
+    /** Indicates if any part of a response to the latest request has been received. */
+    boolean received;
+
+    /** The socket connected to the server. */
+    private Socket socket;
+
+    /** Buffered stream reading from the socket. */
+    private InputStream input;
+
+    /** Buffered stream writing to the socket. */
+    private OutputStream output;
+
+    /** The body of the latest response, or null if it has been consumed. */
+    private InputStream body;
+
+    /** Header fields of the latest response. */
+    private Map headerFields = new HashMap();
+
+    /** Indicates if the server allows the connection to be kept alive after the latest response. */
+    private boolean reusable;
+
+    /** The status code of the latest response. */
+    private int statusCode;
+}
@@ -18,9 +18,15 @@ package redstone.xmlrpc;
 
 import java.io.IOException;
 import java.io.Writer;
-import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import redstone.xmlrpc.util.Iso8601;
 
 /**
  *  The XmlRpcJsonSerializer class converts Java objects to their JSON counterparts.
@@ -36,7 +42,8 @@ import java.util.Date;
  *  which is not required using this format, just use eval( responseText ) to get a
  *  JavaScript object.
  *  
- *  TODO Change synchronization of global dateFormatter to prevent bottleneck.
+ *  Dates are written in the extended ISO 8601 format including the time zone offset,
+ *  which JavaScript's Date constructor understands.
  *
  *  @author  Greger Olsson
  */
@@ -55,27 +62,16 @@ public class XmlRpcJsonSerializer extends XmlRpcSerializer
 
     /**
      *  Constructor that may add all the custom serializers in the library
-     *  (which is almost always what you want).
+     *  (which is almost always what you want). As with XmlRpcSerializer, the core
+     *  custom serializers and their cache are built once and shared.
      *  
      *  @param addCustomSerializers Indicates if the core custom serializers should be added.
      */
 
     public XmlRpcJsonSerializer( boolean addCustomSerializers )
     {
-        super( false );
-
-        if ( addCustomSerializers )
-        {
-            customSerializers.add( new redstone.xmlrpc.serializers.json.MapSerializer() );
-            customSerializers.add( new redstone.xmlrpc.serializers.json.ListSerializer() );
-            customSerializers.add( new redstone.xmlrpc.serializers.json.CollectionSerializer() );
-            customSerializers.add( new redstone.xmlrpc.serializers.json.ObjectArraySerializer() );
-            customSerializers.add( new redstone.xmlrpc.serializers.json.IntArraySerializer() );
-            customSerializers.add( new redstone.xmlrpc.serializers.json.FloatArraySerializer() );
-            customSerializers.add( new redstone.xmlrpc.serializers.json.DoubleArraySerializer() );
-            customSerializers.add( new redstone.xmlrpc.serializers.json.BooleanArraySerializer() );
-            //customSerializers.add( new redstone.xmlrpc.serializers.json.IntrospectingSerializer() );
-        }
+        super( addCustomSerializers ? JSON_SERIALIZERS : new ArrayList(),
+               addCustomSerializers ? JSON_SERIALIZER_CACHE : new ConcurrentHashMap() );
     }
     
 
@@ -133,19 +129,15 @@ public class XmlRpcJsonSerializer extends XmlRpcSerializer
         else if ( value instanceof java.util.Calendar )
         {
             writer.write( "new Date('" );
-            synchronized( dateFormatter )
-            {
-                writer.write( dateFormatter.format( ( ( Calendar ) value ).getTime() ) );
-            }
+            writer.write( Iso8601.format(
+                ( ( Calendar ) value ).getTimeInMillis(), TimeZone.getDefault(), true, true ) );
             writer.write( "')" );
         }
         else if ( value instanceof java.util.Date )
         {
             writer.write( "new Date('" );
-            synchronized( dateFormatter )
-            {
-                writer.write( dateFormatter.format( ( Date ) value ) );
-            }
+            writer.write( Iso8601.format(
+                ( ( Date ) value ).getTime(), TimeZone.getDefault(), true, true ) );
             writer.write( "')" );
         }
         else
@@ -153,22 +145,40 @@ public class XmlRpcJsonSerializer extends XmlRpcSerializer
             // Value was not of basic type, see if there's a custom serializer
             // registered for it.
 
-            for ( int i = 0; i < customSerializers.size(); ++i )
-            {
-                XmlRpcCustomSerializer serializer = ( XmlRpcCustomSerializer ) customSerializers.get( i );
+            XmlRpcCustomSerializer serializer = getCustomSerializer( value.getClass() );
 
-                if ( serializer.getSupportedClass().isInstance( value ) )
-                {
-                    serializer.serialize( value, writer, this );
-                    return;
-                }
+            if ( serializer == null )
+            {
+                throw new XmlRpcException(
+                    XmlRpcMessages.getString( "XmlRpcSerializer.UnsupportedType" ) + value.getClass() );
             }
 
-            throw new XmlRpcException(
-                XmlRpcMessages.getString( "XmlRpcSerializer.UnsupportedType" ) + value.getClass() );
+            serializer.serialize( value, writer, this );
         }
     }
-    
-    /** Shared date formatter shared. */
-    private static final SimpleDateFormat dateFormatter = new SimpleDateFormat( "yyyy-dd-mm HH:mm:ss" );
+
+
+    /** The core JSON custom serializers, shared by all instances using them */
+    private static final List/*<XmlRpcCustomSerializer>*/ JSON_SERIALIZERS;
+
+    /** The serializer cache of the core JSON custom serializers */
+    private static final Map/*<Class,XmlRpcCustomSerializer>*/ JSON_SERIALIZER_CACHE;
+
+    static
+    {
+        List serializers = new ArrayList();
+
+        serializers.add( new redstone.xmlrpc.serializers.json.MapSerializer() );
+        serializers.add( new redstone.xmlrpc.serializers.json.ListSerializer() );
+        serializers.add( new redstone.xmlrpc.serializers.json.CollectionSerializer() );
+        serializers.add( new redstone.xmlrpc.serializers.json.ObjectArraySerializer() );
+        serializers.add( new redstone.xmlrpc.serializers.json.IntArraySerializer() );
+        serializers.add( new redstone.xmlrpc.serializers.json.FloatArraySerializer() );
+        serializers.add( new redstone.xmlrpc.serializers.json.DoubleArraySerializer() );
+        serializers.add( new redstone.xmlrpc.serializers.json.BooleanArraySerializer() );
+        //serializers.add( new redstone.xmlrpc.serializers.json.IntrospectingSerializer() );
+
+        JSON_SERIALIZERS = Collections.unmodifiableList( serializers );
+        JSON_SERIALIZER_CACHE = createSerializerCache( JSON_SERIALIZERS, COMMON_CLASSES );
+    }
 }
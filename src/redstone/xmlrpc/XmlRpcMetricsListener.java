@@ -0,0 +1,32 @@
+/*
+    This library is free software; you can redistribute it and/or modify it under the terms
+    of the GNU Lesser General Public License as published by the Free Software Foundation;
+    either version 2.1 of the License, or (at your option) any later version.
+
+    This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+    without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+    See the GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License along with this
+    library; if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+    Boston, MA  02111-1307  USA
+*/
+package redstone.xmlrpc;
+
+/**
+ *  Listener interface to implement to receive the metrics of the invocations made
+ *  through an XmlRpcClient. It is installed using XmlRpcClient.setMetricsListener().
+ */
+
+public interface XmlRpcMetricsListener
+{
+    /**
+     *  Called by the XmlRpcClient when a response, or a fault response, has been
+     *  received and parsed. The listener is called by the thread performing the
+     *  invocation, so it should return quickly.
+     *
+     *  @param metrics The metrics of the invocation.
+     */
+
+    public void callCompleted( XmlRpcCallMetrics metrics );
+}
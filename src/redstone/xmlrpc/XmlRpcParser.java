@@ -16,14 +16,22 @@
 
 package redstone.xmlrpc;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Stack;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import org.xml.sax.Attributes;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 import org.xml.sax.XMLReader;
 import org.xml.sax.helpers.DefaultHandler;
 import org.xml.sax.helpers.XMLReaderFactory;
+import redstone.xmlrpc.util.Base64Decoder;
 
 /**
  *  An XmlRpcParser converts inbound XML-RPC messages to their Java counterparts through
@@ -32,14 +40,21 @@ import org.xml.sax.helpers.XMLReaderFactory;
  *  handleParsedValue() method that is called whenever an XML-RPC value has been parsed.
  *
  *  <p>If a class needs to be notified of additional parts of an XML-RPC message, the
- *  startElement() or endElement() methods are overridden and extended with checks for
- *  the appropriate element. This is the case with XmlRpcClient that wants to know if
- *  a fault element is present. Also, the XmlRpcServer wants to know the name of the
- *  method for which values are supplied.</p>
+ *  handleFaultResponse() or handleMethodName() methods are overridden. This is the case
+ *  with XmlRpcClient that wants to know if a fault element is present. Also, the
+ *  XmlRpcServer wants to know the name of the method for which values are supplied.</p>
+ *
+ *  <p>Base64 values are decoded as their character data arrives, into the stream
+ *  returned by createBinarySink(), so the encoded text is never held in memory.</p>
  *
  *  <p>Internally, the implementation uses pre-calculated hash values of the element names
  *  to allow for switch() constructs when comparing elements supplied by the SAX parser.</p>
  *
+ *  <p>Instead of SAX, the message may be decoded by an alternative XmlRpcParserEngine
+ *  installed using setParserEngine(). Engines report method names, faults, and values
+ *  through the same handleMethodName(), handleFaultResponse(), and handleParsedValue()
+ *  methods as the SAX implementation does.</p>
+ *
  *  @author Greger Olsson
  */
 
@@ -84,6 +99,12 @@ public abstract class XmlRpcParser extends DefaultHandler
     /** The hash value of name elements */
     public final static int NAME = 3373707;
 
+    /** The hash value of methodName elements */
+    public final static int METHOD_NAME = -723163380;
+
+    /** The hash value of fault elements */
+    public final static int FAULT = 97204770;
+
 
     /**
      *  Abstract method implemented by specialized message parsers like XmlRpcServer
@@ -98,6 +119,121 @@ public abstract class XmlRpcParser extends DefaultHandler
     protected abstract void handleParsedValue( Object obj );
 
 
+    /**
+     *  Called when the methodName element of an XML-RPC call has been parsed. This
+     *  implementation does nothing. Parsers of inbound calls override it to learn which
+     *  method is called.
+     *
+     *  @param methodName The trimmed content of the methodName element.
+     */
+
+    protected void handleMethodName( String methodName )
+    {
+    }
+
+
+    /**
+     *  Called when the fault element of an XML-RPC response is encountered, before the
+     *  fault struct is passed to handleParsedValue(). This implementation does nothing.
+     *  Parsers of responses override it to learn that the response is a fault.
+     */
+
+    protected void handleFaultResponse()
+    {
+    }
+
+
+    /**
+     *  Creates the stream that the contents of a base64 value are decoded into while the
+     *  value is parsed. This implementation collects the bytes in memory. Subclasses may
+     *  override this method, together with createBinaryValue(), to keep large binary
+     *  values elsewhere.
+     *
+     *  @return The stream receiving the decoded bytes of a base64 value.
+     */
+
+    protected OutputStream createBinarySink()
+    {
+        if ( spillThreshold >= 0 )
+        {
+            return new XmlRpcBinarySink( spillThreshold, spillDirectory );
+        }
+
+        return new ByteArrayOutputStream();
+    }
+
+
+    /**
+     *  Creates the object representing a base64 value once all of it has been decoded
+     *  into a stream created by createBinarySink(). This implementation returns a byte[],
+     *  or an XmlRpcBinary if the value exceeded the spill threshold. XmlRpcBinary values
+     *  are disposed of again if the rest of the message cannot be parsed.
+     *
+     *  @param sink The stream the value has been decoded into.
+     *  @return The value to report through handleParsedValue() or to add to the enclosing
+     *          array or struct.
+     */
+
+    protected Object createBinaryValue( OutputStream sink ) throws IOException
+    {
+        if ( sink instanceof XmlRpcBinarySink )
+        {
+            Object value = ( ( XmlRpcBinarySink ) sink ).toValue();
+
+            if ( value instanceof XmlRpcBinary )
+            {
+                spilledValues.add( value );
+            }
+
+            return value;
+        }
+
+        return ( ( ByteArrayOutputStream ) sink ).toByteArray();
+    }
+
+
+    /**
+     *  Sets the size above which base64 values are decoded into temporary files rather
+     *  than into memory. Such values are represented by XmlRpcBinary objects instead
+     *  of byte arrays. By default, all values are kept in memory.
+     *
+     *  @param threshold The largest number of bytes kept in memory per value, or -1
+     *                   to keep all values in memory.
+     *  @param directory The directory to create temporary files in, or null to use
+     *                   the default temporary directory.
+     */
+
+    public void setBinarySpillThreshold( int threshold, File directory )
+    {
+        this.spillThreshold = threshold;
+        this.spillDirectory = directory;
+    }
+
+
+    /**
+     *  Sets the engine used to decode messages in parse().
+     *
+     *  @param engine The engine to use, or null to use the built-in SAX implementation.
+     */
+
+    public void setParserEngine( XmlRpcParserEngine engine )
+    {
+        this.engine = engine;
+    }
+
+
+    /**
+     *  Returns the engine used to decode messages in parse().
+     *
+     *  @return The engine in use, or null if the built-in SAX implementation is used.
+     */
+
+    public XmlRpcParserEngine getParserEngine()
+    {
+        return engine;
+    }
+
+
     /**
      *  Parses the XML-RPC message contained in the supplied input stream. It does so
      *  by using the current SAX driver, and will call handleParsedValue() for every
@@ -105,6 +241,9 @@ public abstract class XmlRpcParser extends DefaultHandler
      *  supply additional processing, like identifying method names and such. This
      *  implementation is only concerned with the values of the message.
      *
+     *  <p>If the message cannot be parsed, base64 values of the message that have
+     *  already been spilled to temporary files are disposed of.</p>
+     *
      *  @param is The input stream containing the XML-RPC message
      *
      *  @throws XmlRpcException If anything went wrong during the whole parsing phase
@@ -112,31 +251,69 @@ public abstract class XmlRpcParser extends DefaultHandler
 
     public void parse( InputStream is ) throws XmlRpcException
     {
-        XMLReader reader = null;
+        boolean isParsed = false;
+        spilledValues.clear();
 
-        synchronized ( readers )
+        try
         {
-            if ( readers.empty() )
+            if ( engine != null )
             {
-                try
-                {
-                	if (System.getProperty("org.xml.sax.driver") == null)
-                		System.setProperty("org.xml.sax.driver","org.xmlpull.v1.sax2.Driver");
-                	
-                    reader = XMLReaderFactory.createXMLReader();
-                }
-                catch ( SAXException e )
+                engine.parse( is, this );
+            }
+            else
+            {
+                parseWithSax( is );
+            }
+
+            isParsed = true;
+        }
+        finally
+        {
+            if ( !isParsed )
+            {
+                for ( int i = 0; i < spilledValues.size(); ++i )
                 {
-                    throw new XmlRpcException(
-                        XmlRpcMessages.getString( "XmlRpcParser.ReaderInstantiationError" ), e );
+                    ( ( XmlRpcBinary ) spilledValues.get( i ) ).dispose();
                 }
             }
-            else
+
+            spilledValues.clear();
+        }
+    }
+
+
+    /**
+     *  Parses a message using the current SAX driver.
+     */
+
+    private void parseWithSax( InputStream is ) throws XmlRpcException
+    {
+        XMLReader reader = ( XMLReader ) readers.poll();
+
+        if ( reader == null )
+        {
+            try
             {
-                reader = ( XMLReader ) readers.pop();
+            	if (System.getProperty("org.xml.sax.driver") == null)
+            		System.setProperty("org.xml.sax.driver","org.xmlpull.v1.sax2.Driver");
+            	
+                reader = XMLReaderFactory.createXMLReader();
+            }
+            catch ( SAXException e )
+            {
+                throw new XmlRpcException(
+                    XmlRpcMessages.getString( "XmlRpcParser.ReaderInstantiationError" ), e );
             }
         }
 
+        // Clear any state left behind by a previous message that failed to parse.
+
+        values.clear();
+        currentValue = null;
+        shallProcessCharData = false;
+        charData.setLength( 0 );
+        binarySink = null;
+
         reader.setContentHandler( this );
 
         try
@@ -153,7 +330,13 @@ public abstract class XmlRpcParser extends DefaultHandler
         }
         finally
         {
-            readers.push( reader );
+            if ( binarySink instanceof XmlRpcBinarySink )
+            {
+                ( ( XmlRpcBinarySink ) binarySink ).discard();
+            }
+
+            binarySink = null;
+            readers.offer( reader );
         }
     }
 
@@ -181,6 +364,12 @@ public abstract class XmlRpcParser extends DefaultHandler
 
         switch( element )
         {
+            case FAULT:
+
+                handleFaultResponse();
+                break;
+
+
             case VALUE:
 
                 if ( currentValue != null )
@@ -193,6 +382,17 @@ public abstract class XmlRpcParser extends DefaultHandler
 
                 break;
 
+            case BASE64:
+
+                // Base64 data is decoded as it arrives rather than collected.
+
+                currentValue.setType( element );
+                binarySink = createBinarySink();
+                binaryDecoder.reset( binarySink );
+                charData.setLength( 0 );
+                shallProcessCharData = false;
+                break;
+
             case STRING:
             case I4:
             case I8:
@@ -200,7 +400,6 @@ public abstract class XmlRpcParser extends DefaultHandler
             case BOOLEAN:
             case DOUBLE:
             case DATE:
-            case BASE64:
             case ARRAY:
             case STRUCT:
 
@@ -237,7 +436,31 @@ public abstract class XmlRpcParser extends DefaultHandler
         String qualifiedName )
         throws SAXException
     {
-        if ( currentValue != null && shallProcessCharData )
+        int element = hashCode( name );
+
+        if ( element == METHOD_NAME )
+        {
+            handleMethodName( consumeCharData() );
+            return;
+        }
+
+        if ( binarySink != null && element == BASE64 )
+        {
+            try
+            {
+                binaryDecoder.close();
+                currentValue.value = createBinaryValue( binarySink );
+            }
+            catch ( IOException e )
+            {
+                throw new SAXException( e );
+            }
+            finally
+            {
+                binarySink = null;
+            }
+        }
+        else if ( currentValue != null && shallProcessCharData )
         {
             currentValue.processCharacterData( consumeCharData() );
         }
@@ -246,7 +469,7 @@ public abstract class XmlRpcParser extends DefaultHandler
             charData.setLength( 0 );
         }
 
-        switch( hashCode( name ) )
+        switch( element )
         {
             case VALUE:
 
@@ -293,9 +516,23 @@ public abstract class XmlRpcParser extends DefaultHandler
      *  @param length {@inheritDoc}
      */
 
-    public void characters( char[] data, int start, int length )
+    public void characters( char[] data, int start, int length ) throws SAXException
     {
-        charData.append( data, start, length );
+        if ( binarySink != null )
+        {
+            try
+            {
+                binaryDecoder.write( data, start, length );
+            }
+            catch ( IOException e )
+            {
+                throw new SAXException( e );
+            }
+        }
+        else
+        {
+            charData.append( data, start, length );
+        }
     }
 
 
@@ -328,7 +565,7 @@ public abstract class XmlRpcParser extends DefaultHandler
      *  @param string The string to calculate a hash for.
      */
 
-    private int hashCode( String string )
+    static int hashCode( String string )
     {
         int hash = 0;
         int length = string.length();
@@ -354,6 +591,24 @@ public abstract class XmlRpcParser extends DefaultHandler
     /** The accumulated character data from the SAX driver. Is emptied when consumed */
     private StringBuffer charData = new StringBuffer( 128 );
 
-    /** A cache of parsers so that we don't have to recreate them at every call. TODO Determine if necessary. */
-    private static Stack/*<XMLReader>*/ readers = new Stack();
+    /** The stream a base64 value is currently decoded into, or null */
+    private OutputStream binarySink;
+
+    /** The number of bytes of a base64 value kept in memory, or -1 for no limit */
+    private int spillThreshold = -1;
+
+    /** The directory receiving base64 values above the threshold, or null */
+    private File spillDirectory;
+
+    /** The values of the message being parsed that were spilled to temporary files */
+    private List/*<XmlRpcBinary>*/ spilledValues = new ArrayList();
+
+    /** Decoder of base64 values, reused for all values */
+    private Base64Decoder binaryDecoder = new Base64Decoder();
+
+    /** The engine decoding messages, or null if the built-in SAX implementation is used */
+    private XmlRpcParserEngine engine;
+
+    /** A cache of parsers so that we don't have to recreate them at every call. Lock-free. */
+    private static ConcurrentLinkedQueue/*<XMLReader>*/ readers = new ConcurrentLinkedQueue();
 }
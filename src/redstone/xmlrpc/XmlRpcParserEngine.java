@@ -0,0 +1,42 @@
+/*
+    This library is free software; you can redistribute it and/or modify it under the terms
+    of the GNU Lesser General Public License as published by the Free Software Foundation;
+    either version 2.1 of the License, or (at your option) any later version.
+
+    This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+    without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+    See the GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License along with this
+    library; if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+    Boston, MA  02111-1307  USA
+*/
+
+package redstone.xmlrpc;
+
+import java.io.InputStream;
+
+/**
+ *  An XmlRpcParserEngine decodes XML-RPC messages on behalf of an XmlRpcParser, as an
+ *  alternative to the SAX implementation built into the parser. The engine reports what
+ *  it finds in the message through the handleMethodName(), handleFaultResponse(), and
+ *  handleParsedValue() methods of the parser, in the order they appear in the message.
+ *
+ *  <p>Engines are installed using XmlRpcClient.setParserEngine() and
+ *  XmlRpcServer.setParserEngine(). An engine may be used by several threads at once.</p>
+ */
+
+public interface XmlRpcParserEngine
+{
+    /**
+     *  Parses the XML-RPC message in the supplied stream and reports its contents
+     *  to the given parser.
+     *
+     *  @param input The stream containing the XML-RPC message.
+     *  @param handler The parser to report the message contents to.
+     *
+     *  @throws XmlRpcException If the message could not be parsed.
+     */
+
+    void parse( InputStream input, XmlRpcParser handler ) throws XmlRpcException;
+}
@@ -0,0 +1,189 @@
+/*
+    This library is free software; you can redistribute it and/or modify it under the terms
+    of the GNU Lesser General Public License as published by the Free Software Foundation;
+    either version 2.1 of the License, or (at your option) any later version.
+
+    This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+    without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+    See the GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License along with this
+    library; if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+    Boston, MA  02111-1307  USA
+*/
+
+package redstone.xmlrpc;
+
+import java.io.InputStream;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+import org.xmlpull.v1.XmlPullParserFactory;
+
+/**
+ *  An XmlRpcParserEngine pulling events from an XmlPullParser instead of having them
+ *  pushed by a SAX driver. Values are built directly on an XmlRpcValueStack rather
+ *  than through intermediate XmlRpcValue objects on a synchronized java.util.Stack,
+ *  so the only objects allocated per message are the decoded values themselves.
+ *
+ *  <p>Faults, nested arrays, and nested structs are reported exactly like the SAX
+ *  implementation of XmlRpcParser reports them.</p>
+ *
+ *  <pre>
+ *  client.setParserEngine( new XmlRpcPullParserEngine() );
+ *  </pre>
+ */
+
+public class XmlRpcPullParserEngine implements XmlRpcParserEngine
+{
+    /**
+     *  Creates an engine using pull parsers from the default XmlPullParserFactory.
+     */
+
+    public XmlRpcPullParserEngine()
+    {
+    }
+
+
+    /**
+     *  Creates an engine using pull parsers from the given factory.
+     *
+     *  @param factory The factory creating the pull parsers.
+     */
+
+    public XmlRpcPullParserEngine( XmlPullParserFactory factory )
+    {
+        this.factory = factory;
+    }
+
+
+    /*  (Documentation inherited)
+     *  @see redstone.xmlrpc.XmlRpcParserEngine#parse(java.io.InputStream, redstone.xmlrpc.XmlRpcParser)
+     */
+
+    public void parse( InputStream input, XmlRpcParser handler ) throws XmlRpcException
+    {
+        State state = ( State ) states.poll();
+
+        if ( state == null )
+        {
+            state = new State( newPullParser() );
+        }
+
+        try
+        {
+            state.parser.setInput( input, null );
+            state.parse( handler );
+        }
+        catch ( Exception e )
+        {
+            throw new XmlRpcException(
+                XmlRpcMessages.getString( "XmlRpcParser.ParsingError" ), e );
+        }
+        finally
+        {
+            state.stack.clear();
+            states.offer( state );
+        }
+    }
+
+
+    /**
+     *  Creates a new pull parser, creating the default factory first if needed.
+     */
+
+    private XmlPullParser newPullParser() throws XmlRpcException
+    {
+        try
+        {
+            if ( factory == null )
+            {
+                factory = XmlPullParserFactory.newInstance();
+            }
+
+            return factory.newPullParser();
+        }
+        catch ( XmlPullParserException e )
+        {
+            throw new XmlRpcException(
+                XmlRpcMessages.getString( "XmlRpcParser.ReaderInstantiationError" ), e );
+        }
+    }
+
+
+    /**
+     *  A pull parser together with the value stack used while parsing a message.
+     *  States are only used by one thread at a time and are recycled between messages.
+     */
+
+    private static class State
+    {
+        State( XmlPullParser parser )
+        {
+            this.parser = parser;
+        }
+
+
+        /**
+         *  Pulls all events of the message from the parser and feeds them to the
+         *  value stack, which reports method names, faults, and top-level values
+         *  to the handler.
+         */
+
+        void parse( XmlRpcParser handler ) throws Exception
+        {
+            int event;
+
+            while ( ( event = parser.next() ) != XmlPullParser.END_DOCUMENT )
+            {
+                switch ( event )
+                {
+                    case XmlPullParser.START_TAG:
+
+                        stack.startElement( handler, XmlRpcParser.hashCode( parser.getName() ) );
+                        break;
+
+                    case XmlPullParser.END_TAG:
+
+                        stack.endElement( handler, XmlRpcParser.hashCode( parser.getName() ) );
+                        break;
+
+                    case XmlPullParser.TEXT:
+
+                        if ( stack.isCollecting() )
+                        {
+                            char[] data = parser.getTextCharacters( holder );
+                            stack.append( data, holder[ 0 ], holder[ 1 ] );
+                        }
+
+                        break;
+                }
+            }
+
+            // Some parsers report the end of the document even though elements
+            // are still open.
+
+            if ( parser.getDepth() != 0 )
+            {
+                throw new XmlPullParserException( "Unexpected end of document", parser, null );
+            }
+        }
+
+
+        /** The pull parser of this state. */
+        final XmlPullParser parser;
+
+        /** The stack building values from the parser events. */
+        final XmlRpcValueStack stack = new XmlRpcValueStack();
+
+        /** Receives the start and length of character data from the parser. */
+        private int[] holder = new int[ 2 ];
+    }
+
+
+    /** The factory creating pull parsers, created lazily if not supplied. */
+    private volatile XmlPullParserFactory factory;
+
+    /** Idle parser states ready to be reused. */
+    private ConcurrentLinkedQueue/*<State>*/ states = new ConcurrentLinkedQueue();
+}
@@ -0,0 +1,41 @@
+/*
+    This library is free software; you can redistribute it and/or modify it under the terms
+    of the GNU Lesser General Public License as published by the Free Software Foundation;
+    either version 2.1 of the License, or (at your option) any later version.
+
+    This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+    without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+    See the GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License along with this
+    library; if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+    Boston, MA  02111-1307  USA
+*/
+package redstone.xmlrpc;
+
+import java.io.IOException;
+
+/**
+ *  Exception thrown by XmlRpcServer when a request, after decompression, is larger
+ *  than the maximum request size. Hosts should answer it with a
+ *  "413 Request Entity Too Large" response rather than "415 Unsupported Media Type",
+ *  which would have the client send the request again uncompressed.
+ */
+
+public class XmlRpcRequestTooLargeException extends IOException
+{
+    /**
+     *  Creates a new exception for requests exceeding the given size.
+     *
+     *  @param maxRequestSize The maximum request size in bytes.
+     */
+
+    public XmlRpcRequestTooLargeException( long maxRequestSize )
+    {
+        super( XmlRpcMessages.getString( "XmlRpcServer.RequestTooLarge" ) + maxRequestSize );
+    }
+
+
+    /** Serial version UID. */
+    private static final long serialVersionUID = 5326780138416407127L;
+}
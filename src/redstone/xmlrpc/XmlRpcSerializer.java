@@ -17,13 +17,26 @@
 package redstone.xmlrpc;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.Writer;
-import java.text.SimpleDateFormat;
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
 import redstone.xmlrpc.util.Base64;
+import redstone.xmlrpc.util.Base64OutputStream;
+import redstone.xmlrpc.util.Iso8601;
 
 /**
  *  The XmlRpcSerializer class converts Java objects to their XML-RPC counterparts
@@ -32,8 +45,9 @@ import redstone.xmlrpc.util.Base64;
  *  types of objects, custom serializers need to be registered. The Redstone XML-RPC
  *  library comes with a set of useful serializers for collections and other types
  *  of objects. @see the redstone.xmlrpc.serializers .
- *  
- *  TODO Change synchronization of global dateFormatter to prevent bottleneck.
+ *
+ *  The contents of InputStreams are serialized as base64 values. The streams are read
+ *  to their end but not closed.
  *
  *  @author Greger Olsson
  */
@@ -52,7 +66,10 @@ public class XmlRpcSerializer
 
     /**
      *  Constructor that may add all the custom serializers in the library
-     *  (which is almost always what you want).
+     *  (which is almost always what you want). The core custom serializers are not
+     *  created per instance. All serializers constructed with them share one list of
+     *  serializers and one serializer cache, built once per process, until a serializer
+     *  is added or removed, or the customSerializers list of a subclass is modified.
      *  
      *  @param addCustomSerializers Indicates if the core custom serializers should be added.
      */
@@ -61,20 +78,32 @@ public class XmlRpcSerializer
     {
         if ( addCustomSerializers )
         {
-            customSerializers.add( new redstone.xmlrpc.serializers.LongPrimitiveSerializer() );
-            customSerializers.add( new redstone.xmlrpc.serializers.LongWrapperSerializer() );
-            customSerializers.add( new redstone.xmlrpc.serializers.MapSerializer() );
-            customSerializers.add( new redstone.xmlrpc.serializers.ListSerializer() );
-            customSerializers.add( new redstone.xmlrpc.serializers.CollectionSerializer() );
-            customSerializers.add( new redstone.xmlrpc.serializers.ObjectArraySerializer() );
-            customSerializers.add( new redstone.xmlrpc.serializers.IntArraySerializer() );
-            customSerializers.add( new redstone.xmlrpc.serializers.FloatArraySerializer() );
-            customSerializers.add( new redstone.xmlrpc.serializers.LongArraySerializer() );
-            customSerializers.add( new redstone.xmlrpc.serializers.DoubleArraySerializer() );
-            customSerializers.add( new redstone.xmlrpc.serializers.BooleanArraySerializer() );
-            //customSerializers.add( new redstone.xmlrpc.serializers.IntrospectingSerializer() );
+            customSerializers = new SharedSerializerList( DEFAULT_SERIALIZERS );
+            serializerCache = DEFAULT_SERIALIZER_CACHE;
+        }
+        else
+        {
+            customSerializers = new ArrayList();
+            serializerCache = new ConcurrentHashMap();
         }
     }
+
+
+    /**
+     *  Constructor for subclasses having a shared set of custom serializers of their
+     *  own. The list and the cache are shared with all other instances constructed with
+     *  them, and are replaced by private copies the first time a serializer is added
+     *  to or removed from this instance.
+     *
+     *  @param sharedSerializers The list of custom serializers, which is never modified.
+     *  @param sharedCache The cache for the list, created by createSerializerCache().
+     */
+
+    protected XmlRpcSerializer( List sharedSerializers, Map sharedCache )
+    {
+        customSerializers = new SharedSerializerList( sharedSerializers );
+        serializerCache = sharedCache;
+    }
     
     
     /**
@@ -150,105 +179,296 @@ public class XmlRpcSerializer
     {
         writer.write( "<value>" );
 
-        if ( value instanceof String || value instanceof Character )
+        switch ( getBuiltInType( value ) )
         {
-            writer.write( "<string>" );
+            case XmlRpcParser.STRING:
 
-            String string = value.toString();
-            int length = string.length();
+                writer.write( "<string>" );
+                writeEscaped( value.toString(), writer );
+                writer.write( "</string>" );
+                break;
 
-            for ( int i = 0; i < length; ++i )
-            {
-                char c = string.charAt( i );
+            case XmlRpcParser.I4:
+
+                writer.write( "<i4>" );
+                writer.write( value.toString() );
+                writer.write( "</i4>" );
+                break;
+
+            case XmlRpcParser.DOUBLE:
+
+                writer.write( "<double>" );
+                writer.write( value.toString() );
+                writer.write( "</double>" );
+                break;
+
+            case XmlRpcParser.BOOLEAN:
+
+                writer.write( "<boolean>" );
+                writer.write( ( ( Boolean ) value ).booleanValue() == true ? "1" : "0" );
+                writer.write( "</boolean>" );
+                break;
+
+            case XmlRpcParser.DATE:
+
+                writer.write( "<dateTime.iso8601>" );
+
+                writer.write( Iso8601.format( value instanceof Calendar ?
+                    ( ( Calendar ) value ).getTime() : ( Date ) value ) );
+
+                writer.write( "</dateTime.iso8601>" );
+                break;
+
+            case XmlRpcParser.BASE64:
 
-                switch( c )
+                writer.write( "<base64>" );
+
+                if ( value instanceof InputStream )
+                {
+                    Base64OutputStream.encode( ( InputStream ) value, writer );
+                }
+                else if ( value instanceof XmlRpcBinary )
                 {
-                    case '<' :
-                        writer.write( "&lt;" );
-                        break;
+                    InputStream input = ( ( XmlRpcBinary ) value ).getInputStream();
+
+                    try
+                    {
+                        Base64OutputStream.encode( input, writer );
+                    }
+                    finally
+                    {
+                        input.close();
+                    }
+                }
+                else if ( ( ( byte[] ) value ).length <= MAX_INLINE_BINARY_SIZE )
+                {
+                    writer.write( Base64.encode( ( byte[] ) value ) );
+                }
+                else
+                {
+                    // Encode larger arrays in blocks rather than into one
+                    // character array 4/3 the size of the data.
+
+                    OutputStream output = new Base64OutputStream( writer );
+                    output.write( ( byte[] ) value );
+                    output.close();
+                }
+
+                writer.write( "</base64>" );
+                break;
+
+            default:
 
-                    case '&' :
-                        writer.write( "&amp;" );
-                        break;
+                // Value was not of basic type, see if there's a custom serializer
+                // registered for it.
 
-                    default :
-                        writer.write (c);
+                XmlRpcCustomSerializer serializer = getCustomSerializer( value.getClass() );
+
+                if ( serializer == null )
+                {
+                    throw new XmlRpcException(
+                        XmlRpcMessages.getString( "XmlRpcSerializer.UnsupportedType" ) + value.getClass() );
                 }
-            }
 
-            writer.write( "</string>" );
+                serializer.serialize( value, writer, this );
         }
-        else if ( value instanceof Integer ||
-                  value instanceof Short   ||
-                  value instanceof Byte )
+
+        writer.write( "</value>" );
+    }
+
+
+    /**
+     *  Writes a string as XML character data. The characters '&lt;', '&amp;', and '&gt;'
+     *  are replaced by entity references, carriage returns by character references
+     *  so that they survive the line end normalization of the receiving parser, and
+     *  control characters that are not allowed in XML are dropped. Runs of characters
+     *  that need no escaping are written with a single call to the writer.
+     *
+     *  @param string The string to write.
+     *  @param writer The writer to write the string to.
+     *  @throws IOException If the writer could not be written.
+     */
+
+    public static void writeEscaped( String string, Writer writer ) throws IOException
+    {
+        int length = string.length();
+        int start = 0;
+
+        for ( int i = 0; i < length; ++i )
         {
-            writer.write( "<i4>" );
-            writer.write( value.toString() );
-            writer.write( "</i4>" );
+            char c = string.charAt( i );
+
+            // Everything above '>' is safe, except the two non-characters
+            // at the very top of the basic multilingual plane.
+
+            if ( c > '>' && c < '\uFFFE' )
+            {
+                continue;
+            }
+
+            String replacement;
+
+            switch ( c )
+            {
+                case '<':  replacement = "&lt;";  break;
+                case '&':  replacement = "&amp;"; break;
+                case '>':  replacement = "&gt;";  break;
+                case '\r': replacement = "&#13;"; break;
+
+                case '\t':
+                case '\n':
+
+                    continue;
+
+                default:
+
+                    if ( c >= ' ' && c < '\uFFFE' )
+                    {
+                        continue;
+                    }
+
+                    replacement = "";
+            }
+
+            if ( i > start )
+            {
+                writer.write( string, start, i - start );
+            }
+
+            writer.write( replacement );
+            start = i + 1;
         }
-        else if ( value instanceof Double ||
-                  value instanceof Float )
+
+        if ( start == 0 )
         {
-            writer.write( "<double>" );
-            writer.write( value.toString() );
-            writer.write( "</double>" );
+            writer.write( string );
         }
-        else if ( value instanceof Boolean )
+        else if ( start < length )
         {
-            writer.write( "<boolean>" );
-            writer.write( ( ( Boolean ) value ).booleanValue() == true ? "1" : "0" );
-            writer.write( "</boolean>" );
+            writer.write( string, start, length - start );
         }
-        else if ( value instanceof java.util.Calendar )
+    }
+
+
+    /**
+     *  Returns the custom serializer to use for objects of the given class, which is
+     *  the first registered serializer supporting the class. The serializer is cached
+     *  per class, so the list of serializers is only scanned the first time a class is
+     *  serialized, and again after serializers have been added or removed. Classes that
+     *  no serializer supports are not cached, since serializing them fails anyway.
+     *
+     *  @param valueClass The class of the object to serialize.
+     *  @return The serializer to use, or null if no registered serializer supports the class.
+     */
+
+    protected XmlRpcCustomSerializer getCustomSerializer( Class valueClass )
+    {
+        // The cache is read before the list. Since the list is replaced before the
+        // cache when serializers change, the list is never older than the cache.
+
+        Map cache = serializerCache;
+        XmlRpcCustomSerializer serializer = ( XmlRpcCustomSerializer ) cache.get( valueClass );
+
+        if ( serializer == null )
         {
-            writer.write( "<dateTime.iso8601>" );
+            serializer = findCustomSerializer( customSerializers, valueClass );
 
-            synchronized( dateFormatter )
+            if ( serializer != null )
             {
-                writer.write( dateFormatter.format( ( ( Calendar ) value ).getTime() ) );
+                cache.put( valueClass, serializer );
             }
+        }
+
+        return serializer;
+    }
 
-            writer.write( "</dateTime.iso8601>" );
+
+    /**
+     *  Creates a serializer cache for a list of custom serializers, with the serializers
+     *  to use for the supported classes of the serializers, and for the given classes,
+     *  looked up in advance.
+     *
+     *  @param serializers The list of custom serializers.
+     *  @param classes Additional classes to look up, typically common implementations
+     *                 of the supported interfaces.
+     *  @return The cache to pass to the XmlRpcSerializer( List, Map ) constructor.
+     */
+
+    protected static Map createSerializerCache( List serializers, Class[] classes )
+    {
+        Map cache = new ConcurrentHashMap();
+
+        for ( int i = 0; i < serializers.size(); ++i )
+        {
+            Class supportedClass = ( ( XmlRpcCustomSerializer ) serializers.get( i ) ).getSupportedClass();
+            cache.put( supportedClass, findCustomSerializer( serializers, supportedClass ) );
         }
-        else if ( value instanceof java.util.Date )
+
+        for ( int i = 0; i < classes.length; ++i )
         {
-            writer.write( "<dateTime.iso8601>" );
+            XmlRpcCustomSerializer serializer = findCustomSerializer( serializers, classes[ i ] );
 
-            synchronized( dateFormatter )
+            if ( serializer != null )
             {
-                writer.write( dateFormatter.format( ( Date ) value ) );
+                cache.put( classes[ i ], serializer );
             }
-
-            writer.write( "</dateTime.iso8601>" );
         }
-        else if ( value instanceof byte[] )
-        {
-            writer.write( "<base64>" );
-            writer.write( Base64.encode( ( byte[] ) value ) );
-            writer.write( "</base64>" );
-        }
-        else
+
+        return cache;
+    }
+
+
+    /**
+     *  Returns the first serializer in the list supporting the given class,
+     *  or null if there is none.
+     */
+
+    private static XmlRpcCustomSerializer findCustomSerializer( List serializers, Class valueClass )
+    {
+        for ( int i = 0; i < serializers.size(); ++i )
         {
-            // Value was not of basic type, see if there's a custom serializer
-            // registered for it.
+            XmlRpcCustomSerializer customSerializer = ( XmlRpcCustomSerializer ) serializers.get( i );
 
-            for ( int i = 0; i < customSerializers.size(); ++i )
+            if ( customSerializer.getSupportedClass().isAssignableFrom( valueClass ) )
             {
-                XmlRpcCustomSerializer serializer = ( XmlRpcCustomSerializer ) customSerializers.get( i );
-                
-                if ( serializer.getSupportedClass().isInstance( value ) )
-                {
-                    serializer.serialize( value, writer, this );
-                    writer.write( "</value>" );
-                    return;
-                }
+                return customSerializer;
             }
+        }
+
+        return null;
+    }
 
-            throw new XmlRpcException(
-                XmlRpcMessages.getString( "XmlRpcSerializer.UnsupportedType" ) + value.getClass() );
+
+    /**
+     *  Returns the XML-RPC type of the objects that are serialized without custom
+     *  serializers. The common classes are looked up directly, and only subclasses of
+     *  Date and Calendar other than the common ones, and InputStreams, go through
+     *  instanceof checks.
+     *
+     *  @param value The object to serialize.
+     *  @return The type of the value (see XmlRpcParser), or 0 if a custom serializer is needed.
+     */
+
+    private static int getBuiltInType( Object value )
+    {
+        Integer type = ( Integer ) builtInTypes.get( value.getClass() );
+
+        if ( type != null )
+        {
+            return type.intValue();
         }
 
-        writer.write( "</value>" );
+        if ( value instanceof Date || value instanceof Calendar )
+        {
+            return XmlRpcParser.DATE;
+        }
+
+        if ( value instanceof InputStream )
+        {
+            return XmlRpcParser.BASE64;
+        }
+
+        return 0;
     }
 
 
@@ -260,33 +480,36 @@ public class XmlRpcSerializer
      *  object of type Vector, the java.util.Vector serializer will override a
      *  more general java.util.Collection serializer.
      *
+     *  <p>The list of serializers is copied on write, so invocations serializing
+     *  values concurrently keep using the list as it was, and other instances
+     *  sharing the default list are not affected.</p>
+     *
      *  @value customSerializer The serializer to extend the original serializer with.
      */
 
-    public void addCustomSerializer(
+    public synchronized void addCustomSerializer(
         XmlRpcCustomSerializer customSerializer )
     {
         Class supportedClass = customSerializer.getSupportedClass();
+        List serializers = new ArrayList( customSerializers );
 
-        for ( int i = 0; i < customSerializers.size(); ++i )
+        for ( int i = 0; i <= serializers.size(); ++i )
         {
-            XmlRpcCustomSerializer customSerializerEntry = ( XmlRpcCustomSerializer ) customSerializers.get( i );
-
             // Does the supplied serializer support a subclass or sub-interface of
             // the serializer at the current element. If so, the supplied serializer
-            // should end up in front of the current entry.
+            // should end up in front of the current entry. If not, the serializer does
+            // not support classes that inherit from previously registered serializer
+            // classes, and it may be put at the end of the list.
 
-            if ( customSerializerEntry.getSupportedClass().isAssignableFrom( supportedClass ) )
+            if ( i == serializers.size() ||
+                 ( ( XmlRpcCustomSerializer ) serializers.get( i ) ).getSupportedClass().isAssignableFrom( supportedClass ) )
             {
-                customSerializers.add( i, customSerializer );
-                return;
+                serializers.add( i, customSerializer );
+                break;
             }
         }
 
-        // The serializer does not support classes that inherit from previously
-        // registered serializer classes. It may be put at the end of the list.
-
-        customSerializers.add( customSerializer );
+        setCustomSerializers( serializers );
     }
 
 
@@ -296,16 +519,161 @@ public class XmlRpcSerializer
      *  @value customSerializer The serializer to unregister.
      */
 
-    public void removeCustomSerializer(
+    public synchronized void removeCustomSerializer(
         XmlRpcCustomSerializer customSerializer )
     {
-        customSerializers.remove( customSerializer );
+        List serializers = new ArrayList( customSerializers );
+        serializers.remove( customSerializer );
+
+        setCustomSerializers( serializers );
+    }
+
+
+    /**
+     *  Installs a new list of custom serializers together with an empty cache.
+     *  The list is replaced before the cache, see getCustomSerializer().
+     */
+
+    private void setCustomSerializers( List serializers )
+    {
+        customSerializers = serializers;
+        serializerCache = new ConcurrentHashMap();
     }
 
 
-    /** The list of currently registered custom serializers */
-    protected List/*<XmlRpcCustomSerializer>*/ customSerializers = new ArrayList();
-    
-    /** Date formatter shared by all XmlRpcValues */
-    private static final SimpleDateFormat dateFormatter = new SimpleDateFormat( "yyyyMMdd'T'HH:mm:ss" );
+    /**
+     *  The customSerializers list of an instance sharing its serializers with other
+     *  instances. The shared list is read through until the list is first modified,
+     *  which copies it into a list of this instance and replaces the cache, so that
+     *  subclasses may modify customSerializers directly, as in their constructors.
+     */
+
+    private class SharedSerializerList extends AbstractList
+    {
+        SharedSerializerList( List shared )
+        {
+            this.list = shared;
+        }
+
+        public Object get( int index )
+        {
+            return list.get( index );
+        }
+
+        public int size()
+        {
+            return list.size();
+        }
+
+        public Object set( int index, Object element )
+        {
+            Object previous = copy().set( index, element );
+            serializerCache = new ConcurrentHashMap();
+            return previous;
+        }
+
+        public void add( int index, Object element )
+        {
+            copy().add( index, element );
+            serializerCache = new ConcurrentHashMap();
+        }
+
+        public Object remove( int index )
+        {
+            Object removed = copy().remove( index );
+            serializerCache = new ConcurrentHashMap();
+            return removed;
+        }
+
+        private List copy()
+        {
+            if ( !copied )
+            {
+                list = new ArrayList( list );
+                copied = true;
+            }
+
+            ++modCount;
+            return list;
+        }
+
+        /** The shared list, or the copy of this instance once modified. */
+        private List list;
+
+        /** Indicates if the list has been copied. */
+        private boolean copied;
+    }
+
+
+    /**
+     *  The list of currently registered custom serializers. Subclasses may modify the
+     *  list directly in their constructors; a list shared with other instances is then
+     *  copied first. Once the serializer is in use, use addCustomSerializer() and
+     *  removeCustomSerializer() instead, which replace the list and keep the serializer
+     *  cache consistent with it for invocations serializing values concurrently.
+     */
+    protected volatile List/*<XmlRpcCustomSerializer>*/ customSerializers;
+
+    /** The custom serializer to use per class of serialized objects */
+    private volatile Map/*<Class,XmlRpcCustomSerializer>*/ serializerCache;
+
+    /** Largest byte array encoded into a single character array rather than in blocks */
+    private static final int MAX_INLINE_BINARY_SIZE = 3 * 1024;
+
+    /** XML-RPC types of the classes serialized without custom serializers */
+    private static final Map/*<Class,Integer>*/ builtInTypes = new HashMap();
+
+    /**
+     *  Common implementations of the interfaces supported by the core custom serializers,
+     *  for which the serializer to use is looked up in advance.
+     */
+    protected static final Class[] COMMON_CLASSES = new Class[]
+    {
+        XmlRpcStruct.class, XmlRpcArray.class, HashMap.class, ArrayList.class,
+        Hashtable.class, Vector.class, LinkedList.class, HashSet.class, Object[].class
+    };
+
+    /** The core custom serializers, shared by all instances using them */
+    private static final List/*<XmlRpcCustomSerializer>*/ DEFAULT_SERIALIZERS;
+
+    /** The serializer cache of the core custom serializers */
+    private static final Map/*<Class,XmlRpcCustomSerializer>*/ DEFAULT_SERIALIZER_CACHE;
+
+    static
+    {
+        Integer i4 = new Integer( XmlRpcParser.I4 );
+        Integer dbl = new Integer( XmlRpcParser.DOUBLE );
+
+        builtInTypes.put( String.class, new Integer( XmlRpcParser.STRING ) );
+        builtInTypes.put( Character.class, new Integer( XmlRpcParser.STRING ) );
+        builtInTypes.put( Integer.class, i4 );
+        builtInTypes.put( Short.class, i4 );
+        builtInTypes.put( Byte.class, i4 );
+        builtInTypes.put( Double.class, dbl );
+        builtInTypes.put( Float.class, dbl );
+        builtInTypes.put( Boolean.class, new Integer( XmlRpcParser.BOOLEAN ) );
+        builtInTypes.put( Date.class, new Integer( XmlRpcParser.DATE ) );
+        builtInTypes.put( GregorianCalendar.class, new Integer( XmlRpcParser.DATE ) );
+        builtInTypes.put( byte[].class, new Integer( XmlRpcParser.BASE64 ) );
+        builtInTypes.put( XmlRpcBinary.class, new Integer( XmlRpcParser.BASE64 ) );
+
+        List serializers = new ArrayList();
+
+        serializers.add( new redstone.xmlrpc.serializers.LongPrimitiveSerializer() );
+        serializers.add( new redstone.xmlrpc.serializers.LongWrapperSerializer() );
+        serializers.add( new redstone.xmlrpc.serializers.MapSerializer() );
+        serializers.add( new redstone.xmlrpc.serializers.ListSerializer() );
+        serializers.add( new redstone.xmlrpc.serializers.CollectionSerializer() );
+        serializers.add( new redstone.xmlrpc.serializers.ObjectArraySerializer() );
+        serializers.add( new redstone.xmlrpc.serializers.IntArraySerializer() );
+        serializers.add( new redstone.xmlrpc.serializers.FloatArraySerializer() );
+        serializers.add( new redstone.xmlrpc.serializers.LongArraySerializer() );
+        serializers.add( new redstone.xmlrpc.serializers.DoubleArraySerializer() );
+        serializers.add( new redstone.xmlrpc.serializers.BooleanArraySerializer() );
+        //serializers.add( new redstone.xmlrpc.serializers.IntrospectingSerializer() );
+
+        DEFAULT_SERIALIZERS = Collections.unmodifiableList( serializers );
+        DEFAULT_SERIALIZER_CACHE = createSerializerCache( DEFAULT_SERIALIZERS, COMMON_CLASSES );
+    }
+
 }
@@ -16,13 +16,19 @@
 
 package redstone.xmlrpc;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.Writer;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import redstone.xmlrpc.handlers.ReflectiveInvocationHandler;
+import redstone.xmlrpc.util.Compression;
+import redstone.xmlrpc.util.MeteredInputStream;
+import redstone.xmlrpc.util.Utf8Writer;
 
 /**
  *  An XmlRpcServer is responsible for hosting a set of invocation handlers and a set of
@@ -35,6 +41,9 @@ import redstone.xmlrpc.handlers.ReflectiveInvocationHandler;
  *  The server acts as a minimal HTTP server accepting text/xml posts containing XML-RPC
  *  messages, only.</p>
  *
+ *  <p>Batches of calls sent using system.multicall are performed by the server itself,
+ *  unless an invocation handler is installed under the name "system".</p>
+ *
  *  <p>For further information on setting up an XML-RPC server, see the documentation.</p>
  *
  *  @author Greger Olsson
@@ -80,9 +89,126 @@ public class XmlRpcServer
     public void execute( InputStream xmlInput, Writer output ) throws XmlRpcException
     {
         XmlRpcDispatcher dispatcher = new XmlRpcDispatcher( this, "(unknown)" );
+        dispatcher.setParserEngine( parserEngine );
         dispatcher.dispatch( xmlInput, output );
     }
 
+
+    /**
+     *  Dispatches the call contained in the supplied input stream, decompressing it as it
+     *  is parsed if it is compressed, and compresses the response if the client accepts
+     *  compressed responses and the response is at least as large as the compression
+     *  threshold. The host is responsible for the HTTP headers: the Content-Encoding of
+     *  the response is that of the returned metrics, and responses should announce
+     *  Compression.ACCEPT_ENCODING in an Accept-Encoding header, so that clients
+     *  compress their requests. Requests in a content coding the server does not
+     *  support cause an IOException, which should be answered by a
+     *  "415 Unsupported Media Type" response. Requests larger than the maximum request
+     *  size after decompression cause an XmlRpcRequestTooLargeException, which should
+     *  be answered by a "413 Request Entity Too Large" response.
+     *
+     *  @param input The stream containing the request body.
+     *
+     *  @param contentEncoding The Content-Encoding header of the request, or null.
+     *
+     *  @param acceptEncoding The Accept-Encoding header of the request, or null.
+     *
+     *  @param output The stream to put the response body in.
+     *
+     *  @return The metrics of the call.
+     *
+     *  @throws IOException if the request is in an unsupported content coding, if
+     *          it cannot be decompressed, or if it is too large.
+     *
+     *  @throws XmlRpcException if the request contains unparseable XML or if some error
+     *          occurs in the SAX driver.
+     */
+
+    public XmlRpcCallMetrics execute(
+        InputStream input,
+        String contentEncoding,
+        String acceptEncoding,
+        ByteArrayOutputStream output )
+        throws IOException, XmlRpcException
+    {
+        XmlRpcCallMetrics metrics = new XmlRpcCallMetrics();
+        long startTime = System.nanoTime();
+
+        // Decompressors read the header of the stream as they are created, which
+        // counts towards the decompression.
+
+        MeteredInputStream wireInput = new MeteredInputStream( input );
+        MeteredInputStream xmlInput = wireInput;
+        InputStream decoded = Compression.decode( wireInput, contentEncoding );
+        long decodeTime = System.nanoTime() - startTime;
+
+        if ( decoded != wireInput )
+        {
+            xmlInput = new MeteredInputStream( decoded );
+            metrics.requestEncoding = contentEncoding;
+        }
+
+        // The size is limited after decompression, where a small compressed request
+        // can grow by a factor of a thousand.
+
+        xmlInput.setLimit( maxRequestSize );
+
+        Utf8Writer response = new Utf8Writer( 2048 );
+        XmlRpcDispatcher dispatcher = new XmlRpcDispatcher( this, "(unknown)" );
+        dispatcher.setParserEngine( parserEngine );
+
+        try
+        {
+            dispatcher.dispatch( xmlInput, response );
+        }
+        catch ( XmlRpcException e )
+        {
+            if ( xmlInput.isLimitExceeded() )
+            {
+                throw new XmlRpcRequestTooLargeException( maxRequestSize );
+            }
+
+            throw e;
+        }
+        finally
+        {
+            xmlInput.close();
+        }
+
+        metrics.methodName = dispatcher.getCalledMethodName();
+        metrics.requestWireSize = wireInput.getCount();
+        metrics.requestSize = xmlInput.getCount();
+        metrics.decompressionTime = xmlInput != wireInput ?
+            decodeTime + xmlInput.getTime() - wireInput.getTime() : 0;
+        metrics.responseSize = response.size();
+
+        String encoding = response.size() >= compressionThreshold && compressionThreshold >= 0 ?
+            Compression.negotiate( acceptEncoding ) : null;
+
+        int start = output.size();
+
+        if ( encoding != null )
+        {
+            long compressionStart = System.nanoTime();
+
+            OutputStream compressed = Compression.encode( output, encoding );
+            response.writeTo( compressed );
+            compressed.close();
+
+            metrics.compressionTime = System.nanoTime() - compressionStart;
+            metrics.responseEncoding = encoding;
+        }
+        else
+        {
+            response.writeTo( output );
+        }
+
+        metrics.responseWireSize = output.size() - start;
+        metrics.totalTime = System.nanoTime() - startTime;
+
+        return metrics;
+    }
+
     
     /**
      *  Binds an invocation handler object to the given name.
@@ -210,6 +336,58 @@ public class XmlRpcServer
     }
     
 
+    /**
+     *  Returns the engine used to decode inbound calls.
+     *
+     *  @return The engine in use, or null if the SAX implementation of XmlRpcParser is used.
+     */
+
+    public XmlRpcParserEngine getParserEngine()
+    {
+        return parserEngine;
+    }
+
+
+    /**
+     *  Sets the engine used to decode inbound calls.
+     *
+     *  @param parserEngine The engine to use, or null to use the SAX implementation
+     *                      of XmlRpcParser.
+     */
+
+    public void setParserEngine( XmlRpcParserEngine parserEngine )
+    {
+        this.parserEngine = parserEngine;
+    }
+
+
+    /**
+     *  Sets the size of the smallest response to compress, when the client accepts
+     *  compressed responses. Smaller responses gain too little from compression
+     *  to make up for the processing.
+     *
+     *  @param compressionThreshold The size in bytes, or -1 to never compress responses.
+     */
+
+    public void setCompressionThreshold( int compressionThreshold )
+    {
+        this.compressionThreshold = compressionThreshold;
+    }
+
+
+    /**
+     *  Sets the maximum size of requests passed to execute() with their content codings,
+     *  after decompression. The default is 16 MB.
+     *
+     *  @param maxRequestSize The size in bytes, or -1 for no limit.
+     */
+
+    public void setMaxRequestSize( long maxRequestSize )
+    {
+        this.maxRequestSize = maxRequestSize;
+    }
+
+
     /** Invocation handlers registered in the server */
     private Map/*<String,XmlRpcInvocationHandler>*/ handlers = new HashMap();
 
@@ -218,4 +396,13 @@ public class XmlRpcServer
     
     /** The serializer used by the server */
     private XmlRpcSerializer serializer;
+
+    /** The engine decoding inbound calls, or null to use SAX */
+    private XmlRpcParserEngine parserEngine;
+
+    /** The size of the smallest response to compress, or -1 to never compress */
+    private int compressionThreshold = 1024;
+
+    /** The maximum size of decompressed requests, or -1 for no limit */
+    private long maxRequestSize = 16 * 1024 * 1024;
 }
\ No newline at end of file
@@ -202,31 +202,49 @@ public class XmlRpcStruct extends HashMap/*<String,Object>*/
 
 
     /**
-     *  Returns the byte[] with the given key from the Struct.
+     *  Returns the byte[] with the given key from the Struct. If the value was spilled
+     *  to a temporary file by the parser, it is read into memory.
      *
      *  @param key The key of the value to extract.
      *
-     *  @throws ClassCastException if the value with the given key is not a byte[].
+     *  @throws ClassCastException if the value with the given key is not a byte[]
+     *                             or an XmlRpcBinary.
      */
 
     public byte[] getBinary( Object key )
     {
-        return ( byte[] ) get( key );
+        Object value = get( key );
+
+        if ( value instanceof XmlRpcBinary )
+        {
+            return ( ( XmlRpcBinary ) value ).getBytes();
+        }
+
+        return ( byte[] ) value;
     }
 
     
     /**
      *  Returns the byte[] with the given key from the Struct, as an
-     *  input stream (currently, a java.io.ByteArrayInputStream).
+     *  input stream. Values spilled to temporary files by the parser are
+     *  read from the file as the stream is read.
      *
      *  @param key The key of the value to extract.
      *
-     *  @throws ClassCastException if the value with the given key is not a byte[].
+     *  @throws ClassCastException if the value with the given key is not a byte[]
+     *                             or an XmlRpcBinary.
      */
 
     public InputStream getBinaryAsStream( Object key )
     {
-        byte[] result = ( byte[] ) get( key );
+        Object value = get( key );
+
+        if ( value instanceof XmlRpcBinary )
+        {
+            return ( ( XmlRpcBinary ) value ).getInputStream();
+        }
+
+        byte[] result = ( byte[] ) value;
         return result != null ? new ByteArrayInputStream( result ) : null;
     }
     
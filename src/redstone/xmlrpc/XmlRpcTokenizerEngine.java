@@ -0,0 +1,799 @@
+/*
+    This library is free software; you can redistribute it and/or modify it under the terms
+    of the GNU Lesser General Public License as published by the Free Software Foundation;
+    either version 2.1 of the License, or (at your option) any later version.
+
+    This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+    without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+    See the GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License along with this
+    library; if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+    Boston, MA  02111-1307  USA
+*/
+
+package redstone.xmlrpc;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ *  An XmlRpcParserEngine tokenizing XML-RPC messages directly from the bytes of the
+ *  stream, without any general purpose XML parser. The tokenizer understands the
+ *  subset of XML that XML-RPC messages are made of: elements, character data with the
+ *  predefined and numeric character references, CDATA sections, comments, processing
+ *  instructions, and a document type declaration, which is skipped. Element names are
+ *  hashed straight from the bytes, and character data is decoded from UTF-8 (or
+ *  ISO-8859-1, if declared) into a reusable buffer only when it is part of a value.
+ *
+ *  <p>Messages are checked for proper nesting of elements and for characters not
+ *  allowed in XML, but attributes are ignored and entities other than the predefined
+ *  ones are rejected. This is sufficient for
+ *  XML-RPC and makes the engine a considerably faster alternative to SAX on servers
+ *  handling large volumes of calls.</p>
+ *
+ *  <pre>
+ *  server.setParserEngine( new XmlRpcTokenizerEngine() );
+ *  </pre>
+ */
+
+public class XmlRpcTokenizerEngine implements XmlRpcParserEngine
+{
+    /*  (Documentation inherited)
+     *  @see redstone.xmlrpc.XmlRpcParserEngine#parse(java.io.InputStream, redstone.xmlrpc.XmlRpcParser)
+     */
+
+    public void parse( InputStream input, XmlRpcParser handler ) throws XmlRpcException
+    {
+        Tokenizer tokenizer = ( Tokenizer ) tokenizers.poll();
+
+        if ( tokenizer == null )
+        {
+            tokenizer = new Tokenizer();
+        }
+
+        try
+        {
+            tokenizer.parse( input, handler );
+        }
+        catch ( Exception e )
+        {
+            throw new XmlRpcException(
+                XmlRpcMessages.getString( "XmlRpcParser.ParsingError" ), e );
+        }
+        finally
+        {
+            tokenizer.clear();
+            tokenizers.offer( tokenizer );
+        }
+    }
+
+
+    /**
+     *  The state of a tokenizer parsing one message. Tokenizers are only used by one
+     *  thread at a time and are recycled between messages.
+     */
+
+    private static class Tokenizer
+    {
+        /**
+         *  Tokenizes the message in the stream and feeds the elements and character
+         *  data to the value stack.
+         */
+
+        void parse( InputStream input, XmlRpcParser handler ) throws IOException
+        {
+            this.input = input;
+
+            int c = read();
+
+            // Skip a UTF-8 byte order mark.
+
+            if ( c == 0xEF )
+            {
+                if ( read() != 0xBB || read() != 0xBF )
+                {
+                    throw illegalCharacter();
+                }
+
+                c = read();
+            }
+
+            while ( c != -1 )
+            {
+                if ( c == '<' )
+                {
+                    markup( handler );
+                    c = read();
+                }
+                else
+                {
+                    c = text( c );
+                }
+            }
+
+            if ( openCount != 0 || !stack.isComplete() )
+            {
+                throw unexpectedEnd();
+            }
+        }
+
+
+        /**
+         *  Handles markup following a '<'.
+         */
+
+        private void markup( XmlRpcParser handler ) throws IOException
+        {
+            int c = readRequired();
+
+            if ( c == '/' )
+            {
+                int element = name( readRequired() );
+
+                if ( openCount == 0 || openElements[ --openCount ] != element )
+                {
+                    throw illegalMarkup();
+                }
+
+                stack.endElement( handler, element );
+            }
+            else if ( c == '?' )
+            {
+                processingInstruction();
+            }
+            else if ( c == '!' )
+            {
+                c = readRequired();
+
+                if ( c == '-' )
+                {
+                    if ( readRequired() != '-' )
+                    {
+                        throw illegalMarkup();
+                    }
+
+                    comment();
+                }
+                else if ( c == '[' )
+                {
+                    for ( int i = 0; i < CDATA_START.length(); ++i )
+                    {
+                        if ( readRequired() != CDATA_START.charAt( i ) )
+                        {
+                            throw illegalMarkup();
+                        }
+                    }
+
+                    cdata();
+                }
+                else
+                {
+                    documentType();
+                }
+            }
+            else
+            {
+                int element = name( c );
+
+                if ( openCount == openElements.length )
+                {
+                    int[] newOpenElements = new int[ openElements.length * 2 ];
+                    System.arraycopy( openElements, 0, newOpenElements, 0, openCount );
+                    openElements = newOpenElements;
+                }
+
+                openElements[ openCount++ ] = element;
+                stack.startElement( handler, element );
+
+                if ( lastTagWasEmpty )
+                {
+                    --openCount;
+                    stack.endElement( handler, element );
+                }
+            }
+        }
+
+
+        /**
+         *  Reads an element name starting with the given byte, and the rest of the tag
+         *  up to and including the closing '>'. Any attributes are skipped.
+         *
+         *  @return The hash value of the local part of the element name, calculated
+         *          like XmlRpcParser.hashCode() does.
+         */
+
+        private int name( int c ) throws IOException
+        {
+            int hash = 0;
+
+            while ( c > ' ' && c != '>' && c != '/' )
+            {
+                if ( c == ':' )
+                {
+                    hash = 0;  // Ignore namespace prefixes.
+                }
+                else
+                {
+                    hash = 31 * hash + c;
+                }
+
+                c = readRequired();
+            }
+
+            lastTagWasEmpty = false;
+
+            while ( c != '>' )
+            {
+                if ( c == '"' || c == '\'' )
+                {
+                    int quote = c;
+
+                    while ( readRequired() != quote ) { /* Skip attribute value. */ }
+
+                    lastTagWasEmpty = false;
+                }
+                else
+                {
+                    lastTagWasEmpty = c == '/';
+                }
+
+                c = readRequired();
+            }
+
+            return hash;
+        }
+
+
+        /**
+         *  Handles character data starting with the given byte, up to the next '<'
+         *  or the end of the stream.
+         *
+         *  @return The byte following the character data.
+         */
+
+        private int text( int c ) throws IOException
+        {
+            if ( !stack.isCollecting() )
+            {
+                while ( c != '<' && c != -1 )
+                {
+                    c = read();
+                }
+
+                return c;
+            }
+
+            while ( c != '<' && c != -1 )
+            {
+                if ( c == '&' )
+                {
+                    reference();
+                }
+                else
+                {
+                    character( c );
+                }
+
+                c = read();
+            }
+
+            return c;
+        }
+
+
+        /**
+         *  Handles a CDATA section following "&lt;![CDATA[".
+         */
+
+        private void cdata() throws IOException
+        {
+            boolean isCollecting = stack.isCollecting();
+            int brackets = 0;
+            int c;
+
+            while ( true )
+            {
+                c = readRequired();
+
+                if ( c == ']' )
+                {
+                    ++brackets;
+                    continue;
+                }
+
+                boolean isEnd = c == '>' && brackets >= 2;
+
+                if ( isEnd )
+                {
+                    brackets -= 2;
+                }
+
+                if ( isCollecting )
+                {
+                    for ( ; brackets > 0; --brackets )
+                    {
+                        stack.append( ']' );
+                    }
+                }
+
+                if ( isEnd )
+                {
+                    return;
+                }
+
+                if ( isCollecting )
+                {
+                    character( c );
+                }
+
+                brackets = 0;
+            }
+        }
+
+
+        /**
+         *  Appends the character starting with the given byte to the value stack,
+         *  decoding multi-byte UTF-8 sequences and normalizing line ends. Control
+         *  characters, overlong sequences, and encoded surrogates are rejected.
+         */
+
+        private void character( int c ) throws IOException
+        {
+            if ( c < 0x80 || isLatin1 )
+            {
+                if ( c < 0x20 )
+                {
+                    if ( c == '\r' )
+                    {
+                        // Line ends are normalized to a single line feed, as in XML.
+
+                        c = '\n';
+
+                        if ( peek() == '\n' )
+                        {
+                            ++position;
+                        }
+                    }
+                    else if ( c != '\n' && c != '\t' )
+                    {
+                        throw illegalCharacter();
+                    }
+                }
+
+                stack.append( ( char ) c );
+                return;
+            }
+
+            int codePoint;
+            int continuations;
+            int minimum;
+
+            if ( c >= 0xC2 && c <= 0xDF )
+            {
+                codePoint = c & 0x1F;
+                continuations = 1;
+                minimum = 0x80;
+            }
+            else if ( c >= 0xE0 && c <= 0xEF )
+            {
+                codePoint = c & 0x0F;
+                continuations = 2;
+                minimum = 0x800;
+            }
+            else if ( c >= 0xF0 && c <= 0xF4 )
+            {
+                codePoint = c & 0x07;
+                continuations = 3;
+                minimum = 0x10000;
+            }
+            else
+            {
+                throw illegalCharacter();
+            }
+
+            while ( continuations-- > 0 )
+            {
+                c = read();
+
+                if ( ( c & 0xC0 ) != 0x80 )
+                {
+                    throw illegalCharacter();
+                }
+
+                codePoint = ( codePoint << 6 ) | ( c & 0x3F );
+            }
+
+            if ( codePoint < minimum || !isXmlCharacter( codePoint ) )
+            {
+                throw illegalCharacter();
+            }
+
+            appendCodePoint( codePoint );
+        }
+
+
+        /**
+         *  Handles a character or entity reference following a '&'.
+         */
+
+        private void reference() throws IOException
+        {
+            int length = 0;
+            int c;
+
+            while ( ( c = readRequired() ) != ';' )
+            {
+                if ( length == reference.length )
+                {
+                    throw illegalEntity( length );
+                }
+
+                reference[ length++ ] = ( char ) c;
+            }
+
+            if ( length > 1 && reference[ 0 ] == '#' )
+            {
+                int codePoint = 0;
+                int radix = reference[ 1 ] == 'x' ? 16 : 10;
+                int first = radix == 16 ? 2 : 1;
+
+                if ( first == length )
+                {
+                    throw illegalEntity( length );
+                }
+
+                for ( int i = first; i < length; ++i )
+                {
+                    int digit = Character.digit( reference[ i ], radix );
+
+                    // Checking the range as digits are added keeps the value from
+                    // overflowing.
+
+                    if ( digit == -1 || codePoint > Character.MAX_CODE_POINT )
+                    {
+                        throw illegalEntity( length );
+                    }
+
+                    codePoint = codePoint * radix + digit;
+                }
+
+                if ( !isXmlCharacter( codePoint ) )
+                {
+                    throw illegalEntity( length );
+                }
+
+                appendCodePoint( codePoint );
+            }
+            else if ( matches( "lt", length ) )
+            {
+                stack.append( '<' );
+            }
+            else if ( matches( "gt", length ) )
+            {
+                stack.append( '>' );
+            }
+            else if ( matches( "amp", length ) )
+            {
+                stack.append( '&' );
+            }
+            else if ( matches( "quot", length ) )
+            {
+                stack.append( '"' );
+            }
+            else if ( matches( "apos", length ) )
+            {
+                stack.append( '\'' );
+            }
+            else
+            {
+                throw illegalEntity( length );
+            }
+        }
+
+
+        /**
+         *  Indicates if the reference buffer holds the given entity name.
+         */
+
+        private boolean matches( String entity, int length )
+        {
+            if ( entity.length() != length )
+            {
+                return false;
+            }
+
+            for ( int i = 0; i < length; ++i )
+            {
+                if ( reference[ i ] != entity.charAt( i ) )
+                {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+
+        /**
+         *  Indicates if a code point is a character allowed in XML documents.
+         */
+
+        private static boolean isXmlCharacter( int codePoint )
+        {
+            if ( codePoint < 0x20 )
+            {
+                return codePoint == '\t' || codePoint == '\n' || codePoint == '\r';
+            }
+
+            return codePoint <= 0xD7FF ||
+                   ( codePoint >= 0xE000 && codePoint <= 0xFFFD ) ||
+                   ( codePoint >= 0x10000 && codePoint <= Character.MAX_CODE_POINT );
+        }
+
+
+        /**
+         *  Appends a code point to the value stack, as a surrogate pair if needed.
+         */
+
+        private void appendCodePoint( int codePoint ) throws IOException
+        {
+            if ( codePoint < 0x10000 )
+            {
+                stack.append( ( char ) codePoint );
+            }
+            else
+            {
+                codePoint -= 0x10000;
+                stack.append( ( char ) ( 0xD800 + ( codePoint >> 10 ) ) );
+                stack.append( ( char ) ( 0xDC00 + ( codePoint & 0x3FF ) ) );
+            }
+        }
+
+
+        /**
+         *  Skips a processing instruction following "&lt;?". If it is the XML declaration,
+         *  the declared encoding is picked up.
+         */
+
+        private void processingInstruction() throws IOException
+        {
+            StringBuffer declaration = new StringBuffer( 64 );
+            int previous = 0;
+            int c;
+
+            while ( ( c = readRequired() ) != '>' || previous != '?' )
+            {
+                if ( declaration.length() < 256 )
+                {
+                    declaration.append( ( char ) c );
+                }
+
+                previous = c;
+            }
+
+            if ( declaration.length() > 3 && declaration.substring( 0, 4 ).equals( "xml " ) )
+            {
+                int start = declaration.indexOf( "encoding" );
+
+                if ( start != -1 )
+                {
+                    // The value starts at the nearest quote, as later attributes may
+                    // use the other kind of quote.
+
+                    int doubleQuote = declaration.indexOf( "\"", start );
+                    int singleQuote = declaration.indexOf( "'", start );
+
+                    start = doubleQuote == -1 || ( singleQuote != -1 && singleQuote < doubleQuote ) ?
+                        singleQuote : doubleQuote;
+
+                    int end = start != -1 ? declaration.indexOf( declaration.substring( start, start + 1 ), start + 1 ) : -1;
+
+                    if ( end == -1 )
+                    {
+                        throw illegalMarkup();
+                    }
+
+                    String encoding = declaration.substring( start + 1, end );
+
+                    if ( encoding.equalsIgnoreCase( "ISO-8859-1" ) ||
+                         encoding.equalsIgnoreCase( "latin1" ) )
+                    {
+                        isLatin1 = true;
+                    }
+                    else if ( !encoding.equalsIgnoreCase( "UTF-8" ) &&
+                              !encoding.equalsIgnoreCase( "US-ASCII" ) )
+                    {
+                        throw new XmlRpcException(
+                            XmlRpcMessages.getString( "XmlRpcTokenizerEngine.UnsupportedEncoding" ) + encoding );
+                    }
+                }
+            }
+        }
+
+
+        /**
+         *  Skips a comment following "&lt;!--".
+         */
+
+        private void comment() throws IOException
+        {
+            int dashes = 0;
+            int c;
+
+            while ( ( c = readRequired() ) != '>' || dashes < 2 )
+            {
+                dashes = c == '-' ? dashes + 1 : 0;
+            }
+        }
+
+
+        /**
+         *  Skips a document type declaration following "&lt;!", including any
+         *  internal subset. Entities declared in the subset are not expanded.
+         */
+
+        private void documentType() throws IOException
+        {
+            int brackets = 0;
+            int c;
+
+            while ( ( c = readRequired() ) != '>' || brackets > 0 )
+            {
+                if ( c == '[' )
+                {
+                    ++brackets;
+                }
+                else if ( c == ']' )
+                {
+                    --brackets;
+                }
+            }
+        }
+
+
+        /**
+         *  Returns the next byte of the stream, or -1 at the end of the stream.
+         */
+
+        private int read() throws IOException
+        {
+            if ( position == limit && !fill() )
+            {
+                return -1;
+            }
+
+            return buffer[ position++ ] & 0xFF;
+        }
+
+
+        /**
+         *  Returns the next byte of the stream, which must not have ended.
+         */
+
+        private int readRequired() throws IOException
+        {
+            int c = read();
+
+            if ( c == -1 )
+            {
+                throw unexpectedEnd();
+            }
+
+            return c;
+        }
+
+
+        /**
+         *  Returns the next byte of the stream without consuming it, or -1.
+         */
+
+        private int peek() throws IOException
+        {
+            if ( position == limit && !fill() )
+            {
+                return -1;
+            }
+
+            return buffer[ position ] & 0xFF;
+        }
+
+
+        /**
+         *  Reads the next block of the stream into the buffer.
+         *
+         *  @return false if the end of the stream has been reached.
+         */
+
+        private boolean fill() throws IOException
+        {
+            int count = input.read( buffer, 0, buffer.length );
+
+            position = 0;
+            limit = count > 0 ? count : 0;
+
+            return count > 0;
+        }
+
+
+        private XmlRpcException illegalMarkup()
+        {
+            return new XmlRpcException( XmlRpcMessages.getString( "XmlRpcTokenizerEngine.IllegalMarkup" ) );
+        }
+
+
+        private XmlRpcException illegalCharacter()
+        {
+            return new XmlRpcException( XmlRpcMessages.getString( "XmlRpcTokenizerEngine.IllegalCharacter" ) );
+        }
+
+
+        private XmlRpcException illegalEntity( int length )
+        {
+            return new XmlRpcException(
+                XmlRpcMessages.getString( "XmlRpcTokenizerEngine.IllegalEntity" ) +
+                new String( reference, 0, length ) );
+        }
+
+
+        private XmlRpcException unexpectedEnd()
+        {
+            return new XmlRpcException( XmlRpcMessages.getString( "XmlRpcTokenizerEngine.UnexpectedEnd" ) );
+        }
+
+
+        /**
+         *  Releases the stream and values of the latest message and prepares for the
+         *  next one.
+         */
+
+        void clear()
+        {
+            stack.clear();
+            input = null;
+            position = 0;
+            limit = 0;
+            openCount = 0;
+            isLatin1 = false;
+        }
+
+
+        /** The stack building values from the tokens. */
+        private final XmlRpcValueStack stack = new XmlRpcValueStack();
+
+        /** The stream being tokenized. */
+        private InputStream input;
+
+        /** Buffer holding the latest block read from the stream. */
+        private byte[] buffer = new byte[ 8192 ];
+
+        /** Position of the next byte to tokenize in the buffer. */
+        private int position;
+
+        /** The number of valid bytes in the buffer. */
+        private int limit;
+
+        /** Hash values of the elements currently open, outermost first. */
+        private int[] openElements = new int[ 32 ];
+
+        /** The number of elements currently open. */
+        private int openCount;
+
+        /** Indicates if the latest start tag was an empty element tag. */
+        private boolean lastTagWasEmpty;
+
+        /** Indicates if the message declared ISO-8859-1 rather than UTF-8 encoding. */
+        private boolean isLatin1;
+
+        /** Buffer holding the name of the latest entity reference. */
+        private char[] reference = new char[ 16 ];
+    }
+
+
+    /** The remainder of the CDATA section start following "&lt;![". */
+    private static final String CDATA_START = "CDATA[";
+
+    /** Idle tokenizers ready to be reused. */
+    private ConcurrentLinkedQueue/*<Tokenizer>*/ tokenizers = new ConcurrentLinkedQueue();
+}
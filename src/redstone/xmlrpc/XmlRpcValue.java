@@ -16,9 +16,9 @@
 
 package redstone.xmlrpc;
 
-import java.text.SimpleDateFormat;
 import java.text.ParseException;
 import redstone.xmlrpc.util.Base64;
+import redstone.xmlrpc.util.Iso8601;
 
 /**
  *  An XmlRpcValue wraps a value object that is initialized with data supplied from the
@@ -71,60 +71,67 @@ public class XmlRpcValue
 
     void processCharacterData( String charData ) throws XmlRpcException
     {
-        switch ( type )
+        if ( type == XmlRpcParser.STRUCT )
+        {
+            memberName = charData;
+        }
+        else if ( type != XmlRpcParser.ARRAY )
         {
-            case XmlRpcParser.STRING:
+            value = decode( type, charData );
+        }
+    }
+
 
-                value = charData;
-                break;
+    /**
+     *  Converts the character data of a scalar value into the corresponding Java object.
+     *  This is shared by all parser engines so that values are interpreted identically
+     *  regardless of how the message is parsed.
+     *
+     *  @param type The type of the value (see XmlRpcParser).
+     *  @param charData The trimmed character data of the value.
+     *  @return The interpreted value.
+     */
 
+    static Object decode( int type, String charData ) throws XmlRpcException
+    {
+        switch ( type )
+        {
             case XmlRpcParser.I4:
             case XmlRpcParser.INT:
 
-                value = new Integer( charData );
-                break;
+                return new Integer( charData );
 
             case XmlRpcParser.I8:
                 
-                value = new Long( charData );
-                break;
+                return new Long( charData );
                 
             case XmlRpcParser.BOOLEAN:
 
-                value = new Boolean( Integer.parseInt( charData ) == 1 );
-                break;
+                return new Boolean( Integer.parseInt( charData ) == 1 );
 
             case XmlRpcParser.DOUBLE:
 
-                value = new Double( charData );
-                break;
+                return new Double( charData );
 
             case XmlRpcParser.DATE:
 
                 try
                 {
-                    // TODO Optimize.
-                    synchronized( dateFormatter )
-                    {
-                        value = dateFormatter.parse( charData );
-                    }
+                    return Iso8601.parse( charData );
                 }
                 catch( ParseException e )
                 {
                     throw new XmlRpcException(
                         XmlRpcMessages.getString( "XmlRpcValue.IllegalDate" ) + charData, e );
                 }
-                break;
 
             case XmlRpcParser.BASE64:
 
-                value = Base64.decode( charData.getBytes() );
-                break;
+                return Base64.decode( charData.getBytes() );
 
-            case XmlRpcParser.STRUCT:
+            default:
 
-                memberName = charData;
-                break;
+                return charData;
         }
     }
 
@@ -171,7 +178,4 @@ public class XmlRpcValue
 
     /** If this is a struct value, this holds the member name */
     String memberName;
-
-    /** Date formatter shared by all XmlRpcValues */
-    private static final SimpleDateFormat dateFormatter = new SimpleDateFormat( "yyyyMMdd'T'HH:mm:ss" );
 }
\ No newline at end of file
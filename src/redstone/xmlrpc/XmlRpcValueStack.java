@@ -0,0 +1,409 @@
+/*
+    This library is free software; you can redistribute it and/or modify it under the terms
+    of the GNU Lesser General Public License as published by the Free Software Foundation;
+    either version 2.1 of the License, or (at your option) any later version.
+
+    This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+    without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+    See the GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License along with this
+    library; if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+    Boston, MA  02111-1307  USA
+*/
+
+package redstone.xmlrpc;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import redstone.xmlrpc.util.Base64Decoder;
+
+/**
+ *  Builds XML-RPC values from the elements and character data reported by the
+ *  parser engines. Values are kept on plain arrays indexed by nesting depth, character
+ *  data is collected in a reusable buffer, and base64 data is decoded as it arrives
+ *  into the sink supplied by the parser. An XmlRpcValueStack is only
+ *  used by one thread at a time, and may be reused for the next message once
+ *  clear() has been called.
+ */
+
+class XmlRpcValueStack
+{
+    /**
+     *  Handles the start of an element.
+     *
+     *  @param handler The parser to report method names, faults, and values to.
+     *  @param element The hash value of the element name (see XmlRpcParser).
+     */
+
+    void startElement( XmlRpcParser handler, int element )
+    {
+        switch ( element )
+        {
+            case XmlRpcParser.FAULT:
+
+                handler.handleFaultResponse();
+                break;
+
+            case XmlRpcParser.VALUE:
+
+                if ( ++depth == types.length )
+                {
+                    grow();
+                }
+
+                types[ depth ] = XmlRpcParser.STRING;
+                values[ depth ] = null;
+                startCollecting();
+                break;
+
+            case XmlRpcParser.ARRAY:
+
+                types[ depth ] = element;
+                values[ depth ] = new XmlRpcArray();
+                isCollecting = false;
+                break;
+
+            case XmlRpcParser.STRUCT:
+
+                types[ depth ] = element;
+                values[ depth ] = new XmlRpcStruct();
+                isCollecting = false;
+                break;
+
+            case XmlRpcParser.BASE64:
+
+                // Base64 data is decoded as it arrives rather than collected.
+
+                types[ depth ] = element;
+                binarySink = handler.createBinarySink();
+                binaryDecoder.reset( binarySink );
+                isCollecting = true;
+                break;
+
+            case XmlRpcParser.STRING:
+            case XmlRpcParser.I4:
+            case XmlRpcParser.I8:
+            case XmlRpcParser.INT:
+            case XmlRpcParser.BOOLEAN:
+            case XmlRpcParser.DOUBLE:
+            case XmlRpcParser.DATE:
+
+                types[ depth ] = element;
+                startCollecting();
+                break;
+
+            case XmlRpcParser.MEMBER:
+
+                if ( depth >= 0 )
+                {
+                    names[ depth ] = null;
+                }
+
+                isCollecting = false;
+                break;
+
+            case XmlRpcParser.NAME:
+            case XmlRpcParser.METHOD_NAME:
+
+                startCollecting();
+                break;
+
+            default:
+
+                isCollecting = false;
+        }
+    }
+
+
+    /**
+     *  Handles the end of an element. Scalars are decoded when their type element
+     *  ends, or when the value element ends if the value has no type element. Completed
+     *  values are added to the enclosing array or struct, or passed to the handler
+     *  if they are top-level values.
+     *
+     *  @param handler The parser to report method names, faults, and values to.
+     *  @param element The hash value of the element name (see XmlRpcParser).
+     */
+
+    void endElement( XmlRpcParser handler, int element ) throws IOException
+    {
+        switch ( element )
+        {
+            case XmlRpcParser.METHOD_NAME:
+
+                handler.handleMethodName( consumeText() );
+                break;
+
+            case XmlRpcParser.NAME:
+
+                if ( depth >= 0 )
+                {
+                    names[ depth ] = consumeText();
+                }
+
+                break;
+
+            case XmlRpcParser.BASE64:
+
+                if ( binarySink != null )
+                {
+                    binaryDecoder.close();
+                    values[ depth ] = handler.createBinaryValue( binarySink );
+                    binarySink = null;
+                    isCollecting = false;
+                }
+
+                break;
+
+            case XmlRpcParser.STRING:
+            case XmlRpcParser.I4:
+            case XmlRpcParser.I8:
+            case XmlRpcParser.INT:
+            case XmlRpcParser.BOOLEAN:
+            case XmlRpcParser.DOUBLE:
+            case XmlRpcParser.DATE:
+
+                values[ depth ] = XmlRpcValue.decode( element, consumeText() );
+                break;
+
+            case XmlRpcParser.VALUE:
+
+                if ( isCollecting )
+                {
+                    values[ depth ] = XmlRpcValue.decode( types[ depth ], consumeText() );
+                }
+
+                Object value = values[ depth ];
+                values[ depth ] = null;
+
+                if ( --depth < 0 )
+                {
+                    handler.handleParsedValue( value );
+                }
+                else if ( types[ depth ] == XmlRpcParser.ARRAY )
+                {
+                    ( ( XmlRpcArray ) values[ depth ] ).add( value );
+                }
+                else if ( types[ depth ] == XmlRpcParser.STRUCT )
+                {
+                    // Each member needs a name of its own, preceding the value.
+
+                    if ( names[ depth ] == null )
+                    {
+                        throw new XmlRpcException(
+                            XmlRpcMessages.getString( "XmlRpcValue.MissingMemberName" ) );
+                    }
+
+                    ( ( XmlRpcStruct ) values[ depth ] ).put( names[ depth ], value );
+                    names[ depth ] = null;
+                }
+                else
+                {
+                    throw new XmlRpcException(
+                        XmlRpcMessages.getString( "XmlRpcValue.UnexpectedNestedValue" ) );
+                }
+
+                break;
+
+            default:
+
+                isCollecting = false;
+        }
+    }
+
+
+    /**
+     *  Starts collecting character data into an empty buffer.
+     */
+
+    private void startCollecting()
+    {
+        textLength = 0;
+        isCollecting = true;
+    }
+
+
+    /**
+     *  Indicates if the character data currently parsed is part of a value or a name,
+     *  and needs to be passed to append(). Other character data may be skipped.
+     *
+     *  @return true if character data is collected.
+     */
+
+    boolean isCollecting()
+    {
+        return isCollecting;
+    }
+
+
+    /**
+     *  Appends a character to the text buffer, growing it if needed.
+     *
+     *  @param c The character to append.
+     */
+
+    void append( char c ) throws IOException
+    {
+        if ( binarySink != null )
+        {
+            binaryDecoder.write( c );
+            return;
+        }
+
+        if ( textLength == text.length )
+        {
+            char[] newText = new char[ text.length * 2 ];
+            System.arraycopy( text, 0, newText, 0, textLength );
+            text = newText;
+        }
+
+        text[ textLength++ ] = c;
+    }
+
+
+    /**
+     *  Appends character data to the text buffer, growing it if needed.
+     */
+
+    void append( char[] data, int start, int length ) throws IOException
+    {
+        if ( binarySink != null )
+        {
+            binaryDecoder.write( data, start, length );
+            return;
+        }
+
+        if ( textLength + length > text.length )
+        {
+            char[] newText = new char[ Math.max( text.length * 2, textLength + length ) ];
+            System.arraycopy( text, 0, newText, 0, textLength );
+            text = newText;
+        }
+
+        System.arraycopy( data, start, text, textLength, length );
+        textLength += length;
+    }
+
+
+    /**
+     *  Returns the collected character data with whitespace trimmed, just like
+     *  XmlRpcParser.consumeCharData(), and stops collecting.
+     */
+
+    private String consumeText()
+    {
+        int start = 0;
+        int end = textLength;
+
+        while ( start < end && text[ start ] <= ' ' )
+        {
+            ++start;
+        }
+
+        while ( end > start && text[ end - 1 ] <= ' ' )
+        {
+            --end;
+        }
+
+        isCollecting = false;
+        textLength = 0;
+
+        return new String( text, start, end - start );
+    }
+
+
+    /**
+     *  Doubles the capacity of the value stack.
+     */
+
+    private void grow()
+    {
+        int capacity = types.length * 2;
+
+        int[] newTypes = new int[ capacity ];
+        System.arraycopy( types, 0, newTypes, 0, types.length );
+        types = newTypes;
+
+        Object[] newValues = new Object[ capacity ];
+        System.arraycopy( values, 0, newValues, 0, values.length );
+        values = newValues;
+
+        String[] newNames = new String[ capacity ];
+        System.arraycopy( names, 0, newNames, 0, names.length );
+        names = newNames;
+    }
+
+
+    /**
+     *  Indicates if all values opened have also been closed.
+     *
+     *  @return true if no value is being parsed.
+     */
+
+    boolean isComplete()
+    {
+        return depth < 0;
+    }
+
+
+    /**
+     *  Releases the values of the latest message and prepares for the next one.
+     */
+
+    void clear()
+    {
+        for ( int i = 0; i < values.length; ++i )
+        {
+            values[ i ] = null;
+            names[ i ] = null;
+        }
+
+        if ( text.length > MAX_RECYCLED_TEXT_SIZE )
+        {
+            text = new char[ 256 ];
+        }
+
+        depth = -1;
+        textLength = 0;
+        isCollecting = false;
+
+        if ( binarySink instanceof XmlRpcBinarySink )
+        {
+            ( ( XmlRpcBinarySink ) binarySink ).discard();
+        }
+
+        binarySink = null;
+    }
+
+
+    /** Types of the values being parsed, indexed by nesting depth. */
+    private int[] types = new int[ 16 ];
+
+    /** The values being parsed, or the arrays and structs being filled, by depth. */
+    private Object[] values = new Object[ 16 ];
+
+    /** The latest member name of the structs being filled, by depth. */
+    private String[] names = new String[ 16 ];
+
+    /** The depth of the innermost value being parsed, or -1 outside values. */
+    private int depth = -1;
+
+    /** Buffer collecting character data. */
+    private char[] text = new char[ 256 ];
+
+    /** The number of characters collected in the buffer. */
+    private int textLength;
+
+    /** Indicates if character data is to be collected. */
+    private boolean isCollecting;
+
+    /** The stream a base64 value is currently decoded into, or null. */
+    private OutputStream binarySink;
+
+    /** Decoder of base64 values, reused for all values. */
+    private Base64Decoder binaryDecoder = new Base64Decoder();
+
+    /** Largest text buffer kept when the stack is cleared. */
+    private static final int MAX_RECYCLED_TEXT_SIZE = 64 * 1024;
+}
@@ -67,7 +67,7 @@ public class MapSerializer implements XmlRpcCustomSerializer
             Object key = it.next();
 
             writer.write( "<member><name>" );
-            writer.write( key.toString() );
+            XmlRpcSerializer.writeEscaped( key.toString(), writer );
             writer.write( "</name>");
 
             // Reuse default serializing mechanism for each member.
@@ -0,0 +1,193 @@
+/*
+    This library is free software; you can redistribute it and/or modify it under the terms
+    of the GNU Lesser General Public License as published by the Free Software Foundation;
+    either version 2.1 of the License, or (at your option) any later version.
+
+    This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+    without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+    See the GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License along with this
+    library; if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+    Boston, MA  02111-1307  USA
+*/
+
+package redstone.xmlrpc.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+
+/**
+ *  A Writer decoding the base64 characters written to it, and passing the decoded
+ *  bytes on to an OutputStream in blocks. Parsers use it to decode base64 values as
+ *  their character data arrives, without holding the encoded text in memory.
+ *
+ *  <p>Like Base64.decode(), characters outside of the base64 alphabet, including
+ *  whitespace and padding, are skipped. A decoder may be reused for another value
+ *  by calling reset().</p>
+ */
+
+public class Base64Decoder extends Writer
+{
+    /**
+     *  Creates a decoder. A sink must be supplied through reset() before use.
+     */
+
+    public Base64Decoder()
+    {
+    }
+
+
+    /**
+     *  Creates a decoder passing decoded bytes on to the given stream.
+     *
+     *  @param sink The stream receiving the decoded bytes.
+     */
+
+    public Base64Decoder( OutputStream sink )
+    {
+        this.sink = sink;
+    }
+
+
+    /**
+     *  Prepares the decoder for a new value, discarding any partial state.
+     *
+     *  @param sink The stream receiving the decoded bytes.
+     */
+
+    public void reset( OutputStream sink )
+    {
+        this.sink = sink;
+        accumulator = 0;
+        shift = 0;
+        position = 0;
+    }
+
+
+    /**
+     *  Decodes a portion of an array of base64 characters.
+     *
+     *  @param data The characters to decode.
+     *  @param offset The index of the first character to decode.
+     *  @param length The number of characters to decode.
+     */
+
+    public void write( char[] data, int offset, int length ) throws IOException
+    {
+        int end = offset + length;
+
+        for ( int i = offset; i < end; ++i )
+        {
+            char c = data[ i ];
+            int value = c < 128 ? CODES[ c ] : -1;
+
+            if ( value >= 0 )
+            {
+                accumulator = ( accumulator << 6 ) | value;
+                shift += 6;
+
+                if ( shift >= 8 )
+                {
+                    shift -= 8;
+
+                    if ( position == bytes.length )
+                    {
+                        flush();
+                    }
+
+                    bytes[ position++ ] = ( byte ) ( accumulator >> shift );
+                }
+            }
+        }
+    }
+
+
+    /**
+     *  Decodes a single base64 character.
+     *
+     *  @param c The character to decode.
+     */
+
+    public void write( int c ) throws IOException
+    {
+        single[ 0 ] = ( char ) c;
+        write( single, 0, 1 );
+    }
+
+
+    /**
+     *  Passes the bytes decoded so far on to the sink.
+     */
+
+    public void flush() throws IOException
+    {
+        if ( position > 0 )
+        {
+            sink.write( bytes, 0, position );
+            position = 0;
+        }
+    }
+
+
+    /**
+     *  Passes all decoded bytes on to the sink. Leftover bits that do not make up
+     *  a whole byte are discarded. The sink is not closed.
+     */
+
+    public void close() throws IOException
+    {
+        flush();
+        accumulator = 0;
+        shift = 0;
+    }
+
+
+    /** The stream receiving the decoded bytes. */
+    private OutputStream sink;
+
+    /** Decoded bits not yet making up a whole byte, at the bottom. */
+    private int accumulator;
+
+    /** The number of bits in the accumulator. */
+    private int shift;
+
+    /** Block of decoded bytes not yet passed on to the sink. */
+    private byte[] bytes = new byte[ 3 * 1024 ];
+
+    /** The number of bytes in the block. */
+    private int position;
+
+    /** Buffer used by write( int ). */
+    private char[] single = new char[ 1 ];
+
+    /** Lookup table for converting base64 characters to values in range 0..63 */
+    private static final byte[] CODES = new byte[ 128 ];
+
+    static
+    {
+        for ( int i = 0; i < 128; ++i )
+        {
+            CODES[ i ] = -1;
+        }
+
+        for ( int i = 'A'; i <= 'Z'; ++i )
+        {
+            CODES[ i ] = ( byte ) ( i - 'A' );
+        }
+
+        for ( int i = 'a'; i <= 'z'; ++i )
+        {
+            CODES[ i ] = ( byte ) ( 26 + i - 'a' );
+        }
+
+        for ( int i = '0'; i <= '9'; ++i )
+        {
+            CODES[ i ] = ( byte ) ( 52 + i - '0' );
+        }
+
+        CODES[ '+' ] = 62;
+        CODES[ '/' ] = 63;
+    }
+}
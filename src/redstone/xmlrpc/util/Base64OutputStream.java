@@ -0,0 +1,212 @@
+/*
+    This library is free software; you can redistribute it and/or modify it under the terms
+    of the GNU Lesser General Public License as published by the Free Software Foundation;
+    either version 2.1 of the License, or (at your option) any later version.
+
+    This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+    without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+    See the GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License along with this
+    library; if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+    Boston, MA  02111-1307  USA
+*/
+
+package redstone.xmlrpc.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+
+/**
+ *  An OutputStream encoding the bytes written to it as base64 characters, which are
+ *  passed on to a Writer in blocks. This allows binary values of any size, including
+ *  the contents of streams, to be serialized without first encoding them into a
+ *  character array of 4/3 their size.
+ *
+ *  <p>close() writes the final, padded group of characters but leaves the underlying
+ *  writer open.</p>
+ */
+
+public class Base64OutputStream extends OutputStream
+{
+    /**
+     *  Creates a stream encoding bytes onto the given writer.
+     *
+     *  @param writer The writer receiving the base64 characters.
+     */
+
+    public Base64OutputStream( Writer writer )
+    {
+        this.writer = writer;
+    }
+
+
+    /**
+     *  Encodes all bytes of a stream onto a writer.
+     *
+     *  @param input The stream to encode. It is read to its end but not closed.
+     *  @param writer The writer receiving the base64 characters.
+     *  @throws IOException If the stream could not be read or the writer not written.
+     */
+
+    public static void encode( InputStream input, Writer writer ) throws IOException
+    {
+        Base64OutputStream output = new Base64OutputStream( writer );
+        byte[] buffer = new byte[ 3 * 1024 ];
+        int count;
+
+        while ( ( count = input.read( buffer ) ) != -1 )
+        {
+            output.write( buffer, 0, count );
+        }
+
+        output.close();
+    }
+
+
+    /**
+     *  Encodes a single byte.
+     *
+     *  @param b The byte to encode.
+     */
+
+    public void write( int b ) throws IOException
+    {
+        group = ( group << 8 ) | ( b & 0xFF );
+
+        if ( ++groupLength == 3 )
+        {
+            encodeGroup();
+        }
+    }
+
+
+    /**
+     *  Encodes a portion of a byte array.
+     *
+     *  @param data The bytes to encode.
+     *  @param offset The index of the first byte to encode.
+     *  @param length The number of bytes to encode.
+     */
+
+    public void write( byte[] data, int offset, int length ) throws IOException
+    {
+        int end = offset + length;
+
+        // Complete a group left over from the previous write.
+
+        while ( groupLength != 0 && offset < end )
+        {
+            write( data[ offset++ ] );
+        }
+
+        // Encode whole groups straight from the array.
+
+        while ( end - offset >= 3 )
+        {
+            if ( position + 4 > chars.length )
+            {
+                flush();
+            }
+
+            int value = ( ( data[ offset ] & 0xFF ) << 16 ) |
+                        ( ( data[ offset + 1 ] & 0xFF ) << 8 ) |
+                        ( data[ offset + 2 ] & 0xFF );
+
+            chars[ position++ ] = ALPHABET[ ( value >> 18 ) & 0x3F ];
+            chars[ position++ ] = ALPHABET[ ( value >> 12 ) & 0x3F ];
+            chars[ position++ ] = ALPHABET[ ( value >> 6 ) & 0x3F ];
+            chars[ position++ ] = ALPHABET[ value & 0x3F ];
+
+            offset += 3;
+        }
+
+        while ( offset < end )
+        {
+            write( data[ offset++ ] );
+        }
+    }
+
+
+    /**
+     *  Passes the characters encoded so far on to the writer. A group of less than
+     *  three bytes is held back until it is completed or the stream is closed.
+     */
+
+    public void flush() throws IOException
+    {
+        if ( position > 0 )
+        {
+            writer.write( chars, 0, position );
+            position = 0;
+        }
+    }
+
+
+    /**
+     *  Encodes any remaining bytes with padding and passes all characters on to the
+     *  writer. The writer is not closed.
+     */
+
+    public void close() throws IOException
+    {
+        if ( groupLength > 0 )
+        {
+            int padding = 3 - groupLength;
+
+            group <<= 8 * padding;
+            groupLength = 3;
+            encodeGroup();
+
+            for ( int i = 0; i < padding; ++i )
+            {
+                chars[ position - 1 - i ] = '=';
+            }
+        }
+
+        flush();
+    }
+
+
+    /**
+     *  Encodes the three bytes collected in the current group.
+     */
+
+    private void encodeGroup() throws IOException
+    {
+        if ( position + 4 > chars.length )
+        {
+            flush();
+        }
+
+        chars[ position++ ] = ALPHABET[ ( group >> 18 ) & 0x3F ];
+        chars[ position++ ] = ALPHABET[ ( group >> 12 ) & 0x3F ];
+        chars[ position++ ] = ALPHABET[ ( group >> 6 ) & 0x3F ];
+        chars[ position++ ] = ALPHABET[ group & 0x3F ];
+
+        group = 0;
+        groupLength = 0;
+    }
+
+
+    /** The writer receiving the encoded characters. */
+    private Writer writer;
+
+    /** Block of encoded characters not yet passed on to the writer. */
+    private char[] chars = new char[ 4 * 1024 ];
+
+    /** The number of characters in the block. */
+    private int position;
+
+    /** Bytes collected for the next group of four characters. */
+    private int group;
+
+    /** The number of bytes in the current group. */
+    private int groupLength;
+
+    /** Code characters for values 0..63 */
+    private static final char[] ALPHABET =
+        "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+}
@@ -0,0 +1,269 @@
+/*
+    This library is free software; you can redistribute it and/or modify it under the terms
+    of the GNU Lesser General Public License as published by the Free Software Foundation;
+    either version 2.1 of the License, or (at your option) any later version.
+
+    This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+    without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+    See the GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License along with this
+    library; if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+    Boston, MA  02111-1307  USA
+*/
+package redstone.xmlrpc.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ *  Helpers for the HTTP content codings used to compress XML-RPC messages, gzip and
+ *  deflate. Messages are compressed and decompressed as streams, so neither side
+ *  needs a second, compressed or decompressed, copy of a message in memory.
+ *
+ *  <p>Request bodies are only compressed for servers that have announced that they
+ *  accept compressed requests, through an Accept-Encoding header in their responses.
+ *  Servers hosting an XmlRpcServer should therefore include ACCEPT_ENCODING in their
+ *  responses if they pass the Content-Encoding of requests on to the server.</p>
+ */
+
+public class Compression
+{
+    /** The gzip content coding. */
+    public static final String GZIP = "gzip";
+
+    /** The deflate content coding, which is zlib formatted data. */
+    public static final String DEFLATE = "deflate";
+
+    /** The Accept-Encoding header value listing the supported content codings. */
+    public static final String ACCEPT_ENCODING = "gzip, deflate";
+
+
+    /**
+     *  Selects the content coding to compress a message with, for a peer accepting
+     *  the content codings in the given Accept-Encoding header. gzip is preferred over
+     *  deflate when both are equally acceptable, and codings with a quality value of
+     *  zero are never selected.
+     *
+     *  @param acceptEncoding The value of the Accept-Encoding header, or null.
+     *  @return GZIP, DEFLATE, or null if the message should not be compressed.
+     */
+
+    public static String negotiate( String acceptEncoding )
+    {
+        if ( acceptEncoding == null )
+        {
+            return null;
+        }
+
+        float gzip = -1;
+        float deflate = -1;
+        float any = -1;
+
+        String[] codings = acceptEncoding.split( "," );
+
+        for ( int i = 0; i < codings.length; ++i )
+        {
+            String coding = codings[ i ].trim().toLowerCase();
+            float quality = 1;
+
+            int parameters = coding.indexOf( ';' );
+
+            if ( parameters != -1 )
+            {
+                quality = parseQuality( coding.substring( parameters + 1 ) );
+                coding = coding.substring( 0, parameters ).trim();
+            }
+
+            if ( coding.equals( GZIP ) || coding.equals( "x-gzip" ) )
+            {
+                gzip = quality;
+            }
+            else if ( coding.equals( DEFLATE ) )
+            {
+                deflate = quality;
+            }
+            else if ( coding.equals( "*" ) )
+            {
+                any = quality;
+            }
+        }
+
+        // Codings that are not listed are acceptable through the wildcard.
+
+        if ( gzip < 0 )
+        {
+            gzip = any;
+        }
+
+        if ( deflate < 0 )
+        {
+            deflate = any;
+        }
+
+        if ( gzip > 0 && gzip >= deflate )
+        {
+            return GZIP;
+        }
+
+        if ( deflate > 0 )
+        {
+            return DEFLATE;
+        }
+
+        return null;
+    }
+
+
+    /**
+     *  Returns a stream decompressing the given stream according to a content coding.
+     *  Deflate data without the zlib header, as sent by some servers, is accepted too.
+     *
+     *  @param input The stream to decompress.
+     *  @param contentEncoding The value of the Content-Encoding header, or null.
+     *  @return The decompressing stream, or the given stream if it is not compressed.
+     *  @throws IOException If the content coding is not supported, or if the gzip
+     *                      header could not be read.
+     */
+
+    public static InputStream decode( InputStream input, String contentEncoding ) throws IOException
+    {
+        String coding = normalize( contentEncoding );
+
+        if ( coding == null )
+        {
+            return input;
+        }
+
+        if ( coding.equals( GZIP ) )
+        {
+            return new GZIPInputStream( input, BUFFER_SIZE );
+        }
+
+        if ( coding.equals( DEFLATE ) )
+        {
+            // A zlib header is two bytes where the first one names the deflate method
+            // and the two, taken as a big endian number, are a multiple of 31.
+
+            PushbackInputStream pushback = new PushbackInputStream( input, 2 );
+            int first = pushback.read();
+            int second = first != -1 ? pushback.read() : -1;
+
+            if ( second != -1 )
+            {
+                pushback.unread( second );
+            }
+
+            if ( first != -1 )
+            {
+                pushback.unread( first );
+            }
+
+            boolean zlib = first != -1 && second != -1 &&
+                ( first & 0x0f ) == 8 && ( ( first << 8 ) | second ) % 31 == 0;
+
+            return new InflaterInputStream( pushback, new Inflater( !zlib ), BUFFER_SIZE )
+            {
+                public void close() throws IOException
+                {
+                    // The inflater is not owned by the stream, so it must be ended
+                    // here to release its native memory right away.
+
+                    super.close();
+                    inf.end();
+                }
+            };
+        }
+
+        throw new IOException( "Unsupported Content-Encoding: " + contentEncoding );
+    }
+
+
+    /**
+     *  Returns a stream compressing the bytes written to it according to a content
+     *  coding. The compressed message is complete when the stream has been closed,
+     *  which also closes the given stream.
+     *
+     *  @param output The stream receiving the compressed bytes.
+     *  @param contentEncoding GZIP or DEFLATE.
+     *  @return The compressing stream.
+     *  @throws IOException If the content coding is not supported.
+     */
+
+    public static OutputStream encode( OutputStream output, String contentEncoding ) throws IOException
+    {
+        String coding = normalize( contentEncoding );
+
+        if ( GZIP.equals( coding ) )
+        {
+            return new GZIPOutputStream( output, BUFFER_SIZE );
+        }
+
+        if ( DEFLATE.equals( coding ) )
+        {
+            return new DeflaterOutputStream( output );
+        }
+
+        throw new IOException( "Unsupported Content-Encoding: " + contentEncoding );
+    }
+
+
+    /**
+     *  Returns the supported content coding named by a Content-Encoding header,
+     *  or null for the identity coding.
+     */
+
+    private static String normalize( String contentEncoding )
+    {
+        if ( contentEncoding == null )
+        {
+            return null;
+        }
+
+        String coding = contentEncoding.trim().toLowerCase();
+
+        if ( coding.length() == 0 || coding.equals( "identity" ) )
+        {
+            return null;
+        }
+
+        return coding.equals( "x-gzip" ) ? GZIP : coding;
+    }
+
+
+    /**
+     *  Parses the quality value among the parameters of a coding, "q=0.5".
+     */
+
+    private static float parseQuality( String parameters )
+    {
+        int start = parameters.indexOf( "q=" );
+
+        if ( start == -1 )
+        {
+            return 1;
+        }
+
+        int end = parameters.indexOf( ';', start );
+
+        try
+        {
+            return Float.parseFloat( parameters.substring( start + 2, end == -1 ? parameters.length() : end ).trim() );
+        }
+        catch ( NumberFormatException e )
+        {
+            return 0;
+        }
+    }
+
+
+    /** Size of the buffers of the compressing and decompressing streams. */
+    private static final int BUFFER_SIZE = 4096;
+}
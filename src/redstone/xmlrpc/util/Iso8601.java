@@ -0,0 +1,339 @@
+/*
+    This library is free software; you can redistribute it and/or modify it under the terms
+    of the GNU Lesser General Public License as published by the Free Software Foundation;
+    either version 2.1 of the License, or (at your option) any later version.
+
+    This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+    without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+    See the GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License along with this
+    library; if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+    Boston, MA  02111-1307  USA
+*/
+
+package redstone.xmlrpc.util;
+
+import java.text.ParseException;
+import java.util.Date;
+import java.util.TimeZone;
+
+/**
+ *  Formats and parses the ISO 8601 date and time representations used by XML-RPC
+ *  (yyyyMMdd'T'HH:mm:ss) and by JSON clients (yyyy-MM-dd'T'HH:mm:ss). Unlike
+ *  SimpleDateFormat, the codec keeps no state and may be used by any number of
+ *  threads at once without locking. Calendar arithmetic is done on plain integers,
+ *  so nothing is allocated besides the resulting String or Date.
+ *
+ *  <p>When parsing, the date separators, fractions of seconds, and a time zone
+ *  designator ("Z", "+hh:mm", "+hhmm", or "+hh") are optional. Times without a time
+ *  zone designator are interpreted in the given time zone, which is the default time
+ *  zone of the JVM unless specified, just as XML-RPC implementations usually do.</p>
+ *
+ *  <p>Dates are in the proleptic Gregorian calendar, which extends the Gregorian
+ *  rules backwards to all years. SimpleDateFormat, used before, switched to the
+ *  Julian calendar for dates before 1582-10-15, so such dates format and parse
+ *  differently now. Only the years 0000 to 9999, which have four digits, may be
+ *  formatted.</p>
+ */
+
+public class Iso8601
+{
+    /**
+     *  Formats a date in the basic XML-RPC format, yyyyMMdd'T'HH:mm:ss, in the default
+     *  time zone.
+     *
+     *  @param date The date to format.
+     *  @return The formatted date.
+     *  @throws IllegalArgumentException If the year of the date is outside 0000-9999.
+     */
+
+    public static String format( Date date )
+    {
+        return format( date.getTime(), TimeZone.getDefault(), false, false );
+    }
+
+
+    /**
+     *  Formats a point in time.
+     *
+     *  @param time The time to format, in milliseconds since the epoch.
+     *  @param zone The time zone to express the time in.
+     *  @param extended Indicates if the date is written with '-' separators,
+     *                  yyyy-MM-dd'T'HH:mm:ss, rather than in the basic format.
+     *  @param withOffset Indicates if the offset of the time zone is appended, as
+     *                    "Z" for UTC or as "+hh:mm" otherwise. Seconds of the offset,
+     *                    found in the local mean times of zones before standard
+     *                    time, are left out.
+     *  @return The formatted time.
+     *  @throws IllegalArgumentException If the year of the time is outside 0000-9999.
+     */
+
+    public static String format( long time, TimeZone zone, boolean extended, boolean withOffset )
+    {
+        int offset = zone.getOffset( time );
+        long local = time + offset;
+        long days = floorDiv( local, MILLIS_PER_DAY );
+        int millisOfDay = ( int ) ( local - days * MILLIS_PER_DAY );
+
+        // Convert days since the epoch to a civil date, using the algorithm
+        // described by Howard Hinnant in "chrono-Compatible Low-Level Date Algorithms".
+
+        long shifted = days + 719468;
+        long era = ( shifted >= 0 ? shifted : shifted - 146096 ) / 146097;
+        int dayOfEra = ( int ) ( shifted - era * 146097 );
+        int yearOfEra = ( dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096 ) / 365;
+        int dayOfYear = dayOfEra - ( 365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100 );
+        int monthIndex = ( 5 * dayOfYear + 2 ) / 153;
+        int day = dayOfYear - ( 153 * monthIndex + 2 ) / 5 + 1;
+        int month = monthIndex < 10 ? monthIndex + 3 : monthIndex - 9;
+        long year = yearOfEra + era * 400 + ( month <= 2 ? 1 : 0 );
+
+        if ( year < 0 || year > 9999 )
+        {
+            throw new IllegalArgumentException( "Year out of range 0000-9999: " + year );
+        }
+
+        char[] buffer = new char[ 25 ];
+        int length = 0;
+
+        length = appendDigits( buffer, length, ( int ) year, 4 );
+
+        if ( extended )
+        {
+            buffer[ length++ ] = '-';
+        }
+
+        length = appendDigits( buffer, length, month, 2 );
+
+        if ( extended )
+        {
+            buffer[ length++ ] = '-';
+        }
+
+        length = appendDigits( buffer, length, day, 2 );
+        buffer[ length++ ] = 'T';
+        length = appendDigits( buffer, length, millisOfDay / 3600000, 2 );
+        buffer[ length++ ] = ':';
+        length = appendDigits( buffer, length, millisOfDay / 60000 % 60, 2 );
+        buffer[ length++ ] = ':';
+        length = appendDigits( buffer, length, millisOfDay / 1000 % 60, 2 );
+
+        if ( withOffset )
+        {
+            if ( offset == 0 )
+            {
+                buffer[ length++ ] = 'Z';
+            }
+            else
+            {
+                buffer[ length++ ] = offset < 0 ? '-' : '+';
+
+                int offsetMinutes = Math.abs( offset ) / 60000;
+
+                length = appendDigits( buffer, length, offsetMinutes / 60, 2 );
+                buffer[ length++ ] = ':';
+                length = appendDigits( buffer, length, offsetMinutes % 60, 2 );
+            }
+        }
+
+        return new String( buffer, 0, length );
+    }
+
+
+    /**
+     *  Parses a date, interpreting it in the default time zone unless it carries
+     *  a time zone designator.
+     *
+     *  @param string The date to parse.
+     *  @return The parsed date.
+     *  @throws ParseException If the string is not an ISO 8601 date and time.
+     */
+
+    public static Date parse( String string ) throws ParseException
+    {
+        return new Date( parse( string, TimeZone.getDefault() ) );
+    }
+
+
+    /**
+     *  Parses a date.
+     *
+     *  @param string The date to parse.
+     *  @param zone The time zone to interpret the date in, if it carries no time zone
+     *              designator.
+     *  @return The parsed time, in milliseconds since the epoch.
+     *  @throws ParseException If the string is not an ISO 8601 date and time.
+     */
+
+    public static long parse( String string, TimeZone zone ) throws ParseException
+    {
+        int length = string.length();
+        int position = 0;
+
+        int year = parseDigits( string, position, 4 );
+        position += 4;
+        position = skip( string, position, '-' );
+        int month = parseDigits( string, position, 2 );
+        position = skip( string, position + 2, '-' );
+        int day = parseDigits( string, position, 2 );
+        position += 2;
+
+        if ( position >= length || ( string.charAt( position ) != 'T' && string.charAt( position ) != 't' ) )
+        {
+            throw new ParseException( string, position );
+        }
+
+        int hour = parseDigits( string, ++position, 2 );
+        position = skip( string, position + 2, ':' );
+        int minute = parseDigits( string, position, 2 );
+        position = skip( string, position + 2, ':' );
+        int second = parseDigits( string, position, 2 );
+        position += 2;
+
+        if ( month < 1 || month > 12 || day < 1 || day > 31 || hour > 24 || minute > 59 || second > 60 )
+        {
+            throw new ParseException( string, 0 );
+        }
+
+        int millis = 0;
+
+        if ( position < length && ( string.charAt( position ) == '.' || string.charAt( position ) == ',' ) )
+        {
+            int scale = 100;
+
+            while ( ++position < length && isDigit( string.charAt( position ) ) )
+            {
+                millis += ( string.charAt( position ) - '0' ) * scale;
+                scale /= 10;
+            }
+        }
+
+        // Convert the civil date to days since the epoch (see format()).
+
+        int y = month <= 2 ? year - 1 : year;
+        long era = ( y >= 0 ? y : y - 399 ) / 400;
+        int yearOfEra = ( int ) ( y - era * 400 );
+        int dayOfYear = ( 153 * ( month > 2 ? month - 3 : month + 9 ) + 2 ) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        long days = era * 146097 + dayOfEra - 719468;
+
+        long local = days * MILLIS_PER_DAY + hour * 3600000L + minute * 60000L + second * 1000L + millis;
+
+        if ( position == length )
+        {
+            // No designator; the time is local to the given zone. The offset is
+            // looked up twice to get it right around daylight saving transitions.
+
+            int offset = zone.getOffset( local - zone.getRawOffset() );
+            offset = zone.getOffset( local - offset );
+
+            return local - offset;
+        }
+
+        char designator = string.charAt( position );
+
+        if ( ( designator == 'Z' || designator == 'z' ) && position + 1 == length )
+        {
+            return local;
+        }
+
+        if ( designator != '+' && designator != '-' )
+        {
+            throw new ParseException( string, position );
+        }
+
+        int offsetHours = parseDigits( string, ++position, 2 );
+        int offsetMinutes = 0;
+        position = skip( string, position + 2, ':' );
+
+        if ( position < length )
+        {
+            offsetMinutes = parseDigits( string, position, 2 );
+            position += 2;
+        }
+
+        if ( position != length || offsetMinutes > 59 )
+        {
+            throw new ParseException( string, position );
+        }
+
+        int offset = ( offsetHours * 60 + offsetMinutes ) * 60000;
+
+        return designator == '+' ? local - offset : local + offset;
+    }
+
+
+    /**
+     *  Writes a non-negative number as a fixed number of digits, padded with zeroes.
+     */
+
+    private static int appendDigits( char[] buffer, int position, int value, int digits )
+    {
+        for ( int i = position + digits - 1; i >= position; --i )
+        {
+            buffer[ i ] = ( char ) ( '0' + value % 10 );
+            value /= 10;
+        }
+
+        return position + digits;
+    }
+
+
+    /**
+     *  Parses a fixed number of digits.
+     */
+
+    private static int parseDigits( String string, int position, int digits ) throws ParseException
+    {
+        if ( position + digits > string.length() )
+        {
+            throw new ParseException( string, position );
+        }
+
+        int value = 0;
+
+        for ( int i = position; i < position + digits; ++i )
+        {
+            char c = string.charAt( i );
+
+            if ( !isDigit( c ) )
+            {
+                throw new ParseException( string, i );
+            }
+
+            value = value * 10 + ( c - '0' );
+        }
+
+        return value;
+    }
+
+
+    /**
+     *  Skips an optional separator.
+     */
+
+    private static int skip( String string, int position, char separator )
+    {
+        return position < string.length() && string.charAt( position ) == separator ?
+            position + 1 : position;
+    }
+
+
+    private static boolean isDigit( char c )
+    {
+        return c >= '0' && c <= '9';
+    }
+
+
+    private static long floorDiv( long dividend, long divisor )
+    {
+        long quotient = dividend / divisor;
+
+        return dividend % divisor < 0 ? quotient - 1 : quotient;
+    }
+
+
+    /** The number of milliseconds in a day. */
+    private static final long MILLIS_PER_DAY = 86400000L;
+}
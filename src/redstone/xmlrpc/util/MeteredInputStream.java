@@ -0,0 +1,158 @@
+/*
+    This library is free software; you can redistribute it and/or modify it under the terms
+    of the GNU Lesser General Public License as published by the Free Software Foundation;
+    either version 2.1 of the License, or (at your option) any later version.
+
+    This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+    without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+    See the GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License along with this
+    library; if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+    Boston, MA  02111-1307  USA
+*/
+package redstone.xmlrpc.util;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ *  An InputStream counting the bytes read through it and the time spent reading them.
+ *  Two metered streams, one on each side of a decompressing stream, tell the size of
+ *  a message before and after decompression, and the difference in time spent reading
+ *  tells the time spent decompressing, rather than waiting for the network. A limit
+ *  on the number of bytes read keeps a small compressed message from inflating
+ *  without bounds.
+ */
+
+public class MeteredInputStream extends FilterInputStream
+{
+    /**
+     *  Creates a stream metering the given stream.
+     *
+     *  @param input The stream to meter.
+     */
+
+    public MeteredInputStream( InputStream input )
+    {
+        super( input );
+    }
+
+
+    public int read() throws IOException
+    {
+        long start = System.nanoTime();
+        int c = in.read();
+        time += System.nanoTime() - start;
+
+        if ( c != -1 )
+        {
+            ++count;
+            checkLimit();
+        }
+
+        return c;
+    }
+
+
+    public int read( byte[] buffer, int offset, int length ) throws IOException
+    {
+        long start = System.nanoTime();
+        int n = in.read( buffer, offset, length );
+        time += System.nanoTime() - start;
+
+        if ( n > 0 )
+        {
+            count += n;
+            checkLimit();
+        }
+
+        return n;
+    }
+
+
+    public long skip( long n ) throws IOException
+    {
+        long skipped = in.skip( n );
+        count += skipped;
+        checkLimit();
+        return skipped;
+    }
+
+
+    public boolean markSupported()
+    {
+        // Bytes read again after reset() would be counted twice.
+
+        return false;
+    }
+
+
+    /**
+     *  Sets the number of bytes that may be read through the stream. Reading past it
+     *  throws an IOException, once the read has been counted.
+     *
+     *  @param limit The number of bytes, or -1 for no limit.
+     */
+
+    public void setLimit( long limit )
+    {
+        this.limit = limit;
+    }
+
+
+    /**
+     *  Returns whether more bytes than the limit have been read.
+     *
+     *  @return true if the limit was exceeded.
+     */
+
+    public boolean isLimitExceeded()
+    {
+        return limit >= 0 && count > limit;
+    }
+
+
+    /**
+     *  Returns the number of bytes read through the stream.
+     *
+     *  @return The number of bytes read.
+     */
+
+    public long getCount()
+    {
+        return count;
+    }
+
+
+    /**
+     *  Returns the time spent in reads from the underlying stream.
+     *
+     *  @return The time in nanoseconds.
+     */
+
+    public long getTime()
+    {
+        return time;
+    }
+
+
+    private void checkLimit() throws IOException
+    {
+        if ( isLimitExceeded() )
+        {
+            throw new IOException( "Stream limit exceeded: " + limit );
+        }
+    }
+
+
+    /** The number of bytes read. */
+    private long count;
+
+    /** The number of bytes that may be read, or -1 for no limit. */
+    private long limit = -1;
+
+    /** Nanoseconds spent reading. */
+    private long time;
+}
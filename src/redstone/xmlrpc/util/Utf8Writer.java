@@ -0,0 +1,295 @@
+/*
+    This library is free software; you can redistribute it and/or modify it under the terms
+    of the GNU Lesser General Public License as published by the Free Software Foundation;
+    either version 2.1 of the License, or (at your option) any later version.
+
+    This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+    without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+    See the GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License along with this
+    library; if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+    Boston, MA  02111-1307  USA
+*/
+
+package redstone.xmlrpc.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+
+/**
+ *  A Writer encoding characters as UTF-8 straight into a growable byte array. Compared
+ *  to a StringWriter followed by String.getBytes(), the message is only held once, its
+ *  encoded length is known as soon as it has been written, and the buffer may be reused
+ *  for the next message by calling reset().
+ *
+ *  <p>Like String.getBytes(), unpaired surrogates are encoded as '?'.</p>
+ */
+
+public class Utf8Writer extends Writer
+{
+    /**
+     *  Creates a writer with the given initial capacity.
+     *
+     *  @param capacity The initial size of the buffer, in bytes.
+     */
+
+    public Utf8Writer( int capacity )
+    {
+        buffer = new byte[ capacity ];
+    }
+
+
+    /**
+     *  Encodes a single character.
+     *
+     *  @param c The character to encode.
+     */
+
+    public void write( int c )
+    {
+        ensureCapacity( 4 );
+        encode( ( char ) c );
+    }
+
+
+    /**
+     *  Encodes a portion of an array of characters.
+     *
+     *  @param data The characters to encode.
+     *  @param offset The index of the first character to encode.
+     *  @param length The number of characters to encode.
+     */
+
+    public void write( char[] data, int offset, int length )
+    {
+        int end = offset + length;
+
+        while ( offset < end )
+        {
+            // Encode in blocks for which the capacity check is done once.
+
+            int blockEnd = Math.min( end, offset + 1024 );
+            ensureCapacity( ( blockEnd - offset ) * 3 + 1 );
+
+            for ( ; offset < blockEnd; ++offset )
+            {
+                char c = data[ offset ];
+
+                if ( c < 0x80 && pendingSurrogate == 0 )
+                {
+                    buffer[ size++ ] = ( byte ) c;
+                }
+                else
+                {
+                    encode( c );
+                }
+            }
+        }
+    }
+
+
+    /**
+     *  Encodes a portion of a string.
+     *
+     *  @param string The string to encode.
+     *  @param offset The index of the first character to encode.
+     *  @param length The number of characters to encode.
+     */
+
+    public void write( String string, int offset, int length )
+    {
+        int end = offset + length;
+
+        while ( offset < end )
+        {
+            int blockEnd = Math.min( end, offset + 1024 );
+            ensureCapacity( ( blockEnd - offset ) * 3 + 1 );
+
+            for ( ; offset < blockEnd; ++offset )
+            {
+                char c = string.charAt( offset );
+
+                if ( c < 0x80 && pendingSurrogate == 0 )
+                {
+                    buffer[ size++ ] = ( byte ) c;
+                }
+                else
+                {
+                    encode( c );
+                }
+            }
+        }
+    }
+
+
+    /**
+     *  Encodes a string.
+     *
+     *  @param string The string to encode.
+     */
+
+    public void write( String string )
+    {
+        write( string, 0, string.length() );
+    }
+
+
+    /**
+     *  Returns the number of bytes written since the writer was created or reset.
+     *  A trailing high surrogate still waiting for its low surrogate is not included.
+     *
+     *  @return The number of encoded bytes.
+     */
+
+    public int size()
+    {
+        return size;
+    }
+
+
+    /**
+     *  Returns the internal buffer holding the encoded bytes. Only the first size()
+     *  bytes of the buffer are valid, and the buffer may be replaced by subsequent writes.
+     *
+     *  @return The buffer holding the encoded bytes.
+     */
+
+    public byte[] getBuffer()
+    {
+        return buffer;
+    }
+
+
+    /**
+     *  Returns the current capacity of the buffer.
+     *
+     *  @return The size of the internal buffer, in bytes.
+     */
+
+    public int capacity()
+    {
+        return buffer.length;
+    }
+
+
+    /**
+     *  Writes the encoded bytes to a stream in one go.
+     *
+     *  @param output The stream to write the bytes to.
+     *  @throws IOException If the stream could not be written.
+     */
+
+    public void writeTo( OutputStream output ) throws IOException
+    {
+        output.write( buffer, 0, size );
+    }
+
+
+    /**
+     *  Discards the encoded bytes so that the buffer may be used for a new message.
+     */
+
+    public void reset()
+    {
+        size = 0;
+        pendingSurrogate = 0;
+    }
+
+
+    /**
+     *  Does nothing. The encoded bytes are always available in the buffer.
+     */
+
+    public void flush()
+    {
+    }
+
+
+    /**
+     *  Does nothing. The writer may still be used, and its buffer remains valid.
+     */
+
+    public void close()
+    {
+    }
+
+
+    /**
+     *  Encodes a character, combining surrogate pairs into four byte sequences.
+     *  The buffer must have room for at least four bytes.
+     */
+
+    private void encode( char c )
+    {
+        if ( pendingSurrogate != 0 )
+        {
+            char high = pendingSurrogate;
+            pendingSurrogate = 0;
+
+            if ( c >= 0xDC00 && c <= 0xDFFF )
+            {
+                int codePoint = 0x10000 + ( ( high - 0xD800 ) << 10 ) + ( c - 0xDC00 );
+
+                buffer[ size++ ] = ( byte ) ( 0xF0 | ( codePoint >> 18 ) );
+                buffer[ size++ ] = ( byte ) ( 0x80 | ( ( codePoint >> 12 ) & 0x3F ) );
+                buffer[ size++ ] = ( byte ) ( 0x80 | ( ( codePoint >> 6 ) & 0x3F ) );
+                buffer[ size++ ] = ( byte ) ( 0x80 | ( codePoint & 0x3F ) );
+                return;
+            }
+
+            buffer[ size++ ] = ( byte ) '?';
+            ensureCapacity( 3 );
+        }
+
+        if ( c < 0x80 )
+        {
+            buffer[ size++ ] = ( byte ) c;
+        }
+        else if ( c < 0x800 )
+        {
+            buffer[ size++ ] = ( byte ) ( 0xC0 | ( c >> 6 ) );
+            buffer[ size++ ] = ( byte ) ( 0x80 | ( c & 0x3F ) );
+        }
+        else if ( c >= 0xD800 && c <= 0xDBFF )
+        {
+            pendingSurrogate = c;
+        }
+        else if ( c >= 0xDC00 && c <= 0xDFFF )
+        {
+            buffer[ size++ ] = ( byte ) '?';
+        }
+        else
+        {
+            buffer[ size++ ] = ( byte ) ( 0xE0 | ( c >> 12 ) );
+            buffer[ size++ ] = ( byte ) ( 0x80 | ( ( c >> 6 ) & 0x3F ) );
+            buffer[ size++ ] = ( byte ) ( 0x80 | ( c & 0x3F ) );
+        }
+    }
+
+
+    /**
+     *  Grows the buffer, if needed, so that it has room for the given number of bytes.
+     */
+
+    private void ensureCapacity( int length )
+    {
+        if ( size + length > buffer.length )
+        {
+            byte[] newBuffer = new byte[ Math.max( buffer.length * 2, size + length ) ];
+            System.arraycopy( buffer, 0, newBuffer, 0, size );
+            buffer = newBuffer;
+        }
+    }
+
+
+    /** Buffer holding the encoded bytes. */
+    private byte[] buffer;
+
+    /** The number of valid bytes in the buffer. */
+    private int size;
+
+    /** A high surrogate waiting for the low surrogate that follows it, or 0. */
+    private char pendingSurrogate;
+}
@@ -0,0 +1,126 @@
+package com.bitgriff.http;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests of photo upload by DrupalConnect against stand-in Drupal installation.
+ */
+public class DrupalConnectTest extends TestCase {
+	/** Photo of three chunks, the last one partial */
+	final private static int PHOTO_SIZE = 600 * 1024;
+	
+	private StandInDrupal server;
+	private DrupalConnect drupal;
+	private File photo;
+	private byte[] data;
+	
+	/**
+	 * Listener, that keeps upload outcome.
+	 */
+	private static class Outcome implements HttpProgressListener {
+		Exception error;
+		boolean done;
+		
+		public void sendStarted(int total) {
+		}
+		
+		public void sendProgress(int uploaded, int total) {
+		}
+		
+		public void sendError(Exception ex) {
+			error = ex;
+		}
+		
+		public void sendDone() {
+			done = true;
+		}
+	}
+	
+	@Override
+	protected void setUp() throws Exception {
+		server = new StandInDrupal();
+		drupal = new DrupalConnect(server.getUrlBase());
+		drupal.login("user", "password");
+		
+		data = new byte[PHOTO_SIZE];
+		new Random(20120401L).nextBytes(data);
+		
+		photo = File.createTempFile("photo", ".jpg");
+		FileOutputStream out = new FileOutputStream(photo);
+		try {
+			out.write(data);
+		}
+		finally {
+			out.close();
+		}
+	}
+	
+	@Override
+	protected void tearDown() {
+		UploadRecord.discard(photo);
+		photo.delete();
+		server.stop();
+	}
+	
+	public void testUpload() {
+		Outcome outcome = upload();
+		
+		assertNull(outcome.error);
+		assertTrue(outcome.done);
+		assertEquals(3, server.getChunkRequests());
+		assertEquals(1, server.getPhotos().size());
+		assertTrue(Arrays.equals(data, server.getPhotos().get(0)));
+	}
+	
+	public void testLostChunkResponse() {
+		server.dropChunkResponse(2);
+		
+		Outcome outcome = upload();
+		
+		assertNull(outcome.error);
+		assertEquals(4, server.getChunkRequests());
+		assertEquals(PHOTO_SIZE, server.getReceivedBytes());
+		assertTrue(Arrays.equals(data, server.getPhotos().get(0)));
+	}
+	
+	public void testLostDoneResponse() {
+		server.dropChunkResponse(3);
+		
+		Outcome outcome = upload();
+		
+		// the last chunk is sent again and answered by "DONE", photo is attached once
+		assertNull(outcome.error);
+		assertTrue(outcome.done);
+		assertEquals(4, server.getChunkRequests());
+		assertEquals(1, server.getPhotos().size());
+		assertEquals(PHOTO_SIZE, server.getReceivedBytes());
+	}
+	
+	public void testLostDoneResponseOfServerWithoutMarkers() {
+		server.setRememberingDone(false);
+		server.dropChunkResponse(3);
+		
+		Outcome outcome = upload();
+		
+		// server answers "OFFSET 0", but photo is not sent again
+		assertNotNull(outcome.error);
+		assertEquals(1, server.getPhotos().size());
+		assertEquals(PHOTO_SIZE, server.getReceivedBytes());
+	}
+	
+	private Outcome upload() {
+		DrupalConnect.PhotoParams params = new DrupalConnect.PhotoParams();
+		params.nid = 1;
+		params.fileName = "photo.jpg";
+		params.file = photo;
+		
+		Outcome outcome = new Outcome();
+		drupal.uploadPhoto(params, outcome);
+		return outcome;
+	}
+}
@@ -0,0 +1,74 @@
+package com.bitgriff.http;
+
+import java.net.SocketTimeoutException;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests of HttpMultipartClient against stand-in Drupal installation.
+ */
+public class HttpMultipartClientTest extends TestCase {
+	private StandInDrupal server;
+	
+	/**
+	 * Listener, that ignores progress.
+	 */
+	private static class SilentListener implements HttpProgressListener {
+		public void sendStarted(int total) {
+		}
+		
+		public void sendProgress(int uploaded, int total) {
+		}
+		
+		public void sendError(Exception ex) {
+		}
+		
+		public void sendDone() {
+		}
+	}
+	
+	@Override
+	protected void setUp() throws Exception {
+		server = new StandInDrupal();
+	}
+	
+	@Override
+	protected void tearDown() {
+		server.stop();
+	}
+	
+	public void testExecute() throws Exception {
+		HttpMultipartClient client = createChunkRequest("upload1");
+		
+		assertEquals("OFFSET 5", client.execute());
+	}
+	
+	public void testReadTimeout() throws Exception {
+		server.stallChunkResponse(1);
+		
+		HttpMultipartClient client = createChunkRequest("upload2");
+		client.setReadTimeout(500);
+		
+		long start = System.nanoTime();
+		try {
+			client.execute();
+			fail("Stalled response is read");
+		}
+		catch (SocketTimeoutException e) {
+			long elapsed = (System.nanoTime() - start) / 1000000;
+			assertTrue("Timed out after " + elapsed + " ms", elapsed < 5000);
+		}
+	}
+	
+	private HttpMultipartClient createChunkRequest(String uploadId) throws Exception {
+		HttpMultipartClient client = new HttpMultipartClient(server.getChunkUrl(), new SilentListener());
+		client.addField("upload_id", uploadId);
+		client.addField("nid", "1");
+		client.addField("name", "photo.jpg");
+		client.addField("total", "10");
+		client.addField("offset", "0");
+		client.addField("md5", "5d41402abc4b2a76b9719d911017c592");
+		client.addField("chunk", "hello");
+		return client;
+	}
+}
@@ -0,0 +1,344 @@
+package com.bitgriff.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import redstone.xmlrpc.XmlRpcServer;
+import redstone.xmlrpc.XmlRpcStruct;
+
+/**
+ * Local HTTP server standing in for Drupal installation in tests. It serves 
+ * user.login and user.logout over XML-RPC, and chunked photo upload the way 
+ * photoupload module does. Each connection serves one request. Responses 
+ * to chosen requests can be dropped, to test resuming of uploads.
+ */
+public class StandInDrupal {
+	final private static String BOUNDARY = "xgeyy6u56845245ggbh576youu27o96j8564235f";
+	
+	/**
+	 * Handler of user service.
+	 */
+	public static class UserHandler {
+		public XmlRpcStruct login(String username, String password) {
+			XmlRpcStruct session = new XmlRpcStruct();
+			session.put("sessid", "s" + username.hashCode());
+			session.put("session_name", "SESS");
+			return session;
+		}
+		
+		public boolean logout() {
+			return true;
+		}
+	}
+	
+	private ServerSocket serverSocket;
+	private XmlRpcServer xmlrpc = new XmlRpcServer();
+	private Thread acceptor;
+	
+	// upload state, as kept by photoupload module in files
+	private Map<String, ByteArrayOutputStream> parts = new HashMap<String, ByteArrayOutputStream>();
+	private Set<String> done = new HashSet<String>();
+	private List<byte[]> photos = new ArrayList<byte[]>();
+	private boolean rememberingDone = true;
+	
+	private int chunkRequests;
+	private long receivedBytes;
+	private Set<Integer> droppedResponses = new HashSet<Integer>();
+	private Set<Integer> stalledResponses = new HashSet<Integer>();
+	private CountDownLatch stopped = new CountDownLatch(1);
+	
+	public StandInDrupal() throws IOException {
+		xmlrpc.addInvocationHandler("user", new UserHandler());
+		
+		serverSocket = new ServerSocket(0, 50, InetAddress.getByName("localhost"));
+		acceptor = new Thread("StandInDrupal") {
+			@Override
+			public void run() {
+				accept();
+			}
+		};
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+	
+	/**
+	 * Returns base url of the stand-in installation.
+	 */
+	public String getUrlBase() {
+		return "http://localhost:" + serverSocket.getLocalPort() + "/drupal";
+	}
+	
+	/**
+	 * Returns the XML-RPC server, to add handlers of other services.
+	 */
+	public XmlRpcServer getXmlRpcServer() {
+		return xmlrpc;
+	}
+	
+	/**
+	 * Sets whether completed uploads are remembered, and "DONE" is answered again
+	 * for them. If not, server behaves like photoupload module did before, and
+	 * answers "OFFSET 0".
+	 */
+	public synchronized void setRememberingDone(boolean rememberingDone) {
+		this.rememberingDone = rememberingDone;
+	}
+	
+	/**
+	 * Drops response to chunk request with given number, counted from 1. Request
+	 * is processed, and connection is closed without response.
+	 */
+	public synchronized void dropChunkResponse(int request) {
+		droppedResponses.add(request);
+	}
+	
+	/**
+	 * Stalls response to chunk request with given number, counted from 1. Request
+	 * is processed, and connection is kept open without response until server is 
+	 * stopped, like half-open connection.
+	 */
+	public synchronized void stallChunkResponse(int request) {
+		stalledResponses.add(request);
+	}
+	
+	/**
+	 * Returns url of chunk upload endpoint.
+	 */
+	public String getChunkUrl() {
+		return getUrlBase() + "/?q=photoupload/chunk";
+	}
+	
+	public synchronized int getChunkRequests() {
+		return chunkRequests;
+	}
+	
+	/**
+	 * Returns number of photo bytes appended to partial files.
+	 */
+	public synchronized long getReceivedBytes() {
+		return receivedBytes;
+	}
+	
+	/**
+	 * Returns photos attached to pages.
+	 */
+	public synchronized List<byte[]> getPhotos() {
+		return new ArrayList<byte[]>(photos);
+	}
+	
+	public void stop() {
+		stopped.countDown();
+		try {
+			serverSocket.close();
+		}
+		catch (IOException e) {
+		}
+	}
+	
+	private void accept() {
+		while (true) {
+			final Socket socket;
+			try {
+				socket = serverSocket.accept();
+			}
+			catch (IOException e) {
+				return;
+			}
+			
+			Thread thread = new Thread("StandInDrupal connection") {
+				@Override
+				public void run() {
+					try {
+						serve(socket);
+					}
+					catch (Exception e) {
+						// client has gone
+					}
+					finally {
+						try { socket.close(); } catch (IOException e) { }
+					}
+				}
+			};
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+	
+	private void serve(Socket socket) throws Exception {
+		InputStream in = socket.getInputStream();
+		String requestLine = readLine(in);
+		int contentLength = 0;
+		String line;
+		
+		while ((line = readLine(in)).length() > 0) {
+			int iColon = line.indexOf(':');
+			if (iColon != -1 && line.substring(0, iColon).trim().equalsIgnoreCase("Content-Length"))
+				contentLength = Integer.parseInt(line.substring(iColon + 1).trim());
+		}
+		
+		byte[] body = new byte[contentLength];
+		for (int read = 0; read < contentLength; ) {
+			int len = in.read(body, read, contentLength - read);
+			if (len == -1)
+				throw new EOFException();
+			read += len;
+		}
+		
+		String response;
+		String contentType;
+		
+		if (requestLine.indexOf("q=androidrpc") != -1) {
+			StringWriter writer = new StringWriter();
+			xmlrpc.execute(new ByteArrayInputStream(body), writer);
+			response = writer.toString();
+			contentType = "text/xml; charset=utf-8";
+		}
+		else if (requestLine.indexOf("q=photoupload/chunk") != -1) {
+			int request;
+			synchronized (this) {
+				request = chunkRequests + 1;
+				response = uploadChunk(parseMultipart(body));
+			}
+			if (isStalled(request)) {
+				stopped.await();
+				return;
+			}
+			if (response == null)
+				return;
+			contentType = "text/plain; charset=utf-8";
+		}
+		else {
+			respond(socket, "404 Not Found", "text/plain", "");
+			return;
+		}
+		
+		respond(socket, "200 OK", contentType, response);
+	}
+	
+	/**
+	 * Accepts photo chunk, like photoupload_upload_chunk() does.
+	 * @return response, or <code>null</code> if it is dropped
+	 */
+	private synchronized String uploadChunk(Map<String, byte[]> fields) throws Exception {
+		int request = ++chunkRequests;
+		
+		String uploadId = field(fields, "upload_id");
+		int total = Integer.parseInt(field(fields, "total"));
+		long offset = Long.parseLong(field(fields, "offset"));
+		String md5 = field(fields, "md5");
+		byte[] chunk = fields.get("chunk");
+		
+		String response;
+		
+		if (done.contains(uploadId)) {
+			response = "DONE OK";
+		}
+		else {
+			ByteArrayOutputStream part = parts.get(uploadId);
+			if (part == null) {
+				part = new ByteArrayOutputStream();
+				parts.put(uploadId, part);
+			}
+			
+			if (offset == part.size() && chunk != null && md5(chunk).equals(md5) && part.size() + chunk.length <= total) {
+				part.write(chunk);
+				receivedBytes += chunk.length;
+			}
+			
+			if (part.size() < total) {
+				response = "OFFSET " + part.size();
+			}
+			else {
+				photos.add(part.toByteArray());
+				parts.remove(uploadId);
+				if (rememberingDone)
+					done.add(uploadId);
+				response = "DONE OK";
+			}
+		}
+		
+		return droppedResponses.contains(request) ? null : response;
+	}
+	
+	private synchronized boolean isStalled(int request) {
+		return stalledResponses.contains(request);
+	}
+	
+	private static String field(Map<String, byte[]> fields, String name) throws Exception {
+		return new String(fields.get(name), "UTF-8");
+	}
+	
+	/**
+	 * Splits multipart/form-data body into fields, by name.
+	 */
+	private static Map<String, byte[]> parseMultipart(byte[] body) throws Exception {
+		Map<String, byte[]> fields = new HashMap<String, byte[]>();
+		String text = new String(body, "ISO-8859-1");
+		String delimiter = "--" + BOUNDARY;
+		int iPart = text.indexOf(delimiter);
+		
+		while (iPart != -1 && !text.startsWith(delimiter + "--", iPart)) {
+			int iHeaders = iPart + delimiter.length() + 2;
+			int iContent = text.indexOf("\r\n\r\n", iHeaders) + 4;
+			int iNext = text.indexOf("\r\n" + delimiter, iContent);
+			
+			String headers = text.substring(iHeaders, iContent);
+			int iName = headers.indexOf("name=\"") + "name=\"".length();
+			String name = headers.substring(iName, headers.indexOf('"', iName));
+			
+			fields.put(name, text.substring(iContent, iNext).getBytes("ISO-8859-1"));
+			iPart = iNext + 2;
+		}
+		return fields;
+	}
+	
+	private static String md5(byte[] data) throws Exception {
+		StringBuilder hex = new StringBuilder();
+		for (byte b : MessageDigest.getInstance("MD5").digest(data)) {
+			hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+			hex.append(Character.forDigit(b & 0xf, 16));
+		}
+		return hex.toString();
+	}
+	
+	private static void respond(Socket socket, String status, String contentType, String body) throws IOException {
+		byte[] data = body.getBytes("UTF-8");
+		String head = "HTTP/1.1 " + status + "\r\n"
+			+ "Content-Type: " + contentType + "\r\n"
+			+ "Content-Length: " + data.length + "\r\n"
+			+ "Connection: close\r\n\r\n";
+		
+		OutputStream out = socket.getOutputStream();
+		out.write(head.getBytes("ISO-8859-1"));
+		out.write(data);
+		out.flush();
+	}
+	
+	private static String readLine(InputStream in) throws IOException {
+		StringBuilder line = new StringBuilder();
+		int c;
+		while ((c = in.read()) != '\n') {
+			if (c == -1)
+				throw new EOFException();
+			if (c != '\r')
+				line.append((char) c);
+		}
+		return line.toString();
+	}
+}
@@ -0,0 +1,154 @@
+package com.bitgriff.image;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests of ImageScaler, the pure-Java core of photo preprocessing.
+ */
+public class ImageScalerTest extends TestCase {
+	/**
+	 * Listener, that keeps copies of destination rows and checks their order.
+	 */
+	private static class Collector implements ImageScaler.RowListener {
+		int[][] rows;
+		int count;
+		
+		Collector(int height) {
+			rows = new int[height][];
+		}
+		
+		public void row(int y, int[] pixels) {
+			assertEquals("row order", count, y);
+			rows[count++] = pixels.clone();
+		}
+	}
+	
+	/**
+	 * Compares scaler with exact area average, computed in floating point,
+	 * for random images and sizes.
+	 */
+	public void testAreaAverage() {
+		Random rnd = new Random(5);
+		
+		for (int n = 0; n < 100; n++) {
+			int srcWidth = 1 + rnd.nextInt(80);
+			int srcHeight = 1 + rnd.nextInt(80);
+			int dstWidth = 1 + rnd.nextInt(srcWidth);
+			int dstHeight = 1 + rnd.nextInt(srcHeight);
+			
+			int[] src = new int[srcWidth * srcHeight];
+			for (int i = 0; i < src.length; i++)
+				src[i] = rnd.nextInt();
+			
+			Collector dst = scale(src, srcWidth, srcHeight, dstWidth, dstHeight);
+			assertEquals(dstHeight, dst.count);
+			
+			for (int y = 0; y < dstHeight; y++) {
+				for (int x = 0; x < dstWidth; x++) {
+					int pixel = dst.rows[y][x];
+					assertEquals("alpha", 0xff, pixel >>> 24);
+					
+					for (int shift = 0; shift <= 16; shift += 8) {
+						double expected = average(src, srcWidth, srcHeight, dstWidth, dstHeight, x, y, shift);
+						int actual = (pixel >> shift) & 0xff;
+						assertTrue(srcWidth + "x" + srcHeight + " to " + dstWidth + "x" + dstHeight 
+								+ " at " + x + "," + y + ": " + actual + " instead of " + expected,
+								Math.abs(expected - actual) <= 0.51);
+					}
+				}
+			}
+		}
+	}
+	
+	public void testConstantImage() {
+		int[] src = new int[400 * 300];
+		Arrays.fill(src, 0x123456);
+		
+		Collector dst = scale(src, 400, 300, 160, 120);
+		
+		for (int[] row : dst.rows) {
+			assertEquals(160, row.length);
+			for (int pixel : row)
+				assertEquals(0xff123456, pixel);
+		}
+	}
+	
+	public void testSameSize() {
+		int[] src = new int[7 * 5];
+		for (int i = 0; i < src.length; i++)
+			src[i] = 0xff000000 | (i * 0x010203);
+		
+		Collector dst = scale(src, 7, 5, 7, 5);
+		
+		for (int y = 0; y < 5; y++)
+			assertTrue(Arrays.equals(Arrays.copyOfRange(src, y * 7, y * 7 + 7), dst.rows[y]));
+	}
+	
+	/**
+	 * Decoder can return less rows than expected, finish() completes the image.
+	 */
+	public void testShortSource() {
+		Collector dst = new Collector(3);
+		ImageScaler scaler = new ImageScaler(10, 10, 3, 3, dst);
+		
+		int[] row = new int[10];
+		Arrays.fill(row, 0xffffff);
+		for (int y = 0; y < 4; y++)
+			scaler.pushRow(row, 0);
+		scaler.finish();
+		
+		assertEquals(3, dst.count);
+		assertEquals(0xffffffff, dst.rows[2][1]);
+	}
+	
+	public void testFitSize() {
+		assertTrue(Arrays.equals(new int[] { 1600, 1200 }, ImageScaler.fitSize(4000, 3000, 1600)));
+		assertTrue(Arrays.equals(new int[] { 1200, 1600 }, ImageScaler.fitSize(3000, 4000, 1600)));
+		// never enlarged
+		assertTrue(Arrays.equals(new int[] { 800, 600 }, ImageScaler.fitSize(800, 600, 1600)));
+	}
+	
+	public void testSampleSize() {
+		assertEquals(2, ImageScaler.sampleSize(4000, 3000, 1600, 1200));
+		assertEquals(4, ImageScaler.sampleSize(4000, 3000, 1000, 750));
+		assertEquals(1, ImageScaler.sampleSize(100, 100, 100, 100));
+	}
+	
+	private static Collector scale(int[] src, int srcWidth, int srcHeight, int dstWidth, int dstHeight) {
+		Collector dst = new Collector(dstHeight);
+		ImageScaler scaler = new ImageScaler(srcWidth, srcHeight, dstWidth, dstHeight, dst);
+		
+		for (int y = 0; y < srcHeight; y++)
+			scaler.pushRow(src, y * srcWidth);
+		scaler.finish();
+		return dst;
+	}
+	
+	/**
+	 * Returns exact average of color component over area of destination pixel.
+	 */
+	private static double average(int[] src, int srcWidth, int srcHeight, int dstWidth, int dstHeight, 
+			int x, int y, int shift) {
+		double x0 = (double) x * srcWidth / dstWidth;
+		double x1 = (double) (x + 1) * srcWidth / dstWidth;
+		double y0 = (double) y * srcHeight / dstHeight;
+		double y1 = (double) (y + 1) * srcHeight / dstHeight;
+		double sum = 0;
+		double weights = 0;
+		
+		for (int sy = (int) y0; sy < y1 && sy < srcHeight; sy++) {
+			for (int sx = (int) x0; sx < x1 && sx < srcWidth; sx++) {
+				double weight = (Math.min(sx + 1, x1) - Math.max(sx, x0)) * (Math.min(sy + 1, y1) - Math.max(sy, y0));
+				if (weight <= 0)
+					continue;
+				
+				sum += weight * ((src[sy * srcWidth + sx] >> shift) & 0xff);
+				weights += weight;
+			}
+		}
+		return sum / weights;
+	}
+}
@@ -0,0 +1,309 @@
+package com.bitgriff.queue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.bitgriff.http.HttpStatusException;
+import com.bitgriff.http.UploadRejectedException;
+
+/**
+ * Tests of OperationQueue: retrying and dropping of failed operations, and 
+ * recovery of the log file after process is killed.
+ */
+public class OperationQueueTest extends TestCase {
+	final private static int MAX_ATTEMPTS = 3;
+	final private static long TIMEOUT = 10 * 1000;
+	
+	private File file;
+	private OperationQueue queue;
+	private Results results = new Results();
+	
+	/**
+	 * Handler, that fails page creation and photo upload with given exceptions, 
+	 * before they succeed.
+	 */
+	private static class FailingHandler implements OperationQueue.Handler {
+		List<Exception> failures = new ArrayList<Exception>();
+		List<Exception> uploadFailures = new ArrayList<Exception>();
+		int attempts;
+		int uploadAttempts;
+		
+		public synchronized int createPage(String title, String body) throws Exception {
+			attempts++;
+			if (!failures.isEmpty())
+				throw failures.remove(0);
+			return 100 + attempts;
+		}
+		
+		public synchronized void uploadPhoto(int nid, File photo) throws Exception {
+			uploadAttempts++;
+			if (!uploadFailures.isEmpty())
+				throw uploadFailures.remove(0);
+		}
+		
+		public void deletePage(int nid) {
+		}
+	}
+	
+	/**
+	 * Listener, that keeps results of operations.
+	 */
+	private static class Results implements OperationQueue.Listener {
+		List<Operation> done = new ArrayList<Operation>();
+		List<Operation> failed = new ArrayList<Operation>();
+		List<Exception> errors = new ArrayList<Exception>();
+		
+		public synchronized void operationDone(Operation op) {
+			done.add(op);
+			notifyAll();
+		}
+		
+		public synchronized void operationFailed(Operation op, Exception ex) {
+			failed.add(op);
+			errors.add(ex);
+			notifyAll();
+		}
+		
+		synchronized void await(int count) throws InterruptedException {
+			long end = System.currentTimeMillis() + TIMEOUT;
+			while (done.size() + failed.size() < count && System.currentTimeMillis() < end)
+				wait(100);
+			assertEquals(count, done.size() + failed.size());
+		}
+	}
+	
+	@Override
+	protected void setUp() throws Exception {
+		file = File.createTempFile("operations", ".queue");
+	}
+	
+	@Override
+	protected void tearDown() throws Exception {
+		if (queue != null)
+			queue.close();
+		file.delete();
+	}
+	
+	/**
+	 * Network and authentication failures are retried until they pass, 
+	 * regardless of number of attempts.
+	 */
+	public void testTransientFailuresAreRetried() throws Exception {
+		FailingHandler handler = new FailingHandler();
+		for (int i = 0; i < 3 * MAX_ATTEMPTS; i++)
+			handler.failures.add(i % 2 == 0 ? new IOException("Not logged in") 
+				: new RuntimeException("Network error", new IOException("Connection reset")));
+		
+		long ref = open(handler).createPage("title", "body");
+		queue.start();
+		
+		results.await(1);
+		assertEquals(1, results.done.size());
+		assertEquals(ref, results.done.get(0).getId());
+		assertEquals(3 * MAX_ATTEMPTS + 1, handler.attempts);
+		assertEquals(0, queue.size());
+	}
+	
+	public void testPermanentFailureIsDropped() throws Exception {
+		FailingHandler handler = new FailingHandler();
+		for (int i = 0; i < MAX_ATTEMPTS; i++)
+			handler.failures.add(new IllegalArgumentException("Access denied"));
+		
+		long ref = open(handler).createPage("title", "body");
+		queue.uploadPhotoToCreated(ref, new File("photo.jpg"));
+		queue.start();
+		
+		// upload to the page is dropped as well
+		results.await(2);
+		assertEquals(2, results.failed.size());
+		assertEquals(ref, results.failed.get(0).getId());
+		assertEquals("Access denied", results.errors.get(0).getMessage());
+		assertEquals(MAX_ATTEMPTS, handler.attempts);
+		assertEquals(0, queue.size());
+	}
+	
+	/**
+	 * Transient failures do not count towards attempts limit of permanent ones.
+	 */
+	public void testTransientFailuresAreNotCounted() throws Exception {
+		FailingHandler handler = new FailingHandler();
+		for (int i = 0; i < MAX_ATTEMPTS - 1; i++) {
+			handler.failures.add(new IOException("Connection refused"));
+			handler.failures.add(new IllegalStateException("Server error"));
+		}
+		
+		open(handler).createPage("title", "body");
+		queue.start();
+		
+		results.await(1);
+		assertEquals(1, results.done.size());
+		assertEquals(2 * (MAX_ATTEMPTS - 1) + 1, handler.attempts);
+	}
+	
+	/**
+	 * Rejected photo upload is permanent failure, so it is dropped after attempts
+	 * limit, and following page creation is executed.
+	 */
+	public void testRejectedUploadDoesNotBlockQueue() throws Exception {
+		FailingHandler handler = new FailingHandler();
+		for (int i = 0; i < 2 * MAX_ATTEMPTS; i++)
+			handler.uploadFailures.add(new UploadRejectedException("Photo chunk is rejected at offset 0"));
+		
+		long ref = open(handler).createPage("title", "body");
+		queue.uploadPhotoToCreated(ref, new File("photo.jpg"));
+		long next = queue.createPage("next", "body");
+		queue.start();
+		
+		results.await(3);
+		assertEquals(1, results.failed.size());
+		assertEquals(Operation.UPLOAD_PHOTO, results.failed.get(0).getType());
+		assertTrue(results.errors.get(0) instanceof UploadRejectedException);
+		assertEquals(MAX_ATTEMPTS, handler.uploadAttempts);
+		assertEquals(2, results.done.size());
+		assertEquals(next, results.done.get(1).getId());
+		assertEquals(0, queue.size());
+	}
+	
+	/**
+	 * Request, refused by server with HTTP 4xx, is dropped at once, 
+	 * while expired session (HTTP 403) is retried.
+	 */
+	public void testRefusedRequestIsDroppedAtOnce() throws Exception {
+		FailingHandler handler = new FailingHandler();
+		handler.failures.add(new HttpStatusException(403, "HTTP/1.1 403 Forbidden"));
+		handler.failures.add(new HttpStatusException(400, "HTTP/1.1 400 Bad Request"));
+		
+		long ref = open(handler).createPage("title", "body");
+		queue.start();
+		
+		results.await(1);
+		assertEquals(1, results.failed.size());
+		assertEquals(ref, results.failed.get(0).getId());
+		assertEquals(2, handler.attempts);
+	}
+	
+	/**
+	 * Server error (HTTP 5xx) is permanent, and is retried up to attempts limit.
+	 */
+	public void testServerErrorIsDroppedAfterAttempts() throws Exception {
+		FailingHandler handler = new FailingHandler();
+		for (int i = 0; i < 2 * MAX_ATTEMPTS; i++)
+			handler.failures.add(new HttpStatusException(500, "HTTP/1.1 500 Internal Server Error"));
+		
+		open(handler).createPage("title", "body");
+		queue.start();
+		
+		results.await(1);
+		assertEquals(1, results.failed.size());
+		assertEquals(MAX_ATTEMPTS, handler.attempts);
+	}
+	
+	/**
+	 * Page creation, that is done but not saved as completed when process 
+	 * is killed, is executed again after restart.
+	 */
+	public void testCreateIsRepeatedAfterCrash() throws Exception {
+		final File snapshot = File.createTempFile("operations", ".snapshot");
+		FailingHandler handler = new FailingHandler() {
+			@Override
+			public synchronized int createPage(String title, String body) throws Exception {
+				int nid = super.createPage(title, body);
+				// process is killed here: log is left as it is at this moment
+				copy(file, snapshot);
+				return nid;
+			}
+		};
+		
+		try {
+			long ref = open(handler).createPage("title", "body");
+			queue.start();
+			results.await(1);
+			queue.close();
+			
+			queue = null;
+			FailingHandler restarted = new FailingHandler();
+			open(restarted, snapshot).start();
+			results.await(2);
+			
+			assertEquals(ref, results.done.get(1).getId());
+			assertEquals(1, restarted.attempts);
+		}
+		finally {
+			if (queue != null)
+				queue.close();
+			queue = null;
+			snapshot.delete();
+		}
+	}
+	
+	/**
+	 * Record, that is written partially when process is killed, is truncated,
+	 * and operations before it are replayed.
+	 */
+	public void testTornRecordIsTruncated() throws Exception {
+		FailingHandler handler = new FailingHandler();
+		long ref = open(handler).createPage("title", "body");
+		queue.uploadPhotoToCreated(ref, new File("photo.jpg"));
+		queue.close();
+		
+		long length = file.length();
+		RandomAccessFile log = new RandomAccessFile(file, "rw");
+		try {
+			log.seek(length);
+			log.writeInt(40);
+			log.writeInt(0x12345678);
+			log.write(new byte[10]);
+		}
+		finally {
+			log.close();
+		}
+		
+		open(handler);
+		assertEquals(length, file.length());
+		assertEquals(2, queue.size());
+		
+		queue.start();
+		results.await(2);
+		assertEquals(2, results.done.size());
+		assertEquals(results.done.get(0).getNid(), results.done.get(1).getNid());
+	}
+	
+	private static void copy(File from, File to) throws IOException {
+		InputStream in = new FileInputStream(from);
+		try {
+			OutputStream out = new FileOutputStream(to);
+			try {
+				byte buf[] = new byte[4096];
+				int len;
+				while ((len = in.read(buf)) != -1)
+					out.write(buf, 0, len);
+			}
+			finally {
+				out.close();
+			}
+		}
+		finally {
+			in.close();
+		}
+	}
+	
+	private OperationQueue open(OperationQueue.Handler handler) throws IOException {
+		return open(handler, file);
+	}
+	
+	private OperationQueue open(OperationQueue.Handler handler, File file) throws IOException {
+		queue = new OperationQueue(file, handler);
+		queue.setRetry(1, 10, MAX_ATTEMPTS);
+		queue.setListener(results);
+		return queue;
+	}
+}
@@ -0,0 +1,213 @@
+/*
+    This library is free software; you can redistribute it and/or modify it under the terms
+    of the GNU Lesser General Public License as published by the Free Software Foundation;
+    either version 2.1 of the License, or (at your option) any later version.
+
+    This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+    without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+    See the GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License along with this
+    library; if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+    Boston, MA  02111-1307  USA
+*/
+
+package redstone.xmlrpc;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import javax.net.ssl.SSLContext;
+
+/**
+ *  Local HTTP server standing in for an XML-RPC endpoint in tests. Calls are served
+ *  by an XmlRpcServer through its execute() method taking the content codings of the
+ *  request, the way a host of the server would.
+ */
+
+public class StandInServer
+{
+    /**
+     *  Starts an HTTP server on a free port of the loopback interface.
+     *
+     *  @param server The server handling the calls.
+     */
+
+    public StandInServer( XmlRpcServer server ) throws IOException
+    {
+        this( server, null );
+    }
+
+
+    /**
+     *  Starts a server on a free port of the loopback interface.
+     *
+     *  @param server The server handling the calls.
+     *  @param sslContext The context of HTTPS connections, or null to serve HTTP.
+     */
+
+    public StandInServer( final XmlRpcServer server, SSLContext sslContext ) throws IOException
+    {
+        InetSocketAddress address = new InetSocketAddress( "localhost", 0 );
+
+        if ( sslContext != null )
+        {
+            HttpsServer httpsServer = HttpsServer.create( address, 0 );
+            httpsServer.setHttpsConfigurator( new HttpsConfigurator( sslContext ) );
+            httpServer = httpsServer;
+        }
+        else
+        {
+            httpServer = HttpServer.create( address, 0 );
+        }
+
+        httpServer.createContext( "/", new HttpHandler()
+        {
+            public void handle( HttpExchange exchange ) throws IOException
+            {
+                serve( server, exchange );
+            }
+        } );
+
+        httpServer.start();
+
+        url = ( sslContext != null ? "https" : "http" ) +
+            "://localhost:" + httpServer.getAddress().getPort() + "/";
+    }
+
+
+    /**
+     *  Returns the URL of the endpoint.
+     */
+
+    public String getUrl()
+    {
+        return url;
+    }
+
+
+    /**
+     *  Returns the number of requests received.
+     */
+
+    public synchronized int getRequestCount()
+    {
+        return requestCount;
+    }
+
+
+    /**
+     *  Returns the Content-Encoding header of the latest request.
+     */
+
+    public synchronized String getLastContentEncoding()
+    {
+        return lastContentEncoding;
+    }
+
+
+    /**
+     *  Sets whether compressed requests are accepted. If they are, responses announce
+     *  so in an Accept-Encoding header, and if not, compressed requests are answered
+     *  with "415 Unsupported Media Type".
+     */
+
+    public synchronized void setAcceptingCompression( boolean isAcceptingCompression )
+    {
+        this.isAcceptingCompression = isAcceptingCompression;
+    }
+
+
+    /**
+     *  Stops the server.
+     */
+
+    public void stop()
+    {
+        httpServer.stop( 0 );
+    }
+
+
+    private void serve( XmlRpcServer server, HttpExchange exchange ) throws IOException
+    {
+        String contentEncoding = exchange.getRequestHeaders().getFirst( "Content-Encoding" );
+        String acceptEncoding = exchange.getRequestHeaders().getFirst( "Accept-Encoding" );
+        boolean isAccepting;
+
+        synchronized ( this )
+        {
+            ++requestCount;
+            lastContentEncoding = contentEncoding;
+            isAccepting = isAcceptingCompression;
+        }
+
+        if ( contentEncoding != null && !isAccepting )
+        {
+            exchange.sendResponseHeaders( 415, -1 );
+            exchange.close();
+            return;
+        }
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        XmlRpcCallMetrics metrics;
+
+        try
+        {
+            metrics = server.execute( exchange.getRequestBody(), contentEncoding, acceptEncoding, output );
+        }
+        catch ( XmlRpcRequestTooLargeException e )
+        {
+            exchange.sendResponseHeaders( 413, -1 );
+            exchange.close();
+            return;
+        }
+        catch ( IOException e )
+        {
+            exchange.sendResponseHeaders( 415, -1 );
+            exchange.close();
+            return;
+        }
+        catch ( XmlRpcException e )
+        {
+            exchange.sendResponseHeaders( 400, -1 );
+            exchange.close();
+            return;
+        }
+
+        if ( metrics.getResponseEncoding() != null )
+        {
+            exchange.getResponseHeaders().set( "Content-Encoding", metrics.getResponseEncoding() );
+        }
+
+        if ( isAccepting )
+        {
+            exchange.getResponseHeaders().set( "Accept-Encoding", "gzip, deflate" );
+        }
+
+        exchange.getResponseHeaders().set( "Content-Type", "text/xml; charset=UTF-8" );
+        exchange.sendResponseHeaders( 200, output.size() );
+        output.writeTo( exchange.getResponseBody() );
+        exchange.close();
+    }
+
+
+    /** The server receiving the requests. */
+    private HttpServer httpServer;
+
+    /** The URL of the endpoint. */
+    private String url;
+
+    /** The number of requests received. */
+    private int requestCount;
+
+    /** The Content-Encoding header of the latest request. */
+    private String lastContentEncoding;
+
+    /** Indicates if compressed requests are accepted. */
+    private boolean isAcceptingCompression = true;
+}
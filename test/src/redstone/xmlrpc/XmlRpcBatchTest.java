@@ -0,0 +1,129 @@
+/*
+    This library is free software; you can redistribute it and/or modify it under the terms
+    of the GNU Lesser General Public License as published by the Free Software Foundation;
+    either version 2.1 of the License, or (at your option) any later version.
+
+    This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+    without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+    See the GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License along with this
+    library; if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+    Boston, MA  02111-1307  USA
+*/
+
+package redstone.xmlrpc;
+
+import junit.framework.TestCase;
+
+/**
+ *  Tests of XmlRpcBatch against StandInServers.
+ */
+
+public class XmlRpcBatchTest extends TestCase
+{
+    /**
+     *  Handler of the calls, counting them and delaying each by a given time.
+     */
+
+    public static class EchoHandler
+    {
+        public EchoHandler( long delay )
+        {
+            this.delay = delay;
+        }
+
+
+        public String echo( String value ) throws InterruptedException
+        {
+            synchronized ( this )
+            {
+                ++callCount;
+            }
+
+            Thread.sleep( delay );
+            return value;
+        }
+
+
+        public synchronized int getCallCount()
+        {
+            return callCount;
+        }
+
+
+        private long delay;
+        private int callCount;
+    }
+
+
+    public void testCancelledInvocationsAreNotSent() throws Exception
+    {
+        EchoHandler handler = new EchoHandler( 0 );
+        StandInServer server = createServer( handler );
+
+        try
+        {
+            XmlRpcBatch batch = new XmlRpcClient( server.getUrl(), false ).createBatch();
+            XmlRpcFuture first = batch.add( "test.echo", new Object[] { "first" } );
+            XmlRpcFuture second = batch.add( "test.echo", new Object[] { "second" } );
+            XmlRpcFuture third = batch.add( "test.echo", new Object[] { "third" } );
+
+            assertTrue( second.cancel( false ) );
+            batch.flush();
+
+            assertEquals( "first", first.getResult() );
+            assertEquals( "third", third.getResult() );
+            assertTrue( second.isCancelled() );
+            assertEquals( 2, handler.getCallCount() );
+
+            // A batch of cancelled invocations only is not sent at all.
+
+            XmlRpcFuture cancelled = batch.add( "test.echo", new Object[] { "cancelled" } );
+            cancelled.cancel( false );
+            batch.flush();
+
+            assertEquals( 1, server.getRequestCount() );
+            assertEquals( 2, handler.getCallCount() );
+        }
+        finally
+        {
+            server.stop();
+        }
+    }
+
+
+    public void testSlowServerDelaysNoOtherBatch() throws Exception
+    {
+        StandInServer slowServer = createServer( new EchoHandler( 3000 ) );
+        StandInServer fastServer = createServer( new EchoHandler( 0 ) );
+
+        try
+        {
+            XmlRpcBatch slowBatch = new XmlRpcClient( slowServer.getUrl(), false ).createBatch( 0, 50 );
+            XmlRpcBatch fastBatch = new XmlRpcClient( fastServer.getUrl(), false ).createBatch( 0, 100 );
+
+            XmlRpcFuture slow = slowBatch.add( "test.echo", new Object[] { "slow" } );
+            XmlRpcFuture fast = fastBatch.add( "test.echo", new Object[] { "fast" } );
+
+            long start = System.currentTimeMillis();
+            assertEquals( "fast", fast.getResult() );
+            assertTrue( System.currentTimeMillis() - start < 2000 );
+            assertFalse( slow.isDone() );
+            assertEquals( "slow", slow.getResult() );
+        }
+        finally
+        {
+            slowServer.stop();
+            fastServer.stop();
+        }
+    }
+
+
+    private static StandInServer createServer( EchoHandler handler ) throws Exception
+    {
+        XmlRpcServer server = new XmlRpcServer();
+        server.addInvocationHandler( "test", handler );
+        return new StandInServer( server );
+    }
+}
@@ -0,0 +1,167 @@
+/*
+    This library is free software; you can redistribute it and/or modify it under the terms
+    of the GNU Lesser General Public License as published by the Free Software Foundation;
+    either version 2.1 of the License, or (at your option) any later version.
+
+    This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+    without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+    See the GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License along with this
+    library; if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+    Boston, MA  02111-1307  USA
+*/
+
+package redstone.xmlrpc;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import junit.framework.TestCase;
+import redstone.xmlrpc.util.Base64;
+
+/**
+ *  Tests of base64 values spilled to temporary files by every parser engine.
+ */
+
+public class XmlRpcBinaryTest extends TestCase
+{
+    protected void setUp()
+    {
+        directory = new File( System.getProperty( "java.io.tmpdir" ), "spill-" + System.nanoTime() );
+        assertTrue( directory.mkdir() );
+    }
+
+
+    protected void tearDown()
+    {
+        File[] files = directory.listFiles();
+
+        for ( int i = 0; i < files.length; ++i )
+        {
+            files[ i ].delete();
+        }
+
+        directory.delete();
+    }
+
+
+    public void testSpilledValues() throws Exception
+    {
+        for ( int i = 0; i < ENGINES.length; ++i )
+        {
+            Collector parser = createParser( ENGINES[ i ] );
+            parser.parse( new ByteArrayInputStream( createMessage( true ).getBytes( "UTF-8" ) ) );
+
+            XmlRpcArray values = ( XmlRpcArray ) parser.values.get( 0 );
+            XmlRpcBinary first = ( XmlRpcBinary ) values.get( 0 );
+            XmlRpcBinary second = ( XmlRpcBinary ) values.get( 1 );
+
+            assertTrue( values.get( 2 ) instanceof byte[] );
+            assertTrue( Arrays.equals( createData( 1 ), first.getBytes() ) );
+            assertTrue( Arrays.equals( createData( 2 ), second.getBytes() ) );
+            assertEquals( 2, directory.listFiles().length );
+
+            first.dispose();
+            second.dispose();
+            assertEquals( 0, directory.listFiles().length );
+        }
+    }
+
+
+    public void testSpilledValuesOfMalformedMessage() throws Exception
+    {
+        for ( int i = 0; i < ENGINES.length; ++i )
+        {
+            Collector parser = createParser( ENGINES[ i ] );
+
+            try
+            {
+                parser.parse( new ByteArrayInputStream( createMessage( false ).getBytes( "UTF-8" ) ) );
+                fail( "Malformed message accepted" );
+            }
+            catch ( XmlRpcException e )
+            {
+            }
+
+            assertEquals( 0, directory.listFiles().length );
+
+            // The parser is left ready for the next message.
+
+            parser.parse( new ByteArrayInputStream( createMessage( true ).getBytes( "UTF-8" ) ) );
+            assertEquals( 2, directory.listFiles().length );
+
+            XmlRpcArray values = ( XmlRpcArray ) parser.values.get( 0 );
+            ( ( XmlRpcBinary ) values.get( 0 ) ).dispose();
+            ( ( XmlRpcBinary ) values.get( 1 ) ).dispose();
+        }
+    }
+
+
+    private Collector createParser( String engine )
+    {
+        Collector parser = new Collector();
+        parser.setBinarySpillThreshold( 1024, directory );
+
+        if ( engine.equals( "pull" ) )
+        {
+            parser.setParserEngine( new XmlRpcPullParserEngine() );
+        }
+        else if ( engine.equals( "tokenizer" ) )
+        {
+            parser.setParserEngine( new XmlRpcTokenizerEngine() );
+        }
+
+        return parser;
+    }
+
+
+    /**
+     *  Returns a response carrying two values above the spill threshold and one below,
+     *  followed by an unterminated value unless the message is to be complete.
+     */
+
+    private static String createMessage( boolean isComplete )
+    {
+        return "<?xml version=\"1.0\"?><methodResponse><params><param><value><array><data>" +
+            "<value><base64>" + new String( Base64.encode( createData( 1 ) ) ) + "</base64></value>" +
+            "<value><base64>" + new String( Base64.encode( createData( 2 ) ) ) + "</base64></value>" +
+            "<value><base64>AAEC</base64></value>" +
+            ( isComplete ? "" : "<value><string>unterminated</value>" ) +
+            "</data></array></value></param></params></methodResponse>";
+    }
+
+
+    private static byte[] createData( int seed )
+    {
+        byte[] data = new byte[ 64 * 1024 ];
+
+        for ( int i = 0; i < data.length; ++i )
+        {
+            data[ i ] = ( byte ) ( i * seed );
+        }
+
+        return data;
+    }
+
+
+    private static class Collector extends XmlRpcParser
+    {
+        protected void handleParsedValue( Object value )
+        {
+            values.add( value );
+        }
+
+
+        List values = new ArrayList();
+    }
+
+
+    /** The parser engines tested, by name. */
+    private static final String[] ENGINES = { "sax", "pull", "tokenizer" };
+
+    /** The directory receiving spilled values. */
+    private File directory;
+}
@@ -0,0 +1,189 @@
+/*
+    This library is free software; you can redistribute it and/or modify it under the terms
+    of the GNU Lesser General Public License as published by the Free Software Foundation;
+    either version 2.1 of the License, or (at your option) any later version.
+
+    This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+    without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+    See the GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License along with this
+    library; if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+    Boston, MA  02111-1307  USA
+*/
+package redstone.xmlrpc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import junit.framework.TestCase;
+
+/**
+ *  Tests of the asynchronous invocations of XmlRpcClient: completion of their futures
+ *  and callbacks whatever the failure, and the capacity of the shared executor.
+ */
+
+public class XmlRpcClientTest extends TestCase
+{
+    /**
+     *  Handler of the calls, holding each until it is released.
+     */
+
+    public static class GateHandler
+    {
+        public String pass( String value ) throws InterruptedException
+        {
+            gate.await( 10, TimeUnit.SECONDS );
+            return value;
+        }
+
+
+        public void open()
+        {
+            gate.countDown();
+        }
+
+
+        private CountDownLatch gate = new CountDownLatch( 1 );
+    }
+
+
+    /**
+     *  Callback, keeping the exception reported to it.
+     */
+
+    private static class Outcome implements XmlRpcCallback
+    {
+        public synchronized void onResult( Object result )
+        {
+            isCalled = true;
+        }
+
+
+        public synchronized void onFault( int faultCode, String faultMessage )
+        {
+            isCalled = true;
+        }
+
+
+        public synchronized void onException( XmlRpcException exception )
+        {
+            isCalled = true;
+            this.exception = exception;
+            notifyAll();
+        }
+
+
+        /**
+         *  Waits for the callback, which is called after the future is completed.
+         */
+
+        synchronized void await() throws InterruptedException
+        {
+            long end = System.currentTimeMillis() + 10000;
+
+            while ( !isCalled && System.currentTimeMillis() < end )
+            {
+                wait( 100 );
+            }
+        }
+
+
+        boolean isCalled;
+        XmlRpcException exception;
+    }
+
+
+    /**
+     *  Arguments that are neither an array nor a list fail the invocation rather than
+     *  leaving its future uncompleted.
+     */
+
+    public void testInvalidArgumentsCompleteFuture() throws Exception
+    {
+        XmlRpcClient client = new XmlRpcClient( "http://localhost:1/", false );
+        Outcome outcome = new Outcome();
+
+        XmlRpcFuture future = client.invokeAsynchronously( "test.echo", "not a list", outcome );
+
+        try
+        {
+            future.get( 10, TimeUnit.SECONDS );
+            fail( "Invocation with invalid arguments succeeded" );
+        }
+        catch ( ExecutionException e )
+        {
+            assertTrue( e.getCause() instanceof XmlRpcException );
+            assertTrue( e.getCause().getCause() instanceof ClassCastException );
+        }
+
+        outcome.await();
+
+        synchronized ( outcome )
+        {
+            assertNotNull( outcome.exception );
+        }
+    }
+
+
+    /**
+     *  Invocations beyond the capacity of the shared executor are rejected rather than
+     *  queued without limit.
+     */
+
+    public void testSharedExecutorRejectsInvocationsBeyondCapacity() throws Exception
+    {
+        GateHandler handler = new GateHandler();
+        XmlRpcServer server = new XmlRpcServer();
+        server.addInvocationHandler( "test", handler );
+        StandInServer standIn = new StandInServer( server );
+
+        List futures = new ArrayList();
+        XmlRpcFuture rejected = null;
+
+        try
+        {
+            XmlRpcClient client = new XmlRpcClient( standIn.getUrl(), false );
+
+            for ( int i = 0; i < 300 && rejected == null; ++i )
+            {
+                XmlRpcFuture future = client.invokeAsynchronously( "test.pass", new Object[] { "call" + i } );
+
+                if ( future.isDone() )
+                {
+                    rejected = future;
+                }
+                else
+                {
+                    futures.add( future );
+                }
+            }
+
+            assertNotNull( "No invocation was rejected", rejected );
+            assertTrue( futures.size() <= 4 + 256 );
+
+            try
+            {
+                rejected.getResult();
+                fail( "Rejected invocation succeeded" );
+            }
+            catch ( XmlRpcException e )
+            {
+                assertEquals( XmlRpcMessages.getString( "XmlRpcClient.InvocationRejected" ), e.getMessage() );
+            }
+        }
+        finally
+        {
+            handler.open();
+
+            for ( int i = 0; i < futures.size(); ++i )
+            {
+                ( ( XmlRpcFuture ) futures.get( i ) ).get( 30, TimeUnit.SECONDS );
+            }
+
+            standIn.stop();
+        }
+    }
+}
@@ -0,0 +1,277 @@
+/*
+    This library is free software; you can redistribute it and/or modify it under the terms
+    of the GNU Lesser General Public License as published by the Free Software Foundation;
+    either version 2.1 of the License, or (at your option) any later version.
+
+    This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+    without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+    See the GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License along with this
+    library; if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+    Boston, MA  02111-1307  USA
+*/
+package redstone.xmlrpc;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+import junit.framework.TestCase;
+import redstone.xmlrpc.util.Compression;
+
+/**
+ *  Tests of the compression of messages by XmlRpcClient and XmlRpcServer: negotiation,
+ *  the fallback to uncompressed requests, and the size limit of decompressed requests.
+ */
+
+public class XmlRpcCompressionTest extends TestCase
+{
+    public void testRequestsAreCompressedOnceAnnounced() throws Exception
+    {
+        StandInServer server = new StandInServer( createServer() );
+
+        try
+        {
+            XmlRpcClient client = new XmlRpcClient( server.getUrl(), false );
+            client.setCompressionThreshold( 1024 );
+
+            // The first response announces that compressed requests are accepted.
+
+            String value = repeat( "compressible", 1000 );
+            assertEquals( value, client.invoke( "test.echo", new Object[] { value } ) );
+            assertNull( server.getLastContentEncoding() );
+
+            assertEquals( value, client.invoke( "test.echo", new Object[] { value } ) );
+            assertEquals( Compression.GZIP, server.getLastContentEncoding() );
+
+            // Requests below the threshold are sent as is.
+
+            assertEquals( "small", client.invoke( "test.echo", new Object[] { "small" } ) );
+            assertNull( server.getLastContentEncoding() );
+        }
+        finally
+        {
+            server.stop();
+        }
+    }
+
+
+    public void testRejectedRequestIsSentUncompressed() throws Exception
+    {
+        checkRejectedRequestIsSentUncompressed( null );
+    }
+
+
+    public void testRejectedPooledRequestIsSentUncompressed() throws Exception
+    {
+        XmlRpcConnectionPool pool = new XmlRpcConnectionPool();
+
+        try
+        {
+            checkRejectedRequestIsSentUncompressed( pool );
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+    }
+
+
+    /**
+     *  Streamed requests are not compressed, since they could not be sent again to a
+     *  server rejecting them.
+     */
+
+    public void testStreamedRequestsAreNotCompressed() throws Exception
+    {
+        StandInServer server = new StandInServer( createServer() );
+
+        try
+        {
+            XmlRpcClient client = new XmlRpcClient( server.getUrl(), true );
+            client.setCompressionThreshold( 0 );
+
+            String value = repeat( "compressible", 1000 );
+            assertEquals( value, client.invoke( "test.echo", new Object[] { value } ) );
+
+            server.setAcceptingCompression( false );
+            assertEquals( value, client.invoke( "test.echo", new Object[] { value } ) );
+            assertNull( server.getLastContentEncoding() );
+            assertEquals( 2, server.getRequestCount() );
+        }
+        finally
+        {
+            server.stop();
+        }
+    }
+
+
+    public void testResponsesAreCompressed() throws Exception
+    {
+        StandInServer server = new StandInServer( createServer() );
+
+        try
+        {
+            final XmlRpcCallMetrics[] metrics = new XmlRpcCallMetrics[ 1 ];
+
+            XmlRpcClient client = new XmlRpcClient( server.getUrl(), true );
+            client.setCompressionThreshold( 1024 );
+            client.setMetricsListener( new XmlRpcMetricsListener()
+            {
+                public void callCompleted( XmlRpcCallMetrics callMetrics )
+                {
+                    metrics[ 0 ] = callMetrics;
+                }
+            } );
+
+            String value = repeat( "compressible", 1000 );
+            assertEquals( value, client.invoke( "test.echo", new Object[] { value } ) );
+            assertEquals( Compression.GZIP, metrics[ 0 ].getResponseEncoding() );
+            assertTrue( metrics[ 0 ].getResponseWireSize() < metrics[ 0 ].getResponseSize() / 10 );
+        }
+        finally
+        {
+            server.stop();
+        }
+    }
+
+
+    /**
+     *  A small compressed request may inflate to any size, which is limited by the
+     *  maximum request size of the server.
+     */
+
+    public void testDecompressedRequestSizeIsLimited() throws Exception
+    {
+        XmlRpcServer server = createServer();
+        server.setMaxRequestSize( 1024 * 1024 );
+
+        byte[] small = call( repeat( "x", 512 * 1024 ) );
+        byte[] large = call( repeat( "x", 2 * 1024 * 1024 ) );
+        byte[] bomb = gzip( large );
+        assertTrue( bomb.length < 8 * 1024 );
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        server.execute( new ByteArrayInputStream( gzip( small ) ), Compression.GZIP, null, output );
+        assertTrue( output.size() > 0 );
+
+        try
+        {
+            server.execute( new ByteArrayInputStream( bomb ), Compression.GZIP, null, new ByteArrayOutputStream() );
+            fail( "Request exceeding the limit is executed" );
+        }
+        catch ( XmlRpcRequestTooLargeException e )
+        {
+        }
+
+        try
+        {
+            server.execute( new ByteArrayInputStream( large ), null, null, new ByteArrayOutputStream() );
+            fail( "Request exceeding the limit is executed" );
+        }
+        catch ( XmlRpcRequestTooLargeException e )
+        {
+        }
+
+        server.setMaxRequestSize( -1 );
+        output.reset();
+        server.execute( new ByteArrayInputStream( bomb ), Compression.GZIP, Compression.GZIP, output );
+
+        String response = new String( readAll( new GZIPInputStream( new ByteArrayInputStream( output.toByteArray() ) ) ), "UTF-8" );
+        assertTrue( response.indexOf( "<methodResponse>" ) != -1 );
+    }
+
+
+    /**
+     *  A server rejecting compressed requests, after having announced them, is sent
+     *  the request again uncompressed, and no more compressed requests.
+     */
+
+    private void checkRejectedRequestIsSentUncompressed( XmlRpcConnectionPool pool ) throws Exception
+    {
+        StandInServer server = new StandInServer( createServer() );
+
+        try
+        {
+            XmlRpcClient client = new XmlRpcClient( server.getUrl(), false );
+            client.setCompressionThreshold( 1024 );
+
+            if ( pool != null )
+            {
+                client.setConnectionPool( pool );
+            }
+
+            String value = repeat( "compressible", 1000 );
+            assertEquals( value, client.invoke( "test.echo", new Object[] { value } ) );
+
+            server.setAcceptingCompression( false );
+            assertEquals( value, client.invoke( "test.echo", new Object[] { value } ) );
+            assertNull( server.getLastContentEncoding() );
+            assertEquals( 3, server.getRequestCount() );
+
+            assertEquals( value, client.invoke( "test.echo", new Object[] { value } ) );
+            assertNull( server.getLastContentEncoding() );
+            assertEquals( 4, server.getRequestCount() );
+        }
+        finally
+        {
+            server.stop();
+        }
+    }
+
+
+    private static XmlRpcServer createServer()
+    {
+        XmlRpcServer server = new XmlRpcServer();
+        server.addInvocationHandler( "test", new XmlRpcConnectionPoolTest.EchoHandler() );
+        return server;
+    }
+
+
+    private static byte[] call( String value ) throws Exception
+    {
+        return ( "<?xml version=\"1.0\"?><methodCall><methodName>test.echo</methodName>" +
+            "<params><param><value><string>" + value + "</string></value></param></params>" +
+            "</methodCall>" ).getBytes( "UTF-8" );
+    }
+
+
+    private static byte[] gzip( byte[] data ) throws Exception
+    {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        OutputStream output = Compression.encode( compressed, Compression.GZIP );
+        output.write( data );
+        output.close();
+        return compressed.toByteArray();
+    }
+
+
+    private static byte[] readAll( InputStream input ) throws Exception
+    {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        byte[] buffer = new byte[ 4096 ];
+        int n;
+
+        while ( ( n = input.read( buffer ) ) != -1 )
+        {
+            data.write( buffer, 0, n );
+        }
+
+        return data.toByteArray();
+    }
+
+
+    private static String repeat( String text, int count )
+    {
+        StringBuffer buffer = new StringBuffer( text.length() * count );
+
+        for ( int i = 0; i < count; ++i )
+        {
+            buffer.append( text );
+        }
+
+        return buffer.toString();
+    }
+}
@@ -0,0 +1,500 @@
+/*
+    This library is free software; you can redistribute it and/or modify it under the terms
+    of the GNU Lesser General Public License as published by the Free Software Foundation;
+    either version 2.1 of the License, or (at your option) any later version.
+
+    This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+    without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+    See the GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License along with this
+    library; if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+    Boston, MA  02111-1307  USA
+*/
+
+package redstone.xmlrpc;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.TrustManagerFactory;
+import junit.framework.TestCase;
+
+/**
+ *  Tests of the XmlRpcConnectionPool against a StandInServer: reuse of keep-alive
+ *  connections, release of connections after malformed responses and verification
+ *  of the certificates of HTTPS servers.
+ */
+
+public class XmlRpcConnectionPoolTest extends TestCase
+{
+    /**
+     *  Handler of the calls served by the stand-in server.
+     */
+
+    public static class EchoHandler
+    {
+        public String echo( String value )
+        {
+            return value;
+        }
+
+
+        public String fail( String message ) throws XmlRpcFault
+        {
+            throw new XmlRpcFault( 42, message );
+        }
+    }
+
+
+    public void testKeepAliveConnectionsAreReused() throws Exception
+    {
+        StandInServer server = new StandInServer( createServer() );
+        XmlRpcConnectionPool pool = new XmlRpcConnectionPool();
+
+        try
+        {
+            XmlRpcClient client = new XmlRpcClient( server.getUrl(), false );
+            client.setConnectionPool( pool );
+
+            for ( int i = 0; i < 3; ++i )
+            {
+                assertEquals( "call" + i, client.invoke( "test.echo", new Object[] { "call" + i } ) );
+            }
+
+            assertEquals( 1, pool.getMissCount() );
+            assertEquals( 2, pool.getHitCount() );
+            assertEquals( 1, pool.getIdleCount() );
+        }
+        finally
+        {
+            pool.shutdown();
+            server.stop();
+        }
+    }
+
+
+    public void testConnectionsAreReusedAfterFaults() throws Exception
+    {
+        StandInServer server = new StandInServer( createServer() );
+        XmlRpcConnectionPool pool = new XmlRpcConnectionPool();
+
+        try
+        {
+            XmlRpcClient client = new XmlRpcClient( server.getUrl(), false );
+            client.setConnectionPool( pool );
+
+            for ( int i = 0; i < 3; ++i )
+            {
+                try
+                {
+                    client.invoke( "test.fail", new Object[] { "fault" + i } );
+                    fail( "Fault not thrown" );
+                }
+                catch ( XmlRpcFault fault )
+                {
+                    assertEquals( 42, fault.getErrorCode() );
+                    assertTrue( fault.getMessage().endsWith( "fault" + i ) );
+                }
+            }
+
+            assertEquals( "after", client.invoke( "test.echo", new Object[] { "after" } ) );
+            assertEquals( 1, pool.getMissCount() );
+            assertEquals( 3, pool.getHitCount() );
+        }
+        finally
+        {
+            pool.shutdown();
+            server.stop();
+        }
+    }
+
+
+    public void testMalformedResponsesReleaseConnections() throws Exception
+    {
+        String ok = "<?xml version=\"1.0\"?><methodResponse><params><param>" +
+                    "<value><string>ok</string></value></param></params></methodResponse>";
+
+        CannedServer server = new CannedServer( new String[]
+        {
+            "HTTP/1.1 2x0 OK\r\n\r\n",
+            "HTTP/1.1 200 OK\r\nContent-Type: text/xml\r\nContent-Length: ten\r\n\r\n",
+            "HTTP/1.1 200 OK\r\nContent-Type: text/xml\r\nTransfer-Encoding: chunked\r\n\r\nzz\r\n",
+            "HTTP/1.1 200 OK\r\nContent-Type: text/xml\r\nTransfer-Encoding: chunked\r\n\r\n" +
+                Integer.toHexString( ok.length() ) + "\r\n" + ok.substring( 0, 20 ),
+            "HTTP/1.1 200 OK\r\nContent-Type: text/xml\r\nContent-Length: " + ok.length() +
+                "\r\n\r\n" + ok
+        } );
+
+        // A single connection per route, so that any leaked lease blocks the next call.
+
+        XmlRpcConnectionPool pool = new XmlRpcConnectionPool( 1, 1, 60000 );
+        pool.setTimeouts( 5000, 5000 );
+
+        try
+        {
+            final XmlRpcClient client = new XmlRpcClient( server.getUrl(), false );
+            client.setConnectionPool( pool );
+
+            final Object[] outcomes = new Object[ 5 ];
+            Thread caller = new Thread()
+            {
+                public void run()
+                {
+                    for ( int i = 0; i < outcomes.length; ++i )
+                    {
+                        try
+                        {
+                            outcomes[ i ] = client.invoke( "test.echo", new Object[] { "ok" } );
+                        }
+                        catch ( Throwable t )
+                        {
+                            outcomes[ i ] = t;
+                        }
+                    }
+                }
+            };
+
+            caller.start();
+            caller.join( 20000 );
+            assertFalse( "Connection not released", caller.isAlive() );
+
+            for ( int i = 0; i < 4; ++i )
+            {
+                assertTrue( String.valueOf( outcomes[ i ] ), outcomes[ i ] instanceof XmlRpcException );
+
+                Throwable cause = ( Throwable ) outcomes[ i ];
+
+                while ( cause != null && !( cause instanceof IOException ) )
+                {
+                    cause = cause.getCause();
+                }
+
+                assertNotNull( String.valueOf( outcomes[ i ] ), cause );
+            }
+
+            assertEquals( "ok", outcomes[ 4 ] );
+        }
+        finally
+        {
+            pool.shutdown();
+            server.close();
+        }
+    }
+
+
+    public void testHttpsCertificateMatchingHost() throws Exception
+    {
+        SSLContext sslContext = createSSLContext();
+        StandInServer server = new StandInServer( createServer(), sslContext );
+        XmlRpcConnectionPool pool = new XmlRpcConnectionPool();
+        pool.setSSLSocketFactory( sslContext.getSocketFactory() );
+        pool.setHostnameVerifier( new AlternativeNameVerifier() );
+
+        try
+        {
+            XmlRpcClient client = new XmlRpcClient( server.getUrl(), false );
+            client.setConnectionPool( pool );
+
+            assertEquals( "secure", client.invoke( "test.echo", new Object[] { "secure" } ) );
+            assertEquals( "secure", client.invoke( "test.echo", new Object[] { "secure" } ) );
+            assertEquals( 1, pool.getHitCount() );
+        }
+        finally
+        {
+            pool.shutdown();
+            server.stop();
+        }
+    }
+
+
+    public void testHttpsCertificateNotMatchingHost() throws Exception
+    {
+        SSLContext sslContext = createSSLContext();
+        StandInServer server = new StandInServer( createServer(), sslContext );
+        XmlRpcConnectionPool pool = new XmlRpcConnectionPool();
+        pool.setSSLSocketFactory( sslContext.getSocketFactory() );
+        pool.setHostnameVerifier( new AlternativeNameVerifier() );
+
+        try
+        {
+            // The certificate is issued to localhost only, so the address of the
+            // same server must be rejected.
+
+            XmlRpcClient client = new XmlRpcClient( server.getUrl().replaceFirst( "localhost", "127.0.0.1" ), false );
+            client.setConnectionPool( pool );
+
+            assertUnverified( client );
+            assertEquals( 0, pool.getIdleCount() );
+            assertEquals( 0, server.getRequestCount() );
+        }
+        finally
+        {
+            pool.shutdown();
+            server.stop();
+        }
+    }
+
+
+    public void testHttpsDefaultVerifier() throws Exception
+    {
+        SSLContext sslContext = createSSLContext();
+        StandInServer server = new StandInServer( createServer(), sslContext );
+        XmlRpcConnectionPool pool = new XmlRpcConnectionPool();
+        pool.setSSLSocketFactory( sslContext.getSocketFactory() );
+
+        try
+        {
+            // The default verifier of desktop JVMs rejects all hosts, unlike the
+            // one of Android, so no connection may be established here.
+
+            XmlRpcClient client = new XmlRpcClient( server.getUrl(), false );
+            client.setConnectionPool( pool );
+
+            assertUnverified( client );
+            assertEquals( 0, server.getRequestCount() );
+        }
+        finally
+        {
+            pool.shutdown();
+            server.stop();
+        }
+    }
+
+
+    private static void assertUnverified( XmlRpcClient client ) throws Exception
+    {
+        try
+        {
+            client.invoke( "test.echo", new Object[] { "secure" } );
+            fail( "Certificate accepted for the wrong host" );
+        }
+        catch ( XmlRpcException e )
+        {
+            assertTrue( e.getCause() instanceof SSLPeerUnverifiedException );
+        }
+    }
+
+
+    private static XmlRpcServer createServer()
+    {
+        XmlRpcServer server = new XmlRpcServer();
+        server.addInvocationHandler( "test", new EchoHandler() );
+        return server;
+    }
+
+
+    /**
+     *  Creates a TLS context serving a self-signed certificate issued to localhost,
+     *  and trusting that certificate only.
+     */
+
+    private static SSLContext createSSLContext() throws Exception
+    {
+        char[] password = "changeit".toCharArray();
+        File file = File.createTempFile( "server", ".p12" );
+        file.delete();
+
+        try
+        {
+            Process keytool = new ProcessBuilder(
+                new File( System.getProperty( "java.home" ), "bin/keytool" ).getPath(),
+                "-genkeypair", "-alias", "server", "-keyalg", "RSA", "-keysize", "2048",
+                "-dname", "CN=localhost", "-ext", "SAN=dns:localhost", "-validity", "1",
+                "-storetype", "PKCS12", "-keystore", file.getPath(),
+                "-storepass", "changeit", "-keypass", "changeit" ).redirectErrorStream( true ).start();
+
+            InputStream output = keytool.getInputStream();
+
+            while ( output.read() != -1 )
+            {
+            }
+
+            assertEquals( 0, keytool.waitFor() );
+
+            KeyStore keyStore = KeyStore.getInstance( "PKCS12" );
+            FileInputStream input = new FileInputStream( file );
+
+            try
+            {
+                keyStore.load( input, password );
+            }
+            finally
+            {
+                input.close();
+            }
+
+            KeyStore trustStore = KeyStore.getInstance( KeyStore.getDefaultType() );
+            trustStore.load( null, null );
+            trustStore.setCertificateEntry( "server", keyStore.getCertificate( "server" ) );
+
+            KeyManagerFactory keyManagers = KeyManagerFactory.getInstance( KeyManagerFactory.getDefaultAlgorithm() );
+            keyManagers.init( keyStore, password );
+            TrustManagerFactory trustManagers = TrustManagerFactory.getInstance( TrustManagerFactory.getDefaultAlgorithm() );
+            trustManagers.init( trustStore );
+
+            SSLContext sslContext = SSLContext.getInstance( "TLS" );
+            sslContext.init( keyManagers.getKeyManagers(), trustManagers.getTrustManagers(), null );
+            return sslContext;
+        }
+        finally
+        {
+            file.delete();
+        }
+    }
+
+
+    /**
+     *  Answers each connection with the next of a list of raw responses, malformed
+     *  ones included, and closes it.
+     */
+
+    private static class CannedServer extends Thread
+    {
+        CannedServer( String[] responses ) throws IOException
+        {
+            this.responses = responses;
+            this.socket = new ServerSocket( 0 );
+            setDaemon( true );
+            start();
+        }
+
+
+        String getUrl()
+        {
+            return "http://localhost:" + socket.getLocalPort() + "/";
+        }
+
+
+        void close() throws IOException
+        {
+            socket.close();
+        }
+
+
+        public void run()
+        {
+            for ( int i = 0; i < responses.length; ++i )
+            {
+                try
+                {
+                    Socket connection = socket.accept();
+
+                    try
+                    {
+                        readRequest( connection.getInputStream() );
+                        OutputStream output = connection.getOutputStream();
+                        output.write( responses[ i ].getBytes( "ISO-8859-1" ) );
+                        output.flush();
+                    }
+                    finally
+                    {
+                        connection.close();
+                    }
+                }
+                catch ( IOException e )
+                {
+                    return;
+                }
+            }
+        }
+
+
+        private static void readRequest( InputStream input ) throws IOException
+        {
+            StringBuffer line = new StringBuffer();
+            int contentLength = 0;
+            int c;
+
+            while ( ( c = input.read() ) != -1 )
+            {
+                if ( c != '\n' )
+                {
+                    if ( c != '\r' )
+                    {
+                        line.append( ( char ) c );
+                    }
+
+                    continue;
+                }
+
+                if ( line.length() == 0 )
+                {
+                    break;
+                }
+
+                String header = line.toString().toLowerCase( Locale.ENGLISH );
+
+                if ( header.startsWith( "content-length:" ) )
+                {
+                    contentLength = Integer.parseInt( header.substring( 15 ).trim() );
+                }
+
+                line.setLength( 0 );
+            }
+
+            while ( contentLength-- > 0 && input.read() != -1 )
+            {
+            }
+        }
+
+
+        /** The raw responses, in the order they are given. */
+        private final String[] responses;
+
+        /** The listening socket. */
+        private final ServerSocket socket;
+    }
+
+
+    /**
+     *  Accepts hosts listed as DNS names among the subject alternative names of the
+     *  certificate of the server, the way the verifier of Android does.
+     */
+
+    private static class AlternativeNameVerifier implements HostnameVerifier
+    {
+        public boolean verify( String host, SSLSession session )
+        {
+            try
+            {
+                X509Certificate certificate = ( X509Certificate ) session.getPeerCertificates()[ 0 ];
+                Collection names = certificate.getSubjectAlternativeNames();
+
+                if ( names != null )
+                {
+                    for ( Iterator i = names.iterator(); i.hasNext(); )
+                    {
+                        List name = ( List ) i.next();
+
+                        if ( ( ( Integer ) name.get( 0 ) ).intValue() == 2 &&
+                             host.equalsIgnoreCase( ( String ) name.get( 1 ) ) )
+                        {
+                            return true;
+                        }
+                    }
+                }
+            }
+            catch ( Exception e )
+            {
+            }
+
+            return false;
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/*
+    This library is free software; you can redistribute it and/or modify it under the terms
+    of the GNU Lesser General Public License as published by the Free Software Foundation;
+    either version 2.1 of the License, or (at your option) any later version.
+
+    This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+    without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+    See the GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License along with this
+    library; if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+    Boston, MA  02111-1307  USA
+*/
+
+package redstone.xmlrpc;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import junit.framework.TestCase;
+
+/**
+ *  Tests of system.multicall requests dispatched by the XmlRpcServer.
+ */
+
+public class XmlRpcDispatcherTest extends TestCase
+{
+    /**
+     *  Handler of the calls.
+     */
+
+    public static class EchoHandler
+    {
+        public String echo( String value )
+        {
+            return value;
+        }
+    }
+
+
+    public void testMulticallWithCustomResponse() throws Exception
+    {
+        XmlRpcServer server = new XmlRpcServer();
+        server.addInvocationHandler( "test", new EchoHandler() );
+        server.addInvocationInterceptor( new XmlRpcInvocationInterceptor()
+        {
+            public boolean before( XmlRpcInvocation invocation )
+            {
+                return true;
+            }
+
+            public Object after( XmlRpcInvocation invocation, Object returnValue )
+            {
+                if ( !"custom".equals( invocation.getArguments().get( 0 ) ) )
+                {
+                    return returnValue;
+                }
+
+                try
+                {
+                    invocation.getWriter().write(
+                        "<?xml version=\"1.0\"?><methodResponse><params><param>" +
+                        "<value>custom</value></param></params></methodResponse>" );
+                }
+                catch ( IOException e )
+                {
+                    throw new RuntimeException( e );
+                }
+
+                return null;
+            }
+
+            public void onException( XmlRpcInvocation invocation, Throwable exception )
+            {
+            }
+        } );
+
+        String response = execute( server,
+            "<?xml version=\"1.0\"?><methodCall><methodName>system.multicall</methodName>" +
+            "<params><param><value><array><data>" +
+            entry( "first" ) + entry( "custom" ) + entry( "last" ) +
+            "</data></array></value></param></params></methodCall>" );
+
+        assertEquals( 1, count( response, "<methodResponse>" ) );
+        assertEquals( 1, count( response, "first" ) );
+        assertEquals( 1, count( response, "last" ) );
+        assertEquals( 0, count( response, "void" ) );
+        assertEquals( 1, count( response, "<name>faultCode</name>" ) );
+        assertTrue( response.indexOf( "first" ) < response.indexOf( "faultCode" ) );
+        assertTrue( response.indexOf( "faultCode" ) < response.indexOf( "last" ) );
+    }
+
+
+    private static String entry( String value )
+    {
+        return "<value><struct>" +
+            "<member><name>methodName</name><value>test.echo</value></member>" +
+            "<member><name>params</name><value><array><data><value>" + value +
+            "</value></data></array></value></member></struct></value>";
+    }
+
+
+    private static String execute( XmlRpcServer server, String request ) throws Exception
+    {
+        StringWriter output = new StringWriter();
+        server.execute( new ByteArrayInputStream( request.getBytes( "UTF-8" ) ), output );
+        return output.toString();
+    }
+
+
+    private static int count( String text, String part )
+    {
+        int count = 0;
+
+        for ( int i = text.indexOf( part ); i != -1; i = text.indexOf( part, i + 1 ) )
+        {
+            ++count;
+        }
+
+        return count;
+    }
+}
@@ -0,0 +1,383 @@
+/*
+    This library is free software; you can redistribute it and/or modify it under the terms
+    of the GNU Lesser General Public License as published by the Free Software Foundation;
+    either version 2.1 of the License, or (at your option) any later version.
+
+    This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+    without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+    See the GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License along with this
+    library; if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+    Boston, MA  02111-1307  USA
+*/
+
+package redstone.xmlrpc;
+
+import java.io.ByteArrayInputStream;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import junit.framework.TestCase;
+import redstone.xmlrpc.handlers.ValidationHandler;
+
+/**
+ *  Conformance suite of the parser engines. The calls of the XML-RPC validation suite,
+ *  served by ValidationHandler, and a set of hand-written messages are parsed with the
+ *  SAX implementation of XmlRpcParser, the XmlRpcPullParserEngine, and the
+ *  XmlRpcTokenizerEngine, which must agree on every message: on the values parsed
+ *  from valid messages, and on rejecting malformed ones.
+ */
+
+public class XmlRpcParserEngineTest extends TestCase
+{
+    public void testValidationSuite() throws Exception
+    {
+        XmlRpcStruct stooges = new XmlRpcStruct();
+        stooges.put( "moe", new Integer( 1 ) );
+        stooges.put( "larry", new Integer( 2 ) );
+        stooges.put( "curly", new Integer( 3 ) );
+
+        XmlRpcArray structs = new XmlRpcArray();
+        structs.add( stooges );
+        structs.add( stooges );
+
+        XmlRpcArray strings = new XmlRpcArray();
+
+        for ( int i = 0; i < 150; ++i )
+        {
+            strings.add( "item" + i );
+        }
+
+        XmlRpcStruct day = new XmlRpcStruct();
+        day.put( "01", stooges );
+        XmlRpcStruct month = new XmlRpcStruct();
+        month.put( "04", day );
+        XmlRpcStruct calendar = new XmlRpcStruct();
+        calendar.put( "2000", month );
+        calendar.put( "1999", new XmlRpcStruct() );
+
+        assertValidation( "arrayOfStructsTest", new Object[] { structs }, new Integer( 6 ) );
+        assertValidation( "easyStructTest", new Object[] { stooges }, new Integer( 6 ) );
+        assertValidation( "echoStructTest", new Object[] { stooges }, stooges );
+        assertValidation( "moderateSizeArrayCheck", new Object[] { strings }, "item0item149" );
+        assertValidation( "nestedStructTest", new Object[] { calendar }, new Integer( 6 ) );
+
+        XmlRpcStruct times = new XmlRpcStruct();
+        times.put( "times10", new Integer( 70 ) );
+        times.put( "times100", new Integer( 700 ) );
+        times.put( "times1000", new Integer( 7000 ) );
+
+        assertValidation( "simpleStructReturnTest", new Object[] { new Integer( 7 ) }, times );
+
+        XmlRpcStruct entities = new XmlRpcStruct();
+        entities.put( "ctLeftAngleBrackets", new Integer( 2 ) );
+        entities.put( "ctRightAngleBrackets", new Integer( 1 ) );
+        entities.put( "ctAmpersands", new Integer( 1 ) );
+        entities.put( "ctApostrophes", new Integer( 1 ) );
+        entities.put( "ctQuotes", new Integer( 3 ) );
+
+        assertValidation( "countTheEntities", new Object[] { "<a> & '\"\"\" <" }, entities );
+
+        Date date = new Date( 900684535000L );
+        byte[] bytes = new byte[] { 1, 2, 3, -1 };
+
+        List types = ( List ) assertValidation(
+            "manyTypesTest",
+            new Object[] { new Integer( 42 ), Boolean.TRUE, "\u00e5\u4e2d\ud83d\ude00", new Double( 2.5 ), date, bytes },
+            null );
+
+        assertEquals( new Integer( 42 ), types.get( 0 ) );
+        assertEquals( Boolean.TRUE, types.get( 1 ) );
+        assertEquals( "\u00e5\u4e2d\ud83d\ude00", types.get( 2 ) );
+        assertEquals( new Double( 2.5 ), types.get( 3 ) );
+        assertEquals( date, types.get( 4 ) );
+        assertTrue( Arrays.equals( bytes, ( byte[] ) types.get( 5 ) ) );
+    }
+
+
+    public void testEquivalentMessages() throws Exception
+    {
+        String[] messages = new String[]
+        {
+            "<?xml version=\"1.0\"?><methodCall><methodName> validator1.countTheEntities </methodName>" +
+            "<params><param><value><string>a&lt;b&gt;&amp;&apos;&quot;&#65;&#x4E2D;</string>" +
+            "</value></param></params></methodCall>",
+
+            "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\r\n<!-- c - x --><methodResponse><params><param>" +
+            "<value><struct><member><name>a</name><value><array><data><value><i4>1</i4></value>" +
+            "<value>plain</value><value/><value><string/></value><value><struct><member><name>x</name>" +
+            "<value><double>2.5</double></value></member></struct></value></data></array></value>" +
+            "</member><member><name>b</name><value><boolean>1</boolean></value></member></struct>" +
+            "</value></param></params></methodResponse>",
+
+            "<methodResponse><fault><value><struct><member><name>faultCode</name><value><int>4</int>" +
+            "</value></member><member><name>faultString</name><value><string>Too many</string></value>" +
+            "</member></struct></value></fault></methodResponse>",
+
+            "<methodCall><methodName>x</methodName><params><param><value><base64>AQIDBA==</base64>" +
+            "</value></param><param><value><dateTime.iso8601>19980717T14:08:55</dateTime.iso8601>" +
+            "</value></param><param><value><![CDATA[<a>]]b]]]></value></param><param><value>" +
+            "line1\r\nline2\rline3 \u00e9\t</value></param><param><value><i8>12345678901</i8></value>" +
+            "</param></params></methodCall>",
+
+            "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone='yes'?><methodCall><methodName>x" +
+            "</methodName></methodCall>",
+
+            "<?xml version='1.0' encoding='ISO-8859-1' standalone=\"yes\"?><methodCall><methodName>x" +
+            "</methodName></methodCall>",
+
+            "<methodResponse><params><param><value><struct><member><name>a</name><value>1</value>" +
+            "</member><member><name>b</name><value>2</value></member></struct></value></param>" +
+            "</params></methodResponse>"
+        };
+
+        for ( int i = 0; i < messages.length; ++i )
+        {
+            byte[] message = messages[ i ].getBytes( "UTF-8" );
+            String expected = parse( null, message );
+
+            assertEquals( messages[ i ], expected, parse( new XmlRpcPullParserEngine(), message ) );
+            assertEquals( messages[ i ], expected, parse( new XmlRpcTokenizerEngine(), message ) );
+        }
+    }
+
+
+    public void testSupplementaryCharacters() throws Exception
+    {
+        // The kXML release available off-device truncates supplementary character
+        // references, so the pull engine is left out.
+
+        byte[] message = ( "<methodCall><methodName>x</methodName><params><param><value>" +
+            "&#128512;\ud83d\ude00&#x1F600;</value></param></params></methodCall>" ).getBytes( "UTF-8" );
+
+        assertEquals( "x|false|\ud83d\ude00\ud83d\ude00\ud83d\ude00", parse( null, message ) );
+        assertEquals( "x|false|\ud83d\ude00\ud83d\ude00\ud83d\ude00", parse( new XmlRpcTokenizerEngine(), message ) );
+    }
+
+
+    public void testLargeMessage() throws Exception
+    {
+        StringBuffer message = new StringBuffer( "<methodResponse><params><param><value><array><data>" );
+
+        for ( int i = 0; i < 5000; ++i )
+        {
+            message.append( "<value><struct><member><name>k" ).append( i );
+            message.append( "</name><value><string>v\u00e9" ).append( i );
+            message.append( "</string></value></member></struct></value>" );
+        }
+
+        message.append( "</data></array></value></param></params></methodResponse>" );
+
+        byte[] bytes = message.toString().getBytes( "UTF-8" );
+        String expected = parse( null, bytes );
+
+        assertEquals( expected, parse( new XmlRpcPullParserEngine(), bytes ) );
+        assertEquals( expected, parse( new XmlRpcTokenizerEngine(), bytes ) );
+    }
+
+
+    public void testMalformedMessages() throws Exception
+    {
+        String[] values = new String[]
+        {
+            "<value><i4>1</i4></param>",
+            "<value>&bogus;</value>",
+            "<value>&#x;</value>",
+            "<value>&#;</value>",
+            "<value>&#99999999999;</value>",
+            "<value>&#x110000;</value>",
+            "<value>&#xD800;</value>",
+            "<value>&#0;</value>",
+            "<value>&#x1;</value>",
+            "<value>&#xFFFE;</value>",
+            "<value>a\u0001b</value>",
+            "<value><struct><member><value><i4>1</i4></value><name>a</name></member></struct></value>"
+        };
+
+        for ( int i = 0; i < values.length; ++i )
+        {
+            byte[] message = ( "<methodCall><methodName>x</methodName><params><param>" +
+                values[ i ] + "</param></params></methodCall>" ).getBytes( "UTF-8" );
+
+            assertRejected( values[ i ], new XmlRpcTokenizerEngine(), message );
+            assertRejected( values[ i ], null, message );
+        }
+
+        // SAX lets a member without a name replace the previous member.
+
+        assertRejected(
+            "nameless member",
+            new XmlRpcTokenizerEngine(),
+            ( "<methodResponse><params><param><value><struct><member><name>a</name><value>1</value>" +
+              "</member><member><value>2</value></member></struct></value></param></params>" +
+              "</methodResponse>" ).getBytes( "UTF-8" ) );
+
+        byte[][] sequences = new byte[][]
+        {
+            new byte[] { ( byte ) 0xC0, ( byte ) 0x80 },
+            new byte[] { ( byte ) 0xE0, ( byte ) 0x81, ( byte ) 0x81 },
+            new byte[] { ( byte ) 0xED, ( byte ) 0xA0, ( byte ) 0x80 },
+            new byte[] { ( byte ) 0xF4, ( byte ) 0x90, ( byte ) 0x80, ( byte ) 0x80 },
+            new byte[] { ( byte ) 0xC3 }
+        };
+
+        for ( int i = 0; i < sequences.length; ++i )
+        {
+            byte[] start = "<methodCall><methodName>x</methodName><params><param><value>".getBytes( "UTF-8" );
+            byte[] end = "</value></param></params></methodCall>".getBytes( "UTF-8" );
+            byte[] message = new byte[ start.length + sequences[ i ].length + end.length ];
+
+            System.arraycopy( start, 0, message, 0, start.length );
+            System.arraycopy( sequences[ i ], 0, message, start.length, sequences[ i ].length );
+            System.arraycopy( end, 0, message, start.length + sequences[ i ].length, end.length );
+
+            assertRejected( "sequence " + i, new XmlRpcTokenizerEngine(), message );
+        }
+    }
+
+
+    public void testTruncatedMessage() throws Exception
+    {
+        byte[] message = "<methodCall><methodName>x</methodName><params><param><value><i4>1</i4></value>"
+            .getBytes( "UTF-8" );
+
+        assertRejected( "truncated", new XmlRpcTokenizerEngine(), message );
+        assertRejected( "truncated", new XmlRpcPullParserEngine(), message );
+    }
+
+
+    /**
+     *  Calls a method of the validation suite through servers using each of the engines,
+     *  and checks that the responses are identical and carry the expected value.
+     *
+     *  @return The value of the response.
+     */
+
+    private Object assertValidation( String method, Object[] params, Object expected ) throws Exception
+    {
+        StringWriter call = new StringWriter();
+        XmlRpcSerializer serializer = new XmlRpcSerializer();
+
+        call.write( "<?xml version=\"1.0\" encoding=\"UTF-8\"?><methodCall><methodName>validator1." );
+        call.write( method );
+        call.write( "</methodName><params>" );
+
+        for ( int i = 0; i < params.length; ++i )
+        {
+            call.write( "<param>" );
+            serializer.serialize( params[ i ], call );
+            call.write( "</param>" );
+        }
+
+        call.write( "</params></methodCall>" );
+
+        byte[] message = call.toString().getBytes( "UTF-8" );
+        String response = dispatch( null, message );
+
+        assertEquals( method, response, dispatch( new XmlRpcPullParserEngine(), message ) );
+        assertEquals( method, response, dispatch( new XmlRpcTokenizerEngine(), message ) );
+
+        Collector collector = new Collector();
+        collector.parse( new ByteArrayInputStream( response.getBytes( "UTF-8" ) ) );
+
+        assertFalse( method + ": " + response, collector.isFault );
+        assertEquals( method, 1, collector.values.size() );
+
+        if ( expected != null )
+        {
+            assertEquals( method, expected, collector.values.get( 0 ) );
+        }
+
+        return collector.values.get( 0 );
+    }
+
+
+    private static String dispatch( XmlRpcParserEngine engine, byte[] message ) throws Exception
+    {
+        XmlRpcServer server = new XmlRpcServer();
+        server.setParserEngine( engine );
+        server.addInvocationHandler( "validator1", new ValidationHandler() );
+
+        StringWriter response = new StringWriter();
+        server.execute( new ByteArrayInputStream( message ), response );
+
+        return response.toString();
+    }
+
+
+    /**
+     *  Parses a message and describes what was parsed.
+     */
+
+    private static String parse( XmlRpcParserEngine engine, byte[] message ) throws Exception
+    {
+        Collector collector = new Collector();
+        collector.setParserEngine( engine );
+        collector.parse( new ByteArrayInputStream( message ) );
+
+        StringBuffer result = new StringBuffer();
+        result.append( collector.methodName ).append( '|' ).append( collector.isFault );
+
+        for ( int i = 0; i < collector.values.size(); ++i )
+        {
+            Object value = collector.values.get( i );
+            result.append( '|' );
+            result.append( value instanceof byte[] ? Arrays.toString( ( byte[] ) value ) : String.valueOf( value ) );
+        }
+
+        return result.toString();
+    }
+
+
+    private static void assertRejected( String description, XmlRpcParserEngine engine, byte[] message )
+    {
+        try
+        {
+            parse( engine, message );
+            fail( ( engine == null ? "SAX" : engine.getClass().getName() ) + " accepted " + description );
+        }
+        catch ( XmlRpcException e )
+        {
+            // Expected.
+        }
+        catch ( Exception e )
+        {
+            fail( description + ": " + e );
+        }
+    }
+
+
+    /**
+     *  Parser collecting everything reported by the engine.
+     */
+
+    private static class Collector extends XmlRpcParser
+    {
+        protected void handleParsedValue( Object value )
+        {
+            values.add( value );
+        }
+
+
+        protected void handleMethodName( String methodName )
+        {
+            this.methodName = methodName;
+        }
+
+
+        protected void handleFaultResponse()
+        {
+            isFault = true;
+        }
+
+
+        List values = new ArrayList();
+
+        String methodName;
+
+        boolean isFault;
+    }
+}
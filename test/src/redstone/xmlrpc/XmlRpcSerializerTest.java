@@ -0,0 +1,114 @@
+/*
+    This library is free software; you can redistribute it and/or modify it under the terms
+    of the GNU Lesser General Public License as published by the Free Software Foundation;
+    either version 2.1 of the License, or (at your option) any later version.
+
+    This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+    without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+    See the GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License along with this
+    library; if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+    Boston, MA  02111-1307  USA
+*/
+
+package redstone.xmlrpc;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import junit.framework.TestCase;
+
+/**
+ *  Tests of the custom serializers of XmlRpcSerializer subclasses modifying the
+ *  customSerializers list in their constructors.
+ */
+
+public class XmlRpcSerializerTest extends TestCase
+{
+    /**
+     *  Serializes StringBuffers as strings in upper case.
+     */
+
+    private static class UpperCaseSerializer implements XmlRpcCustomSerializer
+    {
+        public Class getSupportedClass()
+        {
+            return StringBuffer.class;
+        }
+
+
+        public void serialize( Object value, Writer output, XmlRpcSerializer builtInSerializer )
+            throws IOException
+        {
+            output.write( "<string>" + value.toString().toUpperCase() + "</string>" );
+        }
+    }
+
+
+    /**
+     *  Serializer registering its own serializers the way subclasses did before the
+     *  core serializers were shared.
+     */
+
+    private static class ExtendedSerializer extends XmlRpcSerializer
+    {
+        ExtendedSerializer()
+        {
+            customSerializers.add( 0, new UpperCaseSerializer() );
+        }
+    }
+
+
+    public void testSubclassModifiesSharedList() throws Exception
+    {
+        XmlRpcSerializer before = new XmlRpcSerializer();
+        assertUnsupported( before );
+
+        XmlRpcSerializer extended = new ExtendedSerializer();
+        assertEquals( "<value><string>EXTENDED</string></value>", serialize( extended, new StringBuffer( "extended" ) ) );
+
+        // The core serializers are still available to the subclass, and the other
+        // instances sharing them are not affected.
+
+        assertTrue( serialize( extended, new ArrayList() ).indexOf( "<array>" ) != -1 );
+        assertUnsupported( before );
+        assertUnsupported( new XmlRpcSerializer() );
+    }
+
+
+    public void testSubclassOfJsonSerializerModifiesSharedList() throws Exception
+    {
+        XmlRpcSerializer extended = new XmlRpcJsonSerializer()
+        {
+            {
+                customSerializers.add( new UpperCaseSerializer() );
+            }
+        };
+
+        assertEquals( "<string>JSON</string>", serialize( extended, new StringBuffer( "json" ) ).replaceAll( "^<value>|</value>$", "" ) );
+        assertUnsupported( new XmlRpcJsonSerializer() );
+    }
+
+
+    private static void assertUnsupported( XmlRpcSerializer serializer ) throws IOException
+    {
+        try
+        {
+            serialize( serializer, new StringBuffer( "plain" ) );
+            fail( "StringBuffer serialized without a custom serializer" );
+        }
+        catch ( XmlRpcException e )
+        {
+        }
+    }
+
+
+    private static String serialize( XmlRpcSerializer serializer, Object value ) throws IOException
+    {
+        StringWriter writer = new StringWriter();
+        serializer.serialize( value, writer );
+        return writer.toString();
+    }
+}
@@ -0,0 +1,205 @@
+/*
+    This library is free software; you can redistribute it and/or modify it under the terms
+    of the GNU Lesser General Public License as published by the Free Software Foundation;
+    either version 2.1 of the License, or (at your option) any later version.
+
+    This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+    without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+    See the GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License along with this
+    library; if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+    Boston, MA  02111-1307  USA
+*/
+
+package redstone.xmlrpc.util;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Random;
+import java.util.TimeZone;
+import junit.framework.TestCase;
+
+/**
+ *  Tests of Iso8601 against SimpleDateFormat, which it replaced.
+ */
+
+public class Iso8601Test extends TestCase
+{
+    public void testFormatMatchesSimpleDateFormat() throws Exception
+    {
+        Random random = new Random( 20120401L );
+
+        for ( int z = 0; z < ZONES.length; ++z )
+        {
+            TimeZone zone = TimeZone.getTimeZone( ZONES[ z ] );
+            SimpleDateFormat basic = createFormat( "yyyyMMdd'T'HH:mm:ss", zone );
+            SimpleDateFormat extended = createFormat( "yyyy-MM-dd'T'HH:mm:ss", zone );
+
+            for ( int i = 0; i < 10000; ++i )
+            {
+                long time = MIN_TIME + ( long ) ( random.nextDouble() * ( MAX_TIME - MIN_TIME ) );
+                Date date = new Date( time );
+
+                assertEquals( basic.format( date ), Iso8601.format( time, zone, false, false ) );
+                assertEquals( extended.format( date ), Iso8601.format( time, zone, true, false ) );
+            }
+        }
+    }
+
+
+    public void testParseMatchesSimpleDateFormat() throws Exception
+    {
+        Random random = new Random( 20120401L );
+
+        for ( int z = 0; z < ZONES.length; ++z )
+        {
+            TimeZone zone = TimeZone.getTimeZone( ZONES[ z ] );
+            SimpleDateFormat basic = createFormat( "yyyyMMdd'T'HH:mm:ss", zone );
+
+            for ( int i = 0; i < 10000; ++i )
+            {
+                long time = MIN_TIME + ( long ) ( random.nextDouble() * ( MAX_TIME - MIN_TIME ) );
+                String string = basic.format( new Date( time ) );
+
+                assertEquals( string, basic.parse( string ).getTime(), Iso8601.parse( string, zone ) );
+            }
+        }
+    }
+
+
+    public void testRoundTripWithOffset() throws Exception
+    {
+        Random random = new Random( 20120401L );
+
+        for ( int z = 0; z < ZONES.length; ++z )
+        {
+            TimeZone zone = TimeZone.getTimeZone( ZONES[ z ] );
+
+            for ( int i = 0; i < 10000; ++i )
+            {
+                long time = ( long ) ( random.nextDouble() * MAX_TIME ) / 1000 * 1000;
+
+                // The zone given to parse() must not matter when an offset is present.
+                // Times are taken from 1970 on, since offsets written in hours and
+                // minutes cannot express the local mean time of earlier years.
+
+                String string = Iso8601.format( time, zone, i % 2 == 0, true );
+                assertEquals( string, time, Iso8601.parse( string, UTC ) );
+                assertEquals( string, time, Iso8601.parse( string, zone ) );
+            }
+        }
+    }
+
+
+    public void testTimeZoneDesignators() throws Exception
+    {
+        long time = Iso8601.parse( "20120401T12:30:15Z", UTC );
+
+        assertEquals( time, Iso8601.parse( "2012-04-01T12:30:15z", UTC ) );
+        assertEquals( time, Iso8601.parse( "20120401T16:30:15+04:00", UTC ) );
+        assertEquals( time, Iso8601.parse( "20120401T16:30:15+0400", UTC ) );
+        assertEquals( time, Iso8601.parse( "20120401T16:30:15+04", UTC ) );
+        assertEquals( time, Iso8601.parse( "20120401T07:00:15-05:30", UTC ) );
+        assertEquals( time + 250, Iso8601.parse( "20120401T12:30:15.25Z", UTC ) );
+        assertEquals( time + 123, Iso8601.parse( "20120401T12:30:15,123456Z", UTC ) );
+        assertEquals( time, Iso8601.parse( "20120401T12:30:15", UTC ) );
+        assertEquals( time - 4 * 3600000L, Iso8601.parse( "20120401T12:30:15", TimeZone.getTimeZone( "GMT+04:00" ) ) );
+    }
+
+
+    public void testDaylightSavingTransitions() throws Exception
+    {
+        TimeZone zone = TimeZone.getTimeZone( "America/New_York" );
+        SimpleDateFormat format = createFormat( "yyyyMMdd'T'HH:mm:ss", zone );
+        String[] times = {
+            "20120311T01:59:59", "20120311T03:00:00", "20121104T00:59:59",
+            "20121104T01:00:00", "20121104T01:30:00", "20121104T02:00:00" };
+
+        for ( int i = 0; i < times.length; ++i )
+        {
+            assertEquals( times[ i ], format.parse( times[ i ] ).getTime(), Iso8601.parse( times[ i ], zone ) );
+        }
+    }
+
+
+    public void testMalformedDates()
+    {
+        String[] dates = {
+            "", "2012", "20120401", "20120401 12:30:15", "20120401T12:30", "2012041T12:30:15",
+            "20121301T12:30:15", "20120001T12:30:15", "20120432T12:30:15", "20120401T25:30:15",
+            "20120401T12:60:15", "20120401T12:30:61", "20120401T12:30:15X", "20120401T12:30:15+4",
+            "20120401T12:30:15+04:60", "20120401T12:30:15Z0", "2O120401T12:30:15" };
+
+        for ( int i = 0; i < dates.length; ++i )
+        {
+            try
+            {
+                Iso8601.parse( dates[ i ], UTC );
+                fail( "Accepted " + dates[ i ] );
+            }
+            catch ( ParseException e )
+            {
+            }
+        }
+    }
+
+
+    public void testYearsOutsideFourDigits() throws Exception
+    {
+        assertEquals( "00000101T00:00:00", Iso8601.format( Iso8601.parse( "00000101T00:00:00", UTC ), UTC, false, false ) );
+        assertEquals( "99991231T23:59:59", Iso8601.format( Iso8601.parse( "99991231T23:59:59", UTC ), UTC, false, false ) );
+
+        long[] times = {
+            Iso8601.parse( "00000101T00:00:00", UTC ) - 1000, Iso8601.parse( "99991231T23:59:59", UTC ) + 1000,
+            Long.MIN_VALUE / 2, Long.MAX_VALUE / 2 };
+
+        for ( int i = 0; i < times.length; ++i )
+        {
+            try
+            {
+                Iso8601.format( times[ i ], UTC, false, false );
+                fail( "Formatted " + times[ i ] );
+            }
+            catch ( IllegalArgumentException e )
+            {
+            }
+        }
+    }
+
+
+    public void testProlepticGregorianCalendar() throws Exception
+    {
+        // 1582-10-04 was followed by 1582-10-15 in the calendar of SimpleDateFormat,
+        // while the proleptic Gregorian calendar has ten more days in between.
+
+        long reform = Iso8601.parse( "15821015T00:00:00", UTC );
+
+        assertEquals( "15821004T00:00:00", createFormat( "yyyyMMdd'T'HH:mm:ss", UTC ).format( new Date( reform - 86400000L ) ) );
+        assertEquals( "15821014T00:00:00", Iso8601.format( reform - 86400000L, UTC, false, false ) );
+        assertEquals( reform - 11 * 86400000L, Iso8601.parse( "15821004T00:00:00", UTC ) );
+    }
+
+
+    private static SimpleDateFormat createFormat( String pattern, TimeZone zone )
+    {
+        SimpleDateFormat format = new SimpleDateFormat( pattern );
+        format.setTimeZone( zone );
+        return format;
+    }
+
+
+    /** The time zones tested, with and without daylight saving time. */
+    private static final String[] ZONES = {
+        "UTC", "Europe/Moscow", "America/New_York", "Asia/Kolkata", "Australia/Lord_Howe", "Pacific/Chatham" };
+
+    /** Coordinated Universal Time. */
+    private static final TimeZone UTC = TimeZone.getTimeZone( "UTC" );
+
+    /** The earliest time tested, in 1901. */
+    private static final long MIN_TIME = -2177452800000L;
+
+    /** The latest time tested, in 2099. */
+    private static final long MAX_TIME = 4070908800000L;
+}